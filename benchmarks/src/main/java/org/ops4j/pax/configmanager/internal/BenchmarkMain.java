@@ -0,0 +1,46 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of {@code benchmarks.jar}. Runs the JMH command line and, unless the result format or file is given,
+ * writes the results as JSON to {@code jmh-result.json}, so runs can be compared with the usual JMH tooling.
+ */
+public final class BenchmarkMain
+{
+
+    private BenchmarkMain()
+    {
+    }
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        List<String> arguments = new ArrayList<String>( Arrays.asList( args ) );
+        if( !arguments.contains( "-rf" ) && !arguments.contains( "-rff" ) )
+        {
+            arguments.add( "-rf" );
+            arguments.add( "json" );
+            arguments.add( "-rff" );
+            arguments.add( "jmh-result.json" );
+        }
+        org.openjdk.jmh.Main.main( arguments.toArray( new String[arguments.size()] ) );
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Properties;
+
+import org.ops4j.pax.configmanager.internal.handlers.PropertiesFileConfigurationHandler;
+
+/**
+ * Generates the configuration files the benchmarks run on.
+ */
+final class Corpus
+{
+
+    private Corpus()
+    {
+    }
+
+    static File createTempDir( String prefix )
+        throws IOException
+    {
+        File dir = File.createTempFile( "confman-" + prefix, "" );
+        if( !dir.delete() || !dir.mkdirs() )
+        {
+            throw new IOException( "Can't create directory [" + dir + "]" );
+        }
+        return dir;
+    }
+
+    /**
+     * Creates a configuration area with {@code files} service configuration files named {@code service.<n>}, each
+     * with a handful of entries, and an empty {@code factories} directory. The modification time of the directories
+     * is set back, as it is for a configuration area that is not being edited.
+     */
+    static File createConfigurationArea( int files )
+        throws IOException
+    {
+        File root = createTempDir( "area" );
+        File services = new File( root, ConfigurationAdminFacade.DIRECTORY_NAME_SERVICES );
+        File factories = new File( root, ConfigurationAdminFacade.DIRECTORY_NAME_FACTORIES );
+        services.mkdirs();
+        factories.mkdirs();
+        for( int i = 0; i < files; i++ )
+        {
+            writePropertiesFile( new File( services, "service." + i + ".properties" ), 5 );
+        }
+
+        long past = System.currentTimeMillis() - 60 * 1000;
+        services.setLastModified( past );
+        factories.setLastModified( past );
+        return root;
+    }
+
+    /**
+     * Creates a facade that loads the configuration area {@code root} with the properties file handler.
+     */
+    static ConfigurationAdminFacade createFacade( final File root )
+    {
+        ConfigurationAdminFacade facade = new ConfigurationAdminFacade( new ConfigurationAdminFacade.PropertyResolver()
+        {
+
+            public String getProperty( String key )
+            {
+                if( ConfigurationAdminFacade.BUNDLES_CONFIGURATION_LOCATION.equals( key ) )
+                {
+                    return root.getAbsolutePath();
+                }
+                return null;
+            }
+
+        }
+        );
+        facade.addFileHandler( new PropertiesFileConfigurationHandler() );
+        return facade;
+    }
+
+    /**
+     * Returns the properties of a factory configuration file describing {@code instances} instances.
+     */
+    static Properties createFactoryProperties( int instances, String value )
+    {
+        Properties properties = new Properties();
+        properties.setProperty( "instances", String.valueOf( instances ) );
+        properties.setProperty( "keys", "host,port,name" );
+        for( int i = 1; i <= instances; i++ )
+        {
+            properties.setProperty( "host." + i, "host" + i + ".example.org" );
+            properties.setProperty( "port." + i, String.valueOf( 8000 + i ) );
+            properties.setProperty( "name." + i, value );
+        }
+        return properties;
+    }
+
+    /**
+     * Writes a properties file with the specified number of {@code entries}. Every entry is preceded by a comment,
+     * and every third entry has an escape and a line continuation.
+     */
+    static File writePropertiesFile( File file, int entries )
+        throws IOException
+    {
+        Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "ISO-8859-1" ) );
+        try
+        {
+            for( int i = 0; i < entries; i++ )
+            {
+                writer.write( "# entry " + i + "\n" );
+                if( i % 3 == 0 )
+                {
+                    writer.write( "org.ops4j.pax.key." + i + " = value " + i + " with\\ttab \\\n    and continuation\n" );
+                }
+                else
+                {
+                    writer.write( "org.ops4j.pax.key." + i + "=value " + i + "\n" );
+                }
+            }
+        } finally
+        {
+            writer.close();
+        }
+        return file;
+    }
+
+    static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if( children != null )
+        {
+            for( File child : children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}
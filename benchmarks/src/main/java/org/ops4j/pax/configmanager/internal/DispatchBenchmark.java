@@ -0,0 +1,158 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+import org.ops4j.pax.configmanager.IPatternConfigurationFileHandler;
+
+/**
+ * Measures the dispatch of 1000 file names to one of 1 to 100 registered handlers through {@code FileHandlerIndex},
+ * against the linear {@code canHandle} scan it replaced. One in ten file names is handled by no handler.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class DispatchBenchmark
+{
+
+    private static final int FILES = 1000;
+
+    @Param( { "1", "10", "100" } )
+    public int handlers;
+
+    private File[] m_files;
+    private FileHandlerIndex m_index;
+    private IConfigurationFileHandler[] m_linear;
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        List<IConfigurationFileHandler> patternHandlers = new ArrayList<IConfigurationFileHandler>();
+        m_linear = new IConfigurationFileHandler[handlers];
+        for( int i = 0; i < handlers; i++ )
+        {
+            patternHandlers.add( new BenchmarkHandler( "ext" + i ) );
+            m_linear[ i ] = new LegacyHandler( "ext" + i );
+        }
+        m_index = new FileHandlerIndex( patternHandlers );
+
+        Random random = new Random( 42 );
+        m_files = new File[FILES];
+        for( int i = 0; i < FILES; i++ )
+        {
+            String extension = i % 10 == 9 ? "unhandled" : "ext" + random.nextInt( handlers );
+            m_files[ i ] = new File( "/etc/configuration/services", "service." + i + "." + extension );
+        }
+    }
+
+    @Benchmark
+    public void index( Blackhole blackhole )
+    {
+        for( File file : m_files )
+        {
+            blackhole.consume( m_index.getHandler( file ) );
+        }
+    }
+
+    @Benchmark
+    public void linearScan( Blackhole blackhole )
+    {
+        for( File file : m_files )
+        {
+            IConfigurationFileHandler found = null;
+            for( IConfigurationFileHandler handler : m_linear )
+            {
+                if( handler.canHandle( file ) )
+                {
+                    found = handler;
+                    break;
+                }
+            }
+            blackhole.consume( found );
+        }
+    }
+
+    /**
+     * A handler that only implements {@code canHandle}, as all handlers did before patterns were introduced.
+     */
+    private static class LegacyHandler
+        implements IConfigurationFileHandler
+    {
+
+        private final String m_suffix;
+
+        private LegacyHandler( String extension )
+        {
+            m_suffix = "." + extension;
+        }
+
+        public String getServicePID( String fileName )
+        {
+            return fileName.substring( 0, fileName.length() - m_suffix.length() );
+        }
+
+        public Properties handle( File file )
+        {
+            return new Properties();
+        }
+
+        public boolean canHandle( File file )
+        {
+            return file.getName().endsWith( m_suffix );
+        }
+    }
+
+    private static final class BenchmarkHandler extends LegacyHandler
+        implements IPatternConfigurationFileHandler
+    {
+
+        private final String[] m_patterns;
+
+        private BenchmarkHandler( String extension )
+        {
+            super( extension );
+            m_patterns = new String[]{ "*." + extension };
+        }
+
+        public String[] getFilePatterns()
+        {
+            return m_patterns;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@code ManagedFactoryPropertiesProcessor} with factories of 1 to 1000 instances: creating all instances,
+ * reconciling instances that did not change, and reconciling after one instance changed.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FactoryBenchmark
+{
+
+    private static final String FACTORY_PID = "org.ops4j.pax.benchmark.factory";
+
+    @Param( { "1", "10", "100", "1000" } )
+    public int instances;
+
+    private ManagedFactoryPropertiesProcessor m_processor;
+    private InMemoryConfigurationAdmin m_configAdmin;
+    private Properties m_properties;
+    private Properties[] m_alternating;
+    private int m_invocation;
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        m_processor = new ManagedFactoryPropertiesProcessor();
+        m_properties = Corpus.createFactoryProperties( instances, "initial" );
+        m_configAdmin = new InMemoryConfigurationAdmin();
+        m_processor.process( m_configAdmin, FACTORY_PID, m_properties );
+
+        // the two versions differ in the first instance only
+        Properties first = (Properties) m_properties.clone();
+        first.setProperty( "name.1", "first" );
+        Properties second = (Properties) m_properties.clone();
+        second.setProperty( "name.1", "second" );
+        m_alternating = new Properties[]{ first, second };
+    }
+
+    /**
+     * The first load of the factory file: every instance is created.
+     */
+    @Benchmark
+    public boolean createInstances()
+    {
+        return m_processor.process( new InMemoryConfigurationAdmin(), FACTORY_PID, m_properties );
+    }
+
+    /**
+     * A reload of the unchanged factory file: no instance is updated.
+     */
+    @Benchmark
+    public boolean reconcileUnchanged()
+    {
+        return m_processor.process( m_configAdmin, FACTORY_PID, m_properties );
+    }
+
+    /**
+     * A reload after one instance changed: only that instance is updated.
+     */
+    @Benchmark
+    public boolean reconcileOneChanged()
+    {
+        return m_processor.process( m_configAdmin, FACTORY_PID, m_alternating[ m_invocation++ & 1 ] );
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ops4j.pax.configmanager.internal.handlers.PropertiesFileConfigurationHandler;
+
+/**
+ * Compares the properties parser of {@code PropertiesFileConfigurationHandler} with {@code Properties.load} on a
+ * buffered stream, for small, medium and huge files. The files contain comments, escapes and line continuations.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class PropertiesParserBenchmark
+{
+
+    /**
+     * The number of entries of the file: small, medium or huge.
+     */
+    @Param( { "10", "1000", "100000" } )
+    public int entries;
+
+    private File m_dir;
+    private File m_file;
+    private PropertiesFileConfigurationHandler m_handler;
+
+    @Setup( Level.Trial )
+    public void setUp()
+        throws IOException
+    {
+        m_dir = Corpus.createTempDir( "parser" );
+        m_file = Corpus.writePropertiesFile( new File( m_dir, "benchmark.properties" ), entries );
+        m_handler = new PropertiesFileConfigurationHandler();
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        Corpus.delete( m_dir );
+    }
+
+    @Benchmark
+    public Properties handler()
+    {
+        return m_handler.handle( m_file );
+    }
+
+    @Benchmark
+    public Properties propertiesLoad()
+        throws IOException
+    {
+        Properties properties = new Properties();
+        InputStream in = new BufferedInputStream( new FileInputStream( m_file ) );
+        try
+        {
+            properties.load( in );
+        } finally
+        {
+            in.close();
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Measures {@code ConfigurationAdminFacade} on generated configuration areas of 10 to 100k service files: a full
+ * registration into an empty configuration admin service, a reload that finds nothing changed, and the update of a
+ * single service pid.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class RegistrationBenchmark
+{
+
+    @Param( { "10", "1000", "10000", "100000" } )
+    public int files;
+
+    private File m_root;
+    private ConfigurationAdminFacade m_facade;
+    private String m_servicePid;
+
+    @Setup( Level.Trial )
+    public void setUp()
+        throws IOException, InvalidSyntaxException
+    {
+        m_root = Corpus.createConfigurationArea( files );
+        m_servicePid = "service." + ( files / 2 );
+
+        m_facade = Corpus.createFacade( m_root );
+        m_facade.setConfigurationAdminService( new InMemoryConfigurationAdmin() );
+        m_facade.registerConfigurations( null, false );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        m_facade.dispose();
+        Corpus.delete( m_root );
+    }
+
+    /**
+     * A start of the bundle: every file is parsed and pushed to an empty configuration admin service.
+     */
+    @Benchmark
+    public int fullRegistration()
+        throws IOException, InvalidSyntaxException
+    {
+        InMemoryConfigurationAdmin configAdmin = new InMemoryConfigurationAdmin();
+        ConfigurationAdminFacade facade = Corpus.createFacade( m_root );
+        try
+        {
+            facade.setConfigurationAdminService( configAdmin );
+            facade.registerConfigurations( null, false );
+        } finally
+        {
+            facade.dispose();
+        }
+        return configAdmin.size();
+    }
+
+    /**
+     * A reload of the whole configuration area in which no file changed.
+     */
+    @Benchmark
+    public void unchangedReload()
+        throws IOException, InvalidSyntaxException
+    {
+        m_facade.registerConfigurations( null, true );
+    }
+
+    /**
+     * A forced update of one service pid, as requested through {@code IConfigurationUpdater}.
+     */
+    @Benchmark
+    public void singlePidUpdate()
+        throws IOException, InvalidSyntaxException
+    {
+        m_facade.registerConfigurations( m_servicePid, true );
+    }
+}
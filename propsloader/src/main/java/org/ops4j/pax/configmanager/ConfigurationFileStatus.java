@@ -0,0 +1,163 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager;
+
+import java.io.Serializable;
+
+/**
+ * The state of a configuration file that was applied to the configuration admin service, as reported by
+ * {@code IConfigurationDiagnostics}. It compares the fingerprint taken when the file was applied with the file as it
+ * is on disk now.
+ */
+public final class ConfigurationFileStatus
+    implements Serializable
+{
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How the file on disk relates to the applied file.
+     */
+    public static enum State
+    {
+
+        /**
+         * Size and modification time of the file on disk match the applied file.
+         */
+        APPLIED,
+
+        /**
+         * The file on disk was touched since it was applied. It is applied again by the next reload if its content
+         * changed.
+         */
+        MODIFIED,
+
+        /**
+         * The file no longer exists. Its configuration is removed by the next reload.
+         */
+        DELETED
+    }
+
+    private final String m_servicePid;
+    private final boolean m_factory;
+    private final String m_path;
+    private final String m_handler;
+    private final long m_appliedSize;
+    private final long m_appliedLastModified;
+    private final String m_appliedHash;
+    private final long m_size;
+    private final long m_lastModified;
+
+    public ConfigurationFileStatus( String servicePid, boolean isFactory, String path, String handler,
+                                    long appliedSize, long appliedLastModified, String appliedHash, long size,
+                                    long lastModified )
+    {
+        m_servicePid = servicePid;
+        m_factory = isFactory;
+        m_path = path;
+        m_handler = handler;
+        m_appliedSize = appliedSize;
+        m_appliedLastModified = appliedLastModified;
+        m_appliedHash = appliedHash;
+        m_size = size;
+        m_lastModified = lastModified;
+    }
+
+    /**
+     * Returns the service pid, or factory pid, the file was applied to.
+     */
+    public String getServicePid()
+    {
+        return m_servicePid;
+    }
+
+    /**
+     * Returns {@code true} if the file configures a {@code ManagedServiceFactory}.
+     */
+    public boolean isFactory()
+    {
+        return m_factory;
+    }
+
+    /**
+     * Returns the absolute path of the file.
+     */
+    public String getPath()
+    {
+        return m_path;
+    }
+
+    /**
+     * Returns the class name of the handler that loaded the file.
+     */
+    public String getHandler()
+    {
+        return m_handler;
+    }
+
+    public long getAppliedSize()
+    {
+        return m_appliedSize;
+    }
+
+    public long getAppliedLastModified()
+    {
+        return m_appliedLastModified;
+    }
+
+    /**
+     * Returns the digest of the applied file content, as hex string.
+     */
+    public String getAppliedHash()
+    {
+        return m_appliedHash;
+    }
+
+    /**
+     * Returns the size of the file on disk, or {@code -1} if it was deleted.
+     */
+    public long getSize()
+    {
+        return m_size;
+    }
+
+    /**
+     * Returns the modification time of the file on disk, or {@code -1} if it was deleted.
+     */
+    public long getLastModified()
+    {
+        return m_lastModified;
+    }
+
+    public State getState()
+    {
+        if( m_size < 0 )
+        {
+            return State.DELETED;
+        }
+        if( m_size != m_appliedSize || m_lastModified != m_appliedLastModified )
+        {
+            return State.MODIFIED;
+        }
+        return State.APPLIED;
+    }
+
+    @Override
+    public String toString()
+    {
+        return m_servicePid + ( m_factory ? " (factory)" : "" ) + " " + getState() + " " + m_path;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of the latencies recorded for a single operation, as reported by {@code IConfigurationMetrics}. All
+ * durations are in nanoseconds. Percentiles are taken from a histogram and overestimate the exact value by at most
+ * an eighth.
+ */
+public final class ConfigurationLatency
+    implements Serializable
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private final long m_count;
+    private final long m_totalNanos;
+    private final long m_maxNanos;
+    private final long m_p50Nanos;
+    private final long m_p90Nanos;
+    private final long m_p99Nanos;
+
+    public ConfigurationLatency( long count, long totalNanos, long maxNanos, long p50Nanos, long p90Nanos,
+                                 long p99Nanos )
+    {
+        m_count = count;
+        m_totalNanos = totalNanos;
+        m_maxNanos = maxNanos;
+        m_p50Nanos = p50Nanos;
+        m_p90Nanos = p90Nanos;
+        m_p99Nanos = p99Nanos;
+    }
+
+    /**
+     * Returns the number of recorded operations.
+     */
+    public long getCount()
+    {
+        return m_count;
+    }
+
+    /**
+     * Returns the sum of the durations of all recorded operations.
+     */
+    public long getTotalNanos()
+    {
+        return m_totalNanos;
+    }
+
+    /**
+     * Returns the mean duration, or {@code 0} if no operation was recorded.
+     */
+    public long getMeanNanos()
+    {
+        return m_count == 0 ? 0 : m_totalNanos / m_count;
+    }
+
+    /**
+     * Returns the longest recorded duration.
+     */
+    public long getMaxNanos()
+    {
+        return m_maxNanos;
+    }
+
+    /**
+     * Returns the median duration.
+     */
+    public long getP50Nanos()
+    {
+        return m_p50Nanos;
+    }
+
+    /**
+     * Returns the duration 90% of the operations did not exceed.
+     */
+    public long getP90Nanos()
+    {
+        return m_p90Nanos;
+    }
+
+    /**
+     * Returns the duration 99% of the operations did not exceed.
+     */
+    public long getP99Nanos()
+    {
+        return m_p99Nanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + m_count + ", mean=" + getMeanNanos() + "ns, p50=" + m_p50Nanos + "ns, p90=" + m_p90Nanos
+               + "ns, p99=" + m_p99Nanos + "ns, max=" + m_maxNanos + "ns";
+    }
+}
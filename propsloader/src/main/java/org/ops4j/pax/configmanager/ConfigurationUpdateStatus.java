@@ -0,0 +1,44 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager;
+
+/**
+ * The outcome of an update of a single service.pid requested through {@code IAsyncConfigurationUpdater}.
+ */
+public enum ConfigurationUpdateStatus
+{
+
+    /**
+     * The configuration file was loaded and pushed to the configuration admin service.
+     */
+    UPDATED,
+
+    /**
+     * The configuration file was loaded, but the configuration admin service already held its properties, so the
+     * managed service was not updated.
+     */
+    UNCHANGED,
+
+    /**
+     * The configuration file was deleted, so its configuration was removed from the configuration admin service.
+     */
+    DELETED,
+
+    /**
+     * There is no configuration file for the service.pid.
+     */
+    NOT_FOUND
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * An {@code IConfigurationUpdater} that also updates managed services asynchronously. The configuration manager
+ * registers its updater under both interfaces, so callers of {@code IConfigurationUpdater} and its implementations
+ * elsewhere are not affected.
+ */
+public interface IAsyncConfigurationUpdater
+    extends IConfigurationUpdater
+{
+
+    /**
+     * Initiate an asynchronous update of a managed service with a given service.pid. Requests for a service.pid that
+     * is already waiting to be updated are merged and share the returned {@code Future}. The {@code Future} fails
+     * with the exception {@link #updateConfiguration(String)} would have thrown.
+     *
+     * @param servicePid the service.pid of the service that should be updated.
+     * @return the outcome of the update.
+     */
+    public Future<ConfigurationUpdateStatus> updateConfigurationAsync( String servicePid );
+
+    /**
+     * Initiate an asynchronous update of the managed services with the given service.pids. All service.pids that are
+     * waiting to be updated are loaded in a single pass over the configuration files.
+     *
+     * @param servicePids the service.pids of the services that should be updated.
+     * @return the outcome of the update of each service.pid.
+     */
+    public Map<String, Future<ConfigurationUpdateStatus>> updateConfigurations( Collection<String> servicePids );
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Diagnostics of the configuration files applied by the properties loader, registered as a service. The files are
+ * taken from the index of applied files, so listing them never walks the configuration directories, and at most one
+ * file is read at a time.
+ * <p>
+ * A {@code filter} selects service pids. If it contains {@code *} or {@code ?} it is a glob that has to match the
+ * whole service pid, otherwise it is a prefix. {@code null} selects all service pids. Results are ordered by service
+ * pid and path.
+ */
+public interface IConfigurationDiagnostics
+{
+
+    /**
+     * Returns the number of applied configuration files whose service pid matches the specified {@code filter}.
+     *
+     * @param filter The service pid filter, or {@code null} for all files.
+     *
+     * @return The number of matching files.
+     */
+    int getConfigurationFileCount( String filter );
+
+    /**
+     * Returns a page of the applied configuration files whose service pid matches the specified {@code filter}. Only
+     * the files of the page are looked up on disk.
+     *
+     * @param filter The service pid filter, or {@code null} for all files.
+     * @param offset The number of matching files to skip. This argument must not be negative.
+     * @param limit  The maximum number of files to return. This argument must be positive.
+     *
+     * @return The files of the page. Never {@code null}.
+     *
+     * @throws IllegalArgumentException Thrown if {@code offset} or {@code limit} is out of range.
+     */
+    List<ConfigurationFileStatus> getConfigurationFiles( String filter, int offset, int limit )
+        throws IllegalArgumentException;
+
+    /**
+     * Prints a page of the applied configuration files, one line per file, followed by the range of the page.
+     *
+     * @param writer The writer. This argument must not be {@code null}.
+     * @param filter The service pid filter, or {@code null} for all files.
+     * @param offset The number of matching files to skip. This argument must not be negative.
+     * @param limit  The maximum number of files to print. This argument must be positive.
+     *
+     * @throws IllegalArgumentException Thrown if {@code offset} or {@code limit} is out of range.
+     */
+    void printConfigurationFiles( PrintWriter writer, String filter, int offset, int limit )
+        throws IllegalArgumentException;
+
+    /**
+     * Prints the files of the specified {@code servicePid} with their applied and on-disk fingerprints, followed by
+     * the applied properties. If a file changed on disk, it is loaded with its handler and the properties that
+     * differ are marked.
+     *
+     * @param writer     The writer. This argument must not be {@code null}.
+     * @param servicePid The service pid. This argument must not be {@code null}.
+     *
+     * @return {@code false} if no applied file configures {@code servicePid}.
+     */
+    boolean printConfiguration( PrintWriter writer, String servicePid );
+}
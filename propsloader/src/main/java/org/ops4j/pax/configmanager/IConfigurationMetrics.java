@@ -0,0 +1,97 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager;
+
+import java.util.Map;
+
+/**
+ * Counters and latencies of the loading of configuration files, registered as a service by the properties loader.
+ * The values accumulate from the start of the bundle. Every value is read without locking, so values read one after
+ * the other may describe slightly different moments.
+ */
+public interface IConfigurationMetrics
+{
+
+    /**
+     * The {@code ConfigurationAdmin.listConfigurations} operation.
+     */
+    static final String OPERATION_LIST_CONFIGURATIONS = "listConfigurations";
+
+    /**
+     * The {@code Configuration.update} operation.
+     */
+    static final String OPERATION_UPDATE = "update";
+
+    /**
+     * The {@code ConfigurationAdmin.createFactoryConfiguration} operation.
+     */
+    static final String OPERATION_CREATE_FACTORY_CONFIGURATION = "createFactoryConfiguration";
+
+    /**
+     * Returns the number of configuration files that were looked at, whether or not they had to be loaded.
+     */
+    long getFilesScanned();
+
+    /**
+     * Returns the number of configuration files that were parsed by a handler.
+     */
+    long getFilesParsed();
+
+    /**
+     * Returns the number of bytes read from configuration files.
+     */
+    long getBytesRead();
+
+    /**
+     * Returns the number of {@code Configuration.update} calls that were skipped because the configuration admin
+     * service already held the loaded properties.
+     */
+    long getUpdatesSkipped();
+
+    /**
+     * Returns the number of configuration files or instances that could not be applied.
+     */
+    long getFailures();
+
+    /**
+     * Returns the number of failures of each service pid that failed at least once.
+     *
+     * @return A copy of the failures, keyed by service pid. Never {@code null}.
+     */
+    Map<String, Long> getFailuresByServicePid();
+
+    /**
+     * Returns the latencies of whole registration passes, i.e. of loading all configuration files or the files of
+     * the requested service pids.
+     */
+    ConfigurationLatency getRegistrationLatency();
+
+    /**
+     * Returns the time spent parsing files, by handler.
+     *
+     * @return A copy of the latencies, keyed by the class name of the handler. Never {@code null}.
+     */
+    Map<String, ConfigurationLatency> getParseLatencies();
+
+    /**
+     * Returns the latencies of calls to the configuration admin service.
+     *
+     * @param operation One of the {@code OPERATION_} constants.
+     *
+     * @return The latencies of {@code operation}, or {@code null} if {@code operation} is not known.
+     */
+    ConfigurationLatency getConfigurationAdminLatency( String operation );
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager;
+
+/**
+ * An {@code IConfigurationFileHandler} that declares the file names it handles. Such a handler is selected by
+ * matching the file name against its patterns, {@link #canHandle(java.io.File)} is not called during dispatch.
+ * Handlers that only implement {@code IConfigurationFileHandler} are still asked through {@code canHandle}.
+ */
+public interface IPatternConfigurationFileHandler
+    extends IConfigurationFileHandler
+{
+
+    /**
+     * Returns the glob patterns of the file names this handler handles. A pattern is matched against the file name
+     * without path prefix, {@code *} matches any sequence of characters and {@code ?} matches a single character.
+     * Suffix patterns like {@code *.properties} are the cheapest to dispatch. The patterns must not change while the
+     * handler is registered.
+     *
+     * @return The file name patterns. Never {@code null}.
+     */
+    String[] getFilePatterns();
+}
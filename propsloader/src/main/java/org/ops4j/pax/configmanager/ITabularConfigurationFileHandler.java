@@ -0,0 +1,68 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Dictionary;
+
+/**
+ * An {@code IConfigurationFileHandler} of a row oriented {@code ManagedServiceFactory} format, e.g. a table with a
+ * header of keys and a row per instance. The configuration manager reads the rows of such a file one at a time
+ * through {@link #openRows(File)}, so the memory needed does not grow with the number of instances.
+ * <p>
+ * {@link #handle(File)} only returns a summary of the file: its {@code instances} count and its {@code keys}.
+ */
+public interface ITabularConfigurationFileHandler
+    extends IConfigurationFileHandler
+{
+
+    /**
+     * Opens the rows of the specified {@code file}. The caller closes the returned rows.
+     *
+     * @param file The configuration file. This argument must not be {@code null}.
+     *
+     * @return The rows of {@code file}.
+     *
+     * @throws IOException Thrown if {@code file} can not be opened.
+     */
+    Rows openRows( File file )
+        throws IOException;
+
+    /**
+     * The rows of a file, each row the properties of one instance.
+     */
+    static interface Rows
+    {
+
+        /**
+         * Returns the properties of the next row, or {@code null} after the last row.
+         *
+         * @throws IOException              Thrown if the file can not be read.
+         * @throws IllegalArgumentException Thrown if the row is malformed.
+         */
+        Dictionary<String, Object> next()
+            throws IOException, IllegalArgumentException;
+
+        /**
+         * Closes the file.
+         *
+         * @throws IOException Thrown if the file can not be closed.
+         */
+        void close()
+            throws IOException;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager;
+
+import java.io.File;
+import java.util.Dictionary;
+
+/**
+ * An {@code IConfigurationFileHandler} that loads typed values. The configuration manager calls
+ * {@link #handleTyped(File)} instead of {@link #handle(File)} on such a handler, so its values reach the
+ * configuration admin service as they are, instead of as strings.
+ * <p>
+ * The values must be of a type the configuration admin service accepts: {@code String}, {@code Integer},
+ * {@code Long}, {@code Float}, {@code Double}, {@code Byte}, {@code Short}, {@code Character}, {@code Boolean},
+ * {@code BigInteger}, {@code BigDecimal}, arrays of these or arrays of primitives.
+ */
+public interface ITypedConfigurationFileHandler
+    extends IConfigurationFileHandler
+{
+
+    /**
+     * Returns the typed properties after loading the specified {@code file}. Returns an empty dictionary if the
+     * specified {@code file} does not have any configuration properties.
+     *
+     * @param file The configuration file to be loaded. This argument must not be {@code null}.
+     *
+     * @return Returns the properties of the specified {@code file}, or {@code null} if it can not be read.
+     *
+     * @throws IllegalArgumentException Thrown if {@code file} is {@code null} or a value can not be converted.
+     */
+    Dictionary<String, Object> handleTyped( File file )
+        throws IllegalArgumentException;
+}
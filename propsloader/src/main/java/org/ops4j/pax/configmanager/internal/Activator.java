@@ -19,9 +19,16 @@ import java.util.Hashtable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.ops4j.pax.configmanager.IAsyncConfigurationUpdater;
+import org.ops4j.pax.configmanager.IConfigurationDiagnostics;
 import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+import org.ops4j.pax.configmanager.IConfigurationMetrics;
 import org.ops4j.pax.configmanager.IConfigurationUpdater;
+import org.ops4j.pax.configmanager.internal.handlers.ConfigurationParseCache;
+import org.ops4j.pax.configmanager.internal.handlers.JsonFileConfigurationHandler;
 import org.ops4j.pax.configmanager.internal.handlers.PropertiesFileConfigurationHandler;
+import org.ops4j.pax.configmanager.internal.handlers.TabularFileConfigurationHandler;
+import org.ops4j.pax.configmanager.internal.handlers.YamlFileConfigurationHandler;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
@@ -33,12 +40,21 @@ public final class Activator implements BundleActivator
 
     private static final Log LOGGER = LogFactory.getLog( Activator.class );
     private static final String SERVICE_NAME = IConfigurationFileHandler.class.getName();
+    private static final String SNAPSHOT_FILE_NAME = "configuration.snapshot";
 
     private ServiceTracker m_configTracker;
     private ConfigurationFileHandlerServiceTracker m_configFileTracker;
     private ServiceRegistration m_propertyFileHandlerRegistration;
+    private ServiceRegistration m_jsonFileHandlerRegistration;
+    private ServiceRegistration m_yamlFileHandlerRegistration;
+    private ServiceRegistration m_tabularFileHandlerRegistration;
     private ConfigurationAdminFacade m_configAdminFacade;
     private ServiceRegistration m_configUpdaterRegistration;
+    private ConfigurationUpdater m_configurationUpdater;
+    private ConfigurationDirectoryWatcher m_directoryWatcher;
+    private ServiceRegistration m_metricsRegistration;
+    private ServiceRegistration m_diagnosticsRegistration;
+    private ConfigurationMetricsExporter m_metricsExporter;
 
     public void start( final BundleContext context )
         throws Exception
@@ -52,7 +68,14 @@ public final class Activator implements BundleActivator
 
         PropertiesFileConfigurationHandler handler = new PropertiesFileConfigurationHandler();
         m_propertyFileHandlerRegistration = context.registerService( Activator.SERVICE_NAME, handler, new Hashtable() );
-        m_configAdminFacade = new ConfigurationAdminFacade( new ConfigurationAdminFacade.PropertyResolver()
+        ConfigurationParseCache parseCache = new ConfigurationParseCache( getParseCacheSize( context ) );
+        m_jsonFileHandlerRegistration = context.registerService( Activator.SERVICE_NAME,
+            new JsonFileConfigurationHandler( parseCache ), new Hashtable<String, Object>() );
+        m_yamlFileHandlerRegistration = context.registerService( Activator.SERVICE_NAME,
+            new YamlFileConfigurationHandler( parseCache ), new Hashtable<String, Object>() );
+        m_tabularFileHandlerRegistration = context.registerService( Activator.SERVICE_NAME,
+            new TabularFileConfigurationHandler(), new Hashtable<String, Object>() );
+        ConfigurationAdminFacade.PropertyResolver propertyResolver = new ConfigurationAdminFacade.PropertyResolver()
         {
 
             /**
@@ -64,18 +87,43 @@ public final class Activator implements BundleActivator
                 return context.getProperty( key );
             }
 
-            }
-        );
+        };
+        m_configAdminFacade = new ConfigurationAdminFacade( propertyResolver );
+        m_configAdminFacade.setSnapshotFile( context.getDataFile( SNAPSHOT_FILE_NAME ) );
+
+        // the handlers are known before the first pass, which the configuration admin service may start right away
+        m_configFileTracker = new ConfigurationFileHandlerServiceTracker( context, m_configAdminFacade );
+        m_configFileTracker.open();
 
         m_configTracker = new ConfigAdminServiceTracker( context, m_configAdminFacade );
         m_configTracker.open();
 
-        m_configFileTracker = new ConfigurationFileHandlerServiceTracker( context, m_configAdminFacade );
-        m_configFileTracker.open();
+        // parse the files while waiting for the configuration admin service, its tracker only has to apply them
+        m_configAdminFacade.stageConfigurations();
+
+        m_configurationUpdater = new ConfigurationUpdater( this.m_configAdminFacade );
+        this.m_configUpdaterRegistration = context.registerService(
+            new String[]{ IConfigurationUpdater.class.getName(), IAsyncConfigurationUpdater.class.getName() },
+            m_configurationUpdater, new Hashtable() );
+
+        ConfigurationMetrics metrics = m_configAdminFacade.getMetrics();
+        m_metricsRegistration = context.registerService( IConfigurationMetrics.class.getName(), metrics,
+            new Hashtable<String, Object>() );
+        m_diagnosticsRegistration = context.registerService( IConfigurationDiagnostics.class.getName(),
+            m_configAdminFacade.getDiagnostics(), new Hashtable<String, Object>() );
+        try
+        {
+            m_metricsExporter = ConfigurationMetricsExporter.register( metrics );
+        } catch( LinkageError e )
+        {
+            LOGGER.info( "JMX is not available, configuration metrics are not registered as MBean." );
+        }
 
-        ConfigurationUpdater configurationUpdater = new ConfigurationUpdater( this.m_configAdminFacade );
-        this.m_configUpdaterRegistration = context.registerService( IConfigurationUpdater.class.getName(),
-            configurationUpdater, new Hashtable() );
+        m_directoryWatcher = ConfigurationDirectoryWatcher.create( m_configAdminFacade, propertyResolver );
+        if( m_directoryWatcher != null )
+        {
+            m_directoryWatcher.start();
+        }
     }
 
     public void stop( BundleContext context )
@@ -88,19 +136,69 @@ public final class Activator implements BundleActivator
             LOGGER.debug( "Stopping [" + symbolicName + "]" );
         }
 
-        m_propertyFileHandlerRegistration.unregister();
-        m_propertyFileHandlerRegistration = null;
+        if( m_directoryWatcher != null )
+        {
+            m_directoryWatcher.stop();
+            m_directoryWatcher = null;
+        }
+
+        if( m_metricsExporter != null )
+        {
+            m_metricsExporter.unregister();
+            m_metricsExporter = null;
+        }
+
+        m_metricsRegistration.unregister();
+        m_metricsRegistration = null;
+
+        m_diagnosticsRegistration.unregister();
+        m_diagnosticsRegistration = null;
 
         m_configUpdaterRegistration.unregister();
         m_configUpdaterRegistration = null;
 
-        m_configFileTracker.close();
-        m_configFileTracker = null;
+        m_configurationUpdater.dispose();
+        m_configurationUpdater = null;
 
+        // the configuration admin service goes first, so the handlers that go away with this bundle are not taken
+        // as removed and their configurations stay, whatever the removal policy
         m_configTracker.close();
         m_configTracker = null;
 
+        m_configFileTracker.close();
+        m_configFileTracker = null;
+
         m_configAdminFacade.dispose();
         m_configAdminFacade = null;
+
+        m_tabularFileHandlerRegistration.unregister();
+        m_tabularFileHandlerRegistration = null;
+
+        m_yamlFileHandlerRegistration.unregister();
+        m_yamlFileHandlerRegistration = null;
+
+        m_jsonFileHandlerRegistration.unregister();
+        m_jsonFileHandlerRegistration = null;
+
+        m_propertyFileHandlerRegistration.unregister();
+        m_propertyFileHandlerRegistration = null;
+    }
+
+    private static int getParseCacheSize( BundleContext context )
+    {
+        String value = context.getProperty( ConfigurationParseCache.BUNDLES_CONFIGURATION_PARSE_CACHE_SIZE );
+        if( value != null )
+        {
+            try
+            {
+                return Integer.parseInt( value.trim() );
+            } catch( NumberFormatException e )
+            {
+                LOGGER.warn( "Property [" + ConfigurationParseCache.BUNDLES_CONFIGURATION_PARSE_CACHE_SIZE
+                             + "] is not a number [" + value + "]. Using [" + ConfigurationParseCache.DEFAULT_SIZE
+                             + "]." );
+            }
+        }
+        return ConfigurationParseCache.DEFAULT_SIZE;
     }
 }
@@ -15,25 +15,37 @@
  */
 package org.ops4j.pax.configmanager.internal;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.ConfigurationUpdateStatus;
 import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+import org.ops4j.pax.configmanager.ITabularConfigurationFileHandler;
+import org.ops4j.pax.configmanager.internal.handlers.IContentConfigurationFileHandler;
 import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.cm.Configuration;
@@ -60,18 +72,114 @@ final class ConfigurationAdminFacade
      */
     public static final String BUNDLES_CONFIGURATION_LOCATION = "bundles.configuration.location";
     public static final String OSGI_CONFIGURATION_AREA = "osgi.configuration.area";
+    /**
+     * Reserved key of a configuration file that lists the service pids, separated by commas, whose configurations
+     * have to be applied before the configuration of the file. It is not pushed to the configuration admin service.
+     */
+    public static final String CONFIGURATION_DEPENDENCIES = "configuration.dependencies";
+    /**
+     * Framework property to set what happens to the configuration of a file when no handler claims the file anymore,
+     * because its {@code IConfigurationFileHandler} went away: {@code keep} leaves the configuration as it is, which is
+     * the default, {@code delete} removes it. A file that another handler claims is loaded with that handler.
+     */
+    public static final String BUNDLES_CONFIGURATION_HANDLER_REMOVAL = "bundles.configuration.handler.removal";
+    /**
+     * Orders the files of a pass by their {@link #CONFIGURATION_DEPENDENCIES}.
+     */
+    private static final ConfigurationLoadPipeline.Dependencies<PendingFile> FILE_DEPENDENCIES =
+        new ConfigurationLoadPipeline.Dependencies<PendingFile>()
+        {
+
+            public String getName( PendingFile file )
+            {
+                return file.getEffectiveServicePid();
+            }
+
+            public Collection<String> getDependencies( PendingFile file )
+            {
+                return file.m_dependencies;
+            }
+        };
+
+    /**
+     * The registered handlers, ordered by precedence. Copy on write, so it can be read without locking.
+     */
     private final List<IConfigurationFileHandler> m_handlers;
-    private ConfigurationAdmin m_configAdminService;
-    private final ManagedFactoryPropertiesProcessor m_processor = new ManagedFactoryPropertiesProcessor();
+    /**
+     * Dispatch index of {@code m_handlers}, replaced whenever a handler is added or removed.
+     */
+    private volatile FileHandlerIndex m_handlerIndex = FileHandlerIndex.EMPTY;
+    private final AtomicReference<ConfigurationAdmin> m_configAdminService;
+    private final ConfigurationMetrics m_metrics = new ConfigurationMetrics();
+    private final ManagedFactoryPropertiesProcessor m_processor = new ManagedFactoryPropertiesProcessor( m_metrics );
+    private final ConfigurationFileIndex m_index = new ConfigurationFileIndex();
+    private final ConfigurationDiagnostics m_diagnostics = new ConfigurationDiagnostics( m_index );
     /**
      * Property resolver used to resolve properties.
      */
     private final PropertyResolver m_propertyResolver;
+    private final ConfigurationInterpolator m_interpolator;
+
+    /**
+     * Serializes the changes of a single service pid. Changes of different pids are applied concurrently.
+     */
+    private final StripedLock m_pidLocks = new StripedLock();
+    private final ConfigurationLoadPipeline m_pipeline;
+    private final ConfigurationTree m_tree;
+    /**
+     * Whether each pass is applied as a batch that is rolled back if one of its changes fails, see
+     * {@link ConfigurationTransaction#BUNDLES_CONFIGURATION_TRANSACTIONAL}.
+     */
+    private final boolean m_transactional;
+    /**
+     * Serializes the batches, so a rollback never undoes the changes of another batch.
+     */
+    private final Object m_batchLock = new Object();
+    /**
+     * Reloads the files of the handlers that were added or removed, see {@link #registerHandlerFiles}.
+     */
+    private final FileHandlerChangeQueue m_handlerChanges;
+    /**
+     * Whether the configurations of the files that lost their handler are removed, see
+     * {@link #BUNDLES_CONFIGURATION_HANDLER_REMOVAL}.
+     */
+    private final boolean m_deleteOnHandlerRemoval;
+    /**
+     * The files parsed before the configuration admin service became available, by their absolute path, see
+     * {@link #stageConfigurations()}. Dropped after the first full pass.
+     */
+    private volatile FutureTask<Map<String, PendingFile>> m_staged;
+
+    /**
+     * The file the {@code ConfigurationSnapshot} is persisted to, or {@code null} if there is none.
+     */
+    private volatile File m_snapshotFile;
+    /**
+     * The snapshot of the files applied before the restart. It is read from {@code m_snapshotFile} once it is
+     * needed, i.e. while it is {@code null}, and dropped after the first full pass.
+     */
+    private volatile ConfigurationSnapshot m_snapshot = ConfigurationSnapshot.EMPTY;
+    private final Object m_snapshotLock = new Object();
+    /**
+     * The version of {@code m_index} that was persisted last. Guarded by {@code m_snapshotLock}.
+     */
+    private long m_snapshotVersion;
 
     public ConfigurationAdminFacade( PropertyResolver propertyResolver )
     {
         m_propertyResolver = propertyResolver;
-        m_handlers = new ArrayList<IConfigurationFileHandler>();
+        m_interpolator = new ConfigurationInterpolator( m_index, propertyResolver );
+        m_handlers = new CopyOnWriteArrayList<IConfigurationFileHandler>();
+        m_configAdminService = new AtomicReference<ConfigurationAdmin>();
+        m_pipeline = ConfigurationLoadPipeline.create( propertyResolver );
+        m_tree = ConfigurationTree.create( propertyResolver, m_pipeline );
+        m_transactional = "true".equalsIgnoreCase(
+            propertyResolver.getProperty( ConfigurationTransaction.BUNDLES_CONFIGURATION_TRANSACTIONAL )
+        );
+        m_handlerChanges = FileHandlerChangeQueue.create( this, propertyResolver );
+        m_deleteOnHandlerRemoval = "delete".equalsIgnoreCase(
+            propertyResolver.getProperty( BUNDLES_CONFIGURATION_HANDLER_REMOVAL )
+        );
     }
 
 
@@ -92,189 +200,1156 @@ final class ConfigurationAdminFacade
         synchronized( m_handlers )
         {
             m_handlers.add( 0, handler );
+            m_handlerIndex = new FileHandlerIndex( m_handlers );
+            m_index.clearListings();
+        }
+
+        // Load the files the handler claims, in one pass with the other handlers that are added shortly after.
+        // Only do this though if the config admin service is available. If
+        // the config admin service is not currently available, the registerConfigurations
+        // call is delayed until the config admin service is available
+        if( m_configAdminService.get() != null )
+        {
+            m_handlerChanges.added( handler );
+        }
+    }
+
+
+    /**
+     * Registers configuration for OSGi Managed services.
+     * <p>
+     * Files that have already been applied are tracked by their {@code FileFingerprint}. A file that is unchanged
+     * since it was last applied is neither parsed nor pushed to the configuration admin service again, and the
+     * configuration of a file that was deleted is removed. Only a request for a single {@code configuration} with
+     * {@code overwrite} set forces that configuration to be reloaded.
+     * 
+     * @param configuration if null then all configuration found will be registered.
+     * @param overwrite     A {@code boolean} indicator to overwrite the configuration
+     * 
+     * @throws IOException            Thrown if there is an IO problem during loading of {@code configuration}.
+     * @throws InvalidSyntaxException Thrown if there is an invalid exception during retrieval of configurations.
+     * @throws IllegalStateException  Thrown if the configuration admin service is not available.
+     */
+    final void registerConfigurations( String configuration, boolean overwrite )
+    throws IOException, InvalidSyntaxException, IllegalStateException
+    {
+        Set<String> configurations = null;
+        if( configuration != null )
+        {
+            configurations = Collections.singleton( configuration );
+        }
+        registerConfigurations( configurations, overwrite, null );
+    }
+
+    /**
+     * Updates the configurations with the specified service pids in a single pass over the configuration area. The
+     * configurations are reloaded even if their files did not change. The outcome of each service pid found is
+     * reported to {@code listener}, a failure to load one file does not stop the others from being loaded.
+     *
+     * @param servicePids The service pids. This argument must not be {@code null}.
+     * @param listener    The listener of the outcomes. This argument must not be {@code null}.
+     *
+     * @throws IOException            Thrown if the configuration area can not be read.
+     * @throws InvalidSyntaxException Thrown if there is an invalid exception during retrieval of configurations.
+     * @throws IllegalStateException  Thrown if the configuration admin service is not available.
+     */
+    final void updateConfigurations( Set<String> servicePids, UpdateListener listener )
+    throws IOException, InvalidSyntaxException, IllegalStateException
+    {
+        NullArgumentException.validateNotNull( servicePids, "servicePids" );
+        NullArgumentException.validateNotNull( listener, "listener" );
+
+        registerConfigurations( servicePids, true, listener );
+    }
+
+    private void registerConfigurations( Set<String> configurations, boolean overwrite, UpdateListener listener )
+    throws IOException, InvalidSyntaxException, IllegalStateException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            loadConfigurations( configurations, overwrite, listener );
+        } finally
+        {
+            m_metrics.registration().recordSince( start );
+        }
+    }
+
+    private void loadConfigurations( Set<String> configurations, boolean overwrite, UpdateListener listener )
+    throws IOException, InvalidSyntaxException, IllegalStateException
+    {
+        ConfigurationAdmin configAdmin = getConfigurationAdminService();
+        if( m_handlers.isEmpty() )
+        {
+            // nothing would be claimed, the snapshot is kept for the pass of the handlers once they are added
+            LOGGER.info( "No configuration file handler is registered yet." );
+            return;
+        }
+
+        File configDir = getConfigDir();
+        if( configDir == null )
+        {
+
+            return;
+        }
+
+        ExistingConfigurations existing = new ExistingConfigurations( configAdmin, overwrite );
+        boolean force = configurations != null && overwrite;
+
+        // Configuration for ManagedServiceFactory is committed before configuration for ManagedService
+        List<PendingFile> pending = new ArrayList<PendingFile>();
+        if( configurations != null )
+        {
+            List<File> factoryFiles = new ArrayList<File>();
+            List<File> serviceFiles = new ArrayList<File>();
+            if( lookupFiles( configurations, factoryFiles, serviceFiles ) )
+            {
+                List<ConfigurationFileIndex.Entry> deleted = new ArrayList<ConfigurationFileIndex.Entry>();
+                createConfigurationForFiles( configurations, configDir, factoryFiles, existing, true, force, pending,
+                                             deleted );
+                createConfigurationForFiles( configurations, configDir, serviceFiles, existing, false, force, pending,
+                                             deleted );
+                commit( configAdmin, listener, pending, deleted );
+                saveSnapshot();
+                return;
+            }
+        }
+
+        Set<String> factoryPaths = new HashSet<String>();
+        Set<String> servicePaths = new HashSet<String>();
+        createConfiguration( configurations, configDir, existing, true, force, pending, factoryPaths );
+        createConfiguration( configurations, configDir, existing, false, force, pending, servicePaths );
+
+        List<ConfigurationFileIndex.Entry> deleted = new ArrayList<ConfigurationFileIndex.Entry>();
+        findDeletedFiles( configurations, factoryPaths, true, deleted );
+        findDeletedFiles( configurations, servicePaths, false, deleted );
+        commit( configAdmin, listener, pending, deleted );
+
+        if( configurations == null )
+        {
+            // every file has been looked at, the records of the previous run are no longer needed
+            m_snapshot = ConfigurationSnapshot.EMPTY;
+            m_staged = null;
+        }
+        saveSnapshot();
+    }
+
+    /**
+     * Registers the configuration of the specified files only, e.g. the files a {@code ConfigurationDirectoryWatcher}
+     * found to be changed. The configuration of a file that no longer exists is removed. Changed files overwrite
+     * their configuration, unchanged files are skipped.
+     *
+     * @param factoryFiles The changed files of the {@code factories} directory. This argument must not be
+     *                     {@code null}.
+     * @param serviceFiles The changed files of the {@code services} directory. This argument must not be
+     *                     {@code null}.
+     *
+     * @throws IOException            Thrown if there is an IO problem during loading of a file.
+     * @throws InvalidSyntaxException Thrown if there is an invalid exception during retrieval of configurations.
+     * @throws IllegalStateException  Thrown if the configuration admin service is not available.
+     */
+    final void registerConfigurationFiles( Collection<File> factoryFiles, Collection<File> serviceFiles )
+    throws IOException, InvalidSyntaxException, IllegalStateException
+    {
+        NullArgumentException.validateNotNull( factoryFiles, "factoryFiles" );
+        NullArgumentException.validateNotNull( serviceFiles, "serviceFiles" );
+
+        long start = System.nanoTime();
+        try
+        {
+            ConfigurationAdmin configAdmin = getConfigurationAdminService();
+            File configDir = getConfigDir();
+            if( configDir == null )
+            {
+                return;
+            }
+
+            ExistingConfigurations existing = new ExistingConfigurations( configAdmin, true );
+            List<PendingFile> pending = new ArrayList<PendingFile>();
+            List<ConfigurationFileIndex.Entry> deleted = new ArrayList<ConfigurationFileIndex.Entry>();
+            createConfigurationForFiles( null, configDir, factoryFiles, existing, true, false, pending, deleted );
+            createConfigurationForFiles( null, configDir, serviceFiles, existing, false, false, pending, deleted );
+            commit( configAdmin, null, pending, deleted );
+            saveSnapshot();
+        } finally
+        {
+            m_metrics.registration().recordSince( start );
+        }
+    }
+
+    /**
+     * Registers the configuration files whose handler changed. The files claimed by one of the {@code added}
+     * handlers are loaded, unless they did not change since that handler applied them or the configuration admin
+     * service already holds a configuration they do not provide yet. The applied files of the {@code removed} handlers
+     * are loaded with the handler that claims them now. If no handler claims such a file anymore, its configuration
+     * is kept or removed as set by {@link #BUNDLES_CONFIGURATION_HANDLER_REMOVAL}. The directories are only listed if
+     * a handler was added.
+     *
+     * @param added   The handlers that were added. This argument must not be {@code null}.
+     * @param removed The handlers that were removed. This argument must not be {@code null}.
+     *
+     * @throws IOException            Thrown if there is an IO problem during loading of a file.
+     * @throws InvalidSyntaxException Thrown if there is an invalid exception during retrieval of configurations.
+     * @throws IllegalStateException  Thrown if the configuration admin service is not available.
+     */
+    final void registerHandlerFiles( Collection<IConfigurationFileHandler> added,
+        Collection<IConfigurationFileHandler> removed )
+    throws IOException, InvalidSyntaxException, IllegalStateException
+    {
+        NullArgumentException.validateNotNull( added, "added" );
+        NullArgumentException.validateNotNull( removed, "removed" );
+
+        long start = System.nanoTime();
+        try
+        {
+            ConfigurationAdmin configAdmin = getConfigurationAdminService();
+            File configDir = getConfigDir();
+            if( configDir == null )
+            {
+                return;
+            }
+
+            Set<File> factoryFiles = new LinkedHashSet<File>();
+            Set<File> serviceFiles = new LinkedHashSet<File>();
+            if( !added.isEmpty() )
+            {
+                listHandlerFiles( added, configDir, true, factoryFiles );
+                listHandlerFiles( added, configDir, false, serviceFiles );
+            }
+
+            List<ConfigurationFileIndex.Entry> deleted = new ArrayList<ConfigurationFileIndex.Entry>();
+            if( !removed.isEmpty() )
+            {
+                for( ConfigurationFileIndex.Entry entry : m_index.getEntries() )
+                {
+                    if( !removed.contains( entry.getHandler() ) )
+                    {
+                        continue;
+                    }
+                    // a missing file is removed when its configuration is looked at
+                    File file = new File( entry.getFingerprint().getPath() );
+                    if( !file.isFile() || getFileHandler( file, entry.isFactory() ) != null )
+                    {
+                        ( entry.isFactory() ? factoryFiles : serviceFiles ).add( file );
+                    }
+                    else if( m_deleteOnHandlerRemoval )
+                    {
+                        deleted.add( entry );
+                    }
+                }
+            }
+
+            ExistingConfigurations existing = new ExistingConfigurations( configAdmin, false );
+            List<PendingFile> pending = new ArrayList<PendingFile>();
+            createConfigurationForFiles( null, configDir, factoryFiles, existing, true, false, pending, deleted );
+            createConfigurationForFiles( null, configDir, serviceFiles, existing, false, false, pending, deleted );
+            commit( configAdmin, null, pending, deleted );
+            saveSnapshot();
+        } finally
+        {
+            m_metrics.registration().recordSince( start );
+        }
+    }
+
+    /**
+     * Adds the files of the {@code factories} or {@code services} directory that one of the specified
+     * {@code handlers} claims to {@code files}, and records the listing of the directory.
+     */
+    private void listHandlerFiles( Collection<IConfigurationFileHandler> handlers, File configDir, boolean isFactory,
+        Collection<File> files )
+    throws IOException
+    {
+        File dir = getDirectory( configDir, isFactory );
+        if( !dir.exists() )
+        {
+            return;
+        }
+
+        ConfigurationTree.Scan scan = m_tree.scan( dir );
+        Map<String, File> locations = new HashMap<String, File>();
+        for( File file : scan.getFiles() )
+        {
+            IConfigurationFileHandler handler = getFileHandler( file, isFactory );
+            if( handler != null )
+            {
+                locations.put( m_tree.getServicePid( handler, dir, file ), file );
+                if( handlers.contains( handler ) )
+                {
+                    files.add( file );
+                }
+            }
+        }
+        m_index.setListing( scan.getDirectories(), scan.getListedAt(), locations, isFactory );
+    }
+
+    /**
+     * Commits the pending files of a pass, then removes the configurations of its deleted files and pushes the
+     * configurations again whose references changed. A failure to load one file does not stop the others, unless
+     * the pass is applied as a batch.
+     */
+    private void commit( ConfigurationAdmin configAdmin, UpdateListener listener, List<PendingFile> pending,
+        List<ConfigurationFileIndex.Entry> deleted )
+    throws IOException, InvalidSyntaxException
+    {
+        if( m_transactional )
+        {
+            commitBatch( configAdmin, listener, pending, deleted );
+            return;
+        }
+
+        m_pipeline.run( pending, new Committer( configAdmin, listener ), FILE_DEPENDENCIES );
+        for( ConfigurationFileIndex.Entry entry : deleted )
+        {
+            removeIndexedFile( configAdmin, entry );
+            if( listener != null )
+            {
+                listener.updated( entry.getServicePid(), ConfigurationUpdateStatus.DELETED );
+            }
+        }
+        applyDependents( configAdmin );
+    }
+
+    /**
+     * Commits a pass as a single batch. Every file is parsed, in the order of its dependencies, and validated before
+     * the first change is made, so a malformed file rejects the whole pass and the managed services see nothing of
+     * it. The changes are then made in one go through a {@code ConfigurationTransaction}. If one of them fails, the
+     * changes made so far and the index entries of the pass are rolled back.
+     *
+     * @throws IOException Thrown if the batch was rejected or rolled back. The cause is the first failure.
+     */
+    private void commitBatch( ConfigurationAdmin configAdmin, UpdateListener listener, List<PendingFile> pending,
+        List<ConfigurationFileIndex.Entry> deleted )
+    throws IOException, InvalidSyntaxException
+    {
+        synchronized( m_batchLock )
+        {
+            final List<PendingFile> staged = Collections.synchronizedList( new ArrayList<PendingFile>() );
+            m_pipeline.run( pending, new ConfigurationLoadPipeline.Committer<PendingFile>()
+            {
+
+                public void commit( PendingFile file )
+                {
+                    staged.add( file );
+                }
+            }, FILE_DEPENDENCIES
+            );
+            validate( staged );
+
+            // the index entries the batch replaces, null for the files it adds
+            Map<String, ConfigurationFileIndex.Entry> replaced = new HashMap<String, ConfigurationFileIndex.Entry>();
+            for( PendingFile file : staged )
+            {
+                String path = file.m_file.getAbsolutePath();
+                replaced.put( path, m_index.get( path ) );
+            }
+            for( ConfigurationFileIndex.Entry entry : deleted )
+            {
+                replaced.put( entry.getFingerprint().getPath(), entry );
+            }
+
+            ConfigurationTransaction transaction = new ConfigurationTransaction( configAdmin );
+            Map<String, ConfigurationUpdateStatus> statuses = new LinkedHashMap<String, ConfigurationUpdateStatus>();
+            Exception failure;
+            try
+            {
+                for( PendingFile file : staged )
+                {
+                    ConfigurationUpdateStatus status = handle( transaction, file );
+                    if( file.m_requestedPid != null )
+                    {
+                        statuses.put( file.m_requestedPid, status );
+                    }
+                }
+                for( ConfigurationFileIndex.Entry entry : deleted )
+                {
+                    removeIndexedFile( transaction, entry );
+                    statuses.put( entry.getServicePid(), ConfigurationUpdateStatus.DELETED );
+                }
+                applyDependents( transaction );
+                failure = transaction.getFailure();
+            } catch( Exception e )
+            {
+                failure = e;
+            }
+
+            if( failure != null )
+            {
+                int changes = transaction.size();
+                int failed = transaction.rollback();
+                for( Map.Entry<String, ConfigurationFileIndex.Entry> entry : replaced.entrySet() )
+                {
+                    if( entry.getValue() == null )
+                    {
+                        m_index.remove( entry.getKey() );
+                    }
+                    else
+                    {
+                        m_index.put( entry.getValue() );
+                    }
+                }
+                // rebuilt from the restored index once needed
+                m_interpolator.clear();
+                m_processor.clear();
+
+                IOException exception = new IOException( "Configuration batch rolled back, undid [" + changes
+                                                         + "] changes with [" + failed + "] failures." );
+                exception.initCause( failure );
+                throw exception;
+            }
+
+            if( listener != null )
+            {
+                for( Map.Entry<String, ConfigurationUpdateStatus> entry : statuses.entrySet() )
+                {
+                    listener.updated( entry.getKey(), entry.getValue() );
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the staged files of a batch before any of them is applied: each has to be loaded, a factory file has
+     * to describe its instances, the references of its values must resolve and its instances must expand.
+     *
+     * @throws IOException Thrown if a file is not valid. The cause is the first failure.
+     */
+    private void validate( List<PendingFile> staged )
+    throws IOException
+    {
+        Exception failure = null;
+        String failedPath = null;
+        int failed = 0;
+        for( PendingFile file : staged )
+        {
+            Exception fileFailure = file.m_failure;
+            if( fileFailure == null && !file.m_unchanged )
+            {
+                Properties prop = file.m_properties;
+                if( prop == null )
+                {
+                    fileFailure = new IOException( "Configuration file could not be loaded." );
+                }
+                else if( file.m_factory && !m_processor.validate( prop ) )
+                {
+                    fileFailure = new IllegalArgumentException(
+                        "Factory configuration requires [instances] and [keys]."
+                    );
+                }
+                else
+                {
+                    try
+                    {
+                        Properties resolved = m_interpolator.resolve( file.getEffectiveServicePid(), file.m_factory,
+                                                                      prop );
+                        if( file.m_factory && !( file.m_handler instanceof ITabularConfigurationFileHandler ) )
+                        {
+                            m_processor.expand( resolved );
+                        }
+                    } catch( IllegalArgumentException e )
+                    {
+                        fileFailure = e;
+                    }
+                }
+            }
+
+            if( fileFailure != null )
+            {
+                LOGGER.error( "Invalid configuration file [" + file.m_file.getAbsolutePath() + "]", fileFailure );
+                m_metrics.failed( file.m_servicePid );
+                if( failure == null )
+                {
+                    failure = fileFailure;
+                    failedPath = file.m_file.getAbsolutePath();
+                }
+                failed++;
+            }
+        }
+
+        if( failure != null )
+        {
+            // the references resolved so far belong to files that are not applied
+            m_interpolator.clear();
+
+            IOException exception = new IOException( "Configuration batch rejected, [" + failed
+                                                     + "] invalid files, first [" + failedPath + "]." );
+            exception.initCause( failure );
+            throw exception;
+        }
+    }
+
+    /**
+     * Looks up the files of the specified service pids in the index.
+     *
+     * @return {@code false} if a directory has to be listed to find the files.
+     */
+    private boolean lookupFiles( Set<String> configurations, List<File> factoryFiles, List<File> serviceFiles )
+    {
+        for( String configuration : configurations )
+        {
+            if( !m_index.lookup( configuration, factoryFiles, serviceFiles ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void createConfigurationForFiles( Set<String> configurations, File configDir, Collection<File> files,
+        ExistingConfigurations existing, boolean isFactory, boolean force, List<PendingFile> pending,
+        List<ConfigurationFileIndex.Entry> deleted )
+    throws IOException, InvalidSyntaxException
+    {
+        File dir = getDirectory( configDir, isFactory );
+        for( File file : files )
+        {
+            if( file.isFile() )
+            {
+                createConfigurationForFile( configurations, dir, file, existing, isFactory, force, pending );
+            }
+            else
+            {
+                ConfigurationFileIndex.Entry entry = m_index.get( file.getAbsolutePath() );
+                if( entry != null )
+                {
+                    deleted.add( entry );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the {@code factories} or {@code services} directory of the specified configuration area.
+     */
+    private static File getDirectory( File configDir, boolean isFactory )
+    {
+        return new File( configDir, isFactory ? DIRECTORY_NAME_FACTORIES : DIRECTORY_NAME_SERVICES );
+    }
 
-            // Reload all configurations just in case if this is added later
-            // Only do this though if the config admin service is available. If
-            // the config admin service is not currently available, the registerConfigurations
-            // call is delayed until the config admin service is available
-            if (m_configAdminService != null) {
-                try
+    private void createConfiguration( Set<String> configurations, File configDir, ExistingConfigurations existing,
+        boolean isFactory, boolean force, List<PendingFile> pending, Set<String> paths )
+    throws IOException, InvalidSyntaxException
+    {
+        File dir = getDirectory( configDir, isFactory );
+        if( !dir.exists() )
+        {
+            LOGGER.info( "Directory [" + dir + "] does not exist." );
+            return;
+        }
+
+        ConfigurationTree.Scan scan = m_tree.scan( dir );
+        Map<String, File> locations = new HashMap<String, File>();
+        for( File file : scan.getFiles() )
+        {
+            paths.add( file.getAbsolutePath() );
+            String servicePid = createConfigurationForFile( configurations, dir, file, existing, isFactory, force,
+                                                            pending );
+            if( servicePid != null )
+            {
+                locations.put( servicePid, file );
+            }
+        }
+        m_index.setListing( scan.getDirectories(), scan.getListedAt(), locations, isFactory );
+    }
+
+
+    /**
+     * Adds the specified file to {@code pending} if it has to be loaded. Only cheap checks are done here, reading
+     * and parsing the file is left to the parse stage of the pipeline.
+     *
+     * @param dir The {@code factories} or {@code services} directory the file is in, possibly in a subdirectory.
+     *
+     * @return The service pid derived from the file path, or {@code null} if no handler claims the file.
+     */
+    private String createConfigurationForFile( Set<String> configurations, File dir, File f,
+        ExistingConfigurations existing, boolean isFactory, boolean force, List<PendingFile> pending )
+    throws IOException, InvalidSyntaxException
+    {
+        m_metrics.fileScanned();
+
+        // the first handler that is able to handle the file wins
+        IConfigurationFileHandler handler = getFileHandler( f, isFactory );
+        if( handler == null )
+        {
+            return null;
+        }
+
+        // get the service PID
+        String servicePid = m_tree.getServicePid( handler, dir, f );
+        ConfigurationFileIndex.Entry entry = m_index.get( f.getAbsolutePath() );
+
+        // check if the service is one that should be configured
+        String requestedPid = null;
+        if( configurations != null )
+        {
+            if( configurations.contains( servicePid ) )
+            {
+                requestedPid = servicePid;
+            }
+            else if( entry != null && configurations.contains( entry.getServicePid() ) )
+            {
+                requestedPid = entry.getServicePid();
+            }
+            else
+            {
+                return servicePid;
+            }
+        }
+
+        boolean checkContent = false;
+        if( entry != null && entry.getHandler() == handler )
+        {
+            if( !force )
+            {
+                // skip files that are unchanged since they were applied, a racy stat is checked by content
+                if( entry.getFingerprint().hasSameStat( f ) )
                 {
-                    registerConfigurations(null, false);
-                } catch( IOException e )
+                    return servicePid;
+                }
+                checkContent = true;
+            }
+        }
+        else if( entry == null )
+        {
+            // a file that is unchanged since the snapshot was taken is not loaded again
+            ConfigurationSnapshot.Record record = force ? null : getSnapshot().get( f, handler );
+            if( record != null )
+            {
+                if( existing.contains( record.getServicePid() ) )
                 {
-                    String msg = "IOException by either getting the configuration admin or loading the configuration file.";
-                    LOGGER.error( msg, e );
-                } catch( InvalidSyntaxException e )
+                    m_index.put( record.getFingerprint(), handler, record.getServicePid(), isFactory,
+                                 record.getProperties() );
+                    return servicePid;
+                }
+                pending.add( new PendingFile( handler, servicePid, requestedPid, f, null, isFactory, false )
+                    .restore( record ) );
+                return servicePid;
+            }
+
+            if( existing.contains( servicePid ) && ( force || !getSnapshot().contains( f ) ) )
+            {
+                // check if the service is already configured, unless it was applied from a file that changed since
+                return servicePid;
+            }
+        }
+
+        PendingFile file = new PendingFile( handler, servicePid, requestedPid, f, entry, isFactory, checkContent );
+        PendingFile staged = entry == null ? getStaged( f, handler, servicePid, isFactory ) : null;
+        pending.add( staged == null ? file : file.reuse( staged ) );
+        return servicePid;
+    }
+
+    /**
+     * Starts to list and parse the configuration area on a thread of its own, so the first pass after the
+     * configuration admin service became available only has to apply the files. A parsed file is only used while
+     * its size and modification time are unchanged and the same handler claims it, any other file is loaded by the
+     * pass as usual. Files the {@code ConfigurationSnapshot} already trusts are not parsed. Does nothing if the
+     * configuration admin service is available.
+     */
+    final void stageConfigurations()
+    {
+        if( m_configAdminService.get() != null || m_staged != null )
+        {
+            return;
+        }
+
+        FutureTask<Map<String, PendingFile>> staged = new FutureTask<Map<String, PendingFile>>(
+            new Callable<Map<String, PendingFile>>()
+            {
+
+                public Map<String, PendingFile> call()
+                    throws IOException
                 {
-                    LOGGER.error( "Invalid syntax. This should not happened.", e );
+                    return stage();
                 }
             }
+        );
+        m_staged = staged;
+        Thread thread = new Thread( staged, "Pax ConfMan pre-parse" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    private Map<String, PendingFile> stage()
+    throws IOException
+    {
+        long start = System.nanoTime();
+        Map<String, PendingFile> staged = new HashMap<String, PendingFile>();
+        File configDir = getConfigDir();
+        if( configDir == null )
+        {
+            return staged;
+        }
+
+        ConfigurationSnapshot snapshot = getSnapshot();
+        List<PendingFile> pending = new ArrayList<PendingFile>();
+        stageDirectory( configDir, true, snapshot, pending );
+        stageDirectory( configDir, false, snapshot, pending );
+        for( PendingFile file : m_pipeline.invokeAll( pending ) )
+        {
+            staged.put( file.m_file.getAbsolutePath(), file );
+        }
+        LOGGER.info( "Parsed [" + staged.size() + "] configuration files in ["
+                     + ( System.nanoTime() - start ) / 1000000 + "] ms before the configuration admin service." );
+        return staged;
+    }
+
+    private void stageDirectory( File configDir, boolean isFactory, ConfigurationSnapshot snapshot,
+        List<PendingFile> pending )
+    throws IOException
+    {
+        File dir = getDirectory( configDir, isFactory );
+        if( !dir.exists() )
+        {
+            return;
+        }
+
+        for( File file : m_tree.scan( dir ).getFiles() )
+        {
+            IConfigurationFileHandler handler = getFileHandler( file, isFactory );
+            if( handler != null && snapshot.get( file, handler ) == null )
+            {
+                String servicePid = m_tree.getServicePid( handler, dir, file );
+                pending.add( new PendingFile( handler, servicePid, null, file, null, isFactory, false ) );
+            }
+        }
+    }
+
+    /**
+     * Returns the staged result of the specified {@code file}, or {@code null} if it was not staged or is outdated.
+     * A file modified within the clock granularity of its staged fingerprint is read to compare its digest. Waits for
+     * the staging to complete.
+     */
+    private PendingFile getStaged( File file, IConfigurationFileHandler handler, String servicePid,
+        boolean isFactory )
+    {
+        FutureTask<Map<String, PendingFile>> future = m_staged;
+        if( future == null )
+        {
+            return null;
+        }
+
+        Map<String, PendingFile> staged;
+        try
+        {
+            staged = future.get();
+        } catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch( ExecutionException e )
+        {
+            LOGGER.warn( "Can't parse the configuration files in advance.", e.getCause() );
+            m_staged = null;
+            return null;
+        }
+
+        PendingFile stagedFile = staged.get( file.getAbsolutePath() );
+        if( stagedFile == null || stagedFile.m_handler != handler || stagedFile.m_factory != isFactory
+            || !stagedFile.m_servicePid.equals( servicePid ) || stagedFile.m_fingerprint == null
+            || !stagedFile.m_fingerprint.isUnchanged( file ) )
+        {
+            return null;
+        }
+        return stagedFile;
+    }
+
+    /**
+     * Sets the file the applied configuration files are persisted to. The snapshot in this file, written by a
+     * previous run, lets the first pass skip loading the files that did not change in the meantime.
+     *
+     * @param snapshotFile The snapshot file, or {@code null} to neither read nor write a snapshot.
+     */
+    final void setSnapshotFile( File snapshotFile )
+    {
+        m_snapshotFile = snapshotFile;
+        m_snapshot = snapshotFile == null ? ConfigurationSnapshot.EMPTY : null;
+    }
+
+    private ConfigurationSnapshot getSnapshot()
+    {
+        ConfigurationSnapshot snapshot = m_snapshot;
+        if( snapshot != null )
+        {
+            return snapshot;
+        }
+
+        synchronized( m_snapshotLock )
+        {
+            snapshot = m_snapshot;
+            if( snapshot == null )
+            {
+                File snapshotFile = m_snapshotFile;
+                snapshot = snapshotFile == null ? ConfigurationSnapshot.EMPTY
+                                                : ConfigurationSnapshot.load( snapshotFile );
+                m_snapshot = snapshot;
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Persists the index if it changed since it was persisted last.
+     */
+    private void saveSnapshot()
+    {
+        File snapshotFile = m_snapshotFile;
+        if( snapshotFile == null )
+        {
+            return;
+        }
+
+        synchronized( m_snapshotLock )
+        {
+            long version = m_index.getVersion();
+            if( version == m_snapshotVersion )
+            {
+                return;
+            }
+
+            try
+            {
+                ConfigurationSnapshot.save( snapshotFile, m_index.getEntries() );
+                m_snapshotVersion = version;
+            } catch( IOException e )
+            {
+                LOGGER.warn( "Can't save configuration snapshot [" + snapshotFile + "]", e );
+            }
+        }
+    }
+
+    /**
+     * Returns the first registered handler that is able to handle the specified {@code file}, or {@code null} if
+     * there is none. Handlers that were added later take precedence.
+     */
+    private IConfigurationFileHandler getFileHandler( File file )
+    {
+        return m_handlerIndex.getHandler( file );
+    }
+
+    /**
+     * Returns the handler of the specified {@code file} of the {@code factories} or {@code services} directory, or
+     * {@code null} if there is none. A tabular file only describes factory instances.
+     */
+    private IConfigurationFileHandler getFileHandler( File file, boolean isFactory )
+    {
+        IConfigurationFileHandler handler = getFileHandler( file );
+        if( !isFactory && handler instanceof ITabularConfigurationFileHandler )
+        {
+            LOGGER.warn( "Configuration file [" + file.getAbsolutePath()
+                         + "] holds factory instances and is ignored." );
+            return null;
+        }
+        return handler;
+    }
+
+
+    /**
+     * Handle the extraction and registration of the configuration into the config service.
+     * If a property service.pid exists in the configuration, then that will be used to locate the service instance.
+     * To register the service with a service.pid, do something like
+     * <pre>
+     * Properties filterProp = new Properties();
+     * filterProp.put(Constants.SERVICE_PID, "my.test.service.Interface");
+     * bundleContext.registerService(ManagedService.class.getName(), myServiceInstance, filterProp);
+     * </pre>
+     * in your client code that registeres the managed service.
+     */
+    private void handle( ConfigurationAdmin configAdmin, PendingFile file, UpdateListener listener )
+    {
+        if( listener == null )
+        {
+            // the failure only affects this file, the pass goes on with the others
+            try
+            {
+                handle( configAdmin, file );
+            } catch( Exception e )
+            {
+                LOGGER.error( "Can't load configuration file [" + file.m_file.getAbsolutePath() + "]", e );
+                m_metrics.failed( file.m_servicePid );
+            }
+            return;
         }
-    }
 
+        try
+        {
+            listener.updated( file.m_requestedPid, handle( configAdmin, file ) );
+        } catch( Exception e )
+        {
+            LOGGER.error( "Can't update configuration [" + file.m_requestedPid + "]", e );
+            m_metrics.failed( file.m_requestedPid );
+            listener.failed( file.m_requestedPid, e );
+        }
+    }
 
     /**
-     * Registers configuration for OSGi Managed services.
-     * 
-     * @param configuration if null then all configuration found will be registered.
-     * @param overwrite     A {@code boolean} indicator to overwrite the configuration
-     * 
-     * @throws IOException            Thrown if there is an IO problem during loading of {@code configuration}.
-     * @throws InvalidSyntaxException Thrown if there is an invalid exception during retrieval of configurations.
-     * @throws IllegalStateException  Thrown if the configuration admin service is not available.
+     * Pushes the parsed file to the configuration admin service, with its {@code ${...}} references resolved by the
+     * {@code ConfigurationInterpolator}. A {@code Configuration} is only updated if the resolved properties differ
+     * from the properties it already holds, as every update is delivered to the managed service.
+     *
+     * @return {@code UPDATED} if a {@code Configuration} changed, {@code UNCHANGED} otherwise.
      */
-    final void registerConfigurations( String configuration, boolean overwrite )
-    throws IOException, InvalidSyntaxException, IllegalStateException
+    private ConfigurationUpdateStatus handle( ConfigurationAdmin configAdmin, PendingFile file )
+    throws IOException, InvalidSyntaxException
     {
-        if( m_configAdminService == null )
+        if( !file.m_restored && file.m_fingerprint != null )
         {
-            throw new IllegalStateException(
-                "Configuration admin service is not available. Please start configuration admin bundle."
-            );
+            m_metrics.bytesRead( file.m_fingerprint.getSize() );
+        }
+        if( file.m_parseNanos >= 0 )
+        {
+            m_metrics.fileParsed( file.m_handler, file.m_parseNanos );
         }
 
-        File configDir = getConfigDir();
-        if( configDir == null )
+        if( file.m_failure instanceof IOException )
+        {
+            throw (IOException) file.m_failure;
+        }
+        if( file.m_failure != null )
+        {
+            throw (RuntimeException) file.m_failure;
+        }
+
+        if( file.m_unchanged )
         {
+            m_index.refresh( file.m_previous, file.m_fingerprint );
+            return ConfigurationUpdateStatus.UNCHANGED;
+        }
 
-            return;
+        Properties prop = file.m_properties;
+        if( prop == null )
+        {
+            String message = "Configuration file [" + file.m_file.getAbsolutePath() + "] could not be loaded.";
+            if( file.m_requestedPid != null )
+            {
+                throw new IOException( message );
+            }
+            LOGGER.warn( message );
+            m_metrics.failed( file.m_servicePid );
+            return ConfigurationUpdateStatus.UNCHANGED;
         }
 
-        Configuration[] existingConfigurations;
-        synchronized( this )
+        String servicePid = file.getEffectiveServicePid();
+
+        // the file used to configure another service.pid
+        ConfigurationFileIndex.Entry previous = file.m_previous;
+        if( previous != null && !previous.getServicePid().equals( servicePid ) )
         {
-            existingConfigurations = m_configAdminService.listConfigurations( null );
+            synchronized( m_pidLocks.get( previous.getServicePid() ) )
+            {
+                removeConfiguration( configAdmin, previous );
+                m_interpolator.remove( previous.getServicePid() );
+            }
         }
 
-        Set<String> configCache = new HashSet<String>();
-        if( existingConfigurations != null && !overwrite )
+        boolean changed;
+        synchronized( m_pidLocks.get( servicePid ) )
         {
-            for( Configuration existingConfig : existingConfigurations )
+            if( file.m_factory && file.m_handler instanceof ITabularConfigurationFileHandler )
+            {
+                // the summary of a table has no references, its rows are read again one at a time
+                changed = m_processor.processRows( configAdmin, servicePid,
+                                                   (ITabularConfigurationFileHandler) file.m_handler, file.m_file );
+            }
+            else
             {
-                configCache.add(existingConfig.getPid());
+                Properties resolved = m_interpolator.resolve( servicePid, file.m_factory, prop );
+                changed = apply( configAdmin, servicePid, file.m_factory, resolved );
             }
+            m_index.put( file.m_fingerprint, file.m_handler, servicePid, file.m_factory, prop );
         }
 
-        // Create configuration for ManagedServiceFactory
-        createConfiguration(configuration, configDir, configCache, true);
-        // Create configuration for ManagedService
-        createConfiguration(configuration, configDir, configCache, false);
+        if( !changed )
+        {
+            LOGGER.debug( "Configuration [" + servicePid + "] is unchanged" );
+            return ConfigurationUpdateStatus.UNCHANGED;
+        }
+        LOGGER.info( "Register configuration [" + servicePid + "]" );
+        return ConfigurationUpdateStatus.UPDATED;
     }
 
-    private void createConfiguration( String configuration, File configDir, Set<String> configCache, boolean isFactory )
-    throws IOException
+    /**
+     * Pushes the resolved properties of {@code servicePid} unless the configuration admin service already holds
+     * them. The caller holds the lock of {@code servicePid}.
+     *
+     * @return {@code true} if a {@code Configuration} changed.
+     */
+    private boolean apply( ConfigurationAdmin configAdmin, String servicePid, boolean isFactory, Properties prop )
+    throws IOException, InvalidSyntaxException
     {
-        File dir;
         if( isFactory )
         {
-            dir = new File( configDir, DIRECTORY_NAME_FACTORIES );
-        }
-        else
-        {
-            dir = new File( configDir, DIRECTORY_NAME_SERVICES );
+            return m_processor.process( configAdmin, servicePid, prop );
         }
 
-        if( !dir.exists() )
+        if( prop.containsKey( CONFIGURATION_DEPENDENCIES ) )
         {
-            LOGGER.info( "Directory [" + dir + "] does not exist." );
-            return;
+            prop = (Properties) prop.clone();
+            prop.remove( CONFIGURATION_DEPENDENCIES );
         }
-
-        String[] files = dir.list();
-        for( String configFileName : files )
+        Configuration conf = configAdmin.getConfiguration( servicePid, null );
+        if( ConfigurationDiff.isEqual( conf.getProperties(), prop ) )
         {
-            createConfigurationForFile( configuration, configFileName, configCache, dir, isFactory );
+            m_metrics.updateSkipped();
+            return false;
         }
+        long start = System.nanoTime();
+        conf.update((Dictionary)prop);
+        m_metrics.update().recordSince( start );
+        return true;
     }
 
-
-    private void createConfigurationForFile( String configuration, String configFileName,
-        Set<String> configCache, File dir, boolean isFactory )
-    throws IOException
+    /**
+     * Pushes the configurations again whose files did not change, but that reference a configuration that changed
+     * or was removed. A failure is logged and does not stop the others, a batch is rolled back though.
+     */
+    private void applyDependents( ConfigurationAdmin configAdmin )
     {
-
-        File f = new File( dir, configFileName );
-        if( !f.isDirectory() )
+        for( String servicePid : m_interpolator.takeStale() )
         {
-            List<IConfigurationFileHandler> handlers;
-
-            synchronized( m_handlers )
+            try
             {
-                handlers = new ArrayList<IConfigurationFileHandler>( m_handlers );
-            }
-
-            // since the configFileName might end with a file type suffix, we have to check
-            // all file handlers
-            for( IConfigurationFileHandler handler : handlers )
-            {
-                // check if we have the correct file handler for the file
-                if( handler.canHandle( f ) )
+                boolean changed = false;
+                synchronized( m_pidLocks.get( servicePid ) )
                 {
-                    // get the service PID
-                    String servicePid = handler.getServicePID( configFileName );
-
-                    // check if the service is already configured
-                    if( configCache.contains( servicePid ) )
+                    ConfigurationInterpolator.Node node = m_interpolator.get( servicePid );
+                    if( node != null )
                     {
-                        return;
+                        Properties resolved = m_interpolator.resolve( servicePid, node.isFactory(),
+                                                                      node.getProperties() );
+                        changed = apply( configAdmin, servicePid, node.isFactory(), resolved );
                     }
-
-                    // check if the service is the one that should be configured
-                    if( (configuration != null) && !servicePid.equals( configuration ) )
-                    {
-                        return;
-                    }
-
-                    // configure the service
-                    handle( handler, configFileName, f, isFactory );
                 }
+                if( changed )
+                {
+                    LOGGER.info( "Register configuration [" + servicePid + "] with changed references" );
+                }
+            } catch( Exception e )
+            {
+                LOGGER.error( "Can't update configuration [" + servicePid + "]", e );
+                m_metrics.failed( servicePid );
+                ConfigurationTransaction.recordFailure( configAdmin, e );
             }
         }
     }
 
+    /**
+     * Returns the counters and latencies of this facade.
+     *
+     * @return The metrics. Never {@code null}.
+     */
+    ConfigurationMetrics getMetrics()
+    {
+        return m_metrics;
+    }
 
     /**
-     * Handle the extraction and registration of the configuration into the config service.
-     * If a property service.pid exists in the configuration, then that will be used to locate the service instance.
-     * To register the service with a service.pid, do something like
-     * <pre>
-     * Properties filterProp = new Properties();
-     * filterProp.put(Constants.SERVICE_PID, "my.test.service.Interface");
-     * bundleContext.registerService(ManagedService.class.getName(), myServiceInstance, filterProp);
-     * </pre>
-     * in your client code that registeres the managed service.
+     * Returns the layout of the configuration directories.
+     *
+     * @return The tree. Never {@code null}.
      */
-    private void handle( IConfigurationFileHandler handler, String configFile, File file, boolean isFactory )
-    throws IOException
+    ConfigurationTree getTree()
+    {
+        return m_tree;
+    }
+
+    /**
+     * Returns the diagnostics of the configuration files applied by this facade.
+     *
+     * @return The diagnostics. Never {@code null}.
+     */
+    ConfigurationDiagnostics getDiagnostics()
     {
-        String servicePid = handler.getServicePID( configFile );
-        Properties prop = handler.handle(file);
+        return m_diagnostics;
+    }
 
-        // Find out if a service.pid property is included, use it if it does
-        String str = (String) prop.get(Constants.SERVICE_PID);
-        if( str != null )
+    /**
+     * Adds the indexed files of the specified kind that are no longer in {@code paths} to {@code deleted}.
+     */
+    private void findDeletedFiles( Set<String> configurations, Set<String> paths, boolean isFactory,
+        List<ConfigurationFileIndex.Entry> deleted )
+    {
+        for( ConfigurationFileIndex.Entry entry : m_index.getEntries( isFactory ) )
         {
-            servicePid = str;
+            String path = entry.getFingerprint().getPath();
+            if( paths.contains( path ) )
+            {
+                continue;
+            }
+            if( configurations != null && !configurations.contains( entry.getServicePid() ) )
+            {
+                continue;
+            }
+            deleted.add( entry );
         }
+    }
 
-        synchronized( this )
+    private void removeIndexedFile( ConfigurationAdmin configAdmin, ConfigurationFileIndex.Entry entry )
+    throws IOException, InvalidSyntaxException
+    {
+        String path = entry.getFingerprint().getPath();
+        synchronized( m_pidLocks.get( entry.getServicePid() ) )
         {
-            if( isFactory )
+            m_index.remove( path );
+
+            // another file may have taken over the service.pid, e.g. after a rename
+            if( m_index.contains( entry.getServicePid(), entry.isFactory() ) )
             {
-                m_processor.process( m_configAdminService, servicePid, prop );
+                return;
             }
-            else
+
+            removeConfiguration( configAdmin, entry );
+            m_interpolator.remove( entry.getServicePid() );
+        }
+        LOGGER.info( "Unregister configuration [" + entry.getServicePid() + "] of deleted file [" + path + "]" );
+    }
+
+    private void removeConfiguration( ConfigurationAdmin configAdmin, ConfigurationFileIndex.Entry entry )
+    throws IOException, InvalidSyntaxException
+    {
+        String servicePid = entry.getServicePid();
+        if( entry.isFactory() )
+        {
+            m_processor.delete( configAdmin, servicePid );
+        }
+        else
+        {
+            String filter = "(" + Constants.SERVICE_PID + "=" + escapeFilterValue( servicePid ) + ")";
+            long start = System.nanoTime();
+            Configuration[] configs = configAdmin.listConfigurations( filter );
+            m_metrics.listConfigurations().recordSince( start );
+            if( configs != null )
             {
-                Configuration conf = m_configAdminService.getConfiguration( servicePid, null );
-                conf.update((Dictionary)prop);
+                for( Configuration conf : configs )
+                {
+                    conf.delete();
+                }
             }
         }
+    }
 
-        LOGGER.info( "Register configuration [" + servicePid + "]" );
+    /**
+     * Escapes the characters of the specified {@code value} that have a special meaning in an LDAP filter.
+     *
+     * @param value The filter value. This argument must not be {@code null}.
+     *
+     * @return The escaped value.
+     */
+    static String escapeFilterValue( String value )
+    {
+        StringBuilder builder = new StringBuilder( value.length() );
+        for( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+            if( c == '(' || c == ')' || c == '*' || c == '\\' )
+            {
+                builder.append( '\\' );
+            }
+            builder.append( c );
+        }
+        return builder.toString();
     }
 
-    private File getConfigDir()
+    File getConfigDir()
     {
 		String configArea = m_propertyResolver.getProperty( OSGI_CONFIGURATION_AREA );
 
@@ -321,100 +1396,329 @@ final class ConfigurationAdminFacade
      */
     void dispose()
     {
-        m_configAdminService = null;
-        m_handlers.clear();
+        m_handlerChanges.dispose();
+        FutureTask<Map<String, PendingFile>> staged = m_staged;
+        if( staged != null )
+        {
+            staged.cancel( true );
+            m_staged = null;
+        }
+        m_configAdminService.set( null );
+        synchronized( m_handlers )
+        {
+            m_handlers.clear();
+            m_handlerIndex = FileHandlerIndex.EMPTY;
+        }
+        m_index.clear();
+        m_interpolator.clear();
+        m_processor.clear();
+        m_pipeline.dispose();
+    }
+
+    /**
+     * Remove the specified {@code handler} from this {@code ConfigurationAdminFacade}. The files it claimed are only
+     * reloaded, or their configurations removed, while a configuration admin service is set, so a handler that goes
+     * away with the bundle leaves the configurations as they are.
+     * 
+     * @param handler The handler to be removed. This argument must not be {@code null}.
+     * 
+     * @throws IllegalArgumentException Thrown if the specified {@code handler} is {@code null}.
+     */
+    final void removeFileHandler( IConfigurationFileHandler handler )
+    throws IllegalArgumentException
+    {
+        NullArgumentException.validateNotNull( handler, "handler" );
+
+        synchronized( m_handlers )
+        {
+            m_handlers.remove( handler );
+            m_handlerIndex = new FileHandlerIndex( m_handlers );
+            m_index.clearListings();
+        }
+
+        if( m_configAdminService.get() != null )
+        {
+            m_handlerChanges.removed( handler );
+        }
     }
 
-    final void printConfigFileList( PrintWriter writer, String fileName )
+
+    /**
+     * Set the configuration admin service. Sets to {@code null} if the configuration admin service is not available.
+     * 
+     * @param configurationAdminService The configuration admin.
+     */
+    final void setConfigurationAdminService( ConfigurationAdmin configurationAdminService )
     {
-        File configDir = getConfigDir();
+        // never waits for a reload in progress, the reload keeps using the service it started with
+        ConfigurationAdmin previous = m_configAdminService.getAndSet( configurationAdminService );
 
-        if( configDir == null )
+        // the applied files are only known to the previous configuration admin service
+        if( previous != configurationAdminService )
         {
-            writer.println("Configuration dir is not setup.");
-            return;
+            m_index.clear();
+            m_interpolator.clear();
+            m_processor.clear();
+
+            // the persisted snapshot lets the next pass trust the files that did not change
+            if( m_snapshotFile != null )
+            {
+                m_snapshot = null;
+            }
         }
+    }
 
-        if( fileName != null )
+    /**
+     * Returns the current configuration admin service.
+     *
+     * @throws IllegalStateException Thrown if the configuration admin service is not available.
+     */
+    private ConfigurationAdmin getConfigurationAdminService()
+    throws IllegalStateException
+    {
+        ConfigurationAdmin configAdmin = m_configAdminService.get();
+        if( configAdmin == null )
         {
-            printConfiguration(writer, fileName, configDir);
-            return;
+            throw new IllegalStateException(
+                "Configuration admin service is not available. Please start configuration admin bundle."
+            );
+        }
+        return configAdmin;
+    }
+
+    /**
+     * The commit stage of a registration, bound to the configuration admin service the registration started with.
+     */
+    private final class Committer
+        implements ConfigurationLoadPipeline.Committer<PendingFile>
+    {
+
+        private final ConfigurationAdmin m_configAdmin;
+        private final UpdateListener m_listener;
+
+        private Committer( ConfigurationAdmin configAdmin, UpdateListener listener )
+        {
+            m_configAdmin = configAdmin;
+            m_listener = listener;
         }
 
-        String configAbsolutePath = configDir.getAbsolutePath();
-        writer.println("config dir: [" + configAbsolutePath + "] contains the following config files:");
-        String[] files = configDir.list();
-        for( String file : files )
+        public void commit( PendingFile file )
         {
-            writer.println(file);
+            handle( m_configAdmin, file, m_listener );
         }
     }
 
-    private void printConfiguration( PrintWriter writer, String fileName, File configDir )
+    /**
+     * A configuration file that has to be loaded. Calling it reads and parses the file, which is done in the parse
+     * stage of the {@code ConfigurationLoadPipeline}. The result is committed by {@code handle}.
+     */
+    private static final class PendingFile
+        implements Callable<PendingFile>
     {
-        File configFile = new File(configDir, fileName);
-        String absolutePath = configFile.getAbsolutePath();
-        if( !configFile.canRead() || !configFile.exists() )
+
+        private final IConfigurationFileHandler m_handler;
+        private final String m_servicePid;
+        private final String m_requestedPid;
+        private final File m_file;
+        private final ConfigurationFileIndex.Entry m_previous;
+        private final boolean m_factory;
+        private final boolean m_checkContent;
+
+        private FileFingerprint m_fingerprint;
+        private Properties m_properties;
+        private Collection<String> m_dependencies = Collections.emptyList();
+        private boolean m_unchanged;
+        private boolean m_restored;
+        private boolean m_staged;
+        private long m_parseNanos = -1;
+        private Exception m_failure;
+
+        private PendingFile( IConfigurationFileHandler handler, String servicePid, String requestedPid, File file,
+                             ConfigurationFileIndex.Entry previous, boolean isFactory, boolean checkContent )
         {
-            writer.println("Can't read configfile [" + absolutePath + "]");
-            return;
+            m_handler = handler;
+            m_servicePid = servicePid;
+            m_requestedPid = requestedPid;
+            m_file = file;
+            m_previous = previous;
+            m_factory = isFactory;
+            m_checkContent = checkContent;
         }
 
-        Properties props = new Properties();
-        try
+        /**
+         * Uses the fingerprint and properties of the specified snapshot {@code record} instead of loading the file.
+         */
+        private PendingFile restore( ConfigurationSnapshot.Record record )
         {
-            InputStream in = new FileInputStream(configFile);
-            props.load(in);
+            m_fingerprint = record.getFingerprint();
+            m_properties = record.getProperties();
+            m_dependencies = getDependencies( m_properties );
+            m_restored = true;
+            return this;
         }
-        catch( Exception e )
+
+        /**
+         * Uses the result of the specified {@code staged} file, which was parsed before the configuration admin
+         * service was available, instead of loading the file.
+         */
+        private PendingFile reuse( PendingFile staged )
         {
-            String message = "Can't read configfile [" + absolutePath + "] - not a correct config file";
-            writer.println(message);
-            return;
+            m_fingerprint = staged.m_fingerprint;
+            m_properties = staged.m_properties;
+            m_dependencies = staged.m_dependencies;
+            m_parseNanos = staged.m_parseNanos;
+            m_failure = staged.m_failure;
+            m_staged = true;
+            return this;
+        }
+
+        /**
+         * Returns the service pid of the loaded file, i.e. its {@code service.pid} property if it has one.
+         */
+        private String getEffectiveServicePid()
+        {
+            Object servicePid = m_properties == null ? null : m_properties.get( Constants.SERVICE_PID );
+            if( servicePid instanceof String )
+            {
+                return (String) servicePid;
+            }
+            return m_servicePid;
         }
 
-        writer.println("Config file: [" + absolutePath + "]");
-        for( Object keyObject : props.keySet() )
+        /**
+         * Loads the file. A failure is kept and reported when the file is committed, so it only affects this file.
+         */
+        public PendingFile call()
         {
-            String key = (String) keyObject;
-            String value = props.getProperty(key);
-            writer.println(key + " = " + value);
+            if( m_restored || m_staged )
+            {
+                return this;
+            }
+
+            try
+            {
+                // the fingerprint is taken first, so a concurrent change is detected by the next pass; a handler that
+                // parses content is given the fingerprinted bytes instead of reading the file again
+                ByteArrayOutputStream content = null;
+                if( m_handler instanceof IContentConfigurationFileHandler )
+                {
+                    content = new ByteArrayOutputStream( (int) Math.min( m_file.length(), Integer.MAX_VALUE ) );
+                }
+                m_fingerprint = FileFingerprint.create( m_file, content );
+                if( m_checkContent && m_fingerprint.hasSameContent( m_previous.getFingerprint() ) )
+                {
+                    m_unchanged = true;
+                    return this;
+                }
+
+                long start = System.nanoTime();
+                m_properties = FileHandlerIndex.load( m_handler, m_file,
+                                                      content == null ? null : content.toByteArray() );
+                m_parseNanos = System.nanoTime() - start;
+                m_dependencies = getDependencies( m_properties );
+            } catch( IOException e )
+            {
+                m_failure = e;
+            } catch( RuntimeException e )
+            {
+                m_failure = e;
+            }
+            return this;
         }
     }
 
-
     /**
-     * Remove the specified {@code handler} from this {@code ConfigurationAdminFacade}.
-     * 
-     * @param handler The handler to be removed. This argument must not be {@code null}.
-     * 
-     * @throws IllegalArgumentException Thrown if the specified {@code handler} is {@code null}.
+     * Returns the service pids listed by the {@link #CONFIGURATION_DEPENDENCIES} key of {@code properties}, either as
+     * a string separated by commas or as an array.
      */
-    final void removeFileHandler( IConfigurationFileHandler handler )
-    throws IllegalArgumentException
+    private static Collection<String> getDependencies( Properties properties )
     {
-        NullArgumentException.validateNotNull( handler, "handler" );
+        Object value = properties == null ? null : properties.get( CONFIGURATION_DEPENDENCIES );
+        if( value == null )
+        {
+            return Collections.emptyList();
+        }
 
-        synchronized( m_handlers )
+        String[] names = value instanceof String[] ? (String[]) value : String.valueOf( value ).split( "," );
+        List<String> dependencies = new ArrayList<String>( names.length );
+        for( String name : names )
         {
-            m_handlers.remove( handler );
+            name = name.trim();
+            if( name.length() > 0 )
+            {
+                dependencies.add( name );
+            }
         }
+        return dependencies;
     }
 
-
     /**
-     * Set the configuration admin service. Sets to {@code null} if the configuration admin service is not available.
-     * 
-     * @param configurationAdminService The configuration admin.
+     * The service pids known to the configuration admin service. They are only listed once they are needed, so a
+     * pass that finds nothing new causes no configuration admin traffic.
      */
-    final void setConfigurationAdminService( ConfigurationAdmin configurationAdminService )
+    private final class ExistingConfigurations
     {
-        synchronized( this )
+
+        private final ConfigurationAdmin m_configAdmin;
+        private final boolean m_overwrite;
+        private Set<String> m_pids;
+
+        private ExistingConfigurations( ConfigurationAdmin configAdmin, boolean overwrite )
         {
-            m_configAdminService = configurationAdminService;
+            m_configAdmin = configAdmin;
+            m_overwrite = overwrite;
+        }
+
+        private boolean contains( String servicePid )
+            throws IOException, InvalidSyntaxException
+        {
+            if( m_overwrite )
+            {
+                return false;
+            }
+
+            if( m_pids == null )
+            {
+                long start = System.nanoTime();
+                Configuration[] existingConfigurations = m_configAdmin.listConfigurations( null );
+                m_metrics.listConfigurations().recordSince( start );
+
+                m_pids = new HashSet<String>();
+                if( existingConfigurations != null )
+                {
+                    for( Configuration existingConfig : existingConfigurations )
+                    {
+                        m_pids.add( existingConfig.getPid() );
+                    }
+                }
+            }
+            return m_pids.contains( servicePid );
         }
     }
 
+    /**
+     * Receives the outcome of each service pid of {@code updateConfigurations}.
+     */
+    static interface UpdateListener
+    {
+
+        /**
+         * The configuration of {@code servicePid} was updated with the specified {@code status}.
+         *
+         * @param servicePid The requested service pid.
+         * @param status     The outcome.
+         */
+        void updated( String servicePid, ConfigurationUpdateStatus status );
+
+        /**
+         * The update of {@code servicePid} failed.
+         *
+         * @param servicePid The requested service pid.
+         * @param failure    The cause.
+         */
+        void failed( String servicePid, Exception failure );
+    }
+
     /**
      * Resolves properties without coupling the facade to specific properties sources as System.getproperty or
      * BundleContext.getproperty.
@@ -0,0 +1,315 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.ConfigurationFileStatus;
+import org.ops4j.pax.configmanager.IConfigurationDiagnostics;
+
+/**
+ * The {@code IConfigurationDiagnostics} of a {@code ConfigurationAdminFacade}, answered from its
+ * {@code ConfigurationFileIndex}. Listing a page stats the files of that page only, printing a configuration reads
+ * its files one after the other.
+ */
+final class ConfigurationDiagnostics
+    implements IConfigurationDiagnostics
+{
+
+    private static final Comparator<ConfigurationFileIndex.Entry> BY_PID_AND_PATH =
+        new Comparator<ConfigurationFileIndex.Entry>()
+        {
+
+            public int compare( ConfigurationFileIndex.Entry entry1, ConfigurationFileIndex.Entry entry2 )
+            {
+                int result = entry1.getServicePid().compareTo( entry2.getServicePid() );
+                if( result == 0 )
+                {
+                    result = entry1.getFingerprint().getPath().compareTo( entry2.getFingerprint().getPath() );
+                }
+                return result;
+            }
+        };
+
+    private final ConfigurationFileIndex m_index;
+
+    ConfigurationDiagnostics( ConfigurationFileIndex index )
+    {
+        NullArgumentException.validateNotNull( index, "index" );
+
+        m_index = index;
+    }
+
+    public int getConfigurationFileCount( String filter )
+    {
+        int count = 0;
+        for( ConfigurationFileIndex.Entry entry : m_index.getEntries() )
+        {
+            if( accept( filter, entry.getServicePid() ) )
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public List<ConfigurationFileStatus> getConfigurationFiles( String filter, int offset, int limit )
+        throws IllegalArgumentException
+    {
+        List<ConfigurationFileIndex.Entry> matches = select( filter, offset, limit );
+        List<ConfigurationFileStatus> page = new ArrayList<ConfigurationFileStatus>();
+        for( int i = offset; i < matches.size() && i < offset + limit; i++ )
+        {
+            page.add( getStatus( matches.get( i ) ) );
+        }
+        return page;
+    }
+
+    public void printConfigurationFiles( PrintWriter writer, String filter, int offset, int limit )
+        throws IllegalArgumentException
+    {
+        NullArgumentException.validateNotNull( writer, "writer" );
+
+        List<ConfigurationFileIndex.Entry> matches = select( filter, offset, limit );
+        int end = Math.min( matches.size(), offset + limit );
+        for( int i = offset; i < end; i++ )
+        {
+            // each line is written as soon as its file is looked up
+            ConfigurationFileStatus status = getStatus( matches.get( i ) );
+            writer.println( status.getServicePid() + ( status.isFactory() ? " (factory)" : "" ) + " "
+                            + status.getState() + " " + status.getPath() );
+        }
+        if( offset >= end )
+        {
+            writer.println( "No configuration files " + ( offset == 0 ? "" : "after " + offset + " " ) + "of "
+                            + matches.size() + "." );
+        }
+        else
+        {
+            writer.println( "Configuration files " + ( offset + 1 ) + "-" + end + " of " + matches.size() + "." );
+        }
+        writer.flush();
+    }
+
+    public boolean printConfiguration( PrintWriter writer, String servicePid )
+    {
+        NullArgumentException.validateNotNull( writer, "writer" );
+        NullArgumentException.validateNotNull( servicePid, "servicePid" );
+
+        List<ConfigurationFileIndex.Entry> entries = new ArrayList<ConfigurationFileIndex.Entry>();
+        for( ConfigurationFileIndex.Entry entry : m_index.getEntries() )
+        {
+            if( servicePid.equals( entry.getServicePid() ) )
+            {
+                entries.add( entry );
+            }
+        }
+        if( entries.isEmpty() )
+        {
+            writer.println( "No configuration file configures [" + servicePid + "]." );
+            writer.flush();
+            return false;
+        }
+
+        Collections.sort( entries, BY_PID_AND_PATH );
+        for( ConfigurationFileIndex.Entry entry : entries )
+        {
+            printEntry( writer, entry );
+            writer.flush();
+        }
+        return true;
+    }
+
+    private void printEntry( PrintWriter writer, ConfigurationFileIndex.Entry entry )
+    {
+        FileFingerprint applied = entry.getFingerprint();
+        ConfigurationFileStatus status = getStatus( entry );
+
+        writer.println( ( entry.isFactory() ? "Factory pid [" : "Service pid [" ) + entry.getServicePid() + "]" );
+        writer.println( "  File:    " + applied.getPath() );
+        writer.println( "  Handler: " + status.getHandler() );
+        writer.println( "  Applied: " + describe( applied.getSize(), applied.getLastModified() ) + ", sha1="
+                        + applied.getHash() );
+
+        Properties onDisk = null;
+        switch( status.getState() )
+        {
+            case DELETED:
+                writer.println( "  On disk: deleted" );
+                break;
+            case MODIFIED:
+                File file = new File( applied.getPath() );
+                try
+                {
+                    FileFingerprint current = FileFingerprint.create( file );
+                    writer.println( "  On disk: " + describe( current.getSize(), current.getLastModified() )
+                                    + ", sha1=" + current.getHash() );
+                    if( current.hasSameContent( applied ) )
+                    {
+                        writer.println( "  State:   " + status.getState() + ", content unchanged" );
+                    }
+                    else
+                    {
+                        writer.println( "  State:   " + status.getState() );
+                        onDisk = FileHandlerIndex.load( entry.getHandler(), file );
+                    }
+                } catch( IOException e )
+                {
+                    writer.println( "  On disk: can't be read [" + e.getMessage() + "]" );
+                } catch( RuntimeException e )
+                {
+                    writer.println( "  On disk: can't be loaded [" + e.getMessage() + "]" );
+                }
+                break;
+            default:
+                writer.println( "  On disk: unchanged" );
+        }
+
+        printProperties( writer, entry.getProperties(), onDisk );
+    }
+
+    /**
+     * Prints the applied properties in key order. If {@code onDisk} is given, properties that were removed or
+     * changed are marked with {@code -}, their new values and added properties with {@code +}.
+     */
+    private static void printProperties( PrintWriter writer, Properties applied, Properties onDisk )
+    {
+        if( applied == null )
+        {
+            return;
+        }
+
+        writer.println( "  Properties:" );
+        Map<String, Object> sortedApplied = sort( applied );
+        Map<String, Object> sortedOnDisk = onDisk == null ? null : sort( onDisk );
+        for( Map.Entry<String, Object> property : sortedApplied.entrySet() )
+        {
+            String key = property.getKey();
+            if( sortedOnDisk == null )
+            {
+                writer.println( "      " + key + " = " + property.getValue() );
+                continue;
+            }
+
+            Object current = sortedOnDisk.remove( key );
+            if( property.getValue().equals( current ) )
+            {
+                writer.println( "      " + key + " = " + property.getValue() );
+            }
+            else
+            {
+                writer.println( "    - " + key + " = " + property.getValue() );
+                if( current != null )
+                {
+                    writer.println( "    + " + key + " = " + current );
+                }
+            }
+        }
+        if( sortedOnDisk != null )
+        {
+            for( Map.Entry<String, Object> property : sortedOnDisk.entrySet() )
+            {
+                writer.println( "    + " + property.getKey() + " = " + property.getValue() );
+            }
+        }
+    }
+
+    private static Map<String, Object> sort( Properties properties )
+    {
+        Map<String, Object> sorted = new TreeMap<String, Object>();
+        for( Map.Entry<Object, Object> property : properties.entrySet() )
+        {
+            // arrays are compared and printed by their elements
+            Object value = ConfigurationDiff.normalizeValue( property.getValue() );
+            sorted.put( String.valueOf( property.getKey() ), value );
+        }
+        return sorted;
+    }
+
+    private static String describe( long size, long lastModified )
+    {
+        return "size=" + size + ", lastModified=" + new Date( lastModified );
+    }
+
+    /**
+     * Returns the matching entries, ordered by service pid and path.
+     */
+    private List<ConfigurationFileIndex.Entry> select( String filter, int offset, int limit )
+    {
+        if( offset < 0 )
+        {
+            throw new IllegalArgumentException( "[offset] must not be negative." );
+        }
+        if( limit < 1 )
+        {
+            throw new IllegalArgumentException( "[limit] must be positive." );
+        }
+
+        List<ConfigurationFileIndex.Entry> matches = new ArrayList<ConfigurationFileIndex.Entry>();
+        for( ConfigurationFileIndex.Entry entry : m_index.getEntries() )
+        {
+            if( accept( filter, entry.getServicePid() ) )
+            {
+                matches.add( entry );
+            }
+        }
+        Collections.sort( matches, BY_PID_AND_PATH );
+        return matches;
+    }
+
+    private static boolean accept( String filter, String servicePid )
+    {
+        if( filter == null )
+        {
+            return true;
+        }
+        if( filter.indexOf( '*' ) >= 0 || filter.indexOf( '?' ) >= 0 )
+        {
+            return FileHandlerIndex.matches( filter, servicePid );
+        }
+        return servicePid.startsWith( filter );
+    }
+
+    /**
+     * Compares the applied fingerprint of {@code entry} with the file on disk. This does not read the file.
+     */
+    private static ConfigurationFileStatus getStatus( ConfigurationFileIndex.Entry entry )
+    {
+        FileFingerprint applied = entry.getFingerprint();
+        File file = new File( applied.getPath() );
+        long size = -1;
+        long lastModified = -1;
+        if( file.isFile() )
+        {
+            size = file.length();
+            lastModified = file.lastModified();
+        }
+        return new ConfigurationFileStatus( entry.getServicePid(), entry.isFactory(), applied.getPath(),
+                                            entry.getHandler().getClass().getName(), applied.getSize(),
+                                            applied.getLastModified(), applied.getHash(), size, lastModified );
+    }
+}
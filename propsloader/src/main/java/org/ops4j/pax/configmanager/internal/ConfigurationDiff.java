@@ -0,0 +1,174 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * {@code ConfigurationDiff} compares loaded configuration properties with the properties a {@code Configuration}
+ * already holds. The keys that are maintained by the configuration admin service itself are ignored, and arrays and
+ * collections are compared by their type and their elements, so {@code int[]}, {@code Integer[]} and a
+ * {@code Vector} of the same numbers differ.
+ */
+final class ConfigurationDiff
+{
+
+    /**
+     * Keys that are set by the configuration admin service and never come from a configuration file.
+     */
+    static final String[] MANAGED_KEYS =
+        {
+            Constants.SERVICE_PID,
+            ConfigurationAdmin.SERVICE_FACTORYPID,
+            ConfigurationAdmin.SERVICE_BUNDLELOCATION
+        };
+
+    private ConfigurationDiff()
+    {
+    }
+
+    /**
+     * Returns the specified {@code properties} without the configuration admin managed keys, with every array or
+     * collection value replaced by its type and a list of its elements. Two normalized maps are equal if and only if the
+     * properties are equal for the configuration admin service.
+     *
+     * @param properties The properties to normalize. This argument may be {@code null}.
+     *
+     * @return The normalized properties, never {@code null}.
+     */
+    static Map<String, Object> normalize( Dictionary<?, ?> properties )
+    {
+        if( properties == null )
+        {
+            return new HashMap<String, Object>();
+        }
+
+        Map<String, Object> normalized = new HashMap<String, Object>( properties.size() * 2 );
+        for( Enumeration<?> keys = properties.keys(); keys.hasMoreElements(); )
+        {
+            Object key = keys.nextElement();
+            if( isManagedKey( key ) )
+            {
+                continue;
+            }
+            normalized.put( String.valueOf( key ), normalizeValue( properties.get( key ) ) );
+        }
+        return normalized;
+    }
+
+    /**
+     * Returns {@code true} if the {@code stored} properties of a {@code Configuration} already equal the
+     * {@code loaded} properties, i.e. an update with {@code loaded} would not change anything.
+     *
+     * @param stored The properties of the {@code Configuration}. This argument may be {@code null}.
+     * @param loaded The loaded properties. This argument must not be {@code null}.
+     *
+     * @return A {@code boolean} indicator whether an update can be skipped.
+     */
+    static boolean isEqual( Dictionary<?, ?> stored, Dictionary<?, ?> loaded )
+    {
+        if( stored == null )
+        {
+            return false;
+        }
+        return normalize( stored ).equals( normalize( loaded ) );
+    }
+
+    private static boolean isManagedKey( Object key )
+    {
+        for( String managedKey : MANAGED_KEYS )
+        {
+            if( managedKey.equals( key ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code value} with arrays and collections turned into a {@code Sequence}, so equal values are
+     * {@code equals}.
+     */
+    static Object normalizeValue( Object value )
+    {
+        if( value != null && value.getClass().isArray() )
+        {
+            int length = Array.getLength( value );
+            List<Object> list = new ArrayList<Object>( length );
+            for( int i = 0; i < length; i++ )
+            {
+                list.add( Array.get( value, i ) );
+            }
+            return new Sequence( value.getClass(), list );
+        }
+        if( value instanceof Collection )
+        {
+            return new Sequence( value.getClass(), new ArrayList<Object>( (Collection<?>) value ) );
+        }
+        return value;
+    }
+
+    /**
+     * The elements of an array or collection together with its class, which tells primitive from wrapper arrays and
+     * arrays from collections. The elements keep their own classes, as {@code Integer} and {@code Long} never equal.
+     */
+    private static final class Sequence
+    {
+
+        private final Class<?> m_type;
+        private final List<Object> m_elements;
+
+        private Sequence( Class<?> type, List<Object> elements )
+        {
+            m_type = type;
+            m_elements = elements;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if( !( o instanceof Sequence ) )
+            {
+                return false;
+            }
+            Sequence other = (Sequence) o;
+            return m_type == other.m_type && m_elements.equals( other.m_elements );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_type.hashCode() * 31 + m_elements.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return m_type.getSimpleName() + m_elements;
+        }
+    }
+}
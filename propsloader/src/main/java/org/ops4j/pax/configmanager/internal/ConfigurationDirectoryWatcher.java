@@ -0,0 +1,326 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+
+/**
+ * {@code ConfigurationDirectoryWatcher} hot deploys the {@code factories} and {@code services} directories of the
+ * configuration area. It compares the size and modification time of the files in both directories, including the
+ * subdirectories selected by the {@code ConfigurationTree}, never their content, so an idle check costs one stat call
+ * per file. Once a change is seen it waits until the directories have
+ * been quiet for the settle time, so a burst of events (editors, rsync, atomic renames) results in one batch that
+ * only contains the affected files.
+ * <p>
+ * A stat whose modification time is within {@code CLOCK_GRANULARITY} of the scan does not prove that a later scan
+ * with the same stat saw the same file, so such a file is reported once more when its stat can be trusted.
+ */
+final class ConfigurationDirectoryWatcher
+    implements Runnable
+{
+
+    /**
+     * Framework property to enable the watcher. Its value is the check interval in milliseconds.
+     */
+    public static final String BUNDLES_CONFIGURATION_WATCH_INTERVAL = "bundles.configuration.watch.interval";
+
+    /**
+     * Framework property to set how long in milliseconds the directories must be unchanged before a batch is applied.
+     */
+    public static final String BUNDLES_CONFIGURATION_WATCH_SETTLE = "bundles.configuration.watch.settle";
+
+    private static final long DEFAULT_SETTLE_TIME = 500;
+
+    private static final Log LOGGER = LogFactory.getLog( ConfigurationDirectoryWatcher.class );
+
+    private final ConfigurationAdminFacade m_facade;
+    private final File m_factoriesDir;
+    private final File m_servicesDir;
+    private final long m_interval;
+    private final long m_settleTime;
+
+    private volatile boolean m_stopped;
+    private Thread m_thread;
+
+    ConfigurationDirectoryWatcher( ConfigurationAdminFacade facade, File configDir, long interval, long settleTime )
+    {
+        NullArgumentException.validateNotNull( facade, "facade" );
+        NullArgumentException.validateNotNull( configDir, "configDir" );
+
+        m_facade = facade;
+        m_factoriesDir = new File( configDir, ConfigurationAdminFacade.DIRECTORY_NAME_FACTORIES );
+        m_servicesDir = new File( configDir, ConfigurationAdminFacade.DIRECTORY_NAME_SERVICES );
+        m_interval = interval;
+        m_settleTime = settleTime;
+    }
+
+    /**
+     * Creates a watcher for the configuration area of the specified {@code facade} if it is enabled by the
+     * {@link #BUNDLES_CONFIGURATION_WATCH_INTERVAL} property.
+     *
+     * @param facade   The facade to apply changes with. This argument must not be {@code null}.
+     * @param resolver The resolver of the watcher properties. This argument must not be {@code null}.
+     *
+     * @return The watcher, or {@code null} if watching is disabled or there is no configuration area.
+     */
+    static ConfigurationDirectoryWatcher create( ConfigurationAdminFacade facade,
+                                                 ConfigurationAdminFacade.PropertyResolver resolver )
+    {
+        NullArgumentException.validateNotNull( resolver, "resolver" );
+
+        long interval = getLong( resolver, BUNDLES_CONFIGURATION_WATCH_INTERVAL, 0 );
+        if( interval <= 0 )
+        {
+            return null;
+        }
+
+        File configDir = facade.getConfigDir();
+        if( configDir == null )
+        {
+            return null;
+        }
+
+        long settleTime = getLong( resolver, BUNDLES_CONFIGURATION_WATCH_SETTLE, DEFAULT_SETTLE_TIME );
+        return new ConfigurationDirectoryWatcher( facade, configDir, interval, settleTime );
+    }
+
+    private static long getLong( ConfigurationAdminFacade.PropertyResolver resolver, String key, long defaultValue )
+    {
+        String value = resolver.getProperty( key );
+        if( value == null )
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Long.parseLong( value.trim() );
+        } catch( NumberFormatException e )
+        {
+            LOGGER.warn( "Property [" + key + "] is not a number [" + value + "]. Using [" + defaultValue + "]." );
+            return defaultValue;
+        }
+    }
+
+    synchronized void start()
+    {
+        m_stopped = false;
+        m_thread = new Thread( this, "Pax ConfMan directory watcher" );
+        m_thread.setDaemon( true );
+        m_thread.start();
+    }
+
+    synchronized void stop()
+    {
+        m_stopped = true;
+        if( m_thread != null )
+        {
+            m_thread.interrupt();
+            m_thread = null;
+        }
+    }
+
+    public void run()
+    {
+        LOGGER.info( "Watching [" + m_factoriesDir + "] and [" + m_servicesDir + "] every [" + m_interval + "] ms." );
+
+        Map<File, Stat> state = scan();
+        if( state == null )
+        {
+            state = new HashMap<File, Stat>();
+        }
+        try
+        {
+            while( !m_stopped )
+            {
+                Thread.sleep( m_interval );
+
+                Set<File> changed = new LinkedHashSet<File>();
+                Map<File, Stat> next = collectChanges( state, changed );
+                if( next == state )
+                {
+                    continue;
+                }
+
+                // wait until the burst is over
+                do
+                {
+                    state = next;
+                    Thread.sleep( m_settleTime );
+                    next = collectChanges( state, changed );
+                } while( next != state && !m_stopped );
+
+                apply( changed );
+            }
+        } catch( InterruptedException e )
+        {
+            // stopped
+        }
+    }
+
+    /**
+     * Adds the files that differ between {@code state} and a new scan to {@code changed}.
+     *
+     * @return The new state, or {@code state} itself if nothing changed.
+     */
+    private Map<File, Stat> collectChanges( Map<File, Stat> state, Set<File> changed )
+    {
+        Map<File, Stat> next = scan();
+        if( next == null )
+        {
+            return state;
+        }
+
+        boolean modified = false;
+        for( Map.Entry<File, Stat> entry : next.entrySet() )
+        {
+            Stat previous = state.get( entry.getKey() );
+            Stat current = entry.getValue();
+            if( previous == null || !previous.equals( current ) || ( previous.isRacy() && !current.isRacy() ) )
+            {
+                changed.add( entry.getKey() );
+                modified = true;
+            }
+        }
+        for( File file : state.keySet() )
+        {
+            if( !next.containsKey( file ) )
+            {
+                changed.add( file );
+                modified = true;
+            }
+        }
+        return modified ? next : state;
+    }
+
+    /**
+     * Returns the stats of the watched files, or {@code null} if the directories could not be listed completely.
+     */
+    private Map<File, Stat> scan()
+    {
+        Map<File, Stat> state = new HashMap<File, Stat>();
+        long scannedAt = System.currentTimeMillis();
+        try
+        {
+            scan( m_factoriesDir, scannedAt, state );
+            scan( m_servicesDir, scannedAt, state );
+        } catch( IOException e )
+        {
+            // an incomplete scan would report the missing files as deleted
+            LOGGER.debug( "Can't scan configuration directories.", e );
+            return null;
+        }
+        return state;
+    }
+
+    private void scan( File dir, long scannedAt, Map<File, Stat> state )
+        throws IOException
+    {
+        if( !dir.isDirectory() )
+        {
+            return;
+        }
+
+        for( File file : m_facade.getTree().scan( dir ).getFiles() )
+        {
+            state.put( file, new Stat( file.length(), file.lastModified(), scannedAt ) );
+        }
+    }
+
+    private void apply( Set<File> changed )
+    {
+        List<File> factoryFiles = new ArrayList<File>();
+        List<File> serviceFiles = new ArrayList<File>();
+        for( File file : changed )
+        {
+            if( ConfigurationTree.getRelativePath( m_factoriesDir, file ) != null )
+            {
+                factoryFiles.add( file );
+            }
+            else
+            {
+                serviceFiles.add( file );
+            }
+        }
+
+        LOGGER.info( "Applying [" + changed.size() + "] changed configuration files." );
+        try
+        {
+            m_facade.registerConfigurationFiles( factoryFiles, serviceFiles );
+        } catch( IllegalStateException e )
+        {
+            // the configuration area is loaded completely once configuration admin is available again
+            LOGGER.info( "Configuration admin service is not available. Changes are applied once it is." );
+        } catch( Throwable e )
+        {
+            LOGGER.error( "Can't apply changed configuration files " + changed, e );
+        }
+    }
+
+    /**
+     * Size and modification time of a watched file, equal if both are equal.
+     */
+    private static final class Stat
+    {
+
+        private final long m_size;
+        private final long m_lastModified;
+        private final long m_scannedAt;
+
+        private Stat( long size, long lastModified, long scannedAt )
+        {
+            m_size = size;
+            m_lastModified = lastModified;
+            m_scannedAt = scannedAt;
+        }
+
+        /**
+         * Returns {@code true} if the file could have changed in the same clock tick after it was scanned.
+         */
+        private boolean isRacy()
+        {
+            return m_lastModified >= m_scannedAt - ConfigurationFileIndex.CLOCK_GRANULARITY;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if( !( o instanceof Stat ) )
+            {
+                return false;
+            }
+            Stat other = (Stat) o;
+            return m_size == other.m_size && m_lastModified == other.m_lastModified;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) ( m_size ^ m_lastModified );
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+
+/**
+ * {@code ConfigurationFileIndex} remembers every configuration file that has been pushed to the configuration admin
+ * service, keyed by its absolute path. It is kept for the lifetime of the {@code ConfigurationAdminFacade} and lets
+ * a reload skip files that were neither added, changed nor deleted since the last pass.
+ * <p>
+ * It also maps service pids to their files. Applied files are found by their effective service pid, including a
+ * {@code service.pid} override found in the file. Every file a handler claimed during the last listing of a
+ * directory is found by the service pid derived from its path. The listing is only trusted as long as the
+ * modification times of the listed directories and subdirectories are unchanged, so a single service pid can be
+ * updated without listing the directories again.
+ */
+final class ConfigurationFileIndex
+{
+
+    /**
+     * Modification times within this many milliseconds before a listing or a fingerprint are not trusted, as a file
+     * could have been added or changed in the same tick of a coarse file system clock.
+     */
+    static final long CLOCK_GRANULARITY = 2000;
+
+    private final Map<String, Entry> m_entries;
+    private final ConcurrentMap<String, Entry> m_factoriesByPid;
+    private final ConcurrentMap<String, Entry> m_servicesByPid;
+    private final Listing[] m_listings;
+    /**
+     * Incremented whenever an entry is added, replaced or removed.
+     */
+    private final AtomicLong m_version;
+
+    ConfigurationFileIndex()
+    {
+        m_entries = new ConcurrentHashMap<String, Entry>();
+        m_factoriesByPid = new ConcurrentHashMap<String, Entry>();
+        m_servicesByPid = new ConcurrentHashMap<String, Entry>();
+        m_listings = new Listing[2];
+        m_version = new AtomicLong();
+    }
+
+    /**
+     * Returns the entry of the file with the specified absolute {@code path}, or {@code null} if the file has not
+     * been applied yet.
+     *
+     * @param path The absolute file path. This argument must not be {@code null}.
+     *
+     * @return The index entry or {@code null}.
+     */
+    Entry get( String path )
+    {
+        return m_entries.get( path );
+    }
+
+    /**
+     * Records that the file denoted by {@code fingerprint} was applied as {@code servicePid} by {@code handler}.
+     *
+     * @param fingerprint The fingerprint of the applied file. This argument must not be {@code null}.
+     * @param handler     The handler that loaded the file. This argument must not be {@code null}.
+     * @param servicePid  The effective service pid, including a {@code service.pid} override found in the file.
+     * @param isFactory   Whether the file was applied as {@code ManagedServiceFactory} configuration.
+     * @param properties  The properties loaded from the file. This argument must not be {@code null}.
+     */
+    void put( FileFingerprint fingerprint, IConfigurationFileHandler handler, String servicePid, boolean isFactory,
+              Properties properties )
+    {
+        NullArgumentException.validateNotNull( fingerprint, "fingerprint" );
+        NullArgumentException.validateNotNull( handler, "handler" );
+        NullArgumentException.validateNotNull( servicePid, "servicePid" );
+        NullArgumentException.validateNotNull( properties, "properties" );
+
+        put( new Entry( fingerprint, handler, servicePid, isFactory, properties ) );
+    }
+
+    /**
+     * Replaces the fingerprint of an already indexed file whose content did not change, e.g. after it was touched.
+     *
+     * @param entry       The existing entry. This argument must not be {@code null}.
+     * @param fingerprint The new fingerprint. This argument must not be {@code null}.
+     */
+    void refresh( Entry entry, FileFingerprint fingerprint )
+    {
+        put( new Entry( fingerprint, entry.getHandler(), entry.getServicePid(), entry.isFactory(),
+                        entry.getProperties() ) );
+    }
+
+    /**
+     * Puts the specified {@code entry} back, e.g. after the batch that replaced it was rolled back.
+     *
+     * @param entry The entry. This argument must not be {@code null}.
+     */
+    void put( Entry entry )
+    {
+        Entry previous = m_entries.put( entry.getFingerprint().getPath(), entry );
+        getPidMap( entry.isFactory() ).put( entry.getServicePid(), entry );
+        if( previous != null )
+        {
+            unmapPid( previous );
+        }
+        m_version.incrementAndGet();
+    }
+
+    Entry remove( String path )
+    {
+        Entry entry = m_entries.remove( path );
+        if( entry != null )
+        {
+            unmapPid( entry );
+            m_version.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private void unmapPid( Entry entry )
+    {
+        ConcurrentMap<String, Entry> byPid = getPidMap( entry.isFactory() );
+        String servicePid = entry.getServicePid();
+        if( !byPid.remove( servicePid, entry ) )
+        {
+            return;
+        }
+
+        // another file may provide the same service.pid
+        for( Entry other : m_entries.values() )
+        {
+            if( other.isFactory() == entry.isFactory() && other.getServicePid().equals( servicePid ) )
+            {
+                byPid.put( servicePid, other );
+                return;
+            }
+        }
+    }
+
+    private ConcurrentMap<String, Entry> getPidMap( boolean isFactory )
+    {
+        return isFactory ? m_factoriesByPid : m_servicesByPid;
+    }
+
+    /**
+     * Returns {@code true} if an indexed file of the specified kind was applied as {@code servicePid}.
+     *
+     * @param servicePid The effective service pid. This argument must not be {@code null}.
+     * @param isFactory  Whether a factory or a service pid is looked up.
+     *
+     * @return A {@code boolean} indicator whether {@code servicePid} is provided by an indexed file.
+     */
+    boolean contains( String servicePid, boolean isFactory )
+    {
+        return getPidMap( isFactory ).containsKey( servicePid );
+    }
+
+    /**
+     * Returns the entry of the indexed file of the specified kind that was applied as {@code servicePid}, or
+     * {@code null} if there is none.
+     */
+    Entry getByServicePid( String servicePid, boolean isFactory )
+    {
+        return getPidMap( isFactory ).get( servicePid );
+    }
+
+    /**
+     * Replaces the listing of the {@code factories} or {@code services} directory.
+     *
+     * @param directories The listed directory and its listed subdirectories, with their modification times before
+     *                    they were listed. This argument must not be {@code null}.
+     * @param listedAt    The time the listing started.
+     * @param locations   The files claimed by a handler, keyed by the service pid derived from their path. This
+     *                    argument must not be {@code null}.
+     * @param isFactory   Whether the {@code factories} directory was listed.
+     */
+    void setListing( Map<File, Long> directories, long listedAt, Map<String, File> locations, boolean isFactory )
+    {
+        NullArgumentException.validateNotNull( directories, "directories" );
+        NullArgumentException.validateNotNull( locations, "locations" );
+
+        Listing listing = new Listing( directories, locations );
+        for( long lastModified : directories.values() )
+        {
+            if( lastModified >= listedAt - CLOCK_GRANULARITY )
+            {
+                listing = null;
+                break;
+            }
+        }
+        synchronized( m_listings )
+        {
+            m_listings[ isFactory ? 0 : 1 ] = listing;
+        }
+    }
+
+    /**
+     * Forgets the directory listings, e.g. because the registered handlers changed.
+     */
+    void clearListings()
+    {
+        synchronized( m_listings )
+        {
+            m_listings[ 0 ] = null;
+            m_listings[ 1 ] = null;
+        }
+    }
+
+    /**
+     * Looks up the files that provide the specified {@code servicePid}.
+     *
+     * @param servicePid The requested service pid. This argument must not be {@code null}.
+     * @param factories  The files of the {@code factories} directory are added to this list. This argument must not
+     *                   be {@code null}.
+     * @param services   The files of the {@code services} directory are added to this list. This argument must not
+     *                   be {@code null}.
+     *
+     * @return {@code false} if the files of {@code servicePid} can not be determined without listing a directory.
+     */
+    boolean lookup( String servicePid, List<File> factories, List<File> services )
+    {
+        Listing factoryListing;
+        Listing serviceListing;
+        synchronized( m_listings )
+        {
+            factoryListing = m_listings[ 0 ];
+            serviceListing = m_listings[ 1 ];
+        }
+
+        boolean current = true;
+        current &= lookup( servicePid, factoryListing, m_factoriesByPid, factories );
+        current &= lookup( servicePid, serviceListing, m_servicesByPid, services );
+        return current;
+    }
+
+    private static boolean lookup( String servicePid, Listing listing, Map<String, Entry> byPid, List<File> files )
+    {
+        Entry entry = byPid.get( servicePid );
+        if( entry != null )
+        {
+            files.add( new File( entry.getFingerprint().getPath() ) );
+        }
+
+        if( listing == null || !listing.isCurrent() )
+        {
+            return false;
+        }
+
+        File file = listing.m_locations.get( servicePid );
+        if( file != null && !files.contains( file ) )
+        {
+            files.add( file );
+        }
+        return true;
+    }
+
+    /**
+     * Returns the entries of the specified kind, i.e. {@code ManagedServiceFactory} or {@code ManagedService}
+     * configurations.
+     *
+     * @param isFactory Whether factory or service entries are requested.
+     *
+     * @return A snapshot list of the matching entries, never {@code null}.
+     */
+    List<Entry> getEntries( boolean isFactory )
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+        for( Entry entry : m_entries.values() )
+        {
+            if( entry.isFactory() == isFactory )
+            {
+                entries.add( entry );
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns a snapshot list of all entries.
+     *
+     * @return The entries, never {@code null}.
+     */
+    List<Entry> getEntries()
+    {
+        return new ArrayList<Entry>( m_entries.values() );
+    }
+
+    /**
+     * Returns a number that changes whenever an entry is added, replaced or removed.
+     *
+     * @return The modification count of this index.
+     */
+    long getVersion()
+    {
+        return m_version.get();
+    }
+
+    void clear()
+    {
+        m_entries.clear();
+        m_factoriesByPid.clear();
+        m_servicesByPid.clear();
+        clearListings();
+        m_version.incrementAndGet();
+    }
+
+    /**
+     * A file that has been applied to the configuration admin service.
+     */
+    static final class Entry
+    {
+
+        private final FileFingerprint m_fingerprint;
+        private final IConfigurationFileHandler m_handler;
+        private final String m_servicePid;
+        private final boolean m_factory;
+        private final Properties m_properties;
+
+        private Entry( FileFingerprint fingerprint, IConfigurationFileHandler handler, String servicePid,
+                       boolean isFactory, Properties properties )
+        {
+            m_fingerprint = fingerprint;
+            m_handler = handler;
+            m_servicePid = servicePid;
+            m_factory = isFactory;
+            m_properties = properties;
+        }
+
+        FileFingerprint getFingerprint()
+        {
+            return m_fingerprint;
+        }
+
+        IConfigurationFileHandler getHandler()
+        {
+            return m_handler;
+        }
+
+        String getServicePid()
+        {
+            return m_servicePid;
+        }
+
+        boolean isFactory()
+        {
+            return m_factory;
+        }
+
+        /**
+         * Returns the properties loaded from the file. They are kept for the {@code ConfigurationSnapshot}.
+         */
+        Properties getProperties()
+        {
+            return m_properties;
+        }
+    }
+
+    /**
+     * The files of a directory and its subdirectories that were claimed by a handler when it was last listed.
+     */
+    private static final class Listing
+    {
+
+        private final Map<File, Long> m_directories;
+        private final Map<String, File> m_locations;
+
+        private Listing( Map<File, Long> directories, Map<String, File> locations )
+        {
+            m_directories = directories;
+            m_locations = locations;
+        }
+
+        /**
+         * Returns {@code true} if no listed directory changed, i.e. no file was added, removed or renamed since.
+         */
+        private boolean isCurrent()
+        {
+            for( Map.Entry<File, Long> directory : m_directories.entrySet() )
+            {
+                if( directory.getKey().lastModified() != directory.getValue() )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
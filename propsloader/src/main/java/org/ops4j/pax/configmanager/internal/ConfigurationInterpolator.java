@@ -0,0 +1,579 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+
+/**
+ * {@code ConfigurationInterpolator} replaces the {@code ${...}} references in the loaded string values before they
+ * are pushed to the configuration admin service:
+ * <ul>
+ * <li>{@code ${name}} is the framework property {@code name}, or the system property if there is no such framework
+ * property.</li>
+ * <li>{@code ${env:NAME}} is the environment variable {@code NAME}.</li>
+ * <li>{@code ${pid#key}} is the resolved value of {@code key} of the configuration {@code pid}, {@code ${#key}} the
+ * one of the same configuration. A value that consists of nothing but such a reference keeps the type of the
+ * referenced value.</li>
+ * <li>A reference preceded by another dollar sign, e.g. {@code $${name}}, is kept literally, without the extra
+ * dollar sign.</li>
+ * </ul>
+ * A reference that can not be resolved is left as it is, so values meant to be interpolated by the configured
+ * service itself pass through. A cyclic reference fails the configuration.
+ * <p>
+ * Each value is compiled once into its literal and reference parts, and resolved values are kept per configuration
+ * for as long as neither the configuration nor a configuration it references changes. When a configuration
+ * changes, only the configurations that depend on it, directly or through others, are resolved again. Those that
+ * are not loaded in the same pass are reported by {@link #takeStale()} to be pushed again.
+ */
+final class ConfigurationInterpolator
+{
+
+    /**
+     * Framework property to switch interpolation off by setting it to {@code false}.
+     */
+    public static final String BUNDLES_CONFIGURATION_INTERPOLATION = "bundles.configuration.interpolation";
+
+    private static final Log LOGGER = LogFactory.getLog( ConfigurationInterpolator.class );
+    private static final String ENVIRONMENT_PREFIX = "env:";
+    private static final char PID_SEPARATOR = '#';
+    /**
+     * Marks a value that has no references.
+     */
+    private static final Template LITERAL = new Template( new String[0], new Reference[0] );
+
+    private final ConfigurationFileIndex m_index;
+    private final ConfigurationAdminFacade.PropertyResolver m_resolver;
+    private final boolean m_enabled;
+
+    private final Map<String, Node> m_nodes;
+    /**
+     * The service pids that reference a service pid, whether the referenced configuration exists or not.
+     */
+    private final Map<String, Set<String>> m_dependents;
+    private final Set<String> m_stale;
+    /**
+     * The references that are being resolved, as {@code pid#key}, to detect cycles.
+     */
+    private final Set<String> m_resolving;
+
+    /**
+     * @param index    The index of the applied files, which holds the configurations that are referenced before
+     *                 they are resolved. This argument must not be {@code null}.
+     * @param resolver The resolver of framework properties. This argument must not be {@code null}.
+     */
+    ConfigurationInterpolator( ConfigurationFileIndex index, ConfigurationAdminFacade.PropertyResolver resolver )
+    {
+        NullArgumentException.validateNotNull( index, "index" );
+        NullArgumentException.validateNotNull( resolver, "resolver" );
+
+        m_index = index;
+        m_resolver = resolver;
+        m_enabled = !"false".equalsIgnoreCase( resolver.getProperty( BUNDLES_CONFIGURATION_INTERPOLATION ) );
+        m_nodes = new HashMap<String, Node>();
+        m_dependents = new HashMap<String, Set<String>>();
+        m_stale = new LinkedHashSet<String>();
+        m_resolving = new HashSet<String>();
+    }
+
+    /**
+     * Returns the {@code properties} loaded for {@code servicePid} with their references resolved. If
+     * {@code properties} is not the instance resolved last for {@code servicePid}, the configurations that depend
+     * on {@code servicePid} become stale.
+     *
+     * @param servicePid The effective service pid. This argument must not be {@code null}.
+     * @param isFactory  {@code true} for the configuration of a managed service factory.
+     * @param properties The loaded properties. This argument must not be {@code null}.
+     *
+     * @return The resolved properties, {@code properties} itself if nothing had to be resolved. They must not be
+     *         modified.
+     *
+     * @throws IllegalArgumentException Thrown if a value references itself.
+     */
+    synchronized Properties resolve( String servicePid, boolean isFactory, Properties properties )
+        throws IllegalArgumentException
+    {
+        if( !m_enabled )
+        {
+            return properties;
+        }
+
+        Node node = m_nodes.get( servicePid );
+        if( node == null || node.m_properties != properties || node.m_factory != isFactory )
+        {
+            if( node != null )
+            {
+                unlink( node );
+            }
+            node = new Node( servicePid, properties, isFactory );
+            m_nodes.put( servicePid, node );
+            invalidateDependents( servicePid );
+        }
+        m_stale.remove( servicePid );
+
+        if( node.m_result == null )
+        {
+            node.m_result = resolveAll( node );
+        }
+        return node.m_result;
+    }
+
+    /**
+     * Returns the configuration of {@code servicePid} as it was last resolved, or {@code null} if it is not known.
+     */
+    synchronized Node get( String servicePid )
+    {
+        return m_nodes.get( servicePid );
+    }
+
+    /**
+     * Forgets the configuration of {@code servicePid}, e.g. because its file was deleted. The configurations that
+     * depend on it become stale.
+     */
+    synchronized void remove( String servicePid )
+    {
+        Node node = m_nodes.remove( servicePid );
+        if( node != null )
+        {
+            unlink( node );
+        }
+        m_stale.remove( servicePid );
+        invalidateDependents( servicePid );
+    }
+
+    /**
+     * Returns the service pids whose resolved values are outdated since a configuration they depend on changed, and
+     * that were not resolved again since. They are returned only once.
+     *
+     * @return The stale service pids, in the order they became stale. Never {@code null}.
+     */
+    synchronized List<String> takeStale()
+    {
+        List<String> stale = new ArrayList<String>( m_stale );
+        m_stale.clear();
+        return stale;
+    }
+
+    synchronized void clear()
+    {
+        m_nodes.clear();
+        m_dependents.clear();
+        m_stale.clear();
+    }
+
+    /**
+     * Marks the configurations that depend on {@code servicePid} as stale and drops their resolved values, as well as
+     * those of the configurations that depend on them.
+     */
+    private void invalidateDependents( String servicePid )
+    {
+        Set<String> dependents = m_dependents.get( servicePid );
+        if( dependents == null )
+        {
+            return;
+        }
+        for( String dependent : new ArrayList<String>( dependents ) )
+        {
+            Node node = m_nodes.get( dependent );
+            if( node != null && m_stale.add( dependent ) )
+            {
+                unlink( node );
+                node.m_values.clear();
+                node.m_result = null;
+                invalidateDependents( dependent );
+            }
+        }
+    }
+
+    /**
+     * Removes the dependencies of {@code node}, they are recorded again when it is resolved.
+     */
+    private void unlink( Node node )
+    {
+        for( String dependency : node.m_dependencies )
+        {
+            Set<String> dependents = m_dependents.get( dependency );
+            if( dependents != null )
+            {
+                dependents.remove( node.m_servicePid );
+                if( dependents.isEmpty() )
+                {
+                    m_dependents.remove( dependency );
+                }
+            }
+        }
+        node.m_dependencies.clear();
+    }
+
+    private Properties resolveAll( Node node )
+    {
+        Properties result = null;
+        for( Enumeration<?> keys = node.m_properties.keys(); keys.hasMoreElements(); )
+        {
+            Object key = keys.nextElement();
+            Object value = node.m_properties.get( key );
+            Object resolved = resolveValue( node, String.valueOf( key ) );
+            if( resolved != value )
+            {
+                if( result == null )
+                {
+                    result = new Properties();
+                    result.putAll( node.m_properties );
+                }
+                result.put( key, resolved );
+            }
+        }
+        return result == null ? node.m_properties : result;
+    }
+
+    /**
+     * Returns the resolved value of {@code key} of the configuration {@code node}, or {@code null} if there is no
+     * such key.
+     */
+    private Object resolveValue( Node node, String key )
+    {
+        Object value = node.m_values.get( key );
+        if( value != null )
+        {
+            return value;
+        }
+        value = node.m_properties.get( key );
+        if( value == null )
+        {
+            return null;
+        }
+
+        String reference = node.m_servicePid + PID_SEPARATOR + key;
+        if( !m_resolving.add( reference ) )
+        {
+            throw new IllegalArgumentException( "Cyclic reference to [" + reference + "]." );
+        }
+        try
+        {
+            if( value instanceof String )
+            {
+                value = interpolate( node, key, (String) value );
+            }
+            else if( value instanceof String[] )
+            {
+                String[] elements = (String[]) value;
+                String[] resolved = null;
+                for( int i = 0; i < elements.length; i++ )
+                {
+                    Object element = interpolate( node, key + "[" + i + "]", elements[ i ] );
+                    if( element != elements[ i ] )
+                    {
+                        if( resolved == null )
+                        {
+                            resolved = elements.clone();
+                        }
+                        resolved[ i ] = toString( element );
+                    }
+                }
+                if( resolved != null )
+                {
+                    value = resolved;
+                }
+            }
+        } finally
+        {
+            m_resolving.remove( reference );
+        }
+
+        node.m_values.put( key, value );
+        return value;
+    }
+
+    /**
+     * Returns {@code value} with its references resolved, or {@code value} itself if it has none.
+     *
+     * @param templateKey The key the compiled {@code value} is kept under.
+     */
+    private Object interpolate( Node node, String templateKey, String value )
+    {
+        Template template = node.m_templates.get( templateKey );
+        if( template == null )
+        {
+            template = Template.compile( value );
+            node.m_templates.put( templateKey, template );
+        }
+        if( template == LITERAL )
+        {
+            return value;
+        }
+
+        Reference[] references = template.m_references;
+        String[] literals = template.m_literals;
+        if( references.length == 1 && literals[ 0 ].length() == 0 && literals[ 1 ].length() == 0 )
+        {
+            Object resolved = lookup( node, references[ 0 ] );
+            return resolved == null ? references[ 0 ].m_text : resolved;
+        }
+
+        StringBuilder builder = new StringBuilder( value.length() );
+        for( int i = 0; i < references.length; i++ )
+        {
+            builder.append( literals[ i ] );
+            Object resolved = lookup( node, references[ i ] );
+            builder.append( resolved == null ? references[ i ].m_text : toString( resolved ) );
+        }
+        builder.append( literals[ references.length ] );
+        return builder.toString();
+    }
+
+    /**
+     * Returns the value of {@code reference}, or {@code null} if it can not be resolved.
+     */
+    private Object lookup( Node node, Reference reference )
+    {
+        Object value;
+        if( reference.m_servicePid == null )
+        {
+            value = reference.m_environment ? System.getenv( reference.m_name )
+                                            : m_resolver.getProperty( reference.m_name );
+            if( value == null && !reference.m_environment )
+            {
+                value = System.getProperty( reference.m_name );
+            }
+            if( value == null && LOGGER.isDebugEnabled() )
+            {
+                LOGGER.debug( "Reference " + reference.m_text + " of [" + node.m_servicePid + "] is not defined." );
+            }
+            return value;
+        }
+
+        Node target = node;
+        if( reference.m_servicePid.length() > 0 && !reference.m_servicePid.equals( node.m_servicePid ) )
+        {
+            // the dependency is kept even if the configuration is missing, so it is resolved once it shows up
+            if( node.m_dependencies.add( reference.m_servicePid ) )
+            {
+                Set<String> dependents = m_dependents.get( reference.m_servicePid );
+                if( dependents == null )
+                {
+                    dependents = new HashSet<String>();
+                    m_dependents.put( reference.m_servicePid, dependents );
+                }
+                dependents.add( node.m_servicePid );
+            }
+            target = getNode( reference.m_servicePid );
+        }
+
+        value = target == null ? null : resolveValue( target, reference.m_name );
+        if( value == null )
+        {
+            LOGGER.warn( "Reference " + reference.m_text + " of [" + node.m_servicePid + "] can not be resolved." );
+        }
+        return value;
+    }
+
+    /**
+     * Returns the node of {@code servicePid}, creating it from the applied file of that service pid.
+     */
+    private Node getNode( String servicePid )
+    {
+        Node node = m_nodes.get( servicePid );
+        if( node != null )
+        {
+            return node;
+        }
+
+        ConfigurationFileIndex.Entry entry = m_index.getByServicePid( servicePid, false );
+        if( entry == null )
+        {
+            entry = m_index.getByServicePid( servicePid, true );
+        }
+        if( entry == null )
+        {
+            return null;
+        }
+        node = new Node( servicePid, entry.getProperties(), entry.isFactory() );
+        m_nodes.put( servicePid, node );
+        return node;
+    }
+
+    /**
+     * Returns the text of a resolved value, the elements of an array are joined by commas.
+     */
+    private static String toString( Object value )
+    {
+        if( !value.getClass().isArray() )
+        {
+            return String.valueOf( value );
+        }
+        StringBuilder builder = new StringBuilder();
+        for( int i = 0; i < Array.getLength( value ); i++ )
+        {
+            if( builder.length() > 0 )
+            {
+                builder.append( ',' );
+            }
+            builder.append( Array.get( value, i ) );
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A configuration together with the values resolved so far.
+     */
+    static final class Node
+    {
+
+        private final String m_servicePid;
+        private final Properties m_properties;
+        private final boolean m_factory;
+        private final Map<String, Template> m_templates;
+        private final Map<String, Object> m_values;
+        private final Set<String> m_dependencies;
+        private Properties m_result;
+
+        private Node( String servicePid, Properties properties, boolean isFactory )
+        {
+            m_servicePid = servicePid;
+            m_properties = properties;
+            m_factory = isFactory;
+            m_templates = new HashMap<String, Template>();
+            m_values = new HashMap<String, Object>();
+            m_dependencies = new HashSet<String>();
+        }
+
+        /**
+         * Returns the properties as they were loaded, before interpolation.
+         */
+        Properties getProperties()
+        {
+            return m_properties;
+        }
+
+        boolean isFactory()
+        {
+            return m_factory;
+        }
+    }
+
+    /**
+     * The compiled form of a value: its literal parts, with a reference between each two of them.
+     */
+    private static final class Template
+    {
+
+        private final String[] m_literals;
+        private final Reference[] m_references;
+
+        private Template( String[] literals, Reference[] references )
+        {
+            m_literals = literals;
+            m_references = references;
+        }
+
+        /**
+         * Compiles {@code value}, or returns {@code LITERAL} if it has no references.
+         */
+        private static Template compile( String value )
+        {
+            if( value.indexOf( "${" ) < 0 )
+            {
+                return LITERAL;
+            }
+
+            List<String> literals = new ArrayList<String>();
+            List<Reference> references = new ArrayList<Reference>();
+            StringBuilder literal = new StringBuilder();
+            int i = 0;
+            while( i < value.length() )
+            {
+                if( value.startsWith( "$${", i ) )
+                {
+                    literal.append( "${" );
+                    i += 3;
+                    continue;
+                }
+                if( value.startsWith( "${", i ) )
+                {
+                    int end = value.indexOf( '}', i + 2 );
+                    if( end >= 0 )
+                    {
+                        literals.add( literal.toString() );
+                        literal.setLength( 0 );
+                        references.add( new Reference( value.substring( i, end + 1 ) ) );
+                        i = end + 1;
+                        continue;
+                    }
+                }
+                literal.append( value.charAt( i++ ) );
+            }
+            literals.add( literal.toString() );
+            return new Template( literals.toArray( new String[literals.size()] ),
+                                 references.toArray( new Reference[references.size()] ) );
+        }
+    }
+
+    /**
+     * A {@code ${...}} reference.
+     */
+    private static final class Reference
+    {
+
+        private final String m_text;
+        /**
+         * The service pid of a configuration reference, empty for the same configuration, {@code null} for a
+         * property or environment variable.
+         */
+        private final String m_servicePid;
+        private final String m_name;
+        private final boolean m_environment;
+
+        /**
+         * @param text The reference, including the dollar sign and the braces.
+         */
+        private Reference( String text )
+        {
+            m_text = text;
+            String body = text.substring( 2, text.length() - 1 );
+            int separator = body.indexOf( PID_SEPARATOR );
+            if( body.startsWith( ENVIRONMENT_PREFIX ) )
+            {
+                m_servicePid = null;
+                m_name = body.substring( ENVIRONMENT_PREFIX.length() );
+                m_environment = true;
+            }
+            else if( separator >= 0 )
+            {
+                m_servicePid = body.substring( 0, separator );
+                m_name = body.substring( separator + 1 );
+                m_environment = false;
+            }
+            else
+            {
+                m_servicePid = null;
+                m_name = body;
+                m_environment = false;
+            }
+        }
+    }
+}
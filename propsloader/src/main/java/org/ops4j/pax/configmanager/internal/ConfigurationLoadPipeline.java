@@ -0,0 +1,544 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * {@code ConfigurationLoadPipeline} loads configuration files in two stages. The parse stage runs the tasks on a
+ * bounded pool of threads, at most a few tasks per thread ahead of the commit stage. The commit stage runs in the
+ * calling thread and receives the results strictly in task order, so configurations reach the configuration admin
+ * service in the same order as they would when loaded one by one.
+ * <p>
+ * With a parallelism of {@code 1} no thread is created and every task is parsed and committed in turn.
+ * <p>
+ * Results may declare {@code Dependencies} on the results of other tasks. A result whose dependencies are not
+ * committed yet is held back until every task is parsed. The held back results are then committed in waves, each
+ * wave holding the results whose dependencies have been committed by the previous waves. The results of a wave do
+ * not depend on each other and are committed concurrently.
+ */
+final class ConfigurationLoadPipeline
+{
+
+    /**
+     * Framework property to set the number of threads that parse configuration files. Set it to {@code 1} for strict
+     * sequential loading, e.g. if a registered {@code IConfigurationFileHandler} is not thread safe. Defaults to the
+     * number of available processors.
+     */
+    public static final String BUNDLES_CONFIGURATION_PARSE_THREADS = "bundles.configuration.parse.threads";
+
+    /**
+     * Number of tasks per thread that may be parsed ahead of the commit stage.
+     */
+    private static final int TASKS_PER_THREAD = 4;
+
+    private static final Log LOGGER = LogFactory.getLog( ConfigurationLoadPipeline.class );
+
+    private final int m_parallelism;
+    private final ExecutorService m_executor;
+
+    ConfigurationLoadPipeline( int parallelism )
+    {
+        m_parallelism = Math.max( 1, parallelism );
+        if( m_parallelism > 1 )
+        {
+            m_executor = Executors.newFixedThreadPool( m_parallelism, new ParserThreadFactory() );
+        }
+        else
+        {
+            m_executor = null;
+        }
+    }
+
+    /**
+     * Creates the pipeline with the parallelism set by {@link #BUNDLES_CONFIGURATION_PARSE_THREADS}.
+     *
+     * @param resolver The resolver of the property. This argument must not be {@code null}.
+     *
+     * @return The pipeline.
+     */
+    static ConfigurationLoadPipeline create( ConfigurationAdminFacade.PropertyResolver resolver )
+    {
+        NullArgumentException.validateNotNull( resolver, "resolver" );
+
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        String value = resolver.getProperty( BUNDLES_CONFIGURATION_PARSE_THREADS );
+        if( value != null )
+        {
+            try
+            {
+                parallelism = Integer.parseInt( value.trim() );
+            } catch( NumberFormatException e )
+            {
+                LOGGER.warn( "Property [" + BUNDLES_CONFIGURATION_PARSE_THREADS + "] is not a number [" + value
+                             + "]. Using [" + parallelism + "]." );
+            }
+        }
+        return new ConfigurationLoadPipeline( parallelism );
+    }
+
+    int getParallelism()
+    {
+        return m_parallelism;
+    }
+
+    /**
+     * Parses the specified {@code tasks} and commits their results in order.
+     *
+     * @param tasks     The parse tasks. This argument must not be {@code null}.
+     * @param committer The commit stage. This argument must not be {@code null}.
+     *
+     * @throws IOException            Thrown if a task or the commit stage fails with an IO problem.
+     * @throws InvalidSyntaxException Thrown if the commit stage fails to retrieve configurations.
+     */
+    <T> void run( List<? extends Callable<T>> tasks, Committer<T> committer )
+        throws IOException, InvalidSyntaxException
+    {
+        NullArgumentException.validateNotNull( tasks, "tasks" );
+        NullArgumentException.validateNotNull( committer, "committer" );
+
+        parse( tasks, committer );
+    }
+
+    /**
+     * Parses the specified {@code tasks} and commits their results in order, except for the results that have to
+     * wait for their dependencies. These are committed in waves once every task is parsed. A result that is part of
+     * a dependency cycle is reported and committed after the others, in task order.
+     *
+     * @param tasks        The parse tasks. This argument must not be {@code null}.
+     * @param committer    The commit stage. It must be thread safe if the pipeline is parallel. This argument must
+     *                     not be {@code null}.
+     * @param dependencies The dependencies of the results. This argument must not be {@code null}.
+     *
+     * @throws IOException            Thrown if a task or the commit stage fails with an IO problem.
+     * @throws InvalidSyntaxException Thrown if the commit stage fails to retrieve configurations.
+     */
+    <T> void run( List<? extends Callable<T>> tasks, Committer<T> committer, Dependencies<T> dependencies )
+        throws IOException, InvalidSyntaxException
+    {
+        NullArgumentException.validateNotNull( tasks, "tasks" );
+        NullArgumentException.validateNotNull( committer, "committer" );
+        NullArgumentException.validateNotNull( dependencies, "dependencies" );
+
+        DependencyCommitter<T> ordered = new DependencyCommitter<T>( committer, dependencies );
+        parse( tasks, ordered );
+        ordered.commitWaves();
+    }
+
+    /**
+     * Runs the specified {@code tasks} concurrently and returns their results in task order, e.g. to list several
+     * directories at once. A task must not wait for another task of this pipeline.
+     *
+     * @param tasks The tasks. This argument must not be {@code null}.
+     *
+     * @return The results of the tasks.
+     *
+     * @throws IOException Thrown if a task fails with an IO problem or the calling thread is interrupted.
+     */
+    <T> List<T> invokeAll( List<? extends Callable<T>> tasks )
+        throws IOException
+    {
+        NullArgumentException.validateNotNull( tasks, "tasks" );
+
+        List<T> results = new ArrayList<T>( tasks.size() );
+        if( m_executor == null || tasks.size() < 2 )
+        {
+            for( Callable<T> task : tasks )
+            {
+                results.add( call( task ) );
+            }
+            return results;
+        }
+
+        List<Future<T>> futures;
+        try
+        {
+            futures = m_executor.invokeAll( tasks );
+        } catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while listing configuration files." );
+        }
+        for( Future<T> future : futures )
+        {
+            try
+            {
+                results.add( get( future ) );
+            } catch( InvalidSyntaxException e )
+            {
+                IOException ioe = new IOException( "Failed to list configuration files." );
+                ioe.initCause( e );
+                throw ioe;
+            }
+        }
+        return results;
+    }
+
+    private <T> void parse( List<? extends Callable<T>> tasks, Committer<T> committer )
+        throws IOException, InvalidSyntaxException
+    {
+        if( m_executor == null || tasks.size() < 2 )
+        {
+            for( Callable<T> task : tasks )
+            {
+                committer.commit( call( task ) );
+            }
+            return;
+        }
+
+        int window = m_parallelism * TASKS_PER_THREAD;
+        List<Future<T>> futures = new ArrayList<Future<T>>( tasks.size() );
+        boolean completed = false;
+        try
+        {
+            for( int i = 0; i < tasks.size(); i++ )
+            {
+                while( futures.size() < tasks.size() && futures.size() < i + window )
+                {
+                    futures.add( m_executor.submit( tasks.get( futures.size() ) ) );
+                }
+
+                T result = get( futures.get( i ) );
+                // release the parse result as soon as it is committed
+                futures.set( i, null );
+                committer.commit( result );
+            }
+            completed = true;
+        } finally
+        {
+            if( !completed )
+            {
+                for( Future<T> future : futures )
+                {
+                    if( future != null )
+                    {
+                        future.cancel( true );
+                    }
+                }
+            }
+        }
+    }
+
+    private static <T> T call( Callable<T> task )
+        throws IOException
+    {
+        try
+        {
+            return task.call();
+        } catch( IOException e )
+        {
+            throw e;
+        } catch( RuntimeException e )
+        {
+            throw e;
+        } catch( Exception e )
+        {
+            IOException ioe = new IOException( "Failed to load configuration file." );
+            ioe.initCause( e );
+            throw ioe;
+        }
+    }
+
+    private static <T> T get( Future<T> future )
+        throws IOException, InvalidSyntaxException
+    {
+        try
+        {
+            return future.get();
+        } catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while loading configuration files." );
+        } catch( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            if( cause instanceof InvalidSyntaxException )
+            {
+                throw (InvalidSyntaxException) cause;
+            }
+            if( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            IOException ioe = new IOException( "Failed to load configuration file." );
+            ioe.initCause( cause );
+            throw ioe;
+        }
+    }
+
+    /**
+     * Shuts the parser threads down. The pipeline must not be used afterwards.
+     */
+    void dispose()
+    {
+        if( m_executor != null )
+        {
+            m_executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The commit stage of the pipeline.
+     */
+    static interface Committer<T>
+    {
+
+        /**
+         * Commits the specified parse {@code result}. Results are committed in task order, in the thread that runs
+         * the pipeline.
+         *
+         * @param result The parse result.
+         *
+         * @throws IOException            Thrown if there is an IO problem during commit.
+         * @throws InvalidSyntaxException Thrown if there is an invalid exception during retrieval of configurations.
+         */
+        void commit( T result )
+            throws IOException, InvalidSyntaxException;
+    }
+
+    /**
+     * The dependencies between the results of a run.
+     */
+    static interface Dependencies<T>
+    {
+
+        /**
+         * Returns the name of the specified {@code result}, e.g. its service pid, or {@code null} if it has none.
+         */
+        String getName( T result );
+
+        /**
+         * Returns the names of the results that must be committed before the specified {@code result}. Names that
+         * are not found in the run are ignored.
+         *
+         * @return The names. Never {@code null}.
+         */
+        Collection<String> getDependencies( T result );
+    }
+
+    /**
+     * Commits the results without pending dependencies right away and holds back the others for
+     * {@link #commitWaves()}.
+     */
+    private final class DependencyCommitter<T>
+        implements Committer<T>
+    {
+
+        private final Committer<T> m_committer;
+        private final Dependencies<T> m_dependencies;
+        private final Set<String> m_committed;
+        private final List<T> m_deferred;
+
+        private DependencyCommitter( Committer<T> committer, Dependencies<T> dependencies )
+        {
+            m_committer = committer;
+            m_dependencies = dependencies;
+            m_committed = new HashSet<String>();
+            m_deferred = new ArrayList<T>();
+        }
+
+        public void commit( T result )
+            throws IOException, InvalidSyntaxException
+        {
+            if( m_committed.containsAll( m_dependencies.getDependencies( result ) ) )
+            {
+                m_committer.commit( result );
+                committed( result );
+            }
+            else
+            {
+                m_deferred.add( result );
+            }
+        }
+
+        private void committed( T result )
+        {
+            String name = m_dependencies.getName( result );
+            if( name != null )
+            {
+                m_committed.add( name );
+            }
+        }
+
+        /**
+         * Commits the held back results in waves. Dependencies that are neither committed nor held back are not
+         * waited for.
+         */
+        private void commitWaves()
+            throws IOException, InvalidSyntaxException
+        {
+            List<T> remaining = m_deferred;
+            while( !remaining.isEmpty() )
+            {
+                Set<String> pending = new HashSet<String>();
+                for( T result : remaining )
+                {
+                    pending.add( m_dependencies.getName( result ) );
+                }
+
+                List<T> wave = new ArrayList<T>();
+                List<T> blocked = new ArrayList<T>();
+                for( T result : remaining )
+                {
+                    boolean ready = true;
+                    for( String dependency : m_dependencies.getDependencies( result ) )
+                    {
+                        if( pending.contains( dependency ) && !m_committed.contains( dependency ) )
+                        {
+                            ready = false;
+                            break;
+                        }
+                    }
+                    ( ready ? wave : blocked ).add( result );
+                }
+
+                if( wave.isEmpty() )
+                {
+                    LOGGER.error( "Cyclic configuration dependencies " + findCycle( blocked, pending )
+                                  + ". The configurations of the cycle are applied in file order." );
+                    for( T result : blocked )
+                    {
+                        m_committer.commit( result );
+                        committed( result );
+                    }
+                    return;
+                }
+
+                commitConcurrently( wave );
+                for( T result : wave )
+                {
+                    committed( result );
+                }
+                remaining = blocked;
+            }
+        }
+
+        private void commitConcurrently( List<T> wave )
+            throws IOException, InvalidSyntaxException
+        {
+            if( m_executor == null || wave.size() < 2 )
+            {
+                for( T result : wave )
+                {
+                    m_committer.commit( result );
+                }
+                return;
+            }
+
+            List<Callable<Object>> commits = new ArrayList<Callable<Object>>( wave.size() );
+            for( final T result : wave )
+            {
+                commits.add( new Callable<Object>()
+                {
+
+                    public Object call()
+                        throws Exception
+                    {
+                        m_committer.commit( result );
+                        return null;
+                    }
+                }
+                );
+            }
+
+            List<Future<Object>> futures;
+            try
+            {
+                futures = m_executor.invokeAll( commits );
+            } catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while applying configurations." );
+            }
+            for( Future<Object> future : futures )
+            {
+                get( future );
+            }
+        }
+
+        /**
+         * Returns a cycle of the {@code blocked} results, each of which waits for another one of them.
+         */
+        private List<String> findCycle( List<T> blocked, Set<String> pending )
+        {
+            Map<String, T> byName = new LinkedHashMap<String, T>();
+            for( T result : blocked )
+            {
+                byName.put( m_dependencies.getName( result ), result );
+            }
+
+            List<String> path = new ArrayList<String>();
+            String name = byName.keySet().iterator().next();
+            while( !path.contains( name ) )
+            {
+                path.add( name );
+                for( String dependency : m_dependencies.getDependencies( byName.get( name ) ) )
+                {
+                    if( pending.contains( dependency ) && byName.containsKey( dependency ) )
+                    {
+                        name = dependency;
+                        break;
+                    }
+                }
+            }
+            List<String> cycle = new ArrayList<String>( path.subList( path.indexOf( name ), path.size() ) );
+            cycle.add( name );
+            return cycle;
+        }
+    }
+
+    private static final class ParserThreadFactory
+        implements ThreadFactory
+    {
+
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread( Runnable runnable )
+        {
+            Thread thread = new Thread( runnable, "Pax ConfMan parser-" + m_count.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ops4j.pax.configmanager.ConfigurationLatency;
+import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+import org.ops4j.pax.configmanager.IConfigurationMetrics;
+
+/**
+ * The {@code IConfigurationMetrics} of a {@code ConfigurationAdminFacade}. Recording only uses atomic counters and
+ * {@code LatencyHistogram}s, so it neither locks nor, once a handler or service pid has been seen, allocates.
+ */
+final class ConfigurationMetrics
+    implements IConfigurationMetrics
+{
+
+    private final AtomicLong m_filesScanned = new AtomicLong();
+    private final AtomicLong m_filesParsed = new AtomicLong();
+    private final AtomicLong m_bytesRead = new AtomicLong();
+    private final AtomicLong m_updatesSkipped = new AtomicLong();
+    private final AtomicLong m_failures = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> m_failuresByPid = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final LatencyHistogram m_registration = new LatencyHistogram();
+    private final ConcurrentMap<String, LatencyHistogram> m_parse =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+    private final LatencyHistogram m_listConfigurations = new LatencyHistogram();
+    private final LatencyHistogram m_update = new LatencyHistogram();
+    private final LatencyHistogram m_createFactoryConfiguration = new LatencyHistogram();
+
+    void fileScanned()
+    {
+        m_filesScanned.incrementAndGet();
+    }
+
+    void bytesRead( long bytes )
+    {
+        m_bytesRead.addAndGet( bytes );
+    }
+
+    /**
+     * Records that the specified {@code handler} parsed a file in {@code nanos} nanoseconds.
+     */
+    void fileParsed( IConfigurationFileHandler handler, long nanos )
+    {
+        m_filesParsed.incrementAndGet();
+
+        String name = handler.getClass().getName();
+        LatencyHistogram histogram = m_parse.get( name );
+        if( histogram == null )
+        {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = m_parse.putIfAbsent( name, created );
+            if( histogram == null )
+            {
+                histogram = created;
+            }
+        }
+        histogram.record( nanos );
+    }
+
+    void updateSkipped()
+    {
+        m_updatesSkipped.incrementAndGet();
+    }
+
+    void failed( String servicePid )
+    {
+        m_failures.incrementAndGet();
+
+        AtomicLong failures = m_failuresByPid.get( servicePid );
+        if( failures == null )
+        {
+            AtomicLong created = new AtomicLong();
+            failures = m_failuresByPid.putIfAbsent( servicePid, created );
+            if( failures == null )
+            {
+                failures = created;
+            }
+        }
+        failures.incrementAndGet();
+    }
+
+    LatencyHistogram registration()
+    {
+        return m_registration;
+    }
+
+    LatencyHistogram listConfigurations()
+    {
+        return m_listConfigurations;
+    }
+
+    LatencyHistogram update()
+    {
+        return m_update;
+    }
+
+    LatencyHistogram createFactoryConfiguration()
+    {
+        return m_createFactoryConfiguration;
+    }
+
+    public long getFilesScanned()
+    {
+        return m_filesScanned.get();
+    }
+
+    public long getFilesParsed()
+    {
+        return m_filesParsed.get();
+    }
+
+    public long getBytesRead()
+    {
+        return m_bytesRead.get();
+    }
+
+    public long getUpdatesSkipped()
+    {
+        return m_updatesSkipped.get();
+    }
+
+    public long getFailures()
+    {
+        return m_failures.get();
+    }
+
+    public Map<String, Long> getFailuresByServicePid()
+    {
+        Map<String, Long> failures = new TreeMap<String, Long>();
+        for( Map.Entry<String, AtomicLong> entry : m_failuresByPid.entrySet() )
+        {
+            failures.put( entry.getKey(), entry.getValue().get() );
+        }
+        return failures;
+    }
+
+    public ConfigurationLatency getRegistrationLatency()
+    {
+        return m_registration.snapshot();
+    }
+
+    public Map<String, ConfigurationLatency> getParseLatencies()
+    {
+        Map<String, ConfigurationLatency> latencies = new TreeMap<String, ConfigurationLatency>();
+        for( Map.Entry<String, LatencyHistogram> entry : m_parse.entrySet() )
+        {
+            latencies.put( entry.getKey(), entry.getValue().snapshot() );
+        }
+        return latencies;
+    }
+
+    public ConfigurationLatency getConfigurationAdminLatency( String operation )
+    {
+        if( OPERATION_LIST_CONFIGURATIONS.equals( operation ) )
+        {
+            return m_listConfigurations.snapshot();
+        }
+        if( OPERATION_UPDATE.equals( operation ) )
+        {
+            return m_update.snapshot();
+        }
+        if( OPERATION_CREATE_FACTORY_CONFIGURATION.equals( operation ) )
+        {
+            return m_createFactoryConfiguration.snapshot();
+        }
+        return null;
+    }
+}
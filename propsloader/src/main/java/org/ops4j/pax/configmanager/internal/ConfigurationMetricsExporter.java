@@ -0,0 +1,196 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.ConfigurationLatency;
+import org.ops4j.pax.configmanager.IConfigurationMetrics;
+
+/**
+ * Exposes an {@code IConfigurationMetrics} as {@code ConfigurationMetricsMBean} in the platform MBean server.
+ */
+final class ConfigurationMetricsExporter
+    implements ConfigurationMetricsMBean
+{
+
+    private static final Log LOGGER = LogFactory.getLog( ConfigurationMetricsExporter.class );
+
+    static final String OBJECT_NAME = "org.ops4j.pax.configmanager:type=ConfigurationMetrics";
+
+    private static final String[] FAILURE_COLUMNS = { "servicePid", "failures" };
+    private static final String[] LATENCY_COLUMNS =
+        { "operation", "count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros" };
+
+    private final IConfigurationMetrics m_metrics;
+    private final CompositeType m_failureType;
+    private final TabularType m_failuresType;
+    private final CompositeType m_latencyType;
+    private final TabularType m_latenciesType;
+    private ObjectName m_objectName;
+
+    ConfigurationMetricsExporter( IConfigurationMetrics metrics )
+        throws OpenDataException
+    {
+        NullArgumentException.validateNotNull( metrics, "metrics" );
+
+        m_metrics = metrics;
+        m_failureType = new CompositeType( "ConfigurationFailure", "Failures of a service pid", FAILURE_COLUMNS,
+                                           FAILURE_COLUMNS, new OpenType<?>[]{ SimpleType.STRING, SimpleType.LONG } );
+        m_failuresType = new TabularType( "ConfigurationFailures", "Failures by service pid", m_failureType,
+                                          new String[]{ FAILURE_COLUMNS[ 0 ] } );
+        m_latencyType = new CompositeType( "ConfigurationLatency", "Latencies of an operation", LATENCY_COLUMNS,
+                                           LATENCY_COLUMNS,
+                                           new OpenType<?>[]{ SimpleType.STRING, SimpleType.LONG, SimpleType.LONG,
+                                                              SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                                                              SimpleType.LONG } );
+        m_latenciesType = new TabularType( "ConfigurationLatencies", "Latencies by operation", m_latencyType,
+                                           new String[]{ LATENCY_COLUMNS[ 0 ] } );
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server. A failure is logged and otherwise ignored.
+     *
+     * @param metrics The metrics. This argument must not be {@code null}.
+     *
+     * @return The exporter to unregister, or {@code null} if the metrics could not be registered.
+     */
+    static ConfigurationMetricsExporter register( IConfigurationMetrics metrics )
+    {
+        try
+        {
+            ConfigurationMetricsExporter exporter = new ConfigurationMetricsExporter( metrics );
+            ObjectName objectName = new ObjectName( OBJECT_NAME );
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean( exporter, ConfigurationMetricsMBean.class ), objectName
+            );
+            exporter.m_objectName = objectName;
+            return exporter;
+        } catch( Exception e )
+        {
+            LOGGER.warn( "Can't register MBean [" + OBJECT_NAME + "]", e );
+        }
+        return null;
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     */
+    void unregister()
+    {
+        if( m_objectName == null )
+        {
+            return;
+        }
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean( m_objectName );
+        } catch( Exception e )
+        {
+            LOGGER.warn( "Can't unregister MBean [" + m_objectName + "]", e );
+        }
+        m_objectName = null;
+    }
+
+    public long getFilesScanned()
+    {
+        return m_metrics.getFilesScanned();
+    }
+
+    public long getFilesParsed()
+    {
+        return m_metrics.getFilesParsed();
+    }
+
+    public long getBytesRead()
+    {
+        return m_metrics.getBytesRead();
+    }
+
+    public long getUpdatesSkipped()
+    {
+        return m_metrics.getUpdatesSkipped();
+    }
+
+    public long getFailures()
+    {
+        return m_metrics.getFailures();
+    }
+
+    public TabularData getFailuresByServicePid()
+    {
+        TabularDataSupport table = new TabularDataSupport( m_failuresType );
+        for( Map.Entry<String, Long> entry : m_metrics.getFailuresByServicePid().entrySet() )
+        {
+            table.put( composite( m_failureType, FAILURE_COLUMNS, new Object[]{ entry.getKey(), entry.getValue() } ) );
+        }
+        return table;
+    }
+
+    public TabularData getLatencies()
+    {
+        TabularDataSupport table = new TabularDataSupport( m_latenciesType );
+        addLatency( table, "registration", m_metrics.getRegistrationLatency() );
+        for( String operation : new String[]{ IConfigurationMetrics.OPERATION_LIST_CONFIGURATIONS,
+                                              IConfigurationMetrics.OPERATION_UPDATE,
+                                              IConfigurationMetrics.OPERATION_CREATE_FACTORY_CONFIGURATION } )
+        {
+            addLatency( table, operation, m_metrics.getConfigurationAdminLatency( operation ) );
+        }
+        for( Map.Entry<String, ConfigurationLatency> entry : m_metrics.getParseLatencies().entrySet() )
+        {
+            addLatency( table, "parse:" + entry.getKey(), entry.getValue() );
+        }
+        return table;
+    }
+
+    private void addLatency( TabularDataSupport table, String operation, ConfigurationLatency latency )
+    {
+        table.put( composite( m_latencyType, LATENCY_COLUMNS, new Object[]{
+            operation, latency.getCount(), latency.getMeanNanos() / 1000, latency.getP50Nanos() / 1000,
+            latency.getP90Nanos() / 1000, latency.getP99Nanos() / 1000, latency.getMaxNanos() / 1000
+        } ) );
+    }
+
+    private static CompositeDataSupport composite( CompositeType type, String[] names, Object[] values )
+    {
+        try
+        {
+            return new CompositeDataSupport( type, names, values );
+        } catch( OpenDataException e )
+        {
+            // the values always match the type
+            throw new IllegalStateException( e.getMessage() );
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * The management interface of the {@code IConfigurationMetrics}. Only simple and open types are used, so the
+ * attributes can be read by any JMX console.
+ */
+public interface ConfigurationMetricsMBean
+{
+
+    long getFilesScanned();
+
+    long getFilesParsed();
+
+    long getBytesRead();
+
+    long getUpdatesSkipped();
+
+    long getFailures();
+
+    /**
+     * Returns one row per service pid that failed, with the columns {@code servicePid} and {@code failures}.
+     */
+    TabularData getFailuresByServicePid();
+
+    /**
+     * Returns one row per recorded operation, with the columns {@code operation}, {@code count},
+     * {@code meanMicros}, {@code p50Micros}, {@code p90Micros}, {@code p99Micros} and {@code maxMicros}. The
+     * operations are {@code registration}, the configuration admin operations and {@code parse:} followed by the
+     * class name of each handler.
+     */
+    TabularData getLatencies();
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+
+/**
+ * {@code ConfigurationSnapshot} is the persisted form of the {@code ConfigurationFileIndex}: the fingerprint, the
+ * handler, the effective service pid and the loaded properties of every applied file. It is written to the data area
+ * of the bundle after a registration pass changed the index, and read when the bundle or the configuration admin
+ * service restarts. A file whose size and modification time still match its record does not have to be read and
+ * parsed again; the recorded properties are reconciled with the configuration admin service instead.
+ */
+final class ConfigurationSnapshot
+{
+
+    private static final Log LOGGER = LogFactory.getLog( ConfigurationSnapshot.class );
+
+    /**
+     * Incremented whenever the format changes. Snapshots of another format are ignored.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    static final ConfigurationSnapshot EMPTY = new ConfigurationSnapshot( new HashMap<String, Record>() );
+
+    private final Map<String, Record> m_records;
+
+    private ConfigurationSnapshot( Map<String, Record> records )
+    {
+        m_records = records;
+    }
+
+    /**
+     * Reads the snapshot stored in {@code file}. A missing, unreadable or outdated snapshot yields an empty snapshot,
+     * which just means every file is parsed again.
+     *
+     * @param file The snapshot file. This argument must not be {@code null}.
+     *
+     * @return The snapshot, never {@code null}.
+     */
+    static ConfigurationSnapshot load( File file )
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+
+        if( !file.isFile() )
+        {
+            return EMPTY;
+        }
+
+        try
+        {
+            ObjectInputStream in = new ObjectInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            try
+            {
+                if( in.readInt() != FORMAT_VERSION )
+                {
+                    LOGGER.info( "Ignoring configuration snapshot [" + file + "] of an older format." );
+                    return EMPTY;
+                }
+
+                int count = in.readInt();
+                Map<String, Record> records = new HashMap<String, Record>( count * 2 );
+                for( int i = 0; i < count; i++ )
+                {
+                    String path = in.readUTF();
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+                    String hash = in.readUTF();
+                    long takenAt = in.readLong();
+                    String handlerClassName = in.readUTF();
+                    String servicePid = in.readUTF();
+                    boolean isFactory = in.readBoolean();
+                    Properties properties = (Properties) in.readObject();
+
+                    FileFingerprint fingerprint = new FileFingerprint( path, size, lastModified, hash, takenAt );
+                    records.put( path, new Record( fingerprint, handlerClassName, servicePid, isFactory,
+                                                   properties ) );
+                }
+                LOGGER.debug( "Restored " + count + " records from configuration snapshot [" + file + "]" );
+                return new ConfigurationSnapshot( records );
+            } finally
+            {
+                in.close();
+            }
+        } catch( Exception e )
+        {
+            LOGGER.warn( "Can't read configuration snapshot [" + file + "], all files will be loaded.", e );
+            return EMPTY;
+        }
+    }
+
+    /**
+     * Writes the specified index {@code entries} to {@code file}. The snapshot is written to a temporary file first
+     * and then renamed, so a crash never leaves a truncated snapshot behind.
+     *
+     * @param file    The snapshot file. This argument must not be {@code null}.
+     * @param entries The applied files. This argument must not be {@code null}.
+     *
+     * @throws IOException Thrown if the snapshot can not be written, e.g. because a handler returned properties that
+     *                     are not serializable.
+     */
+    static void save( File file, Collection<ConfigurationFileIndex.Entry> entries )
+        throws IOException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+        NullArgumentException.validateNotNull( entries, "entries" );
+
+        File temp = new File( file.getPath() + ".tmp" );
+        ObjectOutputStream out = new ObjectOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+        boolean written = false;
+        try
+        {
+            out.writeInt( FORMAT_VERSION );
+            out.writeInt( entries.size() );
+            for( ConfigurationFileIndex.Entry entry : entries )
+            {
+                FileFingerprint fingerprint = entry.getFingerprint();
+                out.writeUTF( fingerprint.getPath() );
+                out.writeLong( fingerprint.getSize() );
+                out.writeLong( fingerprint.getLastModified() );
+                out.writeUTF( fingerprint.getHash() );
+                out.writeLong( fingerprint.getTakenAt() );
+                out.writeUTF( entry.getHandler().getClass().getName() );
+                out.writeUTF( entry.getServicePid() );
+                out.writeBoolean( entry.isFactory() );
+                out.writeObject( entry.getProperties() );
+            }
+            written = true;
+        } finally
+        {
+            out.close();
+            if( !written )
+            {
+                temp.delete();
+            }
+        }
+
+        if( !temp.renameTo( file ) )
+        {
+            // rename does not replace an existing file on every platform
+            file.delete();
+            if( !temp.renameTo( file ) )
+            {
+                temp.delete();
+                throw new IOException( "Can't replace configuration snapshot [" + file + "]" );
+            }
+        }
+    }
+
+    /**
+     * Returns the record of the specified {@code file} if it can be trusted, i.e. it is still claimed by a handler of
+     * the recorded class and size and modification time of the file are unchanged. A file modified within the clock
+     * granularity of the recorded fingerprint is read to compare its digest.
+     *
+     * @param file    The configuration file. This argument must not be {@code null}.
+     * @param handler The handler that claims {@code file} now. This argument must not be {@code null}.
+     *
+     * @return The record or {@code null}.
+     */
+    Record get( File file, IConfigurationFileHandler handler )
+    {
+        if( m_records.isEmpty() )
+        {
+            return null;
+        }
+
+        Record record = m_records.get( file.getAbsolutePath() );
+        if( record == null
+            || !record.m_handlerClassName.equals( handler.getClass().getName() )
+            || !record.m_fingerprint.isUnchanged( file ) )
+        {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Returns {@code true} if the specified {@code file} was applied before the restart, whether or not its record
+     * can still be trusted.
+     *
+     * @param file The configuration file. This argument must not be {@code null}.
+     *
+     * @return A {@code boolean} indicator whether {@code file} has a record.
+     */
+    boolean contains( File file )
+    {
+        return !m_records.isEmpty() && m_records.containsKey( file.getAbsolutePath() );
+    }
+
+    /**
+     * A file as it was applied before the restart.
+     */
+    static final class Record
+    {
+
+        private final FileFingerprint m_fingerprint;
+        private final String m_handlerClassName;
+        private final String m_servicePid;
+        private final boolean m_factory;
+        private final Properties m_properties;
+
+        private Record( FileFingerprint fingerprint, String handlerClassName, String servicePid, boolean isFactory,
+                        Properties properties )
+        {
+            m_fingerprint = fingerprint;
+            m_handlerClassName = handlerClassName;
+            m_servicePid = servicePid;
+            m_factory = isFactory;
+            m_properties = properties;
+        }
+
+        FileFingerprint getFingerprint()
+        {
+            return m_fingerprint;
+        }
+
+        String getServicePid()
+        {
+            return m_servicePid;
+        }
+
+        boolean isFactory()
+        {
+            return m_factory;
+        }
+
+        Properties getProperties()
+        {
+            return m_properties;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * A {@code ConfigurationAdmin} that journals every change made through it, so a batch of changes can be undone if
+ * one of them fails. It is handed to the code that applies configurations in place of the configuration admin
+ * service, which therefore needs no knowledge of the transaction.
+ * <p>
+ * A failed call is remembered even if the caller catches it, e.g. the {@code ManagedFactoryPropertiesProcessor} logs
+ * the failure of an instance and continues with the others. A caller that fails on its own, e.g. with a malformed
+ * value, reports it with {@link #recordFailure(ConfigurationAdmin, Exception)}. The batch asks {@link #getFailure()}
+ * before it is considered to be applied.
+ * <p>
+ * The configuration admin service has no transactions, managed services see every change as soon as it is made and
+ * again when it is undone. A deleted configuration is restored by creating it again, a factory configuration
+ * therefore gets a new pid.
+ */
+final class ConfigurationTransaction
+    implements ConfigurationAdmin
+{
+
+    /**
+     * Framework property to apply each pass as a batch that is rolled back if one of its changes fails, by setting
+     * it to {@code true}.
+     */
+    public static final String BUNDLES_CONFIGURATION_TRANSACTIONAL = "bundles.configuration.transactional";
+
+    private static final Log LOGGER = LogFactory.getLog( ConfigurationTransaction.class );
+
+    private final ConfigurationAdmin m_configAdmin;
+    /**
+     * The undo steps, in the order of the changes. Only the thread that applies the batch changes it.
+     */
+    private final List<Undo> m_journal;
+    private Exception m_failure;
+
+    /**
+     * Creates a transaction of changes made to the specified configuration admin service.
+     *
+     * @param configAdmin The configuration admin service. This argument must not be {@code null}.
+     */
+    ConfigurationTransaction( ConfigurationAdmin configAdmin )
+    {
+        NullArgumentException.validateNotNull( configAdmin, "configAdmin" );
+
+        m_configAdmin = configAdmin;
+        m_journal = new ArrayList<Undo>();
+    }
+
+    /**
+     * Returns the first call that failed, or {@code null} if every call succeeded.
+     */
+    Exception getFailure()
+    {
+        return m_failure;
+    }
+
+    /**
+     * Returns the number of changes made so far.
+     */
+    int size()
+    {
+        return m_journal.size();
+    }
+
+    /**
+     * Undoes the changes made through this transaction, the last change first. An undo step that fails is logged and
+     * does not stop the others.
+     *
+     * @return The number of undo steps that failed.
+     */
+    int rollback()
+    {
+        int failed = 0;
+        for( int i = m_journal.size() - 1; i >= 0; i-- )
+        {
+            Undo undo = m_journal.get( i );
+            try
+            {
+                undo.run();
+            } catch( Exception e )
+            {
+                LOGGER.error( "Can't roll back configuration [" + undo.m_pid + "]", e );
+                failed++;
+            }
+        }
+        m_journal.clear();
+        return failed;
+    }
+
+    /**
+     * Records the specified {@code failure} in {@code configAdmin} if it is a transaction, so the batch is rolled back
+     * although the caller handled the failure.
+     *
+     * @param configAdmin The configuration admin service the caller applies its changes to.
+     * @param failure     The failure.
+     */
+    static void recordFailure( ConfigurationAdmin configAdmin, Exception failure )
+    {
+        if( configAdmin instanceof ConfigurationTransaction )
+        {
+            ( (ConfigurationTransaction) configAdmin ).failed( failure );
+        }
+    }
+
+    public Configuration createFactoryConfiguration( String factoryPid )
+        throws IOException
+    {
+        try
+        {
+            return new JournaledConfiguration( m_configAdmin.createFactoryConfiguration( factoryPid ) );
+        } catch( IOException e )
+        {
+            failed( e );
+            throw e;
+        } catch( RuntimeException e )
+        {
+            failed( e );
+            throw e;
+        }
+    }
+
+    public Configuration createFactoryConfiguration( String factoryPid, String location )
+        throws IOException
+    {
+        try
+        {
+            return new JournaledConfiguration( m_configAdmin.createFactoryConfiguration( factoryPid, location ) );
+        } catch( IOException e )
+        {
+            failed( e );
+            throw e;
+        } catch( RuntimeException e )
+        {
+            failed( e );
+            throw e;
+        }
+    }
+
+    public Configuration getConfiguration( String pid, String location )
+        throws IOException
+    {
+        try
+        {
+            return new JournaledConfiguration( m_configAdmin.getConfiguration( pid, location ) );
+        } catch( IOException e )
+        {
+            failed( e );
+            throw e;
+        } catch( RuntimeException e )
+        {
+            failed( e );
+            throw e;
+        }
+    }
+
+    public Configuration getConfiguration( String pid )
+        throws IOException
+    {
+        try
+        {
+            return new JournaledConfiguration( m_configAdmin.getConfiguration( pid ) );
+        } catch( IOException e )
+        {
+            failed( e );
+            throw e;
+        } catch( RuntimeException e )
+        {
+            failed( e );
+            throw e;
+        }
+    }
+
+    public Configuration[] listConfigurations( String filter )
+        throws IOException, InvalidSyntaxException
+    {
+        Configuration[] configs;
+        try
+        {
+            configs = m_configAdmin.listConfigurations( filter );
+        } catch( IOException e )
+        {
+            failed( e );
+            throw e;
+        } catch( InvalidSyntaxException e )
+        {
+            failed( e );
+            throw e;
+        } catch( RuntimeException e )
+        {
+            failed( e );
+            throw e;
+        }
+        if( configs == null )
+        {
+            return null;
+        }
+
+        Configuration[] journaled = new Configuration[configs.length];
+        for( int i = 0; i < configs.length; i++ )
+        {
+            journaled[ i ] = new JournaledConfiguration( configs[ i ] );
+        }
+        return journaled;
+    }
+
+    private void failed( Exception failure )
+    {
+        if( m_failure == null )
+        {
+            m_failure = failure;
+        }
+    }
+
+    /**
+     * Undoes a single change.
+     */
+    private final class Undo
+    {
+
+        private final Configuration m_conf;
+        private final String m_pid;
+        private final String m_factoryPid;
+        private final Dictionary<?, ?> m_properties;
+        private final boolean m_deleted;
+
+        /**
+         * @param conf       The changed configuration.
+         * @param properties The properties before the change, or {@code null} if the configuration was new.
+         * @param deleted    {@code true} if the configuration was deleted.
+         */
+        private Undo( Configuration conf, Dictionary<?, ?> properties, boolean deleted )
+        {
+            m_conf = conf;
+            m_pid = conf.getPid();
+            m_factoryPid = conf.getFactoryPid();
+            m_properties = properties;
+            m_deleted = deleted;
+        }
+
+        private void run()
+            throws IOException
+        {
+            if( m_deleted )
+            {
+                if( m_properties == null )
+                {
+                    return;
+                }
+                Configuration conf = m_factoryPid == null ? m_configAdmin.getConfiguration( m_pid, null )
+                                                          : m_configAdmin.createFactoryConfiguration( m_factoryPid,
+                                                                                                      null );
+                conf.update( m_properties );
+            }
+            else if( m_properties == null )
+            {
+                m_conf.delete();
+            }
+            else
+            {
+                m_conf.update( m_properties );
+            }
+        }
+    }
+
+    /**
+     * A {@code Configuration} that journals its updates and its deletion.
+     */
+    private final class JournaledConfiguration
+        implements Configuration
+    {
+
+        private final Configuration m_conf;
+
+        private JournaledConfiguration( Configuration conf )
+        {
+            m_conf = conf;
+        }
+
+        public String getPid()
+        {
+            return m_conf.getPid();
+        }
+
+        public Dictionary<?, ?> getProperties()
+        {
+            return m_conf.getProperties();
+        }
+
+        // the configuration admin API of this release is not generic, the override has to take the raw type
+        @SuppressWarnings( "rawtypes" )
+        public void update( Dictionary properties )
+            throws IOException
+        {
+            m_journal.add( new Undo( m_conf, m_conf.getProperties(), false ) );
+            try
+            {
+                m_conf.update( properties );
+            } catch( IOException e )
+            {
+                failed( e );
+                throw e;
+            } catch( RuntimeException e )
+            {
+                failed( e );
+                throw e;
+            }
+        }
+
+        public void delete()
+            throws IOException
+        {
+            Undo undo = new Undo( m_conf, m_conf.getProperties(), true );
+            try
+            {
+                m_conf.delete();
+            } catch( IOException e )
+            {
+                failed( e );
+                throw e;
+            } catch( RuntimeException e )
+            {
+                failed( e );
+                throw e;
+            }
+            m_journal.add( undo );
+        }
+
+        public String getFactoryPid()
+        {
+            return m_conf.getFactoryPid();
+        }
+
+        public void update()
+            throws IOException
+        {
+            m_conf.update();
+        }
+
+        public void setBundleLocation( String bundleLocation )
+        {
+            m_conf.setBundleLocation( bundleLocation );
+        }
+
+        public String getBundleLocation()
+        {
+            return m_conf.getBundleLocation();
+        }
+
+        public boolean equals( Object obj )
+        {
+            return obj instanceof JournaledConfiguration && m_conf.equals( ( (JournaledConfiguration) obj ).m_conf );
+        }
+
+        public int hashCode()
+        {
+            return m_conf.hashCode();
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+
+/**
+ * {@code ConfigurationTree} describes the layout of the {@code factories} and {@code services} directories. Besides
+ * the files directly in a directory, the files of its subdirectories are loaded up to a depth limit, e.g. when the
+ * files are sharded by pid prefix or split per team. Include and exclude globs select the files by their path
+ * relative to the directory.
+ * <p>
+ * A directory is scanned level by level. The directories of a level are listed concurrently on the threads of the
+ * {@code ConfigurationLoadPipeline}, so a deep or wide tree does not serialize on the latency of the file system.
+ * <p>
+ * The service pid of a file in a subdirectory is prefixed with its relative directory, the separators replaced by
+ * dots, e.g. {@code org/ops4j/pool.properties} configures {@code org.ops4j.pool}. With
+ * {@link #BUNDLES_CONFIGURATION_PID} set to {@code name} the directories only group the files and the pid is derived
+ * from the file name alone.
+ */
+final class ConfigurationTree
+{
+
+    /**
+     * Framework property to set how many levels of subdirectories are loaded. {@code 0}, the default, only loads the
+     * files directly in the {@code factories} and {@code services} directories, a negative depth has no limit.
+     */
+    public static final String BUNDLES_CONFIGURATION_DEPTH = "bundles.configuration.depth";
+
+    /**
+     * Framework property with the globs, separated by commas, of the files to load. A glob with a {@code /} is
+     * matched against the path relative to the {@code factories} or {@code services} directory, any other glob
+     * against the file name. {@code *} and {@code ?} do not match a {@code /}, {@code **} does. Defaults to every
+     * file.
+     */
+    public static final String BUNDLES_CONFIGURATION_INCLUDE = "bundles.configuration.include";
+
+    /**
+     * Framework property with the globs, separated by commas, of the files not to load. A subdirectory that matches
+     * is not descended into, e.g. {@code archive} or {@code archive/**}.
+     */
+    public static final String BUNDLES_CONFIGURATION_EXCLUDE = "bundles.configuration.exclude";
+
+    /**
+     * Framework property to set how the service pid of a file in a subdirectory is derived, either {@code path}, the
+     * default, or {@code name}.
+     */
+    public static final String BUNDLES_CONFIGURATION_PID = "bundles.configuration.pid";
+
+    private static final Log LOGGER = LogFactory.getLog( ConfigurationTree.class );
+
+    private final int m_depth;
+    private final Pattern[] m_includes;
+    private final Pattern[] m_excludes;
+    private final boolean m_pidFromPath;
+    private final ConfigurationLoadPipeline m_pipeline;
+
+    /**
+     * @param depth       The levels of subdirectories to load, negative for no limit.
+     * @param includes    The globs of the files to load, or an empty array to load every file. This argument must not
+     *                    be {@code null}.
+     * @param excludes    The globs of the files not to load. This argument must not be {@code null}.
+     * @param pidFromPath Whether the relative directory of a file prefixes its service pid.
+     * @param pipeline    The pipeline whose threads list the directories. This argument must not be {@code null}.
+     */
+    ConfigurationTree( int depth, String[] includes, String[] excludes, boolean pidFromPath,
+                       ConfigurationLoadPipeline pipeline )
+    {
+        NullArgumentException.validateNotNull( includes, "includes" );
+        NullArgumentException.validateNotNull( excludes, "excludes" );
+        NullArgumentException.validateNotNull( pipeline, "pipeline" );
+
+        m_depth = depth;
+        m_includes = compile( includes );
+        m_excludes = compile( excludes );
+        m_pidFromPath = pidFromPath;
+        m_pipeline = pipeline;
+    }
+
+    /**
+     * Creates the tree with the layout set by the framework properties.
+     *
+     * @param resolver The resolver of the properties. This argument must not be {@code null}.
+     * @param pipeline The pipeline whose threads list the directories. This argument must not be {@code null}.
+     *
+     * @return The tree.
+     */
+    static ConfigurationTree create( ConfigurationAdminFacade.PropertyResolver resolver,
+                                     ConfigurationLoadPipeline pipeline )
+    {
+        NullArgumentException.validateNotNull( resolver, "resolver" );
+
+        int depth = 0;
+        String value = resolver.getProperty( BUNDLES_CONFIGURATION_DEPTH );
+        if( value != null )
+        {
+            try
+            {
+                depth = Integer.parseInt( value.trim() );
+            } catch( NumberFormatException e )
+            {
+                LOGGER.warn( "Property [" + BUNDLES_CONFIGURATION_DEPTH + "] is not a number [" + value
+                             + "]. Using [" + depth + "]." );
+            }
+        }
+
+        boolean pidFromPath = !"name".equalsIgnoreCase( resolver.getProperty( BUNDLES_CONFIGURATION_PID ) );
+        return new ConfigurationTree( depth, split( resolver.getProperty( BUNDLES_CONFIGURATION_INCLUDE ) ),
+                                      split( resolver.getProperty( BUNDLES_CONFIGURATION_EXCLUDE ) ), pidFromPath,
+                                      pipeline );
+    }
+
+    private static String[] split( String value )
+    {
+        if( value == null )
+        {
+            return new String[0];
+        }
+
+        List<String> globs = new ArrayList<String>();
+        for( String glob : value.split( "," ) )
+        {
+            glob = glob.trim();
+            if( glob.length() > 0 )
+            {
+                globs.add( glob );
+            }
+        }
+        return globs.toArray( new String[globs.size()] );
+    }
+
+    private static Pattern[] compile( String[] globs )
+    {
+        Pattern[] patterns = new Pattern[globs.length];
+        for( int i = 0; i < globs.length; i++ )
+        {
+            patterns[ i ] = compile( globs[ i ] );
+        }
+        return patterns;
+    }
+
+    /**
+     * Translates the specified {@code glob} to a regular expression. A {@code **}{@code /} matches any number of
+     * directories, including none.
+     */
+    static Pattern compile( String glob )
+    {
+        StringBuilder regex = new StringBuilder();
+        for( int i = 0; i < glob.length(); i++ )
+        {
+            char c = glob.charAt( i );
+            if( c == '*' && i + 1 < glob.length() && glob.charAt( i + 1 ) == '*' )
+            {
+                i++;
+                if( i + 1 < glob.length() && glob.charAt( i + 1 ) == '/' )
+                {
+                    i++;
+                    regex.append( "(?:.*/)?" );
+                }
+                else
+                {
+                    regex.append( ".*" );
+                }
+            }
+            else if( c == '*' )
+            {
+                regex.append( "[^/]*" );
+            }
+            else if( c == '?' )
+            {
+                regex.append( "[^/]" );
+            }
+            else
+            {
+                regex.append( Pattern.quote( String.valueOf( c ) ) );
+            }
+        }
+        return Pattern.compile( regex.toString() );
+    }
+
+    private static boolean matches( Pattern[] patterns, String path, String name )
+    {
+        for( Pattern pattern : patterns )
+        {
+            String subject = pattern.pattern().indexOf( '/' ) < 0 ? name : path;
+            if( pattern.matcher( subject ).matches() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isIncluded( String path, String name )
+    {
+        if( matches( m_excludes, path, name ) )
+        {
+            return false;
+        }
+        return m_includes.length == 0 || matches( m_includes, path, name );
+    }
+
+    private boolean isExcludedDirectory( String path, String name )
+    {
+        return matches( m_excludes, path, name ) || matches( m_excludes, path + "/", name );
+    }
+
+    /**
+     * Lists the files below the specified {@code root} directory that are to be loaded.
+     *
+     * @param root The {@code factories} or {@code services} directory. This argument must not be {@code null}.
+     *
+     * @return The files and the directories that were listed.
+     *
+     * @throws IOException Thrown if the listing is interrupted.
+     */
+    Scan scan( File root )
+        throws IOException
+    {
+        NullArgumentException.validateNotNull( root, "root" );
+
+        Scan scan = new Scan( System.currentTimeMillis() );
+        List<DirectoryListing> level = Collections.singletonList( new DirectoryListing( root, "", 0 ) );
+        while( !level.isEmpty() )
+        {
+            List<DirectoryListing> next = new ArrayList<DirectoryListing>();
+            for( DirectoryListing listing : m_pipeline.invokeAll( level ) )
+            {
+                scan.m_directories.put( listing.m_dir, listing.m_lastModified );
+                scan.m_files.addAll( listing.m_files );
+                next.addAll( listing.m_subdirectories );
+            }
+            level = next;
+        }
+        return scan;
+    }
+
+    /**
+     * Returns the service pid of the specified {@code file}, derived by {@code handler} from its name and prefixed
+     * with its directory relative to {@code root}.
+     *
+     * @param handler The handler that claimed the file. This argument must not be {@code null}.
+     * @param root    The {@code factories} or {@code services} directory. This argument must not be {@code null}.
+     * @param file    The file. This argument must not be {@code null}.
+     *
+     * @return The service pid.
+     */
+    String getServicePid( IConfigurationFileHandler handler, File root, File file )
+    {
+        String servicePid = handler.getServicePID( file.getName() );
+        if( !m_pidFromPath || servicePid == null )
+        {
+            return servicePid;
+        }
+
+        String path = getRelativePath( root, file.getParentFile() );
+        if( path == null || path.length() == 0 )
+        {
+            return servicePid;
+        }
+        return path.replace( '/', '.' ) + "." + servicePid;
+    }
+
+    /**
+     * Returns the path of {@code file} relative to {@code root}, separated by {@code /}, the empty string for
+     * {@code root} itself or {@code null} if {@code file} is not below {@code root}.
+     */
+    static String getRelativePath( File root, File file )
+    {
+        String rootPath = root.getAbsolutePath();
+        String path = file.getAbsolutePath();
+        if( path.equals( rootPath ) )
+        {
+            return "";
+        }
+        if( !path.startsWith( rootPath + File.separator ) )
+        {
+            return null;
+        }
+        return path.substring( rootPath.length() + 1 ).replace( File.separatorChar, '/' );
+    }
+
+    /**
+     * The result of a scan.
+     */
+    static final class Scan
+    {
+
+        private final long m_listedAt;
+        private final List<File> m_files;
+        private final Map<File, Long> m_directories;
+
+        private Scan( long listedAt )
+        {
+            m_listedAt = listedAt;
+            m_files = new ArrayList<File>();
+            m_directories = new HashMap<File, Long>();
+        }
+
+        /**
+         * Returns the time the scan started.
+         */
+        long getListedAt()
+        {
+            return m_listedAt;
+        }
+
+        /**
+         * Returns the files to load, the files of a directory before those of its subdirectories.
+         */
+        List<File> getFiles()
+        {
+            return m_files;
+        }
+
+        /**
+         * Returns the listed directories with their modification times before they were listed.
+         */
+        Map<File, Long> getDirectories()
+        {
+            return m_directories;
+        }
+    }
+
+    /**
+     * Lists a single directory.
+     */
+    private final class DirectoryListing
+        implements Callable<DirectoryListing>
+    {
+
+        private final File m_dir;
+        private final String m_path;
+        private final int m_level;
+
+        private long m_lastModified;
+        private final List<File> m_files = new ArrayList<File>();
+        private final List<DirectoryListing> m_subdirectories = new ArrayList<DirectoryListing>();
+
+        private DirectoryListing( File dir, String path, int level )
+        {
+            m_dir = dir;
+            m_path = path;
+            m_level = level;
+        }
+
+        public DirectoryListing call()
+        {
+            m_lastModified = m_dir.lastModified();
+            File[] children = m_dir.listFiles();
+            if( children == null )
+            {
+                return this;
+            }
+
+            boolean descend = m_depth < 0 || m_level < m_depth;
+            for( File child : children )
+            {
+                String name = child.getName();
+                String path = m_path.length() == 0 ? name : m_path + "/" + name;
+                if( child.isDirectory() )
+                {
+                    if( descend && !isExcludedDirectory( path, name ) )
+                    {
+                        m_subdirectories.add( new DirectoryListing( child, path, m_level + 1 ) );
+                    }
+                }
+                else if( isIncluded( path, name ) )
+                {
+                    m_files.add( child );
+                }
+            }
+            return this;
+        }
+    }
+}
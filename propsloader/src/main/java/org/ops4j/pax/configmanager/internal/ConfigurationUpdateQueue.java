@@ -0,0 +1,315 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.ConfigurationUpdateStatus;
+
+/**
+ * {@code ConfigurationUpdateQueue} collects requested service pid updates and applies them on its own thread. Every
+ * service pid that is waiting when the thread picks up work is loaded in one pass over the configuration area, and a
+ * request for a service pid that is already waiting is merged with the waiting one. A request that arrives while its
+ * service pid is being loaded waits for the next pass, as the file may have changed after it was read.
+ */
+final class ConfigurationUpdateQueue
+    implements Runnable
+{
+
+    private static final Log LOGGER = LogFactory.getLog( ConfigurationUpdateQueue.class );
+
+    private final ConfigurationAdminFacade m_facade;
+    private final Map<String, UpdateFuture> m_pending;
+
+    private Thread m_thread;
+    private boolean m_disposed;
+
+    ConfigurationUpdateQueue( ConfigurationAdminFacade facade )
+    {
+        NullArgumentException.validateNotNull( facade, "facade" );
+
+        m_facade = facade;
+        m_pending = new LinkedHashMap<String, UpdateFuture>();
+    }
+
+    /**
+     * Requests an update of the specified {@code servicePid}.
+     *
+     * @param servicePid The service pid. This argument must not be {@code null}.
+     *
+     * @return The outcome of the update, shared by all requests that were merged.
+     */
+    Future<ConfigurationUpdateStatus> submit( String servicePid )
+    {
+        NullArgumentException.validateNotNull( servicePid, "servicePid" );
+
+        synchronized( m_pending )
+        {
+            return enqueue( servicePid );
+        }
+    }
+
+    /**
+     * Requests an update of the specified {@code servicePids}.
+     *
+     * @param servicePids The service pids. This argument must not be {@code null}.
+     *
+     * @return The outcome of the update of each service pid.
+     */
+    Map<String, Future<ConfigurationUpdateStatus>> submit( Collection<String> servicePids )
+    {
+        NullArgumentException.validateNotNull( servicePids, "servicePids" );
+
+        Map<String, Future<ConfigurationUpdateStatus>> futures =
+            new LinkedHashMap<String, Future<ConfigurationUpdateStatus>>();
+        synchronized( m_pending )
+        {
+            for( String servicePid : servicePids )
+            {
+                futures.put( servicePid, enqueue( servicePid ) );
+            }
+        }
+        return futures;
+    }
+
+    private UpdateFuture enqueue( String servicePid )
+    {
+        UpdateFuture future = m_pending.get( servicePid );
+        if( future != null )
+        {
+            return future;
+        }
+
+        future = new UpdateFuture();
+        if( m_disposed )
+        {
+            future.fail( new IllegalStateException( "Configuration updater is stopped." ) );
+            return future;
+        }
+
+        m_pending.put( servicePid, future );
+        if( m_thread == null )
+        {
+            m_thread = new Thread( this, "Pax ConfMan updater" );
+            m_thread.setDaemon( true );
+            m_thread.start();
+        }
+        m_pending.notifyAll();
+        return future;
+    }
+
+    public void run()
+    {
+        while( true )
+        {
+            final Map<String, UpdateFuture> batch;
+            synchronized( m_pending )
+            {
+                while( m_pending.isEmpty() && !m_disposed )
+                {
+                    try
+                    {
+                        m_pending.wait();
+                    } catch( InterruptedException e )
+                    {
+                        m_disposed = true;
+                    }
+                }
+                if( m_disposed )
+                {
+                    return;
+                }
+
+                batch = new LinkedHashMap<String, UpdateFuture>( m_pending );
+                m_pending.clear();
+            }
+
+            apply( batch );
+        }
+    }
+
+    private void apply( final Map<String, UpdateFuture> batch )
+    {
+        LOGGER.debug( "Updating configurations " + batch.keySet() );
+        try
+        {
+            m_facade.updateConfigurations( batch.keySet(), new ConfigurationAdminFacade.UpdateListener()
+            {
+
+                public void updated( String servicePid, ConfigurationUpdateStatus status )
+                {
+                    UpdateFuture future = batch.get( servicePid );
+                    if( future != null )
+                    {
+                        future.complete( status );
+                    }
+                }
+
+                public void failed( String servicePid, Exception failure )
+                {
+                    UpdateFuture future = batch.get( servicePid );
+                    if( future != null )
+                    {
+                        future.fail( failure );
+                    }
+                }
+
+            }
+            );
+        } catch( Throwable e )
+        {
+            for( UpdateFuture future : batch.values() )
+            {
+                future.fail( e );
+            }
+            return;
+        }
+
+        for( UpdateFuture future : batch.values() )
+        {
+            future.complete( ConfigurationUpdateStatus.NOT_FOUND );
+        }
+    }
+
+    /**
+     * Stops the thread. Waiting requests are cancelled, later requests fail.
+     */
+    void dispose()
+    {
+        synchronized( m_pending )
+        {
+            m_disposed = true;
+            for( UpdateFuture future : m_pending.values() )
+            {
+                future.cancel( false );
+            }
+            m_pending.clear();
+            m_pending.notifyAll();
+        }
+    }
+
+    /**
+     * A {@code Future} that is completed by the queue. Only the first completion or cancellation has an effect.
+     */
+    private static final class UpdateFuture
+        implements Future<ConfigurationUpdateStatus>
+    {
+
+        private ConfigurationUpdateStatus m_status;
+        private Throwable m_failure;
+        private boolean m_cancelled;
+        private boolean m_done;
+
+        private UpdateFuture()
+        {
+        }
+
+        private synchronized void complete( ConfigurationUpdateStatus status )
+        {
+            if( !m_done )
+            {
+                m_status = status;
+                m_done = true;
+                notifyAll();
+            }
+        }
+
+        private synchronized void fail( Throwable failure )
+        {
+            if( !m_done )
+            {
+                m_failure = failure;
+                m_done = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Marks this future as cancelled, the queue does not interrupt an update that is applied already.
+         */
+        public synchronized boolean cancel( boolean mayInterruptIfRunning )
+        {
+            if( m_done )
+            {
+                return false;
+            }
+            m_cancelled = true;
+            m_done = true;
+            notifyAll();
+            return true;
+        }
+
+        public synchronized boolean isCancelled()
+        {
+            return m_cancelled;
+        }
+
+        public synchronized boolean isDone()
+        {
+            return m_done;
+        }
+
+        public synchronized ConfigurationUpdateStatus get()
+            throws InterruptedException, ExecutionException
+        {
+            while( !m_done )
+            {
+                wait();
+            }
+            return getResult();
+        }
+
+        public synchronized ConfigurationUpdateStatus get( long timeout, TimeUnit unit )
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            long deadline = System.nanoTime() + unit.toNanos( timeout );
+            while( !m_done )
+            {
+                long remaining = deadline - System.nanoTime();
+                if( remaining <= 0 )
+                {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait( this, remaining );
+            }
+            return getResult();
+        }
+
+        private ConfigurationUpdateStatus getResult()
+            throws ExecutionException
+        {
+            if( m_cancelled )
+            {
+                throw new CancellationException();
+            }
+            if( m_failure != null )
+            {
+                throw new ExecutionException( m_failure );
+            }
+            return m_status;
+        }
+    }
+}
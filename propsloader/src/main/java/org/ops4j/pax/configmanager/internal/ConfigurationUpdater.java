@@ -1,20 +1,25 @@
 package org.ops4j.pax.configmanager.internal;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import org.ops4j.pax.configmanager.IConfigurationUpdater;
+import org.ops4j.pax.configmanager.ConfigurationUpdateStatus;
+import org.ops4j.pax.configmanager.IAsyncConfigurationUpdater;
 import org.osgi.framework.InvalidSyntaxException;
 
 public class ConfigurationUpdater
-    implements IConfigurationUpdater
+    implements IAsyncConfigurationUpdater
 {
 
-    private ConfigurationAdminFacade m_adminFacade;
+    private final ConfigurationUpdateQueue m_queue;
 
     public ConfigurationUpdater( final ConfigurationAdminFacade adminFacade )
     {
         super();
-        this.m_adminFacade = adminFacade;
+        this.m_queue = new ConfigurationUpdateQueue( adminFacade );
     }
 
     public void updateConfiguration( final String servicePid )
@@ -22,6 +27,54 @@ public class ConfigurationUpdater
         IOException,
         InvalidSyntaxException
     {
-        this.m_adminFacade.registerConfigurations( servicePid, true );
+        Future<ConfigurationUpdateStatus> future = this.m_queue.submit( servicePid );
+        try
+        {
+            future.get();
+        } catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while updating configuration [" + servicePid + "]" );
+        } catch( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            if( cause instanceof InvalidSyntaxException )
+            {
+                throw (InvalidSyntaxException) cause;
+            }
+            if( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            IOException ioe = new IOException( "Failed to update configuration [" + servicePid + "]" );
+            ioe.initCause( cause );
+            throw ioe;
+        }
+    }
+
+    public Future<ConfigurationUpdateStatus> updateConfigurationAsync( final String servicePid )
+    {
+        return this.m_queue.submit( servicePid );
+    }
+
+    public Map<String, Future<ConfigurationUpdateStatus>> updateConfigurations( final Collection<String> servicePids )
+    {
+        return this.m_queue.submit( servicePids );
+    }
+
+    /**
+     * Stops processing of update requests. Waiting requests are cancelled.
+     */
+    void dispose()
+    {
+        this.m_queue.dispose();
     }
 }
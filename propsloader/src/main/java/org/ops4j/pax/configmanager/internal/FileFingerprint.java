@@ -0,0 +1,239 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.ops4j.lang.NullArgumentException;
+
+/**
+ * {@code FileFingerprint} identifies the content of a configuration file by its path, size, last modification time
+ * and a digest of its content. Size and modification time are compared first, the digest is only used to tell
+ * whether a touched file really changed.
+ * <p>
+ * A modification time within {@code CLOCK_GRANULARITY} of the time the fingerprint was taken is not trusted, as a
+ * file could have been changed again in the same tick of a coarse file system clock without changing its stat.
+ */
+final class FileFingerprint
+{
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String m_path;
+    private final long m_size;
+    private final long m_lastModified;
+    private final String m_hash;
+    private final long m_takenAt;
+
+    /**
+     * @param path         The absolute path of the file. This argument must not be {@code null}.
+     * @param size         The size of the file.
+     * @param lastModified The modification time of the file.
+     * @param hash         The digest of the content. This argument must not be {@code null}.
+     * @param takenAt      The time before the file was stat'ed and read.
+     */
+    FileFingerprint( String path, long size, long lastModified, String hash, long takenAt )
+    {
+        NullArgumentException.validateNotNull( path, "path" );
+        NullArgumentException.validateNotNull( hash, "hash" );
+
+        m_path = path;
+        m_size = size;
+        m_lastModified = lastModified;
+        m_hash = hash;
+        m_takenAt = takenAt;
+    }
+
+    /**
+     * Creates the fingerprint of the specified {@code file}. This reads the whole file content.
+     *
+     * @param file The file to fingerprint. This argument must not be {@code null}.
+     *
+     * @return The fingerprint of {@code file}.
+     *
+     * @throws IOException Thrown if the file can not be read.
+     */
+    static FileFingerprint create( File file )
+        throws IOException
+    {
+        return create( file, null );
+    }
+
+    /**
+     * Creates the fingerprint of the specified {@code file} and copies the digested bytes to {@code content}, so the
+     * file is read once to fingerprint and to parse it, and the parsed bytes are the fingerprinted ones.
+     *
+     * @param file    The file to fingerprint. This argument must not be {@code null}.
+     * @param content The stream to copy the content to, or {@code null}.
+     *
+     * @return The fingerprint of {@code file}.
+     *
+     * @throws IOException Thrown if the file can not be read.
+     */
+    static FileFingerprint create( File file, OutputStream content )
+        throws IOException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+
+        long takenAt = System.currentTimeMillis();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String hash = digest( file, content );
+        return new FileFingerprint( file.getAbsolutePath(), size, lastModified, hash, takenAt );
+    }
+
+    private static String digest( File file, OutputStream content )
+        throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( DIGEST_ALGORITHM );
+        } catch( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( DIGEST_ALGORITHM + " is not supported by this VM." );
+        }
+
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while( ( read = in.read( buffer ) ) != -1 )
+            {
+                digest.update( buffer, 0, read );
+                if( content != null )
+                {
+                    content.write( buffer, 0, read );
+                }
+            }
+        } finally
+        {
+            in.close();
+        }
+
+        byte[] bytes = digest.digest();
+        char[] hex = new char[bytes.length * 2];
+        for( int i = 0; i < bytes.length; i++ )
+        {
+            hex[ i * 2 ] = HEX_DIGITS[ ( bytes[ i ] >> 4 ) & 0x0f ];
+            hex[ i * 2 + 1 ] = HEX_DIGITS[ bytes[ i ] & 0x0f ];
+        }
+        return new String( hex );
+    }
+
+    /**
+     * Returns {@code true} if size and last modification time of the specified {@code file} still match this
+     * fingerprint and the modification time can be trusted. This does not read the file, a {@code false} result
+     * means the content has to be compared.
+     *
+     * @param file The file to check. This argument must not be {@code null}.
+     *
+     * @return A {@code boolean} indicator whether {@code file} is untouched.
+     */
+    boolean hasSameStat( File file )
+    {
+        return !isRacy() && file.lastModified() == m_lastModified && file.length() == m_size;
+    }
+
+    /**
+     * Returns {@code true} if the specified {@code file} still has the content of this fingerprint. The stat is
+     * trusted unless it is racy, then the file is read and its digest compared.
+     *
+     * @param file The file to check. This argument must not be {@code null}.
+     *
+     * @return A {@code boolean} indicator whether {@code file} is unchanged, {@code false} if it can not be read.
+     */
+    boolean isUnchanged( File file )
+    {
+        if( file.lastModified() != m_lastModified || file.length() != m_size )
+        {
+            return false;
+        }
+        if( !isRacy() )
+        {
+            return true;
+        }
+
+        try
+        {
+            return hasSameContent( create( file ) );
+        } catch( IOException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the modification time was taken within {@code CLOCK_GRANULARITY} of the fingerprint,
+     * so a later change could have left it as it is.
+     */
+    boolean isRacy()
+    {
+        return m_lastModified >= m_takenAt - ConfigurationFileIndex.CLOCK_GRANULARITY;
+    }
+
+    /**
+     * Returns {@code true} if the specified {@code fingerprint} has the same content digest as this fingerprint.
+     *
+     * @param fingerprint The fingerprint to compare with. This argument may be {@code null}.
+     *
+     * @return A {@code boolean} indicator whether both fingerprints denote the same content.
+     */
+    boolean hasSameContent( FileFingerprint fingerprint )
+    {
+        return fingerprint != null && m_size == fingerprint.m_size && m_hash.equals( fingerprint.m_hash );
+    }
+
+    String getPath()
+    {
+        return m_path;
+    }
+
+    long getSize()
+    {
+        return m_size;
+    }
+
+    long getLastModified()
+    {
+        return m_lastModified;
+    }
+
+    String getHash()
+    {
+        return m_hash;
+    }
+
+    long getTakenAt()
+    {
+        return m_takenAt;
+    }
+
+    @Override
+    public String toString()
+    {
+        return m_path + " [size=" + m_size + ", lastModified=" + m_lastModified + ", hash=" + m_hash + "]";
+    }
+}
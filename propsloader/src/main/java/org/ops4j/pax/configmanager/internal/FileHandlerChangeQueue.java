@@ -0,0 +1,247 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * {@code FileHandlerChangeQueue} collects the {@code IConfigurationFileHandler} services that were added or removed
+ * and reloads the files they claimed or claim on its own thread. The pass waits until no handler changed for the
+ * settle time, so the handlers that register one after the other during startup cause a single pass. A handler
+ * that is removed again before the pass is not loaded with, only the files it may have claimed are looked at.
+ */
+final class FileHandlerChangeQueue
+    implements Runnable
+{
+
+    /**
+     * Framework property to set how long in milliseconds the handlers must be unchanged before their files are
+     * reloaded. A value of {@code 0} reloads the files of each handler as soon as it changes.
+     */
+    public static final String BUNDLES_CONFIGURATION_HANDLER_SETTLE = "bundles.configuration.handler.settle";
+
+    private static final long DEFAULT_SETTLE_TIME = 200;
+
+    private static final Log LOGGER = LogFactory.getLog( FileHandlerChangeQueue.class );
+
+    private final ConfigurationAdminFacade m_facade;
+    private final long m_settleTime;
+    private final Set<IConfigurationFileHandler> m_added;
+    private final Set<IConfigurationFileHandler> m_removed;
+
+    private long m_lastChange;
+    private Thread m_thread;
+    private boolean m_disposed;
+
+    /**
+     * @param facade     The facade to reload the files with. This argument must not be {@code null}.
+     * @param settleTime The time in milliseconds the handlers must be unchanged before a pass, {@code 0} or less to
+     *                   reload in the calling thread.
+     */
+    FileHandlerChangeQueue( ConfigurationAdminFacade facade, long settleTime )
+    {
+        NullArgumentException.validateNotNull( facade, "facade" );
+
+        m_facade = facade;
+        m_settleTime = settleTime;
+        m_added = new LinkedHashSet<IConfigurationFileHandler>();
+        m_removed = new LinkedHashSet<IConfigurationFileHandler>();
+    }
+
+    /**
+     * Creates the queue of the specified {@code facade} with the settle time set by the
+     * {@link #BUNDLES_CONFIGURATION_HANDLER_SETTLE} property.
+     *
+     * @param facade   The facade to reload the files with. This argument must not be {@code null}.
+     * @param resolver The resolver of the framework properties. This argument must not be {@code null}.
+     *
+     * @return The queue. Never {@code null}.
+     */
+    static FileHandlerChangeQueue create( ConfigurationAdminFacade facade,
+                                          ConfigurationAdminFacade.PropertyResolver resolver )
+    {
+        NullArgumentException.validateNotNull( resolver, "resolver" );
+
+        long settleTime = DEFAULT_SETTLE_TIME;
+        String value = resolver.getProperty( BUNDLES_CONFIGURATION_HANDLER_SETTLE );
+        if( value != null )
+        {
+            try
+            {
+                settleTime = Long.parseLong( value.trim() );
+            } catch( NumberFormatException e )
+            {
+                LOGGER.warn( "Invalid value [" + value + "] of [" + BUNDLES_CONFIGURATION_HANDLER_SETTLE + "]." );
+            }
+        }
+        return new FileHandlerChangeQueue( facade, settleTime );
+    }
+
+    /**
+     * Reloads the files the specified {@code handler} claims, after the settle time.
+     *
+     * @param handler The added handler. This argument must not be {@code null}.
+     */
+    void added( IConfigurationFileHandler handler )
+    {
+        NullArgumentException.validateNotNull( handler, "handler" );
+
+        if( m_settleTime <= 0 )
+        {
+            reload( Collections.singleton( handler ), Collections.<IConfigurationFileHandler>emptySet() );
+            return;
+        }
+        synchronized( this )
+        {
+            if( !m_removed.remove( handler ) )
+            {
+                m_added.add( handler );
+            }
+            changed();
+        }
+    }
+
+    /**
+     * Reloads or removes the files the specified {@code handler} claimed, after the settle time.
+     *
+     * @param handler The removed handler. This argument must not be {@code null}.
+     */
+    void removed( IConfigurationFileHandler handler )
+    {
+        NullArgumentException.validateNotNull( handler, "handler" );
+
+        if( m_settleTime <= 0 )
+        {
+            synchronized( this )
+            {
+                if( m_disposed )
+                {
+                    return;
+                }
+            }
+            reload( Collections.<IConfigurationFileHandler>emptySet(), Collections.singleton( handler ) );
+            return;
+        }
+        synchronized( this )
+        {
+            // a full pass may have used the handler before its own pass
+            m_added.remove( handler );
+            m_removed.add( handler );
+            changed();
+        }
+    }
+
+    private void changed()
+    {
+        if( m_disposed )
+        {
+            return;
+        }
+        m_lastChange = System.currentTimeMillis();
+        if( m_thread == null )
+        {
+            m_thread = new Thread( this, "Pax ConfMan handler reload" );
+            m_thread.setDaemon( true );
+            m_thread.start();
+        }
+        notifyAll();
+    }
+
+    public void run()
+    {
+        while( true )
+        {
+            Set<IConfigurationFileHandler> added;
+            Set<IConfigurationFileHandler> removed;
+            synchronized( this )
+            {
+                try
+                {
+                    while( !m_disposed )
+                    {
+                        long wait = m_lastChange + m_settleTime - System.currentTimeMillis();
+                        if( m_added.isEmpty() && m_removed.isEmpty() )
+                        {
+                            wait();
+                        }
+                        else if( wait > 0 )
+                        {
+                            wait( wait );
+                        }
+                        else
+                        {
+                            break;
+                        }
+                    }
+                } catch( InterruptedException e )
+                {
+                    m_disposed = true;
+                }
+                if( m_disposed )
+                {
+                    return;
+                }
+
+                added = new LinkedHashSet<IConfigurationFileHandler>( m_added );
+                removed = new LinkedHashSet<IConfigurationFileHandler>( m_removed );
+                m_added.clear();
+                m_removed.clear();
+            }
+
+            reload( added, removed );
+        }
+    }
+
+    private void reload( Set<IConfigurationFileHandler> added, Set<IConfigurationFileHandler> removed )
+    {
+        try
+        {
+            m_facade.registerHandlerFiles( added, removed );
+        } catch( IllegalStateException e )
+        {
+            LOGGER.info( "Configuration admin service went away while loading configurations." );
+        } catch( IOException e )
+        {
+            LOGGER.error( "Can't reload the configuration files of the changed handlers.", e );
+        } catch( InvalidSyntaxException e )
+        {
+            LOGGER.error( "Invalid syntax. This should not happened.", e );
+        } catch( RuntimeException e )
+        {
+            LOGGER.error( "Can't reload the configuration files of the changed handlers.", e );
+        }
+    }
+
+    /**
+     * Stops the thread, the changes that are waiting are dropped.
+     */
+    synchronized void dispose()
+    {
+        m_disposed = true;
+        m_added.clear();
+        m_removed.clear();
+        notifyAll();
+    }
+}
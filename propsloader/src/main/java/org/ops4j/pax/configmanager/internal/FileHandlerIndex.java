@@ -0,0 +1,295 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+
+import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+import org.ops4j.pax.configmanager.IPatternConfigurationFileHandler;
+import org.ops4j.pax.configmanager.ITypedConfigurationFileHandler;
+import org.ops4j.pax.configmanager.internal.handlers.IContentConfigurationFileHandler;
+
+/**
+ * {@code FileHandlerIndex} is an immutable snapshot of the registered {@code IConfigurationFileHandler}s that selects
+ * the handler of a file. Suffix patterns of {@code IPatternConfigurationFileHandler}s are kept in a hash table keyed
+ * by the last file name extension, other patterns are matched as globs and handlers without patterns are asked
+ * through {@code canHandle}. Dispatching a file neither locks nor allocates.
+ * <p>
+ * The handlers are ordered by precedence. Whichever way a handler is found, the one with the highest precedence
+ * that is able to handle the file wins.
+ */
+final class FileHandlerIndex
+{
+
+    static final FileHandlerIndex EMPTY = new FileHandlerIndex( new ArrayList<IConfigurationFileHandler>() );
+
+    private final Candidate[] m_suffixTable;
+    private final int m_mask;
+    private final Candidate[] m_globs;
+    private final Candidate[] m_fallbacks;
+
+    /**
+     * Creates the index of the specified {@code handlers}.
+     *
+     * @param handlers The handlers, ordered by descending precedence. This argument must not be {@code null}.
+     */
+    FileHandlerIndex( List<IConfigurationFileHandler> handlers )
+    {
+        NullArgumentException.validateNotNull( handlers, "handlers" );
+
+        List<Candidate> suffixes = new ArrayList<Candidate>();
+        List<Candidate> globs = new ArrayList<Candidate>();
+        List<Candidate> fallbacks = new ArrayList<Candidate>();
+        for( int precedence = 0; precedence < handlers.size(); precedence++ )
+        {
+            IConfigurationFileHandler handler = handlers.get( precedence );
+            if( !( handler instanceof IPatternConfigurationFileHandler ) )
+            {
+                fallbacks.add( new Candidate( handler, precedence, null ) );
+                continue;
+            }
+
+            String[] patterns = ( (IPatternConfigurationFileHandler) handler ).getFilePatterns();
+            for( String pattern : patterns )
+            {
+                if( isIndexedSuffix( pattern ) )
+                {
+                    suffixes.add( new Candidate( handler, precedence, pattern.substring( 1 ) ) );
+                }
+                else
+                {
+                    globs.add( new Candidate( handler, precedence, pattern ) );
+                }
+            }
+        }
+
+        int size = 1;
+        while( size < suffixes.size() * 2 )
+        {
+            size <<= 1;
+        }
+        m_suffixTable = new Candidate[size];
+        m_mask = size - 1;
+        // insert in reverse order, so every chain is ordered by precedence
+        for( int i = suffixes.size() - 1; i >= 0; i-- )
+        {
+            Candidate candidate = suffixes.get( i );
+            int bucket = candidate.m_extension.hashCode() & m_mask;
+            candidate.m_next = m_suffixTable[ bucket ];
+            m_suffixTable[ bucket ] = candidate;
+        }
+        m_globs = globs.toArray( new Candidate[globs.size()] );
+        m_fallbacks = fallbacks.toArray( new Candidate[fallbacks.size()] );
+    }
+
+    /**
+     * A suffix pattern is {@code *} followed by a literal suffix that contains a dot, e.g. {@code *.properties}.
+     */
+    private static boolean isIndexedSuffix( String pattern )
+    {
+        if( pattern.length() < 2 || pattern.charAt( 0 ) != '*' )
+        {
+            return false;
+        }
+        String suffix = pattern.substring( 1 );
+        if( suffix.indexOf( '*' ) >= 0 || suffix.indexOf( '?' ) >= 0 )
+        {
+            return false;
+        }
+        int dot = suffix.lastIndexOf( '.' );
+        return dot >= 0 && dot < suffix.length() - 1;
+    }
+
+    /**
+     * Returns the handler with the highest precedence that handles the specified {@code file}.
+     *
+     * @param file The file. This argument must not be {@code null}.
+     *
+     * @return The handler, or {@code null} if no registered handler handles {@code file}.
+     */
+    IConfigurationFileHandler getHandler( File file )
+    {
+        String name = file.getName();
+        Candidate best = null;
+
+        int dot = name.lastIndexOf( '.' );
+        if( dot >= 0 && m_suffixTable.length > 0 )
+        {
+            int hash = 0;
+            for( int i = dot + 1; i < name.length(); i++ )
+            {
+                hash = 31 * hash + name.charAt( i );
+            }
+            int extensionLength = name.length() - dot - 1;
+            for( Candidate candidate = m_suffixTable[ hash & m_mask ]; candidate != null; candidate = candidate.m_next )
+            {
+                String extension = candidate.m_extension;
+                if( extension.length() == extensionLength
+                    && name.regionMatches( dot + 1, extension, 0, extensionLength )
+                    && name.endsWith( candidate.m_pattern ) )
+                {
+                    best = candidate;
+                    break;
+                }
+            }
+        }
+
+        for( Candidate candidate : m_globs )
+        {
+            if( best != null && candidate.m_precedence >= best.m_precedence )
+            {
+                break;
+            }
+            if( matches( candidate.m_pattern, name ) )
+            {
+                best = candidate;
+                break;
+            }
+        }
+
+        for( Candidate candidate : m_fallbacks )
+        {
+            if( best != null && candidate.m_precedence >= best.m_precedence )
+            {
+                break;
+            }
+            if( candidate.m_handler.canHandle( file ) )
+            {
+                best = candidate;
+                break;
+            }
+        }
+
+        return best == null ? null : best.m_handler;
+    }
+
+    /**
+     * Matches {@code name} against the glob {@code pattern}, backtracking to the last {@code *} on a mismatch.
+     */
+    static boolean matches( String pattern, String name )
+    {
+        int p = 0;
+        int n = 0;
+        int star = -1;
+        int mark = 0;
+        while( n < name.length() )
+        {
+            if( p < pattern.length() && ( pattern.charAt( p ) == '?' || pattern.charAt( p ) == name.charAt( n ) ) )
+            {
+                p++;
+                n++;
+            }
+            else if( p < pattern.length() && pattern.charAt( p ) == '*' )
+            {
+                star = p++;
+                mark = n;
+            }
+            else if( star >= 0 )
+            {
+                p = star + 1;
+                n = ++mark;
+            }
+            else
+            {
+                return false;
+            }
+        }
+        while( p < pattern.length() && pattern.charAt( p ) == '*' )
+        {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    /**
+     * Loads {@code file} with {@code handler}. An {@code ITypedConfigurationFileHandler} is asked for its typed
+     * dictionary, which is copied into {@code Properties}, so the values keep their types. Other handlers are asked
+     * for their properties.
+     *
+     * @return The properties of {@code file}, or {@code null} if the handler could not read it.
+     */
+    static Properties load( IConfigurationFileHandler handler, File file )
+    {
+        if( !( handler instanceof ITypedConfigurationFileHandler ) )
+        {
+            return handler.handle( file );
+        }
+
+        Dictionary<String, Object> typed = ( (ITypedConfigurationFileHandler) handler ).handleTyped( file );
+        if( typed == null )
+        {
+            return null;
+        }
+        Properties prop = new Properties();
+        for( Enumeration<String> keys = typed.keys(); keys.hasMoreElements(); )
+        {
+            String key = keys.nextElement();
+            prop.put( key, typed.get( key ) );
+        }
+        return prop;
+    }
+
+    /**
+     * Loads {@code file} with {@code handler} like {@link #load(IConfigurationFileHandler, File)}, but lets an
+     * {@code IContentConfigurationFileHandler} parse the {@code content} that was already read.
+     *
+     * @param content The content of {@code file}, or {@code null} to let the handler read the file.
+     *
+     * @return The properties of {@code file}, or {@code null} if the handler could not read it.
+     */
+    static Properties load( IConfigurationFileHandler handler, File file, byte[] content )
+    {
+        if( content != null && handler instanceof IContentConfigurationFileHandler )
+        {
+            return ( (IContentConfigurationFileHandler) handler ).handleContent( file, content );
+        }
+        return load( handler, file );
+    }
+
+    /**
+     * A handler together with its precedence and one of its patterns.
+     */
+    private static final class Candidate
+    {
+
+        private final IConfigurationFileHandler m_handler;
+        private final int m_precedence;
+        private final String m_pattern;
+        private final String m_extension;
+        private Candidate m_next;
+
+        private Candidate( IConfigurationFileHandler handler, int precedence, String pattern )
+        {
+            m_handler = handler;
+            m_precedence = precedence;
+            m_pattern = pattern;
+            if( pattern != null && pattern.lastIndexOf( '.' ) >= 0 )
+            {
+                m_extension = pattern.substring( pattern.lastIndexOf( '.' ) + 1 );
+            }
+            else
+            {
+                m_extension = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * {@code InstanceTemplate} builds the properties of the instances of a {@code ManagedServiceFactory} file one
+ * instance at a time. The value of {@code key} for instance {@code n} is {@code key.n} if the file has it, otherwise
+ * the default {@code key.*} shared by all instances. E.g.
+ * <pre>
+ * instances=100
+ * keys=name,port,host
+ * name.*=node-${i}
+ * port.*=$[9000+${i}]
+ * host.*=localhost
+ * host.7=remote
+ * </pre>
+ * describes 100 instances named {@code node-1} to {@code node-100} with the ports {@code 9001} to {@code 9100}, all
+ * on {@code localhost} except the seventh.
+ * <p>
+ * {@code ${i}} in a string value is the number of the instance, starting at 1. It is replaced as text, so
+ * {@code id.*=00${i}} is {@code 001} and {@code range.*=10-${i}} is {@code 10-1}. Only {@code $[...]} is evaluated,
+ * as an integer expression of {@code + - * / %}, unary minus and parentheses. A value that is a single expression
+ * becomes an {@code Integer}, or a {@code Long} if it does not fit; an expression within other text is replaced by
+ * its result. {@code ${i}} is replaced after the other references were interpolated, so a framework property named
+ * {@code i} hides it.
+ */
+final class InstanceTemplate
+{
+
+    /**
+     * The suffix of the key of a default value.
+     */
+    static final String DEFAULT_SUFFIX = ".*";
+    /**
+     * The reference to the number of the instance.
+     */
+    static final String INDEX_REFERENCE = "${i}";
+    /**
+     * The start of an expression, which ends at the next {@code ]}.
+     */
+    static final String EXPRESSION_START = "$[";
+
+    private final String[] m_keys;
+    private final Properties m_properties;
+    /**
+     * The compiled default values by key, a non-string default is kept as it is.
+     */
+    private final Map<String, Object> m_defaults;
+
+    /**
+     * @param keys       The keys of an instance. This argument must not be {@code null}.
+     * @param properties The properties of the file. This argument must not be {@code null}.
+     */
+    InstanceTemplate( String[] keys, Properties properties )
+    {
+        m_keys = keys;
+        m_properties = properties;
+        m_defaults = new HashMap<String, Object>();
+        for( String key : keys )
+        {
+            Object value = properties.get( key + DEFAULT_SUFFIX );
+            if( value != null )
+            {
+                m_defaults.put( key, value instanceof String ? Value.compile( (String) value ) : value );
+            }
+        }
+    }
+
+    /**
+     * Returns the properties of the specified {@code instance}, a key without a value for it is left out.
+     *
+     * @param instance The number of the instance, starting at 1.
+     *
+     * @return The properties of {@code instance}. Never {@code null}.
+     */
+    Properties getInstance( int instance )
+    {
+        Properties properties = new Properties();
+        for( String key : m_keys )
+        {
+            Object value = m_properties.get( key + "." + instance );
+            if( value == null )
+            {
+                value = m_defaults.get( key );
+            }
+            else if( value instanceof String )
+            {
+                value = Value.compile( (String) value );
+            }
+
+            if( value instanceof Value )
+            {
+                value = ( (Value) value ).expand( key, instance );
+            }
+            if( value != null )
+            {
+                properties.put( key, value );
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * A string value, split at its {@code ${i}} references.
+     */
+    private static final class Value
+    {
+
+        private final String[] m_literals;
+        private final boolean m_evaluated;
+
+        private Value( String[] literals, boolean evaluated )
+        {
+            m_literals = literals;
+            m_evaluated = evaluated;
+        }
+
+        /**
+         * Returns the compiled {@code value}, or {@code value} itself if it has neither references nor expressions.
+         */
+        private static Object compile( String value )
+        {
+            boolean evaluated = value.contains( EXPRESSION_START );
+            if( !evaluated && !value.contains( INDEX_REFERENCE ) )
+            {
+                return value;
+            }
+            return new Value( value.split( "\\$\\{i\\}", -1 ), evaluated );
+        }
+
+        /**
+         * Returns the value of {@code key} for {@code instance}.
+         *
+         * @throws IllegalArgumentException Thrown if an expression is malformed.
+         */
+        private Object expand( String key, int instance )
+        {
+            StringBuilder builder = new StringBuilder();
+            builder.append( m_literals[ 0 ] );
+            for( int i = 1; i < m_literals.length; i++ )
+            {
+                builder.append( instance ).append( m_literals[ i ] );
+            }
+            String text = builder.toString();
+            if( !m_evaluated )
+            {
+                return text;
+            }
+
+            builder.setLength( 0 );
+            int position = 0;
+            for( int start = text.indexOf( EXPRESSION_START ); start >= 0;
+                 start = text.indexOf( EXPRESSION_START, position ) )
+            {
+                int end = text.indexOf( ']', start );
+                Long result = end < 0 ? null : new Expression( text.substring( start + 2, end ) ).evaluate();
+                if( result == null )
+                {
+                    throw new IllegalArgumentException( "Invalid expression in [" + text + "] of [" + key
+                                                        + "] of instance [" + instance + "]." );
+                }
+                if( start == 0 && end == text.length() - 1 )
+                {
+                    long value = result.longValue();
+                    return value == (int) value ? (Object) Integer.valueOf( (int) value ) : result;
+                }
+                builder.append( text, position, start ).append( result );
+                position = end + 1;
+            }
+            return builder.append( text, position, text.length() ).toString();
+        }
+    }
+
+    /**
+     * Evaluates an integer expression of {@code + - * / %}, unary minus and parentheses.
+     */
+    private static final class Expression
+    {
+
+        private final String m_text;
+        private int m_position;
+
+        private Expression( String text )
+        {
+            m_text = text;
+        }
+
+        /**
+         * Returns the value of the expression, or {@code null} if the text is no expression or divides by zero.
+         */
+        private Long evaluate()
+        {
+            try
+            {
+                long value = sum();
+                return peek() == -1 ? value : null;
+            } catch( IllegalArgumentException e )
+            {
+                return null;
+            } catch( ArithmeticException e )
+            {
+                return null;
+            }
+        }
+
+        private long sum()
+        {
+            long value = product();
+            for( int c = peek(); c == '+' || c == '-'; c = peek() )
+            {
+                m_position++;
+                value = c == '+' ? value + product() : value - product();
+            }
+            return value;
+        }
+
+        private long product()
+        {
+            long value = factor();
+            for( int c = peek(); c == '*' || c == '/' || c == '%'; c = peek() )
+            {
+                m_position++;
+                long operand = factor();
+                value = c == '*' ? value * operand : c == '/' ? value / operand : value % operand;
+            }
+            return value;
+        }
+
+        private long factor()
+        {
+            int c = peek();
+            if( c == '-' )
+            {
+                m_position++;
+                return -factor();
+            }
+            if( c == '(' )
+            {
+                m_position++;
+                long value = sum();
+                if( peek() != ')' )
+                {
+                    throw new IllegalArgumentException();
+                }
+                m_position++;
+                return value;
+            }
+
+            int start = m_position;
+            while( m_position < m_text.length() && Character.isDigit( m_text.charAt( m_position ) ) )
+            {
+                m_position++;
+            }
+            if( start == m_position )
+            {
+                throw new IllegalArgumentException();
+            }
+            // throws NumberFormatException, an IllegalArgumentException, if the number is too large
+            return Long.parseLong( m_text.substring( start, m_position ) );
+        }
+
+        /**
+         * Returns the next character that is not white space without consuming it, or {@code -1} at the end.
+         */
+        private int peek()
+        {
+            while( m_position < m_text.length() && Character.isWhitespace( m_text.charAt( m_position ) ) )
+            {
+                m_position++;
+            }
+            return m_position < m_text.length() ? m_text.charAt( m_position ) : -1;
+        }
+    }
+}
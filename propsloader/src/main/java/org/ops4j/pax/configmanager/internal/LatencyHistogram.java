@@ -0,0 +1,127 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.ops4j.pax.configmanager.ConfigurationLatency;
+
+/**
+ * A lock-free histogram of durations in nanoseconds. Each power of two is split into {@code SUB_BUCKETS} linear
+ * buckets, so a percentile is overestimated by at most an eighth. Recording is a few atomic increments and never
+ * allocates.
+ */
+final class LatencyHistogram
+{
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray( BUCKETS );
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_total = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * Records an operation that took the specified number of nanoseconds. Negative durations, e.g. from a clock that
+     * went backwards, are recorded as {@code 0}.
+     */
+    void record( long nanos )
+    {
+        if( nanos < 0 )
+        {
+            nanos = 0;
+        }
+        m_buckets.incrementAndGet( bucketOf( nanos ) );
+        m_count.incrementAndGet();
+        m_total.addAndGet( nanos );
+
+        long max = m_max.get();
+        while( nanos > max && !m_max.compareAndSet( max, nanos ) )
+        {
+            max = m_max.get();
+        }
+    }
+
+    /**
+     * Records an operation that started at the specified {@code System.nanoTime}.
+     */
+    void recordSince( long startNanos )
+    {
+        record( System.nanoTime() - startNanos );
+    }
+
+    /**
+     * Returns the recorded latencies. The snapshot is taken without stopping concurrent recording.
+     */
+    ConfigurationLatency snapshot()
+    {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            buckets[ i ] = m_buckets.get( i );
+            count += buckets[ i ];
+        }
+        long max = m_max.get();
+        return new ConfigurationLatency( count, m_total.get(), max, percentile( buckets, count, max, 0.50 ),
+                                         percentile( buckets, count, max, 0.90 ),
+                                         percentile( buckets, count, max, 0.99 ) );
+    }
+
+    private static long percentile( long[] buckets, long count, long max, double fraction )
+    {
+        if( count == 0 )
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil( count * fraction );
+        long seen = 0;
+        for( int i = 0; i < buckets.length; i++ )
+        {
+            seen += buckets[ i ];
+            if( seen >= rank )
+            {
+                return Math.min( upperBoundOf( i ), max );
+            }
+        }
+        return max;
+    }
+
+    static int bucketOf( long nanos )
+    {
+        if( nanos < SUB_BUCKETS )
+        {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( nanos );
+        int subBucket = (int) ( nanos >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf( int bucket )
+    {
+        if( bucket < SUB_BUCKETS )
+        {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) ( SUB_BUCKETS + bucket % SUB_BUCKETS ) << shift;
+        return lower + ( 1L << shift ) - 1;
+    }
+}
@@ -15,11 +15,27 @@
  */
 package org.ops4j.pax.configmanager.internal;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.ITabularConfigurationFileHandler;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.cm.ConfigurationAdmin;
 import org.osgi.service.cm.Configuration;
 
@@ -40,6 +56,8 @@ import org.osgi.service.cm.Configuration;
  * userid.2=edith
  * password.2=piaf
  * </pre>
+ * A key may have a default value for all instances, e.g. {@code comment.*=no comment}, which may refer to the
+ * number of the instance as {@code ${i}}. See {@code InstanceTemplate}.
  *
  * @author Gavin
  */
@@ -47,77 +65,529 @@ final class ManagedFactoryPropertiesProcessor
 {
     private static final Log LOGGER = LogFactory.getLog( ManagedFactoryPropertiesProcessor.class );
     public final static String[] EMPTY_STRING_ARRAY = new String[0];
-    
+
+    /**
+     * Reserved key that holds the number of the instance a factory configuration was created for.
+     */
+    public static final String CONFIGURATION_INSTANCE = "configuration.instance";
+
+    /**
+     * The number of rows of a tabular file that are reconciled with a single query.
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    private final ConfigurationMetrics m_metrics;
+    /**
+     * The pids of the applied configurations of each factory, keyed by their instance key. The inner maps are
+     * replaced, never changed.
+     */
+    private final ConcurrentMap<String, Map<String, String>> m_instances =
+        new ConcurrentHashMap<String, Map<String, String>>();
+
     public ManagedFactoryPropertiesProcessor()
     {
+        this( new ConfigurationMetrics() );
     }
 
     /**
+     * Creates a processor that records its configuration admin calls in the specified {@code metrics}.
+     *
+     * @param metrics The metrics. This argument must not be {@code null}.
+     */
+    ManagedFactoryPropertiesProcessor( ConfigurationMetrics metrics )
+    {
+        NullArgumentException.validateNotNull( metrics, "metrics" );
+
+        m_metrics = metrics;
+    }
+
+    /**
+     * Reconciles the {@code Configuration} objects of the factory with the instances described by {@code prop}. Each
+     * configuration carries the number of its instance as {@link #CONFIGURATION_INSTANCE}, so a reload finds and
+     * updates the same configuration again, even if the properties of the instance changed. The configurations of a
+     * factory are retrieved with a single query and remembered by their instance key once they are applied, so a
+     * later call only checks that they are still the same. Whenever a remembered configuration was changed, deleted
+     * or joined by another one, the configurations are matched by their keys, legacy pids and properties again.
+     * <p>
+     * An instance is only updated if its properties differ from the stored ones, missing instances are created and
+     * surplus configurations, e.g. after {@code instances} shrank, are deleted. Configurations written before the
+     * instance key existed are matched by their pid or their properties and get the key with the next update.
+     *
      * @param configAdminService 
      * @param servicePid the contents of key {@code service.pid} or the name of the property file.
      * 
+     * @return {@code true} if a configuration of the factory was created, updated or deleted.
+     *
      * @throws IllegalArgumentException if any one of the parameters is null
      */
-    final void process( ConfigurationAdmin configAdminService, String servicePid, Properties prop )
+    final boolean process( ConfigurationAdmin configAdminService, String servicePid, Properties prop )
     {
         NullArgumentException.validateNotNull( configAdminService, "configAdminService" );
         NullArgumentException.validateNotNull( servicePid, "servicePid" );
         
         if( ! validate( prop ))
-            return; // noop
+            return false; // noop
         
         int numberOfInstances = getInstanceCount( prop );
-        String[] keys = getKeys( prop );
+        InstanceTemplate template = new InstanceTemplate( getKeys( prop ), prop );
 
-        for( int i=1; i<numberOfInstances+1; i++ )
+        Configuration[] configs = new Configuration[numberOfInstances];
+        List<Configuration> unusedConfigs;
+        try
+        {
+            unusedConfigs = lookupIndexed( configAdminService, servicePid, configs );
+            if( unusedConfigs == null )
+            {
+                unusedConfigs = lookupListed( configAdminService, servicePid, template, configs );
+            }
+        } catch( Exception e )
+        {
+            failed( configAdminService, servicePid, "Can't retrieve configurations of factory [" + servicePid + "]",
+                    e );
+            return false;
+        }
+
+        boolean changed = false;
+        boolean failed = false;
+        Iterator<Configuration> unused = unusedConfigs.iterator();
+        for( int i = 0; i < numberOfInstances; i++ )
         {
-            Properties instanceProps = filterProps( keys, prop, i );
-            LOGGER.debug( instanceProps );
             try
             {
-                String filter = "( &(service.factoryPid=" + servicePid + ") (service.pid=" + servicePid + "." + (i-1) + ") )";
-                LOGGER.debug( "filter = " + filter );
-                Configuration[] configs = configAdminService.listConfigurations( filter );
-                
-                Configuration conf;
-                
-                if( configs != null && configs.length > 0 )
+                // the instances are expanded one at a time
+                Properties instance = template.getInstance( i + 1 );
+                instance.put( CONFIGURATION_INSTANCE, String.valueOf( i + 1 ) );
+                LOGGER.debug( instance );
+
+                Configuration conf = configs[ i ];
+                if( conf == null && unused.hasNext() )
+                {
+                    conf = unused.next();
+                    unused.remove();
+                }
+
+                if( conf != null )
                 {
-                    conf = configs[ 0 ];
                     LOGGER.debug( "\tfound -> " + conf.getPid() );
+                    configs[ i ] = conf;
+                    if( ConfigurationDiff.isEqual( conf.getProperties(), instance ) )
+                    {
+                        m_metrics.updateSkipped();
+                        continue;
+                    }
                 }
                 else
                 {
+                    long start = System.nanoTime();
                     conf = configAdminService.createFactoryConfiguration( servicePid, null );
+                    m_metrics.createFactoryConfiguration().recordSince( start );
                     LOGGER.debug( "\tcreate -> " + conf.getPid() );
+                    configs[ i ] = conf;
                 }
 
-                conf.update( instanceProps );
+                long start = System.nanoTime();
+                conf.update( instance );
+                m_metrics.update().recordSince( start );
+                changed = true;
 
             } catch( Exception e )
             {
-                LOGGER.error( e );
+                failed( configAdminService, servicePid, "Can't apply instance [" + ( i + 1 ) + "] of factory ["
+                                                        + servicePid + "]", e );
+                failed = true;
                 continue;
             }                        
         }
+
+        // delete the instances that are no longer described
+        while( unused.hasNext() )
+        {
+            Configuration conf = unused.next();
+            try
+            {
+                LOGGER.debug( "\tdelete -> " + conf.getPid() );
+                conf.delete();
+                changed = true;
+            } catch( Exception e )
+            {
+                failed( configAdminService, servicePid, "Can't delete configuration [" + conf.getPid()
+                                                        + "] of factory [" + servicePid + "]", e );
+                failed = true;
+            }
+        }
+
+        if( failed )
+        {
+            // the next call lists the configurations again
+            m_instances.remove( servicePid );
+        }
+        else
+        {
+            Map<String, String> pids = new HashMap<String, String>( numberOfInstances * 2 );
+            for( int i = 0; i < numberOfInstances; i++ )
+            {
+                pids.put( String.valueOf( i + 1 ), configs[ i ].getPid() );
+            }
+            m_instances.put( servicePid, pids );
+        }
+        return changed;
     }
 
-    private final Properties filterProps( String[] keys, Properties prop, int instance )
+    /**
+     * Fills {@code configs} with the remembered configurations of the factory, listed with a single query. Unlike
+     * {@code getConfiguration}, the query never creates a configuration for a pid that was deleted meanwhile.
+     *
+     * @return The remembered configurations that no instance needs anymore, or {@code null} if the factory is not
+     *         remembered or its configurations were changed, deleted or added by someone else.
+     */
+    private List<Configuration> lookupIndexed( ConfigurationAdmin configAdminService, String servicePid,
+                                               Configuration[] configs )
+        throws IOException, InvalidSyntaxException
     {
-        Properties retval = new Properties();
-        
-        for( int i=0; i<keys.length; i++)
+        Map<String, String> pids = m_instances.get( servicePid );
+        if( pids == null )
         {
-            String key = keys[i] + "." + instance;            
-            String value = prop.getProperty( key );
-            
-            if( value == null )
-                continue;
-            
-            retval.put( keys[i], value );
+            return null;
         }
-        
-        return retval;
+
+        Map<String, Configuration> existing = listFactoryConfigurations( configAdminService, servicePid );
+        if( existing.size() != pids.size() )
+        {
+            LOGGER.debug( "Configurations of factory [" + servicePid + "] were added or deleted." );
+            m_instances.remove( servicePid );
+            return null;
+        }
+
+        List<Configuration> unused = new ArrayList<Configuration>();
+        for( Map.Entry<String, String> entry : pids.entrySet() )
+        {
+            Configuration conf = existing.get( entry.getValue() );
+            Dictionary<?, ?> properties = conf == null ? null : conf.getProperties();
+            if( properties == null || !entry.getKey().equals( properties.get( CONFIGURATION_INSTANCE ) ) )
+            {
+                LOGGER.debug( "Configuration [" + entry.getValue() + "] of factory [" + servicePid + "] changed." );
+                m_instances.remove( servicePid );
+                return null;
+            }
+
+            int instance = Integer.parseInt( entry.getKey() );
+            if( instance <= configs.length )
+            {
+                configs[ instance - 1 ] = conf;
+            }
+            else
+            {
+                unused.add( conf );
+            }
+        }
+        return unused;
+    }
+
+    /**
+     * Fills {@code configs} with the configurations of the factory that carry the key of an instance. Configurations
+     * without a key are matched by the legacy pid {@code <factory pid>.<instance - 1>} or by equal properties.
+     *
+     * @return The configurations of the factory that no instance matched.
+     */
+    private List<Configuration> lookupListed( ConfigurationAdmin configAdminService, String servicePid,
+                                              InstanceTemplate template, Configuration[] configs )
+        throws IOException, InvalidSyntaxException
+    {
+        Map<String, Configuration> existing = listFactoryConfigurations( configAdminService, servicePid );
+
+        Map<Object, Configuration> byInstance = new HashMap<Object, Configuration>();
+        for( Iterator<Configuration> it = existing.values().iterator(); it.hasNext(); )
+        {
+            Configuration conf = it.next();
+            Dictionary<?, ?> properties = conf.getProperties();
+            Object instance = properties == null ? null : properties.get( CONFIGURATION_INSTANCE );
+            if( instance != null && !byInstance.containsKey( instance ) )
+            {
+                byInstance.put( instance, conf );
+                it.remove();
+            }
+        }
+
+        for( int i = 0; i < configs.length; i++ )
+        {
+            configs[ i ] = byInstance.remove( String.valueOf( i + 1 ) );
+            if( configs[ i ] == null )
+            {
+                configs[ i ] = existing.remove( servicePid + "." + i );
+            }
+        }
+
+        // keep unmatched configurations that already hold the properties of an instance untouched
+        if( !existing.isEmpty() )
+        {
+            Map<Map<String, Object>, List<Configuration>> byProperties = groupByProperties( existing.values() );
+            for( int i = 0; i < configs.length; i++ )
+            {
+                if( configs[ i ] == null )
+                {
+                    Map<String, Object> properties = ConfigurationDiff.normalize( template.getInstance( i + 1 ) );
+                    List<Configuration> candidates = byProperties.get( properties );
+                    if( candidates != null && !candidates.isEmpty() )
+                    {
+                        configs[ i ] = candidates.remove( candidates.size() - 1 );
+                        existing.remove( configs[ i ].getPid() );
+                    }
+                }
+            }
+        }
+
+        List<Configuration> unused = new ArrayList<Configuration>( existing.values() );
+        unused.addAll( byInstance.values() );
+        return unused;
+    }
+
+    private Map<String, Configuration> listFactoryConfigurations( ConfigurationAdmin configAdminService,
+                                                                  String servicePid )
+        throws IOException, InvalidSyntaxException
+    {
+        String filter = "(" + ConfigurationAdmin.SERVICE_FACTORYPID + "="
+                        + ConfigurationAdminFacade.escapeFilterValue( servicePid ) + ")";
+        LOGGER.debug( "filter = " + filter );
+        long start = System.nanoTime();
+        Configuration[] configs = configAdminService.listConfigurations( filter );
+        m_metrics.listConfigurations().recordSince( start );
+
+        Map<String, Configuration> existing = new TreeMap<String, Configuration>();
+        if( configs != null )
+        {
+            for( Configuration conf : configs )
+            {
+                existing.put( conf.getPid(), conf );
+            }
+        }
+        return existing;
+    }
+
+    private Map<Map<String, Object>, List<Configuration>> groupByProperties( Collection<Configuration> configs )
+    {
+        Map<Map<String, Object>, List<Configuration>> byProperties =
+            new HashMap<Map<String, Object>, List<Configuration>>();
+        for( Configuration conf : configs )
+        {
+            Map<String, Object> key = ConfigurationDiff.normalize( conf.getProperties() );
+            List<Configuration> group = byProperties.get( key );
+            if( group == null )
+            {
+                group = new ArrayList<Configuration>();
+                byProperties.put( key, group );
+            }
+            group.add( conf );
+        }
+        return byProperties;
+    }
+
+    /**
+     * Deletes every {@code Configuration} of the {@code ManagedServiceFactory} with the specified {@code servicePid},
+     * e.g. because its configuration file was removed.
+     *
+     * @param configAdminService The configuration admin service. This argument must not be {@code null}.
+     * @param servicePid         The factory pid. This argument must not be {@code null}.
+     *
+     * @throws IOException            Thrown if the configuration admin service fails to delete a configuration.
+     * @throws InvalidSyntaxException Thrown if {@code servicePid} results in an invalid filter.
+     */
+    final void delete( ConfigurationAdmin configAdminService, String servicePid )
+        throws IOException, InvalidSyntaxException
+    {
+        NullArgumentException.validateNotNull( configAdminService, "configAdminService" );
+        NullArgumentException.validateNotNull( servicePid, "servicePid" );
+
+        m_instances.remove( servicePid );
+        for( Configuration conf : listFactoryConfigurations( configAdminService, servicePid ).values() )
+        {
+            LOGGER.debug( "\tdelete -> " + conf.getPid() );
+            conf.delete();
+        }
+    }
+
+    /**
+     * Reconciles the {@code Configuration} objects of the factory with the rows of the specified {@code file}, read one
+     * at a time. The rows are reconciled in chunks: the configurations of a chunk are retrieved with a single query by
+     * their {@link #CONFIGURATION_INSTANCE} key and, like in {@code process}, only updated if their properties differ.
+     * Configurations with a key beyond the last row are deleted afterwards. Neither the rows nor the pids of the
+     * configurations are kept, so the memory needed does not grow with the number of rows.
+     * <p>
+     * Configurations of the factory without an instance key are left alone.
+     *
+     * @param configAdminService The configuration admin service. This argument must not be {@code null}.
+     * @param servicePid         The factory pid. This argument must not be {@code null}.
+     * @param handler            The handler of {@code file}. This argument must not be {@code null}.
+     * @param file               The tabular file. This argument must not be {@code null}.
+     *
+     * @return {@code true} if a configuration of the factory was created, updated or deleted.
+     *
+     * @throws IOException              Thrown if {@code file} can not be read or the configurations can not be
+     *                                  retrieved.
+     * @throws IllegalArgumentException Thrown if a row of {@code file} is malformed.
+     * @throws InvalidSyntaxException   Thrown if {@code servicePid} results in an invalid filter.
+     */
+    final boolean processRows( ConfigurationAdmin configAdminService, String servicePid,
+                               ITabularConfigurationFileHandler handler, File file )
+        throws IOException, IllegalArgumentException, InvalidSyntaxException
+    {
+        NullArgumentException.validateNotNull( configAdminService, "configAdminService" );
+        NullArgumentException.validateNotNull( servicePid, "servicePid" );
+        NullArgumentException.validateNotNull( handler, "handler" );
+        NullArgumentException.validateNotNull( file, "file" );
+
+        // the configurations of a tabular factory are retrieved chunk by chunk
+        m_instances.remove( servicePid );
+
+        boolean changed = false;
+        int count = 0;
+        List<Properties> chunk = new ArrayList<Properties>( CHUNK_SIZE );
+        ITabularConfigurationFileHandler.Rows rows = handler.openRows( file );
+        try
+        {
+            for( Dictionary<String, Object> row = rows.next(); row != null; row = rows.next() )
+            {
+                Properties instance = new Properties();
+                for( Enumeration<String> keys = row.keys(); keys.hasMoreElements(); )
+                {
+                    String key = keys.nextElement();
+                    instance.put( key, row.get( key ) );
+                }
+                count++;
+                instance.put( CONFIGURATION_INSTANCE, String.valueOf( count ) );
+                chunk.add( instance );
+                if( chunk.size() == CHUNK_SIZE )
+                {
+                    changed |= reconcile( configAdminService, servicePid, count - CHUNK_SIZE + 1, chunk );
+                    chunk.clear();
+                }
+            }
+        } finally
+        {
+            rows.close();
+        }
+        if( !chunk.isEmpty() )
+        {
+            changed |= reconcile( configAdminService, servicePid, count - chunk.size() + 1, chunk );
+        }
+
+        // delete the configurations of the rows that were removed
+        for( int first = count + 1; ; first += CHUNK_SIZE )
+        {
+            Configuration[] surplus = listInstances( configAdminService, servicePid, first, CHUNK_SIZE );
+            if( surplus == null || surplus.length == 0 )
+            {
+                return changed;
+            }
+            for( Configuration conf : surplus )
+            {
+                try
+                {
+                    LOGGER.debug( "\tdelete -> " + conf.getPid() );
+                    conf.delete();
+                    changed = true;
+                } catch( Exception e )
+                {
+                    failed( configAdminService, servicePid, "Can't delete configuration [" + conf.getPid()
+                                                            + "] of factory [" + servicePid + "]", e );
+                    return changed;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the instances of a chunk, the first of them with the instance key {@code first}.
+     */
+    private boolean reconcile( ConfigurationAdmin configAdminService, String servicePid, int first,
+                               List<Properties> chunk )
+        throws IOException, InvalidSyntaxException
+    {
+        Map<Object, Configuration> existing = new HashMap<Object, Configuration>( chunk.size() * 2 );
+        Configuration[] configs = listInstances( configAdminService, servicePid, first, chunk.size() );
+        if( configs != null )
+        {
+            for( Configuration conf : configs )
+            {
+                Dictionary<?, ?> properties = conf.getProperties();
+                if( properties != null )
+                {
+                    existing.put( properties.get( CONFIGURATION_INSTANCE ), conf );
+                }
+            }
+        }
+
+        boolean changed = false;
+        for( int i = 0; i < chunk.size(); i++ )
+        {
+            Properties instance = chunk.get( i );
+            try
+            {
+                Configuration conf = existing.get( String.valueOf( first + i ) );
+                if( conf == null )
+                {
+                    long start = System.nanoTime();
+                    conf = configAdminService.createFactoryConfiguration( servicePid, null );
+                    m_metrics.createFactoryConfiguration().recordSince( start );
+                    LOGGER.debug( "\tcreate -> " + conf.getPid() );
+                }
+                else if( ConfigurationDiff.isEqual( conf.getProperties(), instance ) )
+                {
+                    m_metrics.updateSkipped();
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                conf.update( instance );
+                m_metrics.update().recordSince( start );
+                changed = true;
+            } catch( Exception e )
+            {
+                failed( configAdminService, servicePid, "Can't apply instance [" + ( first + i ) + "] of factory ["
+                                                        + servicePid + "]", e );
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Logs and counts a failure that is not passed on to the caller. A batch is told of it, so it is rolled back.
+     */
+    private void failed( ConfigurationAdmin configAdminService, String servicePid, String message, Exception failure )
+    {
+        LOGGER.error( message, failure );
+        m_metrics.failed( servicePid );
+        ConfigurationTransaction.recordFailure( configAdminService, failure );
+    }
+
+    /**
+     * Returns the configurations of the factory with an instance key from {@code first} to
+     * {@code first + count - 1}.
+     */
+    private Configuration[] listInstances( ConfigurationAdmin configAdminService, String servicePid, int first,
+                                           int count )
+        throws IOException, InvalidSyntaxException
+    {
+        StringBuilder filter = new StringBuilder( "(&(" );
+        filter.append( ConfigurationAdmin.SERVICE_FACTORYPID ).append( '=' );
+        filter.append( ConfigurationAdminFacade.escapeFilterValue( servicePid ) ).append( ")(|" );
+        for( int i = first; i < first + count; i++ )
+        {
+            filter.append( '(' ).append( CONFIGURATION_INSTANCE ).append( '=' ).append( i ).append( ')' );
+        }
+        filter.append( "))" );
+
+        long start = System.nanoTime();
+        Configuration[] configs = configAdminService.listConfigurations( filter.toString() );
+        m_metrics.listConfigurations().recordSince( start );
+        return configs;
+    }
+
+    /**
+     * Forgets the configurations of every factory, e.g. because the configuration admin service changed.
+     */
+    final void clear()
+    {
+        m_instances.clear();
     }
 
     /**
@@ -129,7 +599,8 @@ final class ManagedFactoryPropertiesProcessor
         if( !prop.containsKey( "instances" ) )
             return -1;
 
-        String instancesRaw = ( String ) prop.get( "instances" );
+        // typed handlers deliver a number
+        String instancesRaw = String.valueOf( prop.get( "instances" ) ).trim();
 
         try
         {
@@ -152,8 +623,42 @@ final class ManagedFactoryPropertiesProcessor
         if( !prop.containsKey( "keys" ) )
             return EMPTY_STRING_ARRAY;
         
-        String keysRaw = ( String ) prop.get( "keys" );
-        if( keysRaw == null || keysRaw.trim().length() == 0 )
+        Object keysValue = prop.get( "keys" );
+        if( keysValue instanceof String[] )
+        {
+            // a sequence of a structured document
+            return (String[]) keysValue;
+        }
+        if( keysValue instanceof Collection )
+        {
+            // a list of a typed handler
+            Collection<?> values = (Collection<?>) keysValue;
+            String[] keys = new String[values.size()];
+            int i = 0;
+            for( Object value : values )
+            {
+                keys[ i++ ] = String.valueOf( value );
+            }
+            return keys;
+        }
+        if( keysValue != null && keysValue.getClass().isArray() )
+        {
+            String[] keys = new String[Array.getLength( keysValue )];
+            for( int i = 0; i < keys.length; i++ )
+            {
+                keys[ i ] = String.valueOf( Array.get( keysValue, i ) );
+            }
+            return keys;
+        }
+        if( !( keysValue instanceof String ) )
+        {
+            LOGGER.warn( "Ignoring [keys] of type [" + ( keysValue == null ? null : keysValue.getClass().getName() )
+                         + "], expected a comma separated string or a list." );
+            return EMPTY_STRING_ARRAY;
+        }
+
+        String keysRaw = (String) keysValue;
+        if( keysRaw.trim().length() == 0 )
             return EMPTY_STRING_ARRAY;
 
         String[] keys = keysRaw.trim().split( "," );
@@ -163,7 +668,11 @@ final class ManagedFactoryPropertiesProcessor
         return keys;
     }
     
-    private final boolean validate( Properties prop )
+    /**
+     * Returns {@code true} if {@code prop} describes the instances of a factory, i.e. it has a positive
+     * {@code instances} count and at least one of {@code keys}. {@code process} ignores other properties.
+     */
+    final boolean validate( Properties prop )
     {
         /**
          * Condition #1:
@@ -187,4 +696,22 @@ final class ManagedFactoryPropertiesProcessor
         return true;
     }
 
-}
\ No newline at end of file
+    /**
+     * Expands every instance described by {@code prop}, so a malformed value is found before the first instance is
+     * applied, e.g. by a batch.
+     *
+     * @param prop The properties of the factory, which {@link #validate(Properties)} accepts.
+     *
+     * @throws IllegalArgumentException Thrown if a value of an instance can not be expanded.
+     */
+    final void expand( Properties prop )
+        throws IllegalArgumentException
+    {
+        InstanceTemplate template = new InstanceTemplate( getKeys( prop ), prop );
+        for( int i = getInstanceCount( prop ); i > 0; i-- )
+        {
+            template.getInstance( i );
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,71 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import org.ops4j.lang.NullArgumentException;
+
+/**
+ * {@code StripedLock} maps keys to a fixed number of monitors. Equal keys always share a monitor, different keys
+ * usually do not, so work on different keys rarely contends. Callers synchronize on the returned monitor and must
+ * never hold two of them at the same time.
+ */
+final class StripedLock
+{
+
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final Object[] m_locks;
+    private final int m_mask;
+
+    StripedLock()
+    {
+        this( DEFAULT_STRIPES );
+    }
+
+    /**
+     * @param stripes The number of monitors, rounded up to a power of two.
+     */
+    StripedLock( int stripes )
+    {
+        int size = 1;
+        while( size < stripes )
+        {
+            size <<= 1;
+        }
+        m_locks = new Object[size];
+        for( int i = 0; i < size; i++ )
+        {
+            m_locks[ i ] = new Object();
+        }
+        m_mask = size - 1;
+    }
+
+    /**
+     * Returns the monitor of the specified {@code key}.
+     *
+     * @param key The key. This argument must not be {@code null}.
+     *
+     * @return The monitor to synchronize on.
+     */
+    Object get( String key )
+    {
+        NullArgumentException.validateNotNull( key, "key" );
+
+        int hash = key.hashCode();
+        hash ^= ( hash >>> 16 );
+        return m_locks[ hash & m_mask ];
+    }
+}
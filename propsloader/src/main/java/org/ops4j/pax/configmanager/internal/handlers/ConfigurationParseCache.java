@@ -0,0 +1,163 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A cache of parsed configuration documents, shared by the handlers of structured formats. A document is identified
+ * by its path, size and modification time, so an unchanged document is only parsed once, however often it is
+ * reloaded. The least recently used documents are evicted once the cache is full.
+ * <p>
+ * A document that was modified within {@code CLOCK_GRANULARITY} of being parsed is not cached, as a later change in
+ * the same tick of a coarse file system clock would go unnoticed.
+ */
+public final class ConfigurationParseCache
+{
+
+    /**
+     * Framework property to set the number of parsed documents that are cached. Set it to {@code 0} to disable the
+     * cache.
+     */
+    public static final String BUNDLES_CONFIGURATION_PARSE_CACHE_SIZE = "bundles.configuration.parse.cache.size";
+    public static final int DEFAULT_SIZE = 1024;
+
+    private static final long CLOCK_GRANULARITY = 2000;
+
+    private final int m_capacity;
+    private final Map<String, Document> m_documents;
+
+    /**
+     * @param capacity The maximum number of cached documents. {@code 0} disables caching.
+     */
+    public ConfigurationParseCache( final int capacity )
+    {
+        m_capacity = Math.max( 0, capacity );
+        m_documents = new LinkedHashMap<String, Document>( 16, 0.75f, true )
+        {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Document> eldest )
+            {
+                return size() > m_capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the cached properties of the specified {@code file} if it did not change since it was
+     * parsed by {@code parser}.
+     *
+     * @param file   The document. This argument must not be {@code null}.
+     * @param parser The identity of the parser, i.e. the handler. This argument must not be {@code null}.
+     * @param size   The current size of {@code file}.
+     * @param lastModified The current modification time of {@code file}.
+     *
+     * @return The properties, or {@code null} if the document has to be parsed.
+     */
+    Properties get( File file, Object parser, long size, long lastModified )
+    {
+        if( m_capacity == 0 )
+        {
+            return null;
+        }
+
+        Document document;
+        synchronized( m_documents )
+        {
+            document = m_documents.get( file.getAbsolutePath() );
+        }
+        if( document == null || document.m_parser != parser || document.m_size != size
+            || document.m_lastModified != lastModified )
+        {
+            return null;
+        }
+        return copy( document.m_properties );
+    }
+
+    /**
+     * Caches the properties of the specified {@code file}, parsed at {@code parsedAt}.
+     */
+    void put( File file, Object parser, long size, long lastModified, long parsedAt, Properties properties )
+    {
+        if( m_capacity == 0 )
+        {
+            return;
+        }
+
+        String path = file.getAbsolutePath();
+        synchronized( m_documents )
+        {
+            if( lastModified >= parsedAt - CLOCK_GRANULARITY )
+            {
+                m_documents.remove( path );
+                return;
+            }
+            m_documents.put( path, new Document( parser, size, lastModified, copy( properties ) ) );
+        }
+    }
+
+    /**
+     * Removes every cached document.
+     */
+    public void clear()
+    {
+        synchronized( m_documents )
+        {
+            m_documents.clear();
+        }
+    }
+
+    int size()
+    {
+        synchronized( m_documents )
+        {
+            return m_documents.size();
+        }
+    }
+
+    /**
+     * Returns a copy of {@code properties}. The values are immutable or arrays nobody writes to, so they are shared.
+     */
+    private static Properties copy( Properties properties )
+    {
+        Properties copy = new Properties();
+        copy.putAll( properties );
+        return copy;
+    }
+
+    private static final class Document
+    {
+
+        private final Object m_parser;
+        private final long m_size;
+        private final long m_lastModified;
+        private final Properties m_properties;
+
+        private Document( Object parser, long size, long lastModified, Properties properties )
+        {
+            m_parser = parser;
+            m_size = size;
+            m_lastModified = lastModified;
+            m_properties = properties;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+
+/**
+ * An {@code IConfigurationFileHandler} that parses content the configuration manager has already read. The manager
+ * reads a file once to fingerprint it, a handler of this type parses the same bytes instead of reading the file
+ * again, so the applied properties are always those of the fingerprinted content.
+ */
+public interface IContentConfigurationFileHandler
+    extends IConfigurationFileHandler
+{
+
+    /**
+     * Returns the properties of the specified {@code content} of {@code file}, typed like the handler loads them.
+     * The parse cache is not used, the content is only parsed when it changed or a reload is forced.
+     *
+     * @param file    The file the content was read from. This argument must not be {@code null}.
+     * @param content The content of {@code file}. This argument must not be {@code null}.
+     *
+     * @return Returns the properties of {@code content}, or {@code null} if it can not be read.
+     *
+     * @throws IllegalArgumentException Thrown if an argument is {@code null} or the content is malformed.
+     */
+    Properties handleContent( File file, byte[] content )
+        throws IllegalArgumentException;
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * {@code JsonFileConfigurationHandler} handles configuration files with extension of {@code .json}. The document
+ * must be an object, nested objects are flattened into dotted keys and arrays of scalars become typed arrays, see
+ * {@code PropertiesFlattener}.
+ */
+public final class JsonFileConfigurationHandler extends StructuredFileConfigurationHandler
+{
+
+    private static final String[] EXTENSIONS = { ".json" };
+
+    /**
+     * @param cache The parse cache, usually shared with the other structured handlers. This argument must not be
+     *              {@code null}.
+     */
+    public JsonFileConfigurationHandler( ConfigurationParseCache cache )
+    {
+        super( "JSON", EXTENSIONS, cache );
+    }
+
+    void parse( Reader reader, PropertiesFlattener flattener )
+        throws IOException, IllegalArgumentException
+    {
+        JsonParser.parse( reader, flattener );
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.regex.Pattern;
+
+/**
+ * A streaming JSON parser (RFC 8259) that passes the document to a {@code PropertiesFlattener} while reading it, so
+ * no tree of the document is built. Integral numbers become {@code Integer}, {@code Long} or {@code BigInteger},
+ * whichever is the narrowest to hold them, other numbers become {@code Double}.
+ */
+final class JsonParser
+{
+
+    /**
+     * Nesting depth beyond which a document is rejected, to protect the stack.
+     */
+    private static final int MAX_DEPTH = 512;
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * The number grammar of RFC 8259, e.g. without leading zeros or a trailing dot.
+     */
+    private static final Pattern NUMBER = Pattern.compile( "-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][-+]?[0-9]+)?" );
+
+    private final Reader m_reader;
+    private final PropertiesFlattener m_flattener;
+    private final char[] m_buffer;
+    private final StringBuilder m_text;
+    private int m_position;
+    private int m_limit;
+    private int m_line;
+    private int m_depth;
+
+    private JsonParser( Reader reader, PropertiesFlattener flattener )
+    {
+        m_reader = reader;
+        m_flattener = flattener;
+        m_buffer = new char[BUFFER_SIZE];
+        m_text = new StringBuilder();
+        m_line = 1;
+    }
+
+    /**
+     * Parses the JSON document read from {@code reader} into {@code flattener}.
+     *
+     * @throws IOException              Thrown if the document can not be read.
+     * @throws IllegalArgumentException Thrown if the document is not valid JSON or its root is not an object.
+     */
+    static void parse( Reader reader, PropertiesFlattener flattener )
+        throws IOException, IllegalArgumentException
+    {
+        JsonParser parser = new JsonParser( reader, flattener );
+        int c = parser.skipWhitespace();
+        if( c != '{' )
+        {
+            throw parser.error( "The document must be an object" );
+        }
+        parser.parseValue( parser.read() );
+        if( parser.skipWhitespace() != -1 )
+        {
+            throw parser.error( "Unexpected content after the document" );
+        }
+    }
+
+    private void parseValue( int c )
+        throws IOException
+    {
+        switch( c )
+        {
+            case '{':
+                parseObject();
+                break;
+            case '[':
+                parseArray();
+                break;
+            case '"':
+                m_flattener.value( parseString() );
+                break;
+            case 't':
+                expect( "rue" );
+                m_flattener.value( Boolean.TRUE );
+                break;
+            case 'f':
+                expect( "alse" );
+                m_flattener.value( Boolean.FALSE );
+                break;
+            case 'n':
+                expect( "ull" );
+                m_flattener.value( null );
+                break;
+            default:
+                if( c == '-' || ( c >= '0' && c <= '9' ) )
+                {
+                    m_flattener.value( parseNumber( c ) );
+                }
+                else
+                {
+                    throw error( c == -1 ? "Unexpected end of document" : "Unexpected character '" + (char) c + "'" );
+                }
+        }
+    }
+
+    private void parseObject()
+        throws IOException
+    {
+        enter();
+        m_flattener.startObject();
+        int c = skipWhitespace();
+        if( c == '}' )
+        {
+            read();
+        }
+        else
+        {
+            while( true )
+            {
+                if( read() != '"' )
+                {
+                    throw error( "Expected a string as key" );
+                }
+                m_flattener.key( parseString() );
+                if( skipWhitespace() != ':' )
+                {
+                    throw error( "Expected ':'" );
+                }
+                read();
+                skipWhitespace();
+                parseValue( read() );
+
+                c = skipWhitespace();
+                read();
+                if( c == '}' )
+                {
+                    break;
+                }
+                if( c != ',' )
+                {
+                    throw error( "Expected ',' or '}'" );
+                }
+                skipWhitespace();
+            }
+        }
+        m_flattener.endObject();
+        m_depth--;
+    }
+
+    private void parseArray()
+        throws IOException
+    {
+        enter();
+        m_flattener.startArray();
+        int c = skipWhitespace();
+        if( c == ']' )
+        {
+            read();
+        }
+        else
+        {
+            while( true )
+            {
+                parseValue( read() );
+
+                c = skipWhitespace();
+                read();
+                if( c == ']' )
+                {
+                    break;
+                }
+                if( c != ',' )
+                {
+                    throw error( "Expected ',' or ']'" );
+                }
+                skipWhitespace();
+            }
+        }
+        m_flattener.endArray();
+        m_depth--;
+    }
+
+    private void enter()
+    {
+        if( ++m_depth > MAX_DEPTH )
+        {
+            throw error( "Nesting is deeper than " + MAX_DEPTH );
+        }
+    }
+
+    /**
+     * Parses a string whose opening quote was read.
+     */
+    private String parseString()
+        throws IOException
+    {
+        m_text.setLength( 0 );
+        while( true )
+        {
+            // copy runs of plain characters in bulk
+            int start = m_position;
+            while( m_position < m_limit )
+            {
+                char c = m_buffer[ m_position ];
+                if( c == '"' || c == '\\' || c < 0x20 )
+                {
+                    break;
+                }
+                m_position++;
+            }
+            m_text.append( m_buffer, start, m_position - start );
+
+            int c = read();
+            if( c == '"' )
+            {
+                return m_text.toString();
+            }
+            if( c == '\\' )
+            {
+                m_text.append( parseEscape() );
+            }
+            else if( c == -1 )
+            {
+                throw error( "Unterminated string" );
+            }
+            else
+            {
+                throw error( "Control character in string" );
+            }
+        }
+    }
+
+    private char parseEscape()
+        throws IOException
+    {
+        int c = read();
+        switch( c )
+        {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for( int i = 0; i < 4; i++ )
+                {
+                    int digit = Character.digit( read(), 16 );
+                    if( digit < 0 )
+                    {
+                        throw error( "Malformed unicode escape" );
+                    }
+                    value = ( value << 4 ) | digit;
+                }
+                return (char) value;
+            default:
+                throw error( "Illegal escape in string" );
+        }
+    }
+
+    private Object parseNumber( int first )
+        throws IOException
+    {
+        m_text.setLength( 0 );
+        m_text.append( (char) first );
+        boolean integral = true;
+        int c;
+        while( ( c = peek() ) != -1 )
+        {
+            if( c == '.' || c == 'e' || c == 'E' )
+            {
+                integral = false;
+            }
+            else if( !( ( c >= '0' && c <= '9' ) || c == '+' || c == '-' ) )
+            {
+                break;
+            }
+            m_text.append( (char) read() );
+        }
+
+        String text = m_text.toString();
+        if( !NUMBER.matcher( text ).matches() )
+        {
+            throw error( "Malformed number '" + text + "'" );
+        }
+        try
+        {
+            if( !integral )
+            {
+                return Double.valueOf( text );
+            }
+            long value = Long.parseLong( text );
+            if( value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE )
+            {
+                return (int) value;
+            }
+            return value;
+        } catch( NumberFormatException e )
+        {
+            if( integral && text.length() > 1 )
+            {
+                try
+                {
+                    return new BigInteger( text );
+                } catch( NumberFormatException ignored )
+                {
+                    // reported below
+                }
+            }
+            throw error( "Malformed number '" + text + "'" );
+        }
+    }
+
+    private void expect( String rest )
+        throws IOException
+    {
+        for( int i = 0; i < rest.length(); i++ )
+        {
+            if( read() != rest.charAt( i ) )
+            {
+                throw error( "Unexpected literal" );
+            }
+        }
+    }
+
+    /**
+     * Skips whitespace and returns the next character without consuming it, or {@code -1} at the end.
+     */
+    private int skipWhitespace()
+        throws IOException
+    {
+        int c;
+        while( ( c = peek() ) == ' ' || c == '\t' || c == '\n' || c == '\r' )
+        {
+            read();
+        }
+        return c;
+    }
+
+    private int peek()
+        throws IOException
+    {
+        if( m_position == m_limit && !fill() )
+        {
+            return -1;
+        }
+        return m_buffer[ m_position ];
+    }
+
+    private int read()
+        throws IOException
+    {
+        if( m_position == m_limit && !fill() )
+        {
+            return -1;
+        }
+        char c = m_buffer[ m_position++ ];
+        if( c == '\n' )
+        {
+            m_line++;
+        }
+        return c;
+    }
+
+    private boolean fill()
+        throws IOException
+    {
+        int read = m_reader.read( m_buffer, 0, m_buffer.length );
+        if( read <= 0 )
+        {
+            return false;
+        }
+        m_position = 0;
+        m_limit = read;
+        return true;
+    }
+
+    private IllegalArgumentException error( String message )
+    {
+        return new IllegalArgumentException( message + " at line " + m_line + "." );
+    }
+}
@@ -16,25 +16,30 @@
 package org.ops4j.pax.configmanager.internal.handlers;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.Properties;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.ops4j.lang.NullArgumentException;
-import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+import org.ops4j.pax.configmanager.IPatternConfigurationFileHandler;
+import org.ops4j.pax.configmanager.ITypedConfigurationFileHandler;
 
 /**
  * {@code PropertiesConfigurationFileHandler} handles configuration files with extension of {@code .properties}.
+ * Loaded as typed dictionary, values may carry a type hint, e.g. {@code port:Integer=8080} or
+ * {@code hosts:String[]=a,b}.
  *
  * @author Edward Yakop
  * @author Makas Tzavellas
  */
 public final class PropertiesFileConfigurationHandler
-    implements IConfigurationFileHandler
+    implements IPatternConfigurationFileHandler, ITypedConfigurationFileHandler, IContentConfigurationFileHandler
 {
 
     private static final String PROPERTIES_EXTENSION_FILE_NAME = ".properties";
+    private static final String[] FILE_PATTERNS = { "*" + PROPERTIES_EXTENSION_FILE_NAME };
 
     private static final Log LOGGER = LogFactory.getLog( PropertiesFileConfigurationHandler.class );
 
@@ -65,7 +70,8 @@ public final class PropertiesFileConfigurationHandler
 
     /**
      * Returns the properties after loading the specified {@code file}. Returns {@code empty} properties if the
-     * specified {@code file} does not have any configuration properties.
+     * specified {@code file} does not have any configuration properties. All values are strings, type hints are
+     * not applied. The file is closed before this method returns.
      *
      * @param file The configuration file to be loaded. This argument must not be {@code null}.
      *
@@ -82,8 +88,7 @@ public final class PropertiesFileConfigurationHandler
         try
         {
             Properties prop = new Properties();
-            FileInputStream fis = new FileInputStream( file );
-            prop.load( fis );
+            PropertiesFileParser.parse( file, prop );
             return prop;
         } catch( IOException e )
         {
@@ -94,6 +99,80 @@ public final class PropertiesFileConfigurationHandler
         return null;
     }
 
+    /**
+     * Returns the properties after loading the specified {@code file}, with the values that have a type hint
+     * converted to their type. A value without type hint stays a string. The file is closed before this method
+     * returns.
+     *
+     * @param file The configuration file to be loaded. This argument must not be {@code null}.
+     *
+     * @return Returns the typed properties of the specified {@code file}, or {@code null} if it can not be read.
+     *
+     * @throws IllegalArgumentException Thrown if {@code file} is {@code null} or a value is not valid for its type
+     *                                  hint.
+     */
+    public final Dictionary<String, Object> handleTyped( File file )
+        throws IllegalArgumentException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+
+        Hashtable<String, Object> prop = new Hashtable<String, Object>();
+        try
+        {
+            PropertiesFileParser.parseTyped( file, prop );
+            return prop;
+        } catch( IOException e )
+        {
+            LOGGER.error( "Fail to handle file [" + file.getAbsolutePath() + "] configuration property.", e );
+        } catch( IllegalArgumentException e )
+        {
+            throw new IllegalArgumentException( "Malformed properties file [" + file.getAbsolutePath() + "]: "
+                                                + e.getMessage() );
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the typed properties of the specified {@code content}, like {@link #handleTyped(File)} returns them for
+     * the file.
+     *
+     * @param file    The file the content was read from. This argument must not be {@code null}.
+     * @param content The content of {@code file}. This argument must not be {@code null}.
+     *
+     * @return Returns the typed properties of {@code content}.
+     *
+     * @throws IllegalArgumentException Thrown if an argument is {@code null} or a value is not valid for its type
+     *                                  hint.
+     */
+    public final Properties handleContent( File file, byte[] content )
+        throws IllegalArgumentException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+        NullArgumentException.validateNotNull( content, "content" );
+
+        Properties prop = new Properties();
+        try
+        {
+            PropertiesFileParser.parseTyped( content, prop );
+        } catch( IllegalArgumentException e )
+        {
+            throw new IllegalArgumentException( "Malformed properties file [" + file.getAbsolutePath() + "]: "
+                                                + e.getMessage() );
+        }
+        return prop;
+    }
+
+    /**
+     * Returns the file name patterns handled by this {@code IConfigurationFileHandler}, i.e. {@code *.properties}.
+     *
+     * @return The file name patterns.
+     */
+    public final String[] getFilePatterns()
+    {
+        return FILE_PATTERNS.clone();
+    }
+
     /**
      * Returns {@code true} if the specified {@code file} can be handled by this {@code IConfigurationFileHandler}.
      *
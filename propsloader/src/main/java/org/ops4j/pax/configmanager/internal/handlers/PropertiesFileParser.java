@@ -0,0 +1,623 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.ops4j.lang.NullArgumentException;
+
+/**
+ * {@code PropertiesFileParser} reads {@code .properties} files with the syntax of {@code Properties.load}: comment
+ * lines, {@code =}, {@code :} and white space separators, line continuations, and the {@code \t \n \r \f} and
+ * unicode escapes.
+ * <p>
+ * The file is read with a single channel read into a direct buffer and closed before parsing starts. Its characters
+ * are then produced in one pass into a character array that the parser scans without any intermediate stream or
+ * reader. Both buffers are pooled per thread. A file that is well-formed UTF-8 is decoded as UTF-8, any other file is
+ * read as ISO-8859-1 like {@code Properties.load} does; both are the same for ASCII files.
+ */
+final class PropertiesFileParser
+{
+
+    private static final int MIN_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Buffers up to this size are kept for the next file parsed by the same thread.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>();
+    private static final ThreadLocal<CharBuffer> CHARS = new ThreadLocal<CharBuffer>();
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private PropertiesFileParser()
+    {
+    }
+
+    /**
+     * Parses the specified {@code file} and puts its properties into {@code target}. The file is closed when this
+     * method returns.
+     *
+     * @param file   The properties file. This argument must not be {@code null}.
+     * @param target The map to put the properties into. This argument must not be {@code null}.
+     *
+     * @throws IOException              Thrown if the file can not be read.
+     * @throws IllegalArgumentException Thrown if the file contains a malformed unicode escape.
+     */
+    static void parse( File file, Map<? super String, ? super String> target )
+        throws IOException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+        NullArgumentException.validateNotNull( target, "target" );
+
+        // only strings are put into the map
+        @SuppressWarnings( "unchecked" )
+        Map<? super String, Object> map = (Map) target;
+        ByteBuffer buffer = read( file );
+        parse( decode( buffer ), map, false );
+    }
+
+    /**
+     * Parses the specified {@code file} like {@link #parse(File, Map)}, but converts the value of a key that is
+     * separated by {@code :} followed by a type hint and {@code =}, e.g. {@code port:Integer=8080}. The type is one
+     * of {@code PropertyType}, optionally followed by {@code []} for an array, e.g. {@code hosts:String[]=a,b}. The
+     * elements of an array are separated by commas that are not escaped by a backslash and are trimmed. A key that is
+     * separated by {@code =} or that is followed by an unknown type name keeps its value as string, so
+     * {@code key=Integer=1} holds the string {@code Integer=1}.
+     *
+     * @param file   The properties file. This argument must not be {@code null}.
+     * @param target The map to put the properties into. This argument must not be {@code null}.
+     *
+     * @throws IOException              Thrown if the file can not be read.
+     * @throws IllegalArgumentException Thrown if the file contains a malformed unicode escape or a value that is not
+     *                                  valid for its type hint.
+     */
+    static void parseTyped( File file, Map<? super String, Object> target )
+        throws IOException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+        NullArgumentException.validateNotNull( target, "target" );
+
+        ByteBuffer buffer = read( file );
+        parse( decode( buffer ), target, true );
+    }
+
+    /**
+     * Parses the specified {@code content} of a file like {@link #parseTyped(File, Map)}.
+     *
+     * @param content The content of the properties file. This argument must not be {@code null}.
+     * @param target  The map to put the properties into. This argument must not be {@code null}.
+     *
+     * @throws IllegalArgumentException Thrown if the content contains a malformed unicode escape or a value that is
+     *                                  not valid for its type hint.
+     */
+    static void parseTyped( byte[] content, Map<? super String, Object> target )
+    {
+        NullArgumentException.validateNotNull( content, "content" );
+        NullArgumentException.validateNotNull( target, "target" );
+
+        parse( decode( ByteBuffer.wrap( content ) ), target, true );
+    }
+
+    private static ByteBuffer read( File file )
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream( file );
+        try
+        {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if( size >= Integer.MAX_VALUE )
+            {
+                throw new IOException( "File [" + file.getAbsolutePath() + "] is too large." );
+            }
+
+            // one spare byte, so the end of the file is found without growing the buffer
+            ByteBuffer buffer = getBuffer( (int) size + 1 );
+            while( channel.read( buffer ) >= 0 )
+            {
+                if( !buffer.hasRemaining() )
+                {
+                    // the file grew while it was read
+                    buffer = grow( buffer );
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    private static ByteBuffer getBuffer( int size )
+    {
+        ByteBuffer buffer = BUFFERS.get();
+        if( buffer != null && buffer.capacity() >= size )
+        {
+            buffer.clear();
+            return buffer;
+        }
+
+        if( size > MAX_POOLED_BUFFER_SIZE )
+        {
+            return ByteBuffer.allocate( size );
+        }
+
+        int capacity = MIN_BUFFER_SIZE;
+        while( capacity < size )
+        {
+            capacity <<= 1;
+        }
+        buffer = ByteBuffer.allocateDirect( capacity );
+        BUFFERS.set( buffer );
+        return buffer;
+    }
+
+    private static ByteBuffer grow( ByteBuffer buffer )
+    {
+        int capacity = buffer.capacity();
+        ByteBuffer grown = getBuffer( capacity > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : capacity * 2 );
+        buffer.flip();
+        grown.put( buffer );
+        return grown;
+    }
+
+    private static CharBuffer getCharBuffer( int size )
+    {
+        CharBuffer chars = CHARS.get();
+        if( chars != null && chars.capacity() >= size )
+        {
+            chars.clear();
+            return chars;
+        }
+
+        if( size > MAX_POOLED_BUFFER_SIZE )
+        {
+            return CharBuffer.allocate( size );
+        }
+
+        int capacity = MIN_BUFFER_SIZE;
+        while( capacity < size )
+        {
+            capacity <<= 1;
+        }
+        chars = CharBuffer.allocate( capacity );
+        CHARS.set( chars );
+        return chars;
+    }
+
+    /**
+     * Returns the characters of {@code bytes}. ASCII and ISO-8859-1 are widened in one pass, UTF-8 is decoded into
+     * the same pooled array.
+     */
+    private static CharBuffer decode( ByteBuffer bytes )
+    {
+        // UTF-8 never has more characters than bytes
+        CharBuffer chars = getCharBuffer( bytes.remaining() );
+        if( widen( bytes, chars.array() ) )
+        {
+            chars.limit( bytes.remaining() );
+            return chars;
+        }
+
+        CharsetDecoder decoder = UTF_8.newDecoder()
+            .onMalformedInput( CodingErrorAction.REPORT )
+            .onUnmappableCharacter( CodingErrorAction.REPORT );
+        CoderResult result = decoder.decode( bytes.duplicate(), chars, true );
+        if( !result.isError() )
+        {
+            result = decoder.flush( chars );
+        }
+        if( result.isError() )
+        {
+            // not UTF-8, read it as ISO-8859-1
+            widen( bytes, chars.array() );
+            chars.clear();
+            chars.limit( bytes.remaining() );
+            return chars;
+        }
+
+        chars.flip();
+        if( chars.hasRemaining() && chars.get( chars.position() ) == BYTE_ORDER_MARK )
+        {
+            chars.position( chars.position() + 1 );
+        }
+        return chars;
+    }
+
+    /**
+     * Copies {@code bytes} to {@code chars} as ISO-8859-1 characters.
+     *
+     * @return {@code true} if all characters are ASCII.
+     */
+    private static boolean widen( ByteBuffer bytes, char[] chars )
+    {
+        int offset = bytes.position();
+        int length = bytes.remaining();
+        int high = 0;
+        for( int i = 0; i < length; i++ )
+        {
+            int b = bytes.get( offset + i );
+            high |= b;
+            chars[ i ] = (char) ( b & 0xff );
+        }
+        return high >= 0;
+    }
+
+    /**
+     * Parses the logical lines of {@code in}, following the rules of {@code Properties.load}. If {@code typed} is
+     * {@code true}, type hints are applied.
+     */
+    private static void parse( CharBuffer in, Map<? super String, Object> target, boolean typed )
+    {
+        LineReader reader = new LineReader( in );
+        int limit;
+        while( ( limit = reader.readLine() ) >= 0 )
+        {
+            char[] line = reader.m_line;
+            int keyLength = 0;
+            int valueStart = limit;
+            char separator = 0;
+            boolean precedingBackslash = false;
+            while( keyLength < limit )
+            {
+                char c = line[ keyLength ];
+                if( ( c == '=' || c == ':' ) && !precedingBackslash )
+                {
+                    valueStart = keyLength + 1;
+                    separator = c;
+                    break;
+                }
+                if( isWhitespace( c ) && !precedingBackslash )
+                {
+                    valueStart = keyLength + 1;
+                    break;
+                }
+                precedingBackslash = c == '\\' && !precedingBackslash;
+                keyLength++;
+            }
+            valueStart = skipWhitespace( line, valueStart, limit );
+            if( separator == 0 && valueStart < limit && ( line[ valueStart ] == '=' || line[ valueStart ] == ':' ) )
+            {
+                separator = line[ valueStart ];
+                valueStart = skipWhitespace( line, valueStart + 1, limit );
+            }
+
+            String key = unescape( line, 0, keyLength, reader );
+            if( !typed || separator != ':' )
+            {
+                target.put( key, unescape( line, valueStart, limit - valueStart, reader ) );
+                continue;
+            }
+
+            // a type hint is a type name, optionally followed by [], and =
+            int nameEnd = valueStart;
+            while( nameEnd < limit && Character.isLetter( line[ nameEnd ] ) )
+            {
+                nameEnd++;
+            }
+            int hintEnd = nameEnd;
+            boolean array = hintEnd + 1 < limit && line[ hintEnd ] == '[' && line[ hintEnd + 1 ] == ']';
+            if( array )
+            {
+                hintEnd += 2;
+            }
+            hintEnd = skipWhitespace( line, hintEnd, limit );
+            PropertyType type = null;
+            String typeName = null;
+            if( nameEnd > valueStart && hintEnd < limit && line[ hintEnd ] == '=' )
+            {
+                typeName = new String( line, valueStart, nameEnd - valueStart );
+                type = PropertyType.forName( typeName );
+            }
+
+            if( type == null )
+            {
+                target.put( key, unescape( line, valueStart, limit - valueStart, reader ) );
+            }
+            else if( array )
+            {
+                List<String> elements = split( line, skipWhitespace( line, hintEnd + 1, limit ), limit, reader );
+                target.put( key, type.convert( key, elements, PropertyType.isPrimitiveName( typeName ) ) );
+            }
+            else
+            {
+                valueStart = skipWhitespace( line, hintEnd + 1, limit );
+                target.put( key, type.convert( key, unescape( line, valueStart, limit - valueStart, reader ) ) );
+            }
+        }
+    }
+
+    private static int skipWhitespace( char[] line, int position, int limit )
+    {
+        while( position < limit && isWhitespace( line[ position ] ) )
+        {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Splits {@code line} from {@code start} to {@code limit} at the commas that are not escaped and returns the
+     * trimmed and unescaped elements. An empty value yields no elements.
+     */
+    private static List<String> split( char[] line, int start, int limit, LineReader reader )
+    {
+        List<String> elements = new ArrayList<String>();
+        if( start == limit )
+        {
+            return elements;
+        }
+
+        int elementStart = start;
+        boolean precedingBackslash = false;
+        for( int i = start; i <= limit; i++ )
+        {
+            if( i == limit || ( line[ i ] == ',' && !precedingBackslash ) )
+            {
+                int from = skipWhitespace( line, elementStart, i );
+                int to = i;
+                while( to > from && isWhitespace( line[ to - 1 ] ) && !( to - 2 >= from && line[ to - 2 ] == '\\' ) )
+                {
+                    to--;
+                }
+                elements.add( unescape( line, from, to - from, reader ) );
+                elementStart = i + 1;
+                precedingBackslash = false;
+            }
+            else
+            {
+                precedingBackslash = line[ i ] == '\\' && !precedingBackslash;
+            }
+        }
+        return elements;
+    }
+
+    private static boolean isWhitespace( char c )
+    {
+        return c == ' ' || c == '\t' || c == '\f';
+    }
+
+    private static String unescape( char[] in, int offset, int length, LineReader reader )
+    {
+        int end = offset + length;
+        int escape = offset;
+        while( escape < end && in[ escape ] != '\\' )
+        {
+            escape++;
+        }
+        if( escape == end )
+        {
+            return new String( in, offset, length );
+        }
+
+        char[] out = reader.getConvertBuffer( length );
+        int count = escape - offset;
+        System.arraycopy( in, offset, out, 0, count );
+        int i = escape;
+        while( i < end )
+        {
+            char c = in[ i++ ];
+            if( c != '\\' || i == end )
+            {
+                out[ count++ ] = c;
+                continue;
+            }
+
+            c = in[ i++ ];
+            if( c == 'u' )
+            {
+                int value = 0;
+                for( int digit = 0; digit < 4; digit++ )
+                {
+                    if( i == end )
+                    {
+                        throw new IllegalArgumentException( "Malformed \\uxxxx encoding." );
+                    }
+                    int hex = Character.digit( in[ i++ ], 16 );
+                    if( hex < 0 )
+                    {
+                        throw new IllegalArgumentException( "Malformed \\uxxxx encoding." );
+                    }
+                    value = ( value << 4 ) + hex;
+                }
+                out[ count++ ] = (char) value;
+            }
+            else if( c == 't' )
+            {
+                out[ count++ ] = '\t';
+            }
+            else if( c == 'r' )
+            {
+                out[ count++ ] = '\r';
+            }
+            else if( c == 'n' )
+            {
+                out[ count++ ] = '\n';
+            }
+            else if( c == 'f' )
+            {
+                out[ count++ ] = '\f';
+            }
+            else
+            {
+                out[ count++ ] = c;
+            }
+        }
+        return new String( out, 0, count );
+    }
+
+    /**
+     * Joins the natural lines of the input to logical lines, skipping comment and blank lines. This is the
+     * {@code LineReader} of {@code Properties} working on a character array.
+     */
+    private static final class LineReader
+    {
+
+        private final char[] m_in;
+        private final int m_length;
+        private int m_position;
+        private boolean m_skipLineFeed;
+        private char[] m_line;
+        private char[] m_convert;
+
+        private LineReader( CharBuffer in )
+        {
+            m_in = in.array();
+            m_position = in.arrayOffset() + in.position();
+            m_length = in.arrayOffset() + in.limit();
+            m_line = new char[128];
+        }
+
+        /**
+         * Reads the next logical line into {@code m_line}.
+         *
+         * @return The length of the line, or {@code -1} at the end of the input.
+         */
+        private int readLine()
+        {
+            int length = 0;
+            boolean skipWhitespace = true;
+            boolean appendedLineBegin = false;
+            boolean precedingBackslash = false;
+
+            while( true )
+            {
+                if( m_position >= m_length )
+                {
+                    if( length == 0 )
+                    {
+                        return -1;
+                    }
+                    return precedingBackslash ? length - 1 : length;
+                }
+
+                char c = m_in[ m_position++ ];
+                if( m_skipLineFeed )
+                {
+                    m_skipLineFeed = false;
+                    if( c == '\n' )
+                    {
+                        continue;
+                    }
+                }
+                if( skipWhitespace )
+                {
+                    if( isWhitespace( c ) )
+                    {
+                        continue;
+                    }
+                    if( !appendedLineBegin && ( c == '\r' || c == '\n' ) )
+                    {
+                        continue;
+                    }
+                    skipWhitespace = false;
+                    appendedLineBegin = false;
+                }
+                if( length == 0 && ( c == '#' || c == '!' ) )
+                {
+                    // skip the rest of the comment line
+                    do
+                    {
+                        if( m_position >= m_length )
+                        {
+                            return -1;
+                        }
+                        c = m_in[ m_position++ ];
+                    }
+                    while( c != '\r' && c != '\n' );
+                    skipWhitespace = true;
+                    continue;
+                }
+
+                if( c != '\n' && c != '\r' )
+                {
+                    // append the rest of the natural line at once
+                    int start = m_position - 1;
+                    while( m_position < m_length && ( c = m_in[ m_position ] ) != '\n' && c != '\r' )
+                    {
+                        m_position++;
+                    }
+                    int count = m_position - start;
+                    if( length + count > m_line.length )
+                    {
+                        char[] line = new char[Math.max( m_line.length * 2, length + count )];
+                        System.arraycopy( m_line, 0, line, 0, length );
+                        m_line = line;
+                    }
+                    System.arraycopy( m_in, start, m_line, length, count );
+                    int segmentStart = length;
+                    length += count;
+
+                    // an odd number of trailing backslashes escapes the line break
+                    int backslash = length;
+                    while( backslash > segmentStart && m_line[ backslash - 1 ] == '\\' )
+                    {
+                        backslash--;
+                    }
+                    precedingBackslash = ( ( length - backslash ) & 1 ) != 0;
+                    continue;
+                }
+
+                // end of a natural line
+                if( length == 0 )
+                {
+                    skipWhitespace = true;
+                    continue;
+                }
+                if( m_position >= m_length )
+                {
+                    return precedingBackslash ? length - 1 : length;
+                }
+                if( !precedingBackslash )
+                {
+                    return length;
+                }
+
+                // the line continues on the next natural line
+                length--;
+                skipWhitespace = true;
+                appendedLineBegin = true;
+                precedingBackslash = false;
+                m_skipLineFeed = c == '\r';
+            }
+        }
+
+        private char[] getConvertBuffer( int length )
+        {
+            if( m_convert == null || m_convert.length < length )
+            {
+                m_convert = new char[Math.max( length, m_line.length )];
+            }
+            return m_convert;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives the events of a streaming document parser and flattens the document into configuration properties.
+ * <ul>
+ * <li>The keys of nested mappings are joined with {@code .}, e.g. {@code {"db": {"port": 5432}}} becomes
+ * {@code db.port=5432}.</li>
+ * <li>A sequence of scalars becomes a typed array: {@code Integer[]}, {@code Long[]}, {@code Double[]},
+ * {@code Boolean[]} or, for strings and mixed elements, {@code String[]}.</li>
+ * <li>A sequence that contains mappings or sequences is flattened by index, e.g. {@code servers.0.host}.</li>
+ * <li>{@code null} values are left out, as the configuration admin service does not accept them.</li>
+ * </ul>
+ * The root of the document must be a mapping. Only the scalars that are currently being collected into an array are
+ * held in memory.
+ */
+final class PropertiesFlattener
+{
+
+    private static final String SEPARATOR = ".";
+
+    private final Map<Object, Object> m_target;
+    private final List<Frame> m_frames;
+
+    /**
+     * @param target The properties the flattened values are put into. This argument must not be {@code null}.
+     */
+    PropertiesFlattener( Map<Object, Object> target )
+    {
+        m_target = target;
+        m_frames = new ArrayList<Frame>();
+    }
+
+    void startObject()
+    {
+        if( m_frames.isEmpty() )
+        {
+            m_frames.add( new Frame( "", false ) );
+            return;
+        }
+        m_frames.add( new Frame( nextName() + SEPARATOR, false ) );
+    }
+
+    void endObject()
+    {
+        m_frames.remove( m_frames.size() - 1 );
+    }
+
+    void startArray()
+    {
+        if( m_frames.isEmpty() )
+        {
+            throw new IllegalArgumentException( "The document must be a mapping, not a sequence." );
+        }
+        m_frames.add( new Frame( nextName(), true ) );
+    }
+
+    void endArray()
+    {
+        Frame frame = m_frames.remove( m_frames.size() - 1 );
+        if( !frame.m_indexed )
+        {
+            m_target.put( frame.m_name, toArray( frame.m_scalars ) );
+        }
+    }
+
+    /**
+     * Sets the key of the next value of the current mapping.
+     */
+    void key( String key )
+    {
+        current().m_key = key;
+    }
+
+    /**
+     * Adds a scalar to the current mapping or sequence.
+     *
+     * @param value A {@code String}, {@code Boolean}, {@code Number} or {@code null}.
+     */
+    void value( Object value )
+    {
+        if( m_frames.isEmpty() )
+        {
+            throw new IllegalArgumentException( "The document must be a mapping, not a scalar." );
+        }
+        Frame frame = current();
+        if( frame.m_array && !frame.m_indexed )
+        {
+            if( value != null )
+            {
+                frame.m_scalars.add( value );
+            }
+            return;
+        }
+
+        String name = nextName();
+        if( value != null )
+        {
+            m_target.put( name, value );
+        }
+    }
+
+    /**
+     * Returns the flattened name of the next child of the current frame. A sequence that gets a mapping or sequence
+     * as element switches to flattening by index.
+     */
+    private String nextName()
+    {
+        Frame frame = current();
+        if( !frame.m_array )
+        {
+            if( frame.m_key == null )
+            {
+                throw new IllegalArgumentException( "Value without key." );
+            }
+            String name = frame.m_name + frame.m_key;
+            frame.m_key = null;
+            return name;
+        }
+
+        if( !frame.m_indexed )
+        {
+            frame.m_indexed = true;
+            for( Object scalar : frame.m_scalars )
+            {
+                m_target.put( frame.m_name + SEPARATOR + ( frame.m_index++ ), scalar );
+            }
+            frame.m_scalars = null;
+        }
+        return frame.m_name + SEPARATOR + ( frame.m_index++ );
+    }
+
+    private Frame current()
+    {
+        return m_frames.get( m_frames.size() - 1 );
+    }
+
+    /**
+     * Returns the narrowest array type that holds all {@code scalars}.
+     */
+    static Object toArray( List<Object> scalars )
+    {
+        Class<?> type = null;
+        for( Object scalar : scalars )
+        {
+            Class<?> scalarType = scalar.getClass();
+            if( type == null || type == scalarType )
+            {
+                type = scalarType;
+            }
+            else if( isWidening( type, scalarType ) )
+            {
+                type = scalarType;
+            }
+            else if( !isWidening( scalarType, type ) )
+            {
+                type = String.class;
+                break;
+            }
+        }
+
+        if( type == Boolean.class )
+        {
+            return scalars.toArray( new Boolean[scalars.size()] );
+        }
+        if( type == Integer.class )
+        {
+            return scalars.toArray( new Integer[scalars.size()] );
+        }
+        if( type == Long.class )
+        {
+            Long[] array = new Long[scalars.size()];
+            for( int i = 0; i < array.length; i++ )
+            {
+                array[ i ] = ( (Number) scalars.get( i ) ).longValue();
+            }
+            return array;
+        }
+        if( type == Double.class )
+        {
+            Double[] array = new Double[scalars.size()];
+            for( int i = 0; i < array.length; i++ )
+            {
+                array[ i ] = ( (Number) scalars.get( i ) ).doubleValue();
+            }
+            return array;
+        }
+        String[] array = new String[scalars.size()];
+        for( int i = 0; i < array.length; i++ )
+        {
+            array[ i ] = String.valueOf( scalars.get( i ) );
+        }
+        return array;
+    }
+
+    /**
+     * Returns {@code true} if every value of {@code from} can be represented by {@code to}.
+     */
+    private static boolean isWidening( Class<?> from, Class<?> to )
+    {
+        if( from == Integer.class )
+        {
+            return to == Long.class || to == Double.class;
+        }
+        if( from == Long.class )
+        {
+            return to == Double.class;
+        }
+        return false;
+    }
+
+    /**
+     * A mapping or sequence that is being parsed.
+     */
+    private static final class Frame
+    {
+
+        private final String m_name;
+        private final boolean m_array;
+        private String m_key;
+        private boolean m_indexed;
+        private int m_index;
+        private List<Object> m_scalars;
+
+        /**
+         * @param name  The key prefix of the mapping entries, or the name of the sequence.
+         * @param array {@code true} for a sequence.
+         */
+        private Frame( String name, boolean array )
+        {
+            m_name = name;
+            m_array = array;
+            if( array )
+            {
+                m_scalars = new ArrayList<Object>();
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The value types of the type hints in {@code .properties} files, e.g. {@code port:Integer=8080}. These are the
+ * scalar types the configuration admin service accepts. A type is named by its simple class name or, for the
+ * primitive wrappers, by the primitive name, which only makes a difference for arrays: {@code Integer[]} yields an
+ * {@code Integer[]} and {@code int[]} an {@code int[]}.
+ */
+enum PropertyType
+{
+
+    STRING( String.class, null )
+        {
+            Object parse( String text )
+            {
+                return text;
+            }
+        },
+    INTEGER( Integer.class, int.class )
+        {
+            Object parse( String text )
+            {
+                return Integer.valueOf( text.trim() );
+            }
+        },
+    LONG( Long.class, long.class )
+        {
+            Object parse( String text )
+            {
+                return Long.valueOf( text.trim() );
+            }
+        },
+    FLOAT( Float.class, float.class )
+        {
+            Object parse( String text )
+            {
+                return Float.valueOf( text.trim() );
+            }
+        },
+    DOUBLE( Double.class, double.class )
+        {
+            Object parse( String text )
+            {
+                return Double.valueOf( text.trim() );
+            }
+        },
+    BYTE( Byte.class, byte.class )
+        {
+            Object parse( String text )
+            {
+                return Byte.valueOf( text.trim() );
+            }
+        },
+    SHORT( Short.class, short.class )
+        {
+            Object parse( String text )
+            {
+                return Short.valueOf( text.trim() );
+            }
+        },
+    CHARACTER( Character.class, char.class )
+        {
+            Object parse( String text )
+            {
+                if( text.length() != 1 )
+                {
+                    throw new NumberFormatException();
+                }
+                return text.charAt( 0 );
+            }
+        },
+    BOOLEAN( Boolean.class, boolean.class )
+        {
+            Object parse( String text )
+            {
+                String trimmed = text.trim();
+                if( "true".equalsIgnoreCase( trimmed ) )
+                {
+                    return Boolean.TRUE;
+                }
+                if( "false".equalsIgnoreCase( trimmed ) )
+                {
+                    return Boolean.FALSE;
+                }
+                throw new NumberFormatException();
+            }
+        },
+    BIG_INTEGER( BigInteger.class, null )
+        {
+            Object parse( String text )
+            {
+                return new BigInteger( text.trim() );
+            }
+        },
+    BIG_DECIMAL( BigDecimal.class, null )
+        {
+            Object parse( String text )
+            {
+                return new BigDecimal( text.trim() );
+            }
+        };
+
+    private static final Map<String, PropertyType> BY_NAME = new HashMap<String, PropertyType>();
+    private static final Map<String, PropertyType> BY_PRIMITIVE_NAME = new HashMap<String, PropertyType>();
+
+    static
+    {
+        for( PropertyType type : values() )
+        {
+            BY_NAME.put( type.m_type.getSimpleName(), type );
+            if( type.m_primitive != null )
+            {
+                BY_PRIMITIVE_NAME.put( type.m_primitive.getName(), type );
+            }
+        }
+    }
+
+    private final Class<?> m_type;
+    private final Class<?> m_primitive;
+
+    private PropertyType( Class<?> type, Class<?> primitive )
+    {
+        m_type = type;
+        m_primitive = primitive;
+    }
+
+    /**
+     * Converts the specified {@code text} to a value of this type. Surrounding whitespace is ignored, except for
+     * {@code String} and {@code Character}.
+     *
+     * @throws NumberFormatException Thrown if {@code text} is not a valid value of this type.
+     */
+    abstract Object parse( String text )
+        throws NumberFormatException;
+
+    /**
+     * Returns the type named {@code name}, or {@code null} if there is none.
+     *
+     * @param name The type name of a hint, without {@code []}.
+     */
+    static PropertyType forName( String name )
+    {
+        PropertyType type = BY_NAME.get( name );
+        if( type == null )
+        {
+            type = BY_PRIMITIVE_NAME.get( name );
+        }
+        return type;
+    }
+
+    /**
+     * Returns {@code true} if {@code name} is a primitive name, e.g. {@code int}.
+     */
+    static boolean isPrimitiveName( String name )
+    {
+        return BY_PRIMITIVE_NAME.containsKey( name );
+    }
+
+    /**
+     * Returns the value of {@code key} given as {@code text}.
+     *
+     * @throws IllegalArgumentException Thrown if {@code text} is not a valid value of this type.
+     */
+    Object convert( String key, String text )
+        throws IllegalArgumentException
+    {
+        try
+        {
+            return parse( text );
+        } catch( NumberFormatException e )
+        {
+            throw new IllegalArgumentException( "Value [" + text + "] of [" + key + "] is not a valid "
+                                                + m_type.getSimpleName() + "." );
+        }
+    }
+
+    /**
+     * Returns the array of {@code key} given by its {@code elements}.
+     *
+     * @param primitive Set to {@code true} for an array of the primitive type.
+     *
+     * @throws IllegalArgumentException Thrown if an element is not a valid value of this type.
+     */
+    Object convert( String key, List<String> elements, boolean primitive )
+        throws IllegalArgumentException
+    {
+        Object array = Array.newInstance( primitive ? m_primitive : m_type, elements.size() );
+        for( int i = 0; i < elements.size(); i++ )
+        {
+            Array.set( array, i, convert( key, elements.get( i ) ) );
+        }
+        return array;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.IPatternConfigurationFileHandler;
+
+/**
+ * Base of the handlers of structured documents, e.g. JSON and YAML. The document is read as UTF-8, flattened into
+ * properties by a {@code PropertiesFlattener} and cached in a {@code ConfigurationParseCache}.
+ */
+abstract class StructuredFileConfigurationHandler
+    implements IPatternConfigurationFileHandler, IContentConfigurationFileHandler
+{
+
+    private static final Log LOGGER = LogFactory.getLog( StructuredFileConfigurationHandler.class );
+    private static final String CHARSET = "UTF-8";
+    private static final int BYTE_ORDER_MARK = 0xfeff;
+
+    private final String[] m_extensions;
+    private final String m_format;
+    private final ConfigurationParseCache m_cache;
+
+    /**
+     * @param format     The name of the format, for messages.
+     * @param extensions The file name extensions handled, including the dot.
+     * @param cache      The parse cache. This argument must not be {@code null}.
+     */
+    StructuredFileConfigurationHandler( String format, String[] extensions, ConfigurationParseCache cache )
+    {
+        NullArgumentException.validateNotNull( cache, "cache" );
+
+        m_format = format;
+        m_extensions = extensions;
+        m_cache = cache;
+    }
+
+    /**
+     * Parses the document read from {@code reader} into {@code flattener}.
+     *
+     * @throws IOException              Thrown if the document can not be read.
+     * @throws IllegalArgumentException Thrown if the document is malformed.
+     */
+    abstract void parse( Reader reader, PropertiesFlattener flattener )
+        throws IOException, IllegalArgumentException;
+
+    /**
+     * Returns the file name without the extension handled by this handler, or {@code null} if the file name can not
+     * be handled by this handler.
+     *
+     * @param fileName The file name. This argument must not be {@code null}.
+     *
+     * @return Returns the configuration name given the {@code fileName} argument.
+     */
+    public final String getServicePID( String fileName )
+    {
+        NullArgumentException.validateNotEmpty( fileName, "fileName" );
+
+        for( String extension : m_extensions )
+        {
+            if( fileName.endsWith( extension ) )
+            {
+                return fileName.substring( 0, fileName.length() - extension.length() );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the flattened properties of the specified {@code file}. An unchanged document is taken from the parse
+     * cache. The file is closed before this method returns.
+     *
+     * @param file The configuration file to be loaded. This argument must not be {@code null}.
+     *
+     * @return Returns the {@code Properties} of the specified {@code file}, or {@code null} if it can not be read.
+     *
+     * @throws IllegalArgumentException Thrown if {@code file} is {@code null} or malformed.
+     */
+    public final Properties handle( File file )
+        throws IllegalArgumentException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Properties cached = m_cache.get( file, this, size, lastModified );
+        if( cached != null )
+        {
+            return cached;
+        }
+
+        long parsedAt = System.currentTimeMillis();
+        Properties prop;
+        try
+        {
+            prop = parse( file, new FileInputStream( file ) );
+        } catch( IOException e )
+        {
+            LOGGER.error( "Fail to handle file [" + file.getAbsolutePath() + "] configuration property.", e );
+            return null;
+        }
+
+        m_cache.put( file, this, size, lastModified, parsedAt, prop );
+        return prop;
+    }
+
+    /**
+     * Returns the flattened properties of the specified {@code content} of {@code file}, without the parse cache.
+     *
+     * @param file    The file the content was read from. This argument must not be {@code null}.
+     * @param content The content of {@code file}. This argument must not be {@code null}.
+     *
+     * @return Returns the {@code Properties} of {@code content}, or {@code null} if it can not be read.
+     *
+     * @throws IllegalArgumentException Thrown if an argument is {@code null} or the content is malformed.
+     */
+    public final Properties handleContent( File file, byte[] content )
+        throws IllegalArgumentException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+        NullArgumentException.validateNotNull( content, "content" );
+
+        try
+        {
+            return parse( file, new ByteArrayInputStream( content ) );
+        } catch( IOException e )
+        {
+            LOGGER.error( "Fail to handle file [" + file.getAbsolutePath() + "] configuration property.", e );
+            return null;
+        }
+    }
+
+    /**
+     * Parses the document of {@code file} read from {@code in}, which is closed before this method returns.
+     */
+    private Properties parse( File file, InputStream in )
+        throws IOException
+    {
+        Properties prop = new Properties();
+        try
+        {
+            Reader reader = new PushbackReader( new InputStreamReader( in, CHARSET ) );
+            try
+            {
+                int first = reader.read();
+                if( first != -1 && first != BYTE_ORDER_MARK )
+                {
+                    ( (PushbackReader) reader ).unread( first );
+                }
+                parse( reader, new PropertiesFlattener( prop ) );
+            } finally
+            {
+                reader.close();
+            }
+        } catch( IllegalArgumentException e )
+        {
+            throw new IllegalArgumentException( "Malformed " + m_format + " file [" + file.getAbsolutePath() + "]: "
+                                                + e.getMessage() );
+        } finally
+        {
+            in.close();
+        }
+        return prop;
+    }
+
+    /**
+     * Returns the file name patterns handled by this handler, i.e. {@code *} followed by each extension.
+     *
+     * @return The file name patterns.
+     */
+    public final String[] getFilePatterns()
+    {
+        String[] patterns = new String[m_extensions.length];
+        for( int i = 0; i < patterns.length; i++ )
+        {
+            patterns[ i ] = "*" + m_extensions[ i ];
+        }
+        return patterns;
+    }
+
+    /**
+     * Returns {@code true} if the name of the specified {@code file} ends with an extension of this handler.
+     *
+     * @param file The file to be handled. This argument must not be {@code null}.
+     *
+     * @return A {@code boolean} indicator whether this handler is able to handle {@code file}.
+     *
+     * @throws IllegalArgumentException Thrown if the specified {@code file} argument is {@code null}.
+     */
+    public final boolean canHandle( File file )
+        throws IllegalArgumentException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+
+        return getServicePID( file.getName() ) != null;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+
+import org.ops4j.pax.configmanager.ITabularConfigurationFileHandler;
+
+/**
+ * Reads a table one row at a time. The first record is the header with the keys, each following record holds the
+ * values of one instance. Blank lines and lines starting with {@code #} are skipped.
+ * <p>
+ * A key may carry a type hint, e.g. {@code port:Integer}, which converts the values of its column like a hint in a
+ * {@code .properties} file. An empty value leaves the key out of the row.
+ * <p>
+ * With quoting enabled, i.e. for CSV, a value may be enclosed in double quotes to contain separators, line breaks or
+ * doubled double quotes. A quoted empty value is the empty string.
+ */
+final class TableReader
+    implements ITabularConfigurationFileHandler.Rows
+{
+
+    private static final int NONE = -2;
+
+    private final Reader m_reader;
+    private final char m_separator;
+    private final boolean m_quoting;
+    private final String[] m_keys;
+    private final PropertyType[] m_types;
+
+    private int m_pushback = NONE;
+    private int m_line = 1;
+    private int m_recordLine;
+
+    /**
+     * Reads the header from {@code reader}. The type hints are the scalar types of {@code PropertyType}.
+     *
+     * @param reader    The reader, positioned after a byte order mark. This argument must not be {@code null}.
+     * @param separator The character between the values of a record.
+     * @param quoting   Whether values may be quoted.
+     *
+     * @throws IOException              Thrown if the header can not be read.
+     * @throws IllegalArgumentException Thrown if the header is malformed.
+     */
+    TableReader( Reader reader, char separator, boolean quoting )
+        throws IOException, IllegalArgumentException
+    {
+        m_reader = reader;
+        m_separator = separator;
+        m_quoting = quoting;
+
+        List<String> header = readRecord();
+        if( header == null )
+        {
+            header = new ArrayList<String>();
+        }
+        m_keys = new String[header.size()];
+        m_types = new PropertyType[header.size()];
+        Set<String> keys = new HashSet<String>();
+        for( int i = 0; i < m_keys.length; i++ )
+        {
+            String key = header.get( i ) == null ? "" : header.get( i ).trim();
+            // a colon that is not followed by a type name is part of the key
+            int colon = key.lastIndexOf( ':' );
+            PropertyType type = colon > 0 ? PropertyType.forName( key.substring( colon + 1 ).trim() ) : null;
+            if( type != null )
+            {
+                key = key.substring( 0, colon ).trim();
+                m_types[ i ] = type == PropertyType.STRING ? null : type;
+            }
+            if( key.length() == 0 )
+            {
+                throw new IllegalArgumentException( "Column [" + ( i + 1 ) + "] of the header has no key." );
+            }
+            if( !keys.add( key ) )
+            {
+                throw new IllegalArgumentException( "Key [" + key + "] is in the header twice." );
+            }
+            m_keys[ i ] = key;
+        }
+    }
+
+    /**
+     * Returns the keys of the header, separated by commas.
+     */
+    String getKeys()
+    {
+        StringBuilder keys = new StringBuilder();
+        for( String key : m_keys )
+        {
+            if( keys.length() > 0 )
+            {
+                keys.append( ',' );
+            }
+            keys.append( key );
+        }
+        return keys.toString();
+    }
+
+    public Dictionary<String, Object> next()
+        throws IOException, IllegalArgumentException
+    {
+        List<String> values = readRecord();
+        if( values == null )
+        {
+            return null;
+        }
+        if( values.size() > m_keys.length )
+        {
+            throw new IllegalArgumentException( "Line [" + m_recordLine + "] has [" + values.size()
+                                                + "] values, the header has [" + m_keys.length + "] keys." );
+        }
+
+        Dictionary<String, Object> row = new Hashtable<String, Object>( m_keys.length * 2 );
+        for( int i = 0; i < values.size(); i++ )
+        {
+            String text = values.get( i );
+            if( text != null )
+            {
+                row.put( m_keys[ i ], m_types[ i ] == null ? text : m_types[ i ].convert( m_keys[ i ], text ) );
+            }
+        }
+        return row;
+    }
+
+    public void close()
+        throws IOException
+    {
+        m_reader.close();
+    }
+
+    /**
+     * Returns the values of the next record, an unquoted empty value as {@code null}, or {@code null} at the end of
+     * the table.
+     */
+    private List<String> readRecord()
+        throws IOException
+    {
+        while( true )
+        {
+            int c = read();
+            if( c == -1 )
+            {
+                return null;
+            }
+            if( c == '\n' || c == '\r' )
+            {
+                continue;
+            }
+            if( c == '#' )
+            {
+                do
+                {
+                    c = read();
+                } while( c != -1 && c != '\n' && c != '\r' );
+                continue;
+            }
+            unread( c );
+            break;
+        }
+
+        m_recordLine = m_line;
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        while( true )
+        {
+            int c = read();
+            if( c == -1 || c == '\n' || c == '\r' || c == m_separator )
+            {
+                values.add( quoted || value.length() > 0 ? value.toString() : null );
+                if( c != m_separator )
+                {
+                    return values;
+                }
+                value.setLength( 0 );
+                quoted = false;
+            }
+            else if( c == '"' && m_quoting && value.length() == 0 && !quoted )
+            {
+                readQuoted( value );
+                quoted = true;
+            }
+            else
+            {
+                value.append( (char) c );
+            }
+        }
+    }
+
+    private void readQuoted( StringBuilder value )
+        throws IOException
+    {
+        int line = m_line;
+        while( true )
+        {
+            int c = read();
+            if( c == -1 )
+            {
+                throw new IllegalArgumentException( "Quote of line [" + line + "] is not closed." );
+            }
+            if( c == '"' )
+            {
+                int next = read();
+                if( next != '"' )
+                {
+                    unread( next );
+                    return;
+                }
+            }
+            value.append( (char) c );
+        }
+    }
+
+    private int read()
+        throws IOException
+    {
+        int c;
+        if( m_pushback != NONE )
+        {
+            c = m_pushback;
+            m_pushback = NONE;
+        }
+        else
+        {
+            c = m_reader.read();
+        }
+        if( c == '\n' )
+        {
+            m_line++;
+        }
+        return c;
+    }
+
+    private void unread( int c )
+    {
+        if( c == '\n' )
+        {
+            m_line--;
+        }
+        m_pushback = c;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.lang.NullArgumentException;
+import org.ops4j.pax.configmanager.IPatternConfigurationFileHandler;
+import org.ops4j.pax.configmanager.ITabularConfigurationFileHandler;
+
+/**
+ * Handles {@code ManagedServiceFactory} files in a row oriented format: {@code .csv} files with values separated by
+ * commas and {@code .tsv} files with values separated by tabs. The first line holds the keys, each following line
+ * the values of one instance, e.g.
+ * <pre>
+ * userid,password,comment
+ * simone,beauvoir,feminist from Paris
+ * edith,piaf,
+ * </pre>
+ * describes the same instances as the {@code instances}, {@code keys} and {@code userid.1} keys of a properties file.
+ * The files are read as UTF-8. See {@code TableReader} for quoting and type hints.
+ */
+public final class TabularFileConfigurationHandler
+    implements ITabularConfigurationFileHandler, IPatternConfigurationFileHandler
+{
+
+    private static final Log LOGGER = LogFactory.getLog( TabularFileConfigurationHandler.class );
+    private static final String CHARSET = "UTF-8";
+    private static final int BYTE_ORDER_MARK = 0xfeff;
+    private static final String CSV_EXTENSION = ".csv";
+    private static final String TSV_EXTENSION = ".tsv";
+
+    public TabularFileConfigurationHandler()
+    {
+    }
+
+    /**
+     * Returns the file name without its {@code .csv} or {@code .tsv} extension, or {@code null} if the file name has
+     * neither.
+     *
+     * @param fileName The file name. This argument must not be {@code null}.
+     *
+     * @return Returns the configuration name given the {@code fileName} argument.
+     */
+    public String getServicePID( String fileName )
+    {
+        NullArgumentException.validateNotEmpty( fileName, "fileName" );
+
+        if( fileName.endsWith( CSV_EXTENSION ) )
+        {
+            return fileName.substring( 0, fileName.length() - CSV_EXTENSION.length() );
+        }
+        if( fileName.endsWith( TSV_EXTENSION ) )
+        {
+            return fileName.substring( 0, fileName.length() - TSV_EXTENSION.length() );
+        }
+        return null;
+    }
+
+    /**
+     * Returns the summary of the specified {@code file}, i.e. the number of its rows as {@code instances} and its
+     * header as {@code keys}. Every row is read and converted, so a malformed file is reported here.
+     *
+     * @param file The configuration file to be loaded. This argument must not be {@code null}.
+     *
+     * @return Returns the summary of {@code file}, or {@code null} if it can not be read.
+     *
+     * @throws IllegalArgumentException Thrown if {@code file} is {@code null} or malformed.
+     */
+    public Properties handle( File file )
+        throws IllegalArgumentException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+
+        try
+        {
+            TableReader rows = open( file );
+            try
+            {
+                int instances = 0;
+                while( rows.next() != null )
+                {
+                    instances++;
+                }
+
+                Properties prop = new Properties();
+                prop.put( "instances", String.valueOf( instances ) );
+                prop.put( "keys", rows.getKeys() );
+                return prop;
+            } catch( IllegalArgumentException e )
+            {
+                throw malformed( file, e );
+            } finally
+            {
+                rows.close();
+            }
+        } catch( IOException e )
+        {
+            LOGGER.error( "Fail to handle file [" + file.getAbsolutePath() + "] configuration property.", e );
+            return null;
+        }
+    }
+
+    public Rows openRows( File file )
+        throws IOException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+
+        return open( file );
+    }
+
+    private TableReader open( File file )
+        throws IOException
+    {
+        Reader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), CHARSET ) );
+        try
+        {
+            reader.mark( 1 );
+            if( reader.read() != BYTE_ORDER_MARK )
+            {
+                reader.reset();
+            }
+            boolean csv = file.getName().endsWith( CSV_EXTENSION );
+            return new TableReader( reader, csv ? ',' : '\t', csv );
+        } catch( IOException e )
+        {
+            reader.close();
+            throw e;
+        } catch( IllegalArgumentException e )
+        {
+            reader.close();
+            throw malformed( file, e );
+        }
+    }
+
+    private static IllegalArgumentException malformed( File file, IllegalArgumentException e )
+    {
+        return new IllegalArgumentException( "Malformed table file [" + file.getAbsolutePath() + "]: "
+                                             + e.getMessage() );
+    }
+
+    /**
+     * Returns {@code *.csv} and {@code *.tsv}.
+     *
+     * @return The file name patterns.
+     */
+    public String[] getFilePatterns()
+    {
+        return new String[]{ "*" + CSV_EXTENSION, "*" + TSV_EXTENSION };
+    }
+
+    /**
+     * Returns {@code true} if the name of the specified {@code file} ends with {@code .csv} or {@code .tsv}.
+     *
+     * @param file The file to be handled. This argument must not be {@code null}.
+     *
+     * @return A {@code boolean} indicator whether this handler is able to handle {@code file}.
+     *
+     * @throws IllegalArgumentException Thrown if the specified {@code file} argument is {@code null}.
+     */
+    public boolean canHandle( File file )
+        throws IllegalArgumentException
+    {
+        NullArgumentException.validateNotNull( file, "file" );
+
+        return getServicePID( file.getName() ) != null;
+    }
+}
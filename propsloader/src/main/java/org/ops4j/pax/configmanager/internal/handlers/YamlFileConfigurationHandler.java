@@ -0,0 +1,45 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * {@code YamlFileConfigurationHandler} handles configuration files with extension of {@code .yaml} or {@code .yml}.
+ * The document must be a mapping, nested mappings are flattened into dotted keys and sequences of scalars become
+ * typed arrays, see {@code PropertiesFlattener}. The supported YAML is described by {@code YamlParser}.
+ */
+public final class YamlFileConfigurationHandler extends StructuredFileConfigurationHandler
+{
+
+    private static final String[] EXTENSIONS = { ".yaml", ".yml" };
+
+    /**
+     * @param cache The parse cache, usually shared with the other structured handlers. This argument must not be
+     *              {@code null}.
+     */
+    public YamlFileConfigurationHandler( ConfigurationParseCache cache )
+    {
+        super( "YAML", EXTENSIONS, cache );
+    }
+
+    void parse( Reader reader, PropertiesFlattener flattener )
+        throws IOException, IllegalArgumentException
+    {
+        YamlParser.parse( reader, flattener );
+    }
+}
@@ -0,0 +1,1006 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A streaming parser of the YAML used for configuration files. It reads the document line by line and passes it to
+ * a {@code PropertiesFlattener}, so no tree of the document is built. Supported are:
+ * <ul>
+ * <li>block mappings and block sequences, including sequences of mappings ({@code - key: value}),</li>
+ * <li>flow mappings and flow sequences ({@code {a: 1}}, {@code [a, b]}), which may span lines,</li>
+ * <li>plain, single quoted and double quoted scalars,</li>
+ * <li>literal ({@code |}) and folded ({@code >}) block scalars with chomping indicators,</li>
+ * <li>comments and a single document with optional {@code ---} and {@code ...} markers.</li>
+ * </ul>
+ * Plain scalars are typed by the YAML 1.2 core schema: {@code null}, booleans, integers and floats, everything else is
+ * a string. Anchors, aliases, tags, complex keys, multiple documents and plain scalars spanning lines are rejected.
+ */
+final class YamlParser
+{
+
+    private static final Pattern INTEGER = Pattern.compile( "[-+]?[0-9]+" );
+    private static final Pattern OCTAL = Pattern.compile( "0o[0-7]+" );
+    private static final Pattern HEXADECIMAL = Pattern.compile( "0x[0-9a-fA-F]+" );
+    private static final Pattern FLOAT =
+        Pattern.compile( "[-+]?(\\.[0-9]+|[0-9]+(\\.[0-9]*)?)([eE][-+]?[0-9]+)?" );
+    private static final Pattern INFINITY = Pattern.compile( "[-+]?\\.(inf|Inf|INF)" );
+    private static final Pattern NAN = Pattern.compile( "\\.(nan|NaN|NAN)" );
+
+    private final BufferedReader m_reader;
+    private final PropertiesFlattener m_flattener;
+    private int m_lineNumber;
+    private String m_pushedBackRaw;
+    private Line m_peeked;
+    private boolean m_started;
+    private boolean m_ended;
+
+    private YamlParser( Reader reader, PropertiesFlattener flattener )
+    {
+        m_reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader( reader );
+        m_flattener = flattener;
+    }
+
+    /**
+     * Parses the YAML document read from {@code reader} into {@code flattener}.
+     *
+     * @throws IOException              Thrown if the document can not be read.
+     * @throws IllegalArgumentException Thrown if the document is not supported YAML or its root is not a mapping.
+     */
+    static void parse( Reader reader, PropertiesFlattener flattener )
+        throws IOException, IllegalArgumentException
+    {
+        YamlParser parser = new YamlParser( reader, flattener );
+        Line first = parser.peek();
+        if( first == null )
+        {
+            flattener.startObject();
+            flattener.endObject();
+            return;
+        }
+        if( isSequenceItem( first ) )
+        {
+            throw parser.error( first, "The document must be a mapping, not a sequence" );
+        }
+
+        if( first.m_text.startsWith( "{" ) )
+        {
+            parser.next();
+            parser.parseFlow( first );
+        }
+        else
+        {
+            parser.parseMapping( first.m_indent );
+        }
+
+        Line rest = parser.peek();
+        if( rest != null )
+        {
+            throw parser.error( rest, "Unexpected content" );
+        }
+    }
+
+    private void parseMapping( int indent )
+        throws IOException
+    {
+        m_flattener.startObject();
+        Line line;
+        while( ( line = peek() ) != null && line.m_indent == indent && !isSequenceItem( line ) )
+        {
+            next();
+            parseMappingEntry( line );
+        }
+        if( line != null && line.m_indent > indent )
+        {
+            throw error( line, "Unexpected indentation" );
+        }
+        m_flattener.endObject();
+    }
+
+    private void parseMappingEntry( Line line )
+        throws IOException
+    {
+        String text = line.m_text;
+        int colon = findMappingColon( text );
+        if( colon < 0 )
+        {
+            throw error( line, "Expected 'key: value'" );
+        }
+        String key = text.substring( 0, colon ).trim();
+        if( key.length() == 0 )
+        {
+            throw error( line, "Empty key" );
+        }
+        if( key.charAt( 0 ) == '"' || key.charAt( 0 ) == '\'' )
+        {
+            key = parseQuoted( line, key );
+        }
+        else if( key.charAt( 0 ) == '?' || key.charAt( 0 ) == '[' || key.charAt( 0 ) == '{' )
+        {
+            throw error( line, "Complex keys are not supported" );
+        }
+
+        m_flattener.key( key );
+        parseValue( line, line.m_indent, text.substring( colon + 1 ).trim(), true );
+    }
+
+    private void parseSequence( int indent )
+        throws IOException
+    {
+        m_flattener.startArray();
+        Line line;
+        while( ( line = peek() ) != null && line.m_indent == indent && isSequenceItem( line ) )
+        {
+            next();
+            String text = line.m_text;
+            int start = 1;
+            while( start < text.length() && text.charAt( start ) == ' ' )
+            {
+                start++;
+            }
+            String rest = text.substring( start );
+            int itemIndent = indent + start;
+
+            if( isSequenceItem( rest ) )
+            {
+                // a sequence that starts on the line of its item: "- - a"
+                m_peeked = new Line( line.m_number, itemIndent, rest );
+                parseSequence( itemIndent );
+            }
+            else if( rest.length() > 0 && rest.charAt( 0 ) != '[' && rest.charAt( 0 ) != '{'
+                     && findMappingColon( rest ) >= 0 )
+            {
+                // a mapping that starts on the line of its item: "- key: value"
+                m_peeked = new Line( line.m_number, itemIndent, rest );
+                parseMapping( itemIndent );
+            }
+            else
+            {
+                parseValue( line, indent, rest, false );
+            }
+        }
+        if( line != null && line.m_indent > indent )
+        {
+            throw error( line, "Unexpected indentation" );
+        }
+        m_flattener.endArray();
+    }
+
+    /**
+     * Parses the value of a mapping entry or sequence item.
+     *
+     * @param line         The line of the entry or item.
+     * @param indent       The indentation of the entry or item.
+     * @param rest         The text after the key or dash.
+     * @param mappingValue {@code true} for the value of a mapping entry.
+     */
+    private void parseValue( Line line, int indent, String rest, boolean mappingValue )
+        throws IOException
+    {
+        if( rest.length() == 0 )
+        {
+            Line next = peek();
+            if( next != null && next.m_indent > indent )
+            {
+                if( isSequenceItem( next ) )
+                {
+                    parseSequence( next.m_indent );
+                }
+                else
+                {
+                    parseMapping( next.m_indent );
+                }
+            }
+            else if( next != null && mappingValue && next.m_indent == indent && isSequenceItem( next ) )
+            {
+                // a sequence may be indented as far as the key of its entry
+                parseSequence( indent );
+            }
+            else
+            {
+                m_flattener.value( null );
+            }
+            return;
+        }
+
+        char first = rest.charAt( 0 );
+        if( first == '|' || first == '>' )
+        {
+            m_flattener.value( readBlockScalar( line, indent, rest ) );
+        }
+        else if( first == '[' || first == '{' )
+        {
+            parseFlow( new Line( line.m_number, indent, rest ) );
+        }
+        else if( first == '&' || first == '*' || first == '!' )
+        {
+            throw error( line, "Anchors, aliases and tags are not supported" );
+        }
+        else if( first == '"' || first == '\'' )
+        {
+            m_flattener.value( parseQuoted( line, rest ) );
+        }
+        else
+        {
+            m_flattener.value( resolve( rest ) );
+        }
+    }
+
+    /**
+     * Reads a literal or folded block scalar. The lines are read raw, as comments are content inside of it.
+     */
+    private String readBlockScalar( Line line, int indent, String header )
+        throws IOException
+    {
+        boolean folded = header.charAt( 0 ) == '>';
+        char chomping = ' ';
+        int contentIndent = -1;
+        for( int i = 1; i < header.length(); i++ )
+        {
+            char c = header.charAt( i );
+            if( c == '-' || c == '+' )
+            {
+                chomping = c;
+            }
+            else if( c >= '1' && c <= '9' )
+            {
+                contentIndent = indent + ( c - '0' );
+            }
+            else
+            {
+                throw error( line, "Malformed block scalar header '" + header + "'" );
+            }
+        }
+
+        List<String> lines = new ArrayList<String>();
+        String raw;
+        while( ( raw = nextRaw() ) != null )
+        {
+            int lineIndent = indentOf( raw );
+            if( lineIndent == raw.length() )
+            {
+                lines.add( "" );
+                continue;
+            }
+            if( contentIndent < 0 )
+            {
+                if( lineIndent <= indent )
+                {
+                    pushBackRaw( raw );
+                    break;
+                }
+                contentIndent = lineIndent;
+            }
+            if( lineIndent < contentIndent )
+            {
+                pushBackRaw( raw );
+                break;
+            }
+            lines.add( raw.substring( contentIndent ) );
+        }
+
+        int trailing = 0;
+        while( !lines.isEmpty() && lines.get( lines.size() - 1 ).length() == 0 )
+        {
+            lines.remove( lines.size() - 1 );
+            trailing++;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        int empty = 0;
+        String previous = null;
+        for( String text : lines )
+        {
+            if( text.length() == 0 )
+            {
+                empty++;
+                continue;
+            }
+            if( previous == null )
+            {
+                appendNewLines( builder, empty );
+            }
+            else if( !folded )
+            {
+                appendNewLines( builder, empty + 1 );
+            }
+            else if( empty > 0 )
+            {
+                appendNewLines( builder, empty );
+            }
+            else if( previous.charAt( 0 ) == ' ' || text.charAt( 0 ) == ' ' )
+            {
+                // more indented lines are not folded
+                builder.append( '\n' );
+            }
+            else
+            {
+                builder.append( ' ' );
+            }
+            builder.append( text );
+            empty = 0;
+            previous = text;
+        }
+
+        if( chomping == '+' )
+        {
+            appendNewLines( builder, previous == null ? trailing : trailing + 1 );
+        }
+        else if( chomping == ' ' && previous != null )
+        {
+            builder.append( '\n' );
+        }
+        return builder.toString();
+    }
+
+    private static void appendNewLines( StringBuilder builder, int count )
+    {
+        for( int i = 0; i < count; i++ )
+        {
+            builder.append( '\n' );
+        }
+    }
+
+    /**
+     * Parses a flow collection that starts on {@code line}. Lines are joined until the brackets are balanced.
+     */
+    private void parseFlow( Line line )
+        throws IOException
+    {
+        StringBuilder text = new StringBuilder( line.m_text );
+        while( !isBalanced( text ) )
+        {
+            Line next = next();
+            if( next == null )
+            {
+                throw error( line, "Unterminated flow collection" );
+            }
+            text.append( ' ' ).append( next.m_text );
+        }
+
+        FlowParser parser = new FlowParser( line, text.toString() );
+        parser.parseNode();
+        parser.skipSpaces();
+        if( parser.m_position != parser.m_text.length() )
+        {
+            throw error( line, "Unexpected content after flow collection" );
+        }
+    }
+
+    private static boolean isBalanced( CharSequence text )
+    {
+        int depth = 0;
+        char quote = 0;
+        for( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if( quote != 0 )
+            {
+                if( c == '\\' && quote == '"' )
+                {
+                    i++;
+                }
+                else if( c == quote )
+                {
+                    quote = 0;
+                }
+            }
+            else if( c == '"' || c == '\'' )
+            {
+                quote = c;
+            }
+            else if( c == '[' || c == '{' )
+            {
+                depth++;
+            }
+            else if( c == ']' || c == '}' )
+            {
+                depth--;
+            }
+        }
+        return depth <= 0;
+    }
+
+    /**
+     * Returns the quoted scalar {@code text}, which must not be followed by anything but the closing quote.
+     */
+    private String parseQuoted( Line line, String text )
+    {
+        StringBuilder builder = new StringBuilder();
+        int end = readQuoted( line, text, 0, builder );
+        if( end != text.length() )
+        {
+            throw error( line, "Unexpected content after quoted scalar" );
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Appends the quoted scalar that starts at {@code start} to {@code builder}.
+     *
+     * @return The position after the closing quote.
+     */
+    private int readQuoted( Line line, String text, int start, StringBuilder builder )
+    {
+        char quote = text.charAt( start );
+        int i = start + 1;
+        while( i < text.length() )
+        {
+            char c = text.charAt( i++ );
+            if( c == quote )
+            {
+                if( quote == '\'' && i < text.length() && text.charAt( i ) == '\'' )
+                {
+                    builder.append( '\'' );
+                    i++;
+                    continue;
+                }
+                return i;
+            }
+            if( c != '\\' || quote == '\'' )
+            {
+                builder.append( c );
+                continue;
+            }
+            if( i == text.length() )
+            {
+                break;
+            }
+            c = text.charAt( i++ );
+            switch( c )
+            {
+                case 'n':
+                    builder.append( '\n' );
+                    break;
+                case 't':
+                    builder.append( '\t' );
+                    break;
+                case 'r':
+                    builder.append( '\r' );
+                    break;
+                case 'b':
+                    builder.append( '\b' );
+                    break;
+                case 'f':
+                    builder.append( '\f' );
+                    break;
+                case '0':
+                    builder.append( '\0' );
+                    break;
+                case 'e':
+                    builder.append( '\u001b' );
+                    break;
+                case 'x':
+                case 'u':
+                    int digits = c == 'x' ? 2 : 4;
+                    if( i + digits > text.length() )
+                    {
+                        throw error( line, "Malformed escape" );
+                    }
+                    try
+                    {
+                        builder.append( (char) Integer.parseInt( text.substring( i, i + digits ), 16 ) );
+                    } catch( NumberFormatException e )
+                    {
+                        throw error( line, "Malformed escape" );
+                    }
+                    i += digits;
+                    break;
+                default:
+                    // \" \\ \/ and escaped spaces stand for themselves
+                    builder.append( c );
+            }
+        }
+        throw error( line, "Unterminated quoted scalar" );
+    }
+
+    /**
+     * Resolves a plain scalar by the YAML 1.2 core schema.
+     */
+    static Object resolve( String text )
+    {
+        if( text.length() == 0 )
+        {
+            return null;
+        }
+        char first = text.charAt( 0 );
+        if( !( ( first >= '0' && first <= '9' ) || first == '-' || first == '+' || first == '.' || first == '~'
+               || first == 'n' || first == 'N' || first == 't' || first == 'T' || first == 'f' || first == 'F' ) )
+        {
+            return text;
+        }
+
+        if( "~".equals( text ) || "null".equals( text ) || "Null".equals( text ) || "NULL".equals( text ) )
+        {
+            return null;
+        }
+        if( "true".equals( text ) || "True".equals( text ) || "TRUE".equals( text ) )
+        {
+            return Boolean.TRUE;
+        }
+        if( "false".equals( text ) || "False".equals( text ) || "FALSE".equals( text ) )
+        {
+            return Boolean.FALSE;
+        }
+        if( INTEGER.matcher( text ).matches() )
+        {
+            return toInteger( new BigInteger( text.charAt( 0 ) == '+' ? text.substring( 1 ) : text ) );
+        }
+        if( OCTAL.matcher( text ).matches() )
+        {
+            return toInteger( new BigInteger( text.substring( 2 ), 8 ) );
+        }
+        if( HEXADECIMAL.matcher( text ).matches() )
+        {
+            return toInteger( new BigInteger( text.substring( 2 ), 16 ) );
+        }
+        if( FLOAT.matcher( text ).matches() )
+        {
+            return Double.valueOf( text );
+        }
+        if( INFINITY.matcher( text ).matches() )
+        {
+            return text.charAt( 0 ) == '-' ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        if( NAN.matcher( text ).matches() )
+        {
+            return Double.NaN;
+        }
+        return text;
+    }
+
+    private static Object toInteger( BigInteger value )
+    {
+        if( value.bitLength() < 32 )
+        {
+            return value.intValue();
+        }
+        if( value.bitLength() < 64 )
+        {
+            return value.longValue();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the position of the {@code :} that separates key and value, or {@code -1} if {@code text} is not a
+     * mapping entry. The separator is followed by a space or ends the line, and is neither quoted nor inside a flow
+     * collection.
+     */
+    private static int findMappingColon( String text )
+    {
+        int depth = 0;
+        char quote = 0;
+        for( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if( quote != 0 )
+            {
+                if( c == '\\' && quote == '"' )
+                {
+                    i++;
+                }
+                else if( c == quote )
+                {
+                    quote = 0;
+                }
+            }
+            else if( ( c == '"' || c == '\'' ) && isTokenStart( text, i ) )
+            {
+                quote = c;
+            }
+            else if( c == '[' || c == '{' )
+            {
+                depth++;
+            }
+            else if( c == ']' || c == '}' )
+            {
+                depth--;
+            }
+            else if( c == ':' && depth == 0
+                     && ( i + 1 == text.length() || text.charAt( i + 1 ) == ' ' || text.charAt( i + 1 ) == '\t' ) )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A quote only starts a quoted scalar at the start of a token, e.g. not in {@code it's}.
+     */
+    private static boolean isTokenStart( CharSequence text, int index )
+    {
+        if( index == 0 )
+        {
+            return true;
+        }
+        char previous = text.charAt( index - 1 );
+        return previous == ' ' || previous == '[' || previous == '{' || previous == ',';
+    }
+
+    private static boolean isSequenceItem( Line line )
+    {
+        return isSequenceItem( line.m_text );
+    }
+
+    private static boolean isSequenceItem( String text )
+    {
+        return text.equals( "-" ) || text.startsWith( "- " );
+    }
+
+    private static int indentOf( String raw )
+    {
+        int indent = 0;
+        while( indent < raw.length() && raw.charAt( indent ) == ' ' )
+        {
+            indent++;
+        }
+        return indent;
+    }
+
+    /**
+     * Returns {@code raw} without its comment and trailing whitespace.
+     */
+    private static String stripComment( String raw )
+    {
+        char quote = 0;
+        for( int i = 0; i < raw.length(); i++ )
+        {
+            char c = raw.charAt( i );
+            if( quote != 0 )
+            {
+                if( c == '\\' && quote == '"' )
+                {
+                    i++;
+                }
+                else if( c == quote )
+                {
+                    quote = 0;
+                }
+            }
+            else if( ( c == '"' || c == '\'' ) && isTokenStart( raw, i ) )
+            {
+                quote = c;
+            }
+            else if( c == '#' && ( i == 0 || raw.charAt( i - 1 ) == ' ' || raw.charAt( i - 1 ) == '\t' ) )
+            {
+                raw = raw.substring( 0, i );
+                break;
+            }
+        }
+
+        int end = raw.length();
+        while( end > 0 && Character.isWhitespace( raw.charAt( end - 1 ) ) )
+        {
+            end--;
+        }
+        return raw.substring( 0, end );
+    }
+
+    /**
+     * Returns the next line with content, without consuming it.
+     */
+    private Line peek()
+        throws IOException
+    {
+        if( m_peeked != null || m_ended )
+        {
+            return m_peeked;
+        }
+
+        String raw;
+        while( ( raw = nextRaw() ) != null )
+        {
+            if( raw.startsWith( "---" ) && ( raw.length() == 3 || raw.charAt( 3 ) == ' ' ) )
+            {
+                if( m_started )
+                {
+                    throw new IllegalArgumentException(
+                        "Multiple documents are not supported at line " + m_lineNumber + "."
+                    );
+                }
+                m_started = true;
+                if( stripComment( raw.substring( 3 ) ).trim().length() > 0 )
+                {
+                    throw new IllegalArgumentException(
+                        "Content on the document marker is not supported at line " + m_lineNumber + "."
+                    );
+                }
+                continue;
+            }
+            if( raw.startsWith( "..." ) && stripComment( raw.substring( 3 ) ).trim().length() == 0 )
+            {
+                m_ended = true;
+                return null;
+            }
+            if( !m_started && raw.startsWith( "%" ) )
+            {
+                // directives
+                continue;
+            }
+
+            int indent = indentOf( raw );
+            String text = stripComment( raw.substring( indent ) );
+            if( text.length() == 0 )
+            {
+                continue;
+            }
+            if( text.charAt( 0 ) == '\t' )
+            {
+                throw new IllegalArgumentException( "Tabs are not allowed for indentation at line " + m_lineNumber
+                                                    + "." );
+            }
+            m_started = true;
+            m_peeked = new Line( m_lineNumber, indent, text );
+            return m_peeked;
+        }
+        return null;
+    }
+
+    private Line next()
+        throws IOException
+    {
+        Line line = peek();
+        m_peeked = null;
+        return line;
+    }
+
+    private String nextRaw()
+        throws IOException
+    {
+        String raw = m_pushedBackRaw;
+        if( raw != null )
+        {
+            m_pushedBackRaw = null;
+        }
+        else
+        {
+            raw = m_reader.readLine();
+            if( raw == null )
+            {
+                return null;
+            }
+        }
+        m_lineNumber++;
+        return raw;
+    }
+
+    private void pushBackRaw( String raw )
+    {
+        m_pushedBackRaw = raw;
+        m_lineNumber--;
+    }
+
+    private IllegalArgumentException error( Line line, String message )
+    {
+        return new IllegalArgumentException( message + " at line " + line.m_number + "." );
+    }
+
+    /**
+     * A line with content, without indentation and comment.
+     */
+    private static final class Line
+    {
+
+        private final int m_number;
+        private final int m_indent;
+        private final String m_text;
+
+        private Line( int number, int indent, String text )
+        {
+            m_number = number;
+            m_indent = indent;
+            m_text = text;
+        }
+    }
+
+    /**
+     * Parses a flow collection that was joined into a single string.
+     */
+    private final class FlowParser
+    {
+
+        private final Line m_line;
+        private final String m_text;
+        private int m_position;
+
+        private FlowParser( Line line, String text )
+        {
+            m_line = line;
+            m_text = text;
+        }
+
+        private void parseNode()
+        {
+            skipSpaces();
+            if( m_position == m_text.length() )
+            {
+                throw error( m_line, "Unterminated flow collection" );
+            }
+            char c = m_text.charAt( m_position );
+            if( c == '[' )
+            {
+                m_position++;
+                parseSequence();
+            }
+            else if( c == '{' )
+            {
+                m_position++;
+                parseMapping();
+            }
+            else if( c == '"' || c == '\'' )
+            {
+                StringBuilder builder = new StringBuilder();
+                m_position = readQuoted( m_line, m_text, m_position, builder );
+                m_flattener.value( builder.toString() );
+            }
+            else if( c == '&' || c == '*' || c == '!' )
+            {
+                throw error( m_line, "Anchors, aliases and tags are not supported" );
+            }
+            else
+            {
+                m_flattener.value( resolve( readPlain( false ) ) );
+            }
+        }
+
+        private void parseSequence()
+        {
+            m_flattener.startArray();
+            while( true )
+            {
+                skipSpaces();
+                if( peekChar() == ']' )
+                {
+                    m_position++;
+                    break;
+                }
+                parseNode();
+                if( !separator( ']' ) )
+                {
+                    break;
+                }
+            }
+            m_flattener.endArray();
+        }
+
+        private void parseMapping()
+        {
+            m_flattener.startObject();
+            while( true )
+            {
+                skipSpaces();
+                if( peekChar() == '}' )
+                {
+                    m_position++;
+                    break;
+                }
+
+                String key;
+                char c = peekChar();
+                if( c == '"' || c == '\'' )
+                {
+                    StringBuilder builder = new StringBuilder();
+                    m_position = readQuoted( m_line, m_text, m_position, builder );
+                    key = builder.toString();
+                }
+                else
+                {
+                    key = readPlain( true );
+                }
+                if( key.length() == 0 )
+                {
+                    throw error( m_line, "Empty key in flow mapping" );
+                }
+                m_flattener.key( key );
+
+                skipSpaces();
+                if( peekChar() == ':' )
+                {
+                    m_position++;
+                    skipSpaces();
+                    c = peekChar();
+                    if( c == ',' || c == '}' )
+                    {
+                        m_flattener.value( null );
+                    }
+                    else
+                    {
+                        parseNode();
+                    }
+                }
+                else
+                {
+                    m_flattener.value( null );
+                }
+                if( !separator( '}' ) )
+                {
+                    break;
+                }
+            }
+            m_flattener.endObject();
+        }
+
+        /**
+         * Consumes a {@code ,} or the {@code close} bracket.
+         *
+         * @return {@code true} if another element follows.
+         */
+        private boolean separator( char close )
+        {
+            skipSpaces();
+            char c = peekChar();
+            m_position++;
+            if( c == ',' )
+            {
+                return true;
+            }
+            if( c == close )
+            {
+                return false;
+            }
+            throw error( m_line, "Expected ',' or '" + close + "' in flow collection" );
+        }
+
+        /**
+         * Reads a plain scalar up to the next flow indicator, or for a key, up to the {@code :} separator.
+         */
+        private String readPlain( boolean key )
+        {
+            int start = m_position;
+            while( m_position < m_text.length() )
+            {
+                char c = m_text.charAt( m_position );
+                if( c == ',' || c == ']' || c == '}' || c == '[' || c == '{' )
+                {
+                    break;
+                }
+                if( key && c == ':' && ( m_position + 1 == m_text.length()
+                                         || " ,]}".indexOf( m_text.charAt( m_position + 1 ) ) >= 0 ) )
+                {
+                    break;
+                }
+                m_position++;
+            }
+            return m_text.substring( start, m_position ).trim();
+        }
+
+        private char peekChar()
+        {
+            if( m_position == m_text.length() )
+            {
+                throw error( m_line, "Unterminated flow collection" );
+            }
+            return m_text.charAt( m_position );
+        }
+
+        private void skipSpaces()
+        {
+            while( m_position < m_text.length() && m_text.charAt( m_position ) == ' ' )
+            {
+                m_position++;
+            }
+        }
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import org.ops4j.pax.configmanager.ConfigurationUpdateStatus;
+import org.ops4j.pax.configmanager.IConfigurationFileHandler;
+import org.ops4j.pax.configmanager.internal.handlers.ConfigurationParseCache;
+import org.ops4j.pax.configmanager.internal.handlers.JsonFileConfigurationHandler;
+import org.ops4j.pax.configmanager.internal.handlers.PropertiesFileConfigurationHandler;
+import org.ops4j.pax.configmanager.internal.handlers.TabularFileConfigurationHandler;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+
+public class ConfigurationAdminFacadeTest extends TestCase
+{
+
+    private ConfigurationArea m_area;
+    private InMemoryConfigurationAdmin m_configAdmin;
+    private ConfigurationAdminFacade m_facade;
+
+    @Override
+    protected void setUp()
+        throws IOException
+    {
+        m_area = new ConfigurationArea();
+        m_configAdmin = new InMemoryConfigurationAdmin();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        if( m_facade != null )
+        {
+            m_facade.dispose();
+        }
+        m_area.dispose();
+    }
+
+    /**
+     * Creates the facade with the properties and json handlers, bound to the configuration admin service.
+     */
+    private ConfigurationAdminFacade createFacade()
+    {
+        m_facade = new ConfigurationAdminFacade( m_area );
+        m_facade.addFileHandler( new PropertiesFileConfigurationHandler() );
+        m_facade.addFileHandler( new JsonFileConfigurationHandler( new ConfigurationParseCache( 16 ) ) );
+        m_facade.setConfigurationAdminService( m_configAdmin );
+        return m_facade;
+    }
+
+    private Object get( String pid, String key )
+        throws IOException, InvalidSyntaxException
+    {
+        Configuration[] configs = m_configAdmin.listConfigurations( "(service.pid=" + pid + ")" );
+        if( configs == null )
+        {
+            return null;
+        }
+        Dictionary<?, ?> properties = configs[ 0 ].getProperties();
+        return properties == null ? null : properties.get( key );
+    }
+
+    public void testFailedFileDoesNotStopThePass()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        m_area.write( "services/b.json", "{ \"x\": " );
+        m_area.write( "services/c.properties", "x=c" );
+        m_area.write( "services/d.properties", "x=d" );
+        ConfigurationAdminFacade facade = createFacade();
+
+        facade.registerConfigurations( null, false );
+
+        assertEquals( "a", get( "a", "x" ) );
+        assertNull( get( "b", "x" ) );
+        assertEquals( "c", get( "c", "x" ) );
+        assertEquals( "d", get( "d", "x" ) );
+        assertEquals( 1, facade.getMetrics().getFailures() );
+        assertEquals( Long.valueOf( 1 ), facade.getMetrics().getFailuresByServicePid().get( "b" ) );
+    }
+
+    public void testFailedFileDoesNotStopDeletions()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        m_area.write( "services/b.properties", "x=b" );
+        ConfigurationAdminFacade facade = createFacade();
+        facade.registerConfigurations( null, false );
+
+        m_area.delete( "services/a.properties" );
+        m_area.write( "services/b.properties", "x=\\u00" );
+        facade.registerConfigurations( null, false );
+
+        assertNull( get( "a", "x" ) );
+        assertEquals( "b", get( "b", "x" ) );
+        assertEquals( 1, facade.getMetrics().getFailures() );
+    }
+
+    /**
+     * Restarts with the configuration admin service found before the handlers, which runs a pass without handlers.
+     */
+    private ConfigurationAdminFacade restart( File snapshot )
+        throws Exception
+    {
+        m_facade.dispose();
+        m_facade = new ConfigurationAdminFacade( m_area );
+        m_facade.setSnapshotFile( snapshot );
+        m_facade.setConfigurationAdminService( m_configAdmin );
+        m_facade.registerConfigurations( null, false );
+        m_facade.addFileHandler( new PropertiesFileConfigurationHandler() );
+        return m_facade;
+    }
+
+    public void testSnapshotSurvivesPassWithoutHandlers()
+        throws Exception
+    {
+        File snapshot = m_area.getFile( "configuration.snapshot" );
+        m_area.write( "services/a.properties", "x=1" );
+        m_area.write( "services/b.properties", "x=1" );
+        createFacade().setSnapshotFile( snapshot );
+        m_facade.registerConfigurations( null, false );
+
+        m_area.write( "services/b.properties", "x=2" );
+        ConfigurationAdminFacade facade = restart( snapshot );
+
+        assertEquals( "the unchanged file is trusted", 1, facade.getMetrics().getFilesParsed() );
+        assertEquals( "1", get( "a", "x" ) );
+        assertEquals( "the file changed while stopped is reloaded", "2", get( "b", "x" ) );
+    }
+
+    /**
+     * Creates a facade that deletes the configurations of removed handlers, with a single json handler, and applies
+     * the configuration area.
+     */
+    private JsonFileConfigurationHandler createDeletingFacade()
+        throws Exception
+    {
+        m_area.setProperty( ConfigurationAdminFacade.BUNDLES_CONFIGURATION_HANDLER_REMOVAL, "delete" );
+        m_area.write( "services/a.json", "{ \"x\": \"1\" }" );
+        JsonFileConfigurationHandler handler = new JsonFileConfigurationHandler( new ConfigurationParseCache( 16 ) );
+        m_facade = new ConfigurationAdminFacade( m_area );
+        m_facade.addFileHandler( handler );
+        m_facade.setConfigurationAdminService( m_configAdmin );
+        m_facade.registerConfigurations( null, false );
+        assertEquals( "1", get( "a", "x" ) );
+        return handler;
+    }
+
+    public void testRemovedHandlerDeletesItsConfigurations()
+        throws Exception
+    {
+        JsonFileConfigurationHandler handler = createDeletingFacade();
+
+        m_facade.removeFileHandler( handler );
+
+        assertNull( get( "a", "x" ) );
+    }
+
+    public void testHandlerRemovedOnStopKeepsItsConfigurations()
+        throws Exception
+    {
+        JsonFileConfigurationHandler handler = createDeletingFacade();
+
+        // the order of Activator.stop()
+        m_facade.setConfigurationAdminService( null );
+        m_facade.removeFileHandler( handler );
+        m_facade.dispose();
+
+        assertEquals( "1", get( "a", "x" ) );
+    }
+
+    public void testHandlerRemovedAfterDisposeKeepsItsConfigurations()
+        throws Exception
+    {
+        JsonFileConfigurationHandler handler = createDeletingFacade();
+
+        m_facade.dispose();
+        m_facade.removeFileHandler( handler );
+
+        assertEquals( "1", get( "a", "x" ) );
+    }
+
+    public void testDependenciesAreNotPushed()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", ConfigurationAdminFacade.CONFIGURATION_DEPENDENCIES + "=b\nx=a" );
+        m_area.write( "services/b.properties", "x=b" );
+
+        createFacade().registerConfigurations( null, false );
+
+        assertEquals( "a", get( "a", "x" ) );
+        assertEquals( "b", get( "b", "x" ) );
+        assertNull( get( "a", ConfigurationAdminFacade.CONFIGURATION_DEPENDENCIES ) );
+    }
+
+    /**
+     * Returns the {@code name} of each configuration of factory {@code f} by its pid.
+     */
+    private Map<String, Object> getInstances()
+        throws IOException, InvalidSyntaxException
+    {
+        Map<String, Object> instances = new TreeMap<String, Object>();
+        Configuration[] configs = m_configAdmin.listConfigurations( "(service.factoryPid=f)" );
+        for( int i = 0; configs != null && i < configs.length; i++ )
+        {
+            instances.put( configs[ i ].getPid(), configs[ i ].getProperties().get( "name" ) );
+        }
+        return instances;
+    }
+
+    /**
+     * Applies the configuration area with a new facade, which knows nothing of the configurations applied before.
+     */
+    private void reload()
+        throws Exception
+    {
+        m_facade.dispose();
+        createFacade().addFileHandler( new TabularFileConfigurationHandler() );
+        m_facade.registerConfigurations( null, false );
+    }
+
+    public void testFactoryReloadKeepsItsConfigurations()
+        throws Exception
+    {
+        m_area.write( "factories/f.properties", "instances=2\nkeys=name\nname.1=a\nname.2=b" );
+        createFacade().registerConfigurations( null, false );
+        Map<String, Object> before = getInstances();
+        long updates = m_configAdmin.getUpdates();
+
+        reload();
+        assertEquals( before, getInstances() );
+        assertEquals( "unchanged instances are not updated", updates, m_configAdmin.getUpdates() );
+
+        m_area.write( "factories/f.properties", "instances=2\nkeys=name\nname.1=c\nname.2=b" );
+        reload();
+        assertEquals( before.keySet(), getInstances().keySet() );
+        assertEquals( "[c, b]", String.valueOf( getInstances().values() ) );
+    }
+
+    public void testTabularFactoryReloadKeepsItsConfigurations()
+        throws Exception
+    {
+        m_area.write( "factories/f.csv", "name\na\nb\nc" );
+        createFacade().addFileHandler( new TabularFileConfigurationHandler() );
+        m_facade.registerConfigurations( null, false );
+        Map<String, Object> before = getInstances();
+        assertEquals( 3, before.size() );
+
+        reload();
+        assertEquals( before, getInstances() );
+
+        m_area.write( "factories/f.csv", "name\na\nd" );
+        reload();
+        Map<String, Object> after = getInstances();
+        assertEquals( 2, after.size() );
+        assertTrue( before.keySet().containsAll( after.keySet() ) );
+        assertEquals( "[a, d]", String.valueOf( after.values() ) );
+    }
+
+    public void testAddedHandlerOnlyLoadsItsFiles()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        m_area.write( "services/b.json", "{ \"x\": \"b\" }" );
+        m_facade = new ConfigurationAdminFacade( m_area );
+        m_facade.addFileHandler( new PropertiesFileConfigurationHandler() );
+        m_facade.setConfigurationAdminService( m_configAdmin );
+        m_facade.registerConfigurations( null, false );
+        assertNull( get( "b", "x" ) );
+        long parsed = m_facade.getMetrics().getFilesParsed();
+
+        m_facade.addFileHandler( new JsonFileConfigurationHandler( new ConfigurationParseCache( 16 ) ) );
+
+        assertEquals( "b", get( "b", "x" ) );
+        assertEquals( parsed + 1, m_facade.getMetrics().getFilesParsed() );
+    }
+
+    public void testRemovedHandlerKeepsItsConfigurationsByDefault()
+        throws Exception
+    {
+        m_area.write( "services/a.json", "{ \"x\": \"1\" }" );
+        JsonFileConfigurationHandler handler = new JsonFileConfigurationHandler( new ConfigurationParseCache( 16 ) );
+        m_facade = new ConfigurationAdminFacade( m_area );
+        m_facade.addFileHandler( handler );
+        m_facade.setConfigurationAdminService( m_configAdmin );
+        m_facade.registerConfigurations( null, false );
+
+        m_facade.removeFileHandler( handler );
+
+        assertEquals( "1", get( "a", "x" ) );
+    }
+
+    public void testFileOfRemovedHandlerIsLoadedWithAnotherOne()
+        throws Exception
+    {
+        createDeletingFacade();
+        // the handler added last takes precedence
+        JsonFileConfigurationHandler handler = new JsonFileConfigurationHandler( new ConfigurationParseCache( 16 ) );
+        m_facade.addFileHandler( handler );
+        m_area.write( "services/a.json", "{ \"x\": \"2\" }" );
+
+        m_facade.removeFileHandler( handler );
+
+        assertEquals( "2", get( "a", "x" ) );
+    }
+
+    /**
+     * A properties handler that counts the files it parses, without the content and typed variants of the built-in
+     * one.
+     */
+    private static final class CountingHandler
+        implements IConfigurationFileHandler
+    {
+
+        private final IConfigurationFileHandler m_handler = new PropertiesFileConfigurationHandler();
+        private final AtomicInteger m_parsed = new AtomicInteger();
+
+        public String getServicePID( String fileName )
+        {
+            return m_handler.getServicePID( fileName );
+        }
+
+        public Properties handle( File file )
+        {
+            m_parsed.incrementAndGet();
+            return m_handler.handle( file );
+        }
+
+        public boolean canHandle( File file )
+        {
+            return m_handler.canHandle( file );
+        }
+
+        private void await( int parsed )
+            throws InterruptedException
+        {
+            for( int i = 0; i < 500 && m_parsed.get() < parsed; i++ )
+            {
+                Thread.sleep( 10 );
+            }
+            assertEquals( parsed, m_parsed.get() );
+        }
+    }
+
+    private CountingHandler createStagingFacade()
+    {
+        CountingHandler handler = new CountingHandler();
+        m_facade = new ConfigurationAdminFacade( m_area );
+        m_facade.addFileHandler( handler );
+        m_facade.stageConfigurations();
+        return handler;
+    }
+
+    public void testStagedFilesAreOnlyApplied()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        m_area.write( "services/b.properties", "x=b" );
+        CountingHandler handler = createStagingFacade();
+
+        m_facade.setConfigurationAdminService( m_configAdmin );
+        m_facade.registerConfigurations( null, false );
+
+        assertEquals( "a", get( "a", "x" ) );
+        assertEquals( "b", get( "b", "x" ) );
+        assertEquals( 2, handler.m_parsed.get() );
+    }
+
+    public void testFileChangedAfterStagingIsParsedAgain()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        m_area.write( "services/b.properties", "x=b" );
+        CountingHandler handler = createStagingFacade();
+        handler.await( 2 );
+
+        m_area.write( "services/b.properties", "x=c" );
+        m_facade.setConfigurationAdminService( m_configAdmin );
+        m_facade.registerConfigurations( null, false );
+
+        assertEquals( "a", get( "a", "x" ) );
+        assertEquals( "c", get( "b", "x" ) );
+        assertEquals( 3, handler.m_parsed.get() );
+    }
+
+    public void testStagedFilesAreDroppedAfterTheFirstPass()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        CountingHandler handler = createStagingFacade();
+        m_facade.setConfigurationAdminService( m_configAdmin );
+        m_facade.registerConfigurations( null, false );
+
+        m_area.write( "services/a.properties", "x=b" );
+        m_facade.registerConfigurations( null, false );
+
+        assertEquals( "b", get( "a", "x" ) );
+        assertEquals( 2, handler.m_parsed.get() );
+    }
+
+    public void testNothingIsStagedOnceTheConfigurationAdminIsSet()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        CountingHandler handler = new CountingHandler();
+        m_facade = new ConfigurationAdminFacade( m_area );
+        m_facade.addFileHandler( handler );
+        m_facade.setConfigurationAdminService( m_configAdmin );
+
+        m_facade.stageConfigurations();
+        Thread.sleep( 100 );
+
+        assertEquals( 0, handler.m_parsed.get() );
+    }
+
+    public void testUnchangedFilesAreNotLoadedAgain()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        m_area.write( "services/b.properties", "x=b" );
+        ConfigurationAdminFacade facade = createFacade();
+        facade.registerConfigurations( null, false );
+        long updates = m_configAdmin.getUpdates();
+
+        facade.registerConfigurations( null, false );
+
+        assertEquals( 2, facade.getMetrics().getFilesParsed() );
+        assertEquals( updates, m_configAdmin.getUpdates() );
+    }
+
+    public void testOnlyChangedFilesAreLoaded()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        m_area.write( "services/b.properties", "x=b" );
+        m_area.write( "services/c.properties", "x=c" );
+        ConfigurationAdminFacade facade = createFacade();
+        facade.registerConfigurations( null, false );
+
+        m_area.write( "services/a.properties", "x=A" );
+        m_area.delete( "services/b.properties" );
+        m_area.write( "services/d.properties", "x=d" );
+        facade.registerConfigurations( null, false );
+
+        assertEquals( "A", get( "a", "x" ) );
+        assertNull( get( "b", "x" ) );
+        assertEquals( "c", get( "c", "x" ) );
+        assertEquals( "d", get( "d", "x" ) );
+        assertEquals( 5, facade.getMetrics().getFilesParsed() );
+    }
+
+    public void testOverwriteLoadsUnchangedFile()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        m_area.write( "services/b.properties", "x=b" );
+        ConfigurationAdminFacade facade = createFacade();
+        facade.registerConfigurations( null, false );
+
+        facade.registerConfigurations( "a", true );
+
+        assertEquals( 3, facade.getMetrics().getFilesParsed() );
+    }
+
+    public void testUpdateReportsTheOutcomeOfEachServicePid()
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=a" );
+        m_area.write( "services/b.properties", "x=b" );
+        ConfigurationAdminFacade facade = createFacade();
+        facade.registerConfigurations( null, false );
+        m_area.write( "services/a.properties", "x=A" );
+        final Map<String, ConfigurationUpdateStatus> statuses = new LinkedHashMap<String, ConfigurationUpdateStatus>();
+
+        ConfigurationAdminFacade.UpdateListener listener = new ConfigurationAdminFacade.UpdateListener()
+        {
+
+            public void updated( String servicePid, ConfigurationUpdateStatus status )
+            {
+                statuses.put( servicePid, status );
+            }
+
+            public void failed( String servicePid, Exception failure )
+            {
+                fail( servicePid + " failed: " + failure );
+            }
+        };
+
+        facade.updateConfigurations( new HashSet<String>( Arrays.asList( "a", "b", "z" ) ), listener );
+
+        assertEquals( ConfigurationUpdateStatus.UPDATED, statuses.get( "a" ) );
+        assertEquals( ConfigurationUpdateStatus.UNCHANGED, statuses.get( "b" ) );
+        assertFalse( "a missing file is not reported", statuses.containsKey( "z" ) );
+        assertEquals( "A", get( "a", "x" ) );
+    }
+}
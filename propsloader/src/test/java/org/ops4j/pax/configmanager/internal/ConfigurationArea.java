@@ -0,0 +1,113 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * A configuration area in a temporary directory, with the framework properties of the facade under test. Each
+ * written file gets a modification time of its own well in the past, so its stat is never racy and a rewrite is
+ * always seen as a change.
+ */
+final class ConfigurationArea
+    implements ConfigurationAdminFacade.PropertyResolver
+{
+
+    private final File m_dir;
+    private final Properties m_properties;
+    private long m_lastModified;
+
+    ConfigurationArea()
+        throws IOException
+    {
+        m_dir = File.createTempFile( "confman", ".area" );
+        if( !m_dir.delete() || !m_dir.mkdirs() )
+        {
+            throw new IOException( "Can't create [" + m_dir + "]" );
+        }
+        m_properties = new Properties();
+        m_properties.setProperty( ConfigurationAdminFacade.BUNDLES_CONFIGURATION_LOCATION, m_dir.getAbsolutePath() );
+        // handler changes are applied in the calling thread
+        m_properties.setProperty( FileHandlerChangeQueue.BUNDLES_CONFIGURATION_HANDLER_SETTLE, "0" );
+        m_lastModified = System.currentTimeMillis() - 3600000;
+    }
+
+    public String getProperty( String key )
+    {
+        return m_properties.getProperty( key );
+    }
+
+    void setProperty( String key, String value )
+    {
+        m_properties.setProperty( key, value );
+    }
+
+    File getFile( String path )
+    {
+        return new File( m_dir, path );
+    }
+
+    /**
+     * Writes {@code content} to the file at {@code path}, relative to the area, e.g. {@code services/a.properties}.
+     */
+    File write( String path, String content )
+        throws IOException
+    {
+        File file = getFile( path );
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content.getBytes( "UTF-8" ) );
+        } finally
+        {
+            out.close();
+        }
+        m_lastModified += 10000;
+        file.setLastModified( m_lastModified );
+        return file;
+    }
+
+    void delete( String path )
+    {
+        getFile( path ).delete();
+    }
+
+    /**
+     * Deletes the area.
+     */
+    void dispose()
+    {
+        delete( m_dir );
+    }
+
+    private static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if( children != null )
+        {
+            for( File child : children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class ConfigurationInterpolatorTest extends TestCase
+{
+
+    private Properties m_frameworkProperties;
+    private ConfigurationInterpolator m_interpolator;
+
+    @Override
+    protected void setUp()
+    {
+        m_frameworkProperties = new Properties();
+        ConfigurationAdminFacade.PropertyResolver resolver = new ConfigurationAdminFacade.PropertyResolver()
+        {
+
+            public String getProperty( String key )
+            {
+                return m_frameworkProperties.getProperty( key );
+            }
+        };
+        m_interpolator = new ConfigurationInterpolator( new ConfigurationFileIndex(), resolver );
+    }
+
+    private static Properties properties( Object... keysAndValues )
+    {
+        Properties properties = new Properties();
+        for( int i = 0; i < keysAndValues.length; i += 2 )
+        {
+            properties.put( keysAndValues[ i ], keysAndValues[ i + 1 ] );
+        }
+        return properties;
+    }
+
+    private Object resolve( String servicePid, Properties properties, String key )
+    {
+        return m_interpolator.resolve( servicePid, false, properties ).get( key );
+    }
+
+    public void testFrameworkAndSystemProperties()
+    {
+        m_frameworkProperties.setProperty( "host", "example.org" );
+        System.setProperty( "confman.test.port", "8080" );
+        try
+        {
+            assertEquals( "http://example.org:8080/",
+                          resolve( "a", properties( "url", "http://${host}:${confman.test.port}/" ), "url" ) );
+        } finally
+        {
+            System.clearProperty( "confman.test.port" );
+        }
+    }
+
+    public void testUnresolvedAndEscapedReferencesAreKept()
+    {
+        Properties properties = properties( "x", "${undefined}", "y", "$${host}" );
+        m_frameworkProperties.setProperty( "host", "example.org" );
+
+        assertEquals( "${undefined}", resolve( "a", properties, "x" ) );
+        assertEquals( "${host}", resolve( "a", properties, "y" ) );
+    }
+
+    public void testUnchangedPropertiesAreReturnedAsTheyAre()
+    {
+        Properties properties = properties( "x", "1" );
+
+        assertSame( properties, m_interpolator.resolve( "a", false, properties ) );
+    }
+
+    public void testReferencesToConfigurationsKeepTheirType()
+    {
+        m_interpolator.resolve( "b", false, properties( "port", Integer.valueOf( 8080 ) ) );
+        Properties a = properties( "port", "${b#port}", "url", "http://localhost:${b#port}", "copy", "${#port}" );
+
+        assertEquals( Integer.valueOf( 8080 ), resolve( "a", a, "port" ) );
+        assertEquals( "http://localhost:8080", resolve( "a", a, "url" ) );
+        assertEquals( Integer.valueOf( 8080 ), resolve( "a", a, "copy" ) );
+    }
+
+    public void testResolvedValuesAreKept()
+    {
+        Properties properties = properties( "x", "${#y}", "y", "1" );
+
+        Properties resolved = m_interpolator.resolve( "a", false, properties );
+
+        assertSame( resolved, m_interpolator.resolve( "a", false, properties ) );
+        assertTrue( m_interpolator.takeStale().isEmpty() );
+    }
+
+    public void testCycleWithinConfigurationFails()
+    {
+        try
+        {
+            m_interpolator.resolve( "a", false, properties( "x", "${#y}", "y", "${#x}" ) );
+            fail( "A cyclic reference should fail." );
+        } catch( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+
+    public void testCycleBetweenConfigurationsFails()
+    {
+        m_interpolator.resolve( "b", false, properties( "x", "1" ) );
+        m_interpolator.resolve( "a", false, properties( "x", "${b#x}" ) );
+
+        try
+        {
+            m_interpolator.resolve( "b", false, properties( "x", "${a#x}" ) );
+            fail( "A cyclic reference should fail." );
+        } catch( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+
+    public void testChangedConfigurationMakesItsDependentsStale()
+    {
+        m_interpolator.resolve( "b", false, properties( "x", "1" ) );
+        Properties a = properties( "x", "${b#x}" );
+        Properties c = properties( "x", "${a#x}" );
+        Properties d = properties( "x", "2" );
+        assertEquals( "1", resolve( "a", a, "x" ) );
+        assertEquals( "1", resolve( "c", c, "x" ) );
+        resolve( "d", d, "x" );
+
+        m_interpolator.resolve( "b", false, properties( "x", "3" ) );
+
+        assertEquals( Arrays.asList( "a", "c" ), m_interpolator.takeStale() );
+        assertEquals( Collections.emptyList(), m_interpolator.takeStale() );
+        assertEquals( "the stale values are resolved again", "3", resolve( "a", a, "x" ) );
+        assertEquals( "3", resolve( "c", c, "x" ) );
+    }
+
+    public void testDependentResolvedInTheSamePassIsNotStale()
+    {
+        m_interpolator.resolve( "b", false, properties( "x", "1" ) );
+        Properties a = properties( "x", "${b#x}" );
+        resolve( "a", a, "x" );
+
+        m_interpolator.resolve( "b", false, properties( "x", "2" ) );
+        assertEquals( "2", resolve( "a", a, "x" ) );
+
+        assertTrue( m_interpolator.takeStale().isEmpty() );
+    }
+
+    public void testRemovedConfigurationMakesItsDependentsStale()
+    {
+        m_interpolator.resolve( "b", false, properties( "x", "1" ) );
+        Properties a = properties( "x", "${b#x}" );
+        resolve( "a", a, "x" );
+
+        m_interpolator.remove( "b" );
+
+        assertEquals( Arrays.asList( "a" ), m_interpolator.takeStale() );
+        assertEquals( "${b#x}", resolve( "a", a, "x" ) );
+    }
+
+    public void testReferenceToMissingConfigurationIsResolvedOnceItShowsUp()
+    {
+        Properties a = properties( "x", "${b#x}" );
+        assertEquals( "${b#x}", resolve( "a", a, "x" ) );
+
+        m_interpolator.resolve( "b", false, properties( "x", "1" ) );
+
+        assertEquals( Arrays.asList( "a" ), m_interpolator.takeStale() );
+        assertEquals( "1", resolve( "a", a, "x" ) );
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+public class ConfigurationLoadPipelineTest extends TestCase
+{
+
+    private ConfigurationLoadPipeline m_pipeline;
+
+    @Override
+    protected void setUp()
+    {
+        m_pipeline = new ConfigurationLoadPipeline( 4 );
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        m_pipeline.dispose();
+    }
+
+    /**
+     * Returns parse tasks that take the longer the earlier they are, so the parallel results complete in reverse order.
+     */
+    private static List<Callable<String>> tasks( int count )
+    {
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for( int i = 0; i < count; i++ )
+        {
+            final String name = String.valueOf( i );
+            final long delay = count - i;
+            tasks.add( new Callable<String>()
+            {
+
+                public String call()
+                    throws InterruptedException
+                {
+                    Thread.sleep( delay );
+                    return name;
+                }
+            }
+            );
+        }
+        return tasks;
+    }
+
+    /**
+     * Records the committed results and the threads that commit them.
+     */
+    private static final class Recorder
+        implements ConfigurationLoadPipeline.Committer<String>
+    {
+
+        private final List<String> m_results = Collections.synchronizedList( new ArrayList<String>() );
+        private final List<Thread> m_threads = Collections.synchronizedList( new ArrayList<Thread>() );
+
+        public void commit( String result )
+        {
+            m_results.add( result );
+            m_threads.add( Thread.currentThread() );
+        }
+    }
+
+    private static List<String> names( int count )
+    {
+        List<String> names = new ArrayList<String>();
+        for( int i = 0; i < count; i++ )
+        {
+            names.add( String.valueOf( i ) );
+        }
+        return names;
+    }
+
+    public void testCommitsInTaskOrder()
+        throws Exception
+    {
+        Recorder recorder = new Recorder();
+
+        m_pipeline.run( tasks( 40 ), recorder );
+
+        assertEquals( names( 40 ), recorder.m_results );
+        for( Thread thread : recorder.m_threads )
+        {
+            assertSame( Thread.currentThread(), thread );
+        }
+    }
+
+    public void testSequentialPipelineCommitsInTaskOrder()
+        throws Exception
+    {
+        m_pipeline.dispose();
+        m_pipeline = new ConfigurationLoadPipeline( 0 );
+        Recorder recorder = new Recorder();
+
+        m_pipeline.run( tasks( 10 ), recorder );
+
+        assertEquals( 1, m_pipeline.getParallelism() );
+        assertEquals( names( 10 ), recorder.m_results );
+    }
+
+    public void testFailedTaskStopsTheRun()
+        throws Exception
+    {
+        List<Callable<String>> tasks = tasks( 20 );
+        tasks.set( 5, new Callable<String>()
+        {
+
+            public String call()
+                throws IOException
+            {
+                throw new IOException( "5" );
+            }
+        }
+        );
+        Recorder recorder = new Recorder();
+
+        try
+        {
+            m_pipeline.run( tasks, recorder );
+            fail( "The failure of a task should stop the run." );
+        } catch( IOException e )
+        {
+            assertEquals( "5", e.getMessage() );
+        }
+        assertEquals( names( 5 ), recorder.m_results );
+    }
+
+    public void testInvokeAllReturnsResultsInTaskOrder()
+        throws Exception
+    {
+        assertEquals( names( 12 ), m_pipeline.invokeAll( tasks( 12 ) ) );
+    }
+
+    public void testParallelismIsReadFromProperty()
+    {
+        final Properties properties = new Properties();
+        ConfigurationAdminFacade.PropertyResolver resolver = new ConfigurationAdminFacade.PropertyResolver()
+        {
+
+            public String getProperty( String key )
+            {
+                return properties.getProperty( key );
+            }
+        };
+
+        properties.setProperty( ConfigurationLoadPipeline.BUNDLES_CONFIGURATION_PARSE_THREADS, "3" );
+        ConfigurationLoadPipeline pipeline = ConfigurationLoadPipeline.create( resolver );
+        assertEquals( 3, pipeline.getParallelism() );
+        pipeline.dispose();
+
+        properties.setProperty( ConfigurationLoadPipeline.BUNDLES_CONFIGURATION_PARSE_THREADS, "three" );
+        pipeline = ConfigurationLoadPipeline.create( resolver );
+        assertEquals( Runtime.getRuntime().availableProcessors(), pipeline.getParallelism() );
+        pipeline.dispose();
+    }
+
+    /**
+     * Dependencies of results written as {@code name:dependency,dependency}.
+     */
+    private static final ConfigurationLoadPipeline.Dependencies<String> DEPENDENCIES =
+        new ConfigurationLoadPipeline.Dependencies<String>()
+        {
+
+            public String getName( String result )
+            {
+                int colon = result.indexOf( ':' );
+                return colon < 0 ? result : result.substring( 0, colon );
+            }
+
+            public Collection<String> getDependencies( String result )
+            {
+                int colon = result.indexOf( ':' );
+                return colon < 0 ? Collections.<String>emptyList()
+                                 : Arrays.asList( result.substring( colon + 1 ).split( "," ) );
+            }
+        };
+
+    private static List<Callable<String>> results( String... results )
+    {
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for( final String result : results )
+        {
+            tasks.add( new Callable<String>()
+            {
+
+                public String call()
+                {
+                    return result;
+                }
+            }
+            );
+        }
+        return tasks;
+    }
+
+    private List<String> run( String... results )
+        throws Exception
+    {
+        Recorder recorder = new Recorder();
+        m_pipeline.run( results( results ), recorder, DEPENDENCIES );
+        return recorder.m_results;
+    }
+
+    public void testDependentIsCommittedAfterItsDependency()
+        throws Exception
+    {
+        assertEquals( Arrays.asList( "a", "c", "b:a" ), run( "b:a", "a", "c" ) );
+    }
+
+    public void testCommittedDependencyIsNotWaitedFor()
+        throws Exception
+    {
+        assertEquals( Arrays.asList( "a", "b:a", "c" ), run( "a", "b:a", "c" ) );
+    }
+
+    public void testUnknownDependencyIsIgnored()
+        throws Exception
+    {
+        assertEquals( Arrays.asList( "a", "b:x" ), run( "b:x", "a" ) );
+    }
+
+    public void testWavesFollowTheDependencies()
+        throws Exception
+    {
+        assertEquals( Arrays.asList( "a", "b:a", "c:b", "d:a,c" ), run( "d:a,c", "c:b", "b:a", "a" ) );
+    }
+
+    public void testWaveIsCommittedConcurrently()
+        throws Exception
+    {
+        Recorder recorder = new Recorder();
+
+        m_pipeline.run( results( "b:a", "c:a", "d:a", "a" ), recorder, DEPENDENCIES );
+
+        assertEquals( "a", recorder.m_results.get( 0 ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "b:a", "c:a", "d:a" ) ),
+                      new HashSet<String>( recorder.m_results.subList( 1, 4 ) ) );
+        for( Thread thread : recorder.m_threads.subList( 1, 4 ) )
+        {
+            assertNotSame( "the wave runs on the parser threads", Thread.currentThread(), thread );
+        }
+    }
+
+    public void testWaveIsCommittedInOrderBySequentialPipeline()
+        throws Exception
+    {
+        m_pipeline.dispose();
+        m_pipeline = new ConfigurationLoadPipeline( 1 );
+
+        assertEquals( Arrays.asList( "a", "b:a", "c:a" ), run( "b:a", "c:a", "a" ) );
+    }
+
+    public void testCycleIsCommittedInTaskOrderAfterTheOthers()
+        throws Exception
+    {
+        assertEquals( Arrays.asList( "c", "d:c", "a:b", "b:a", "e:a" ), run( "a:b", "b:a", "c", "d:c", "e:a" ) );
+    }
+}
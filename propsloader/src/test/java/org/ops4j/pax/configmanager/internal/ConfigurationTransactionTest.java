@@ -0,0 +1,233 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+import org.ops4j.pax.configmanager.internal.handlers.PropertiesFileConfigurationHandler;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+
+public class ConfigurationTransactionTest extends TestCase
+{
+
+    private ConfigurationArea m_area;
+    private InMemoryConfigurationAdmin m_configAdmin;
+    private ConfigurationAdminFacade m_facade;
+
+    @Override
+    protected void setUp()
+        throws IOException
+    {
+        m_area = new ConfigurationArea();
+        m_area.setProperty( ConfigurationTransaction.BUNDLES_CONFIGURATION_TRANSACTIONAL, "true" );
+        m_configAdmin = new InMemoryConfigurationAdmin();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        if( m_facade != null )
+        {
+            m_facade.dispose();
+        }
+        m_area.dispose();
+    }
+
+    private static Dictionary<String, Object> properties( String key, Object value )
+    {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put( key, value );
+        return properties;
+    }
+
+    private Object get( String pid, String key )
+        throws IOException, InvalidSyntaxException
+    {
+        Configuration[] configs = m_configAdmin.listConfigurations( "(service.pid=" + pid + ")" );
+        if( configs == null )
+        {
+            return null;
+        }
+        Dictionary<?, ?> properties = configs[ 0 ].getProperties();
+        return properties == null ? null : properties.get( key );
+    }
+
+    /**
+     * Returns the number of configurations of the specified factory, without a query that may be made to fail.
+     */
+    private int countFactoryConfigurations( String factoryPid )
+        throws IOException, InvalidSyntaxException
+    {
+        Configuration[] configs = m_configAdmin.listConfigurations( null );
+        int count = 0;
+        for( int i = 0; configs != null && i < configs.length; i++ )
+        {
+            if( factoryPid.equals( configs[ i ].getFactoryPid() ) )
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testRollbackUndoesChangesInReverseOrder()
+        throws Exception
+    {
+        m_configAdmin.getConfiguration( "a" ).update( properties( "x", "1" ) );
+        m_configAdmin.getConfiguration( "b" ).update( properties( "x", "1" ) );
+        ConfigurationTransaction transaction = new ConfigurationTransaction( m_configAdmin );
+
+        Configuration a = transaction.getConfiguration( "a" );
+        a.update( properties( "x", "2" ) );
+        a.update( properties( "x", "3" ) );
+        transaction.getConfiguration( "b" ).delete();
+        transaction.getConfiguration( "c" ).update( properties( "x", "1" ) );
+        transaction.createFactoryConfiguration( "f" ).update( properties( "x", "1" ) );
+        assertEquals( 5, transaction.size() );
+        assertNull( transaction.getFailure() );
+
+        assertEquals( 0, transaction.rollback() );
+        assertEquals( "1", get( "a", "x" ) );
+        assertEquals( "1", get( "b", "x" ) );
+        assertNull( get( "c", "x" ) );
+        assertEquals( 0, countFactoryConfigurations( "f" ) );
+        assertEquals( 0, transaction.size() );
+    }
+
+    public void testFailedCallsAreRemembered()
+        throws Exception
+    {
+        m_configAdmin.failUpdates( "f" );
+        m_configAdmin.failQueries( "g" );
+        ConfigurationTransaction transaction = new ConfigurationTransaction( m_configAdmin );
+
+        try
+        {
+            transaction.createFactoryConfiguration( "f" );
+            fail( "Creation should fail." );
+        } catch( IOException e )
+        {
+            assertSame( e, transaction.getFailure() );
+        }
+        Exception first = transaction.getFailure();
+        try
+        {
+            transaction.listConfigurations( "(service.factoryPid=g)" );
+            fail( "Query should fail." );
+        } catch( IOException e )
+        {
+            assertSame( first, transaction.getFailure() );
+        }
+    }
+
+    public void testRecordFailureOnlyAffectsTransactions()
+    {
+        ConfigurationTransaction transaction = new ConfigurationTransaction( m_configAdmin );
+        Exception failure = new IllegalArgumentException();
+
+        ConfigurationTransaction.recordFailure( m_configAdmin, failure );
+        ConfigurationTransaction.recordFailure( transaction, failure );
+
+        assertSame( failure, transaction.getFailure() );
+    }
+
+    /**
+     * Creates the facade with the properties handler, bound to the configuration admin service.
+     */
+    private ConfigurationAdminFacade createFacade()
+    {
+        m_facade = new ConfigurationAdminFacade( m_area );
+        m_facade.addFileHandler( new PropertiesFileConfigurationHandler() );
+        m_facade.setConfigurationAdminService( m_configAdmin );
+        return m_facade;
+    }
+
+    /**
+     * Applies a first pass, then changes {@code a} and writes {@code factory} for the next pass.
+     */
+    private ConfigurationAdminFacade prepareBatch( String factory )
+        throws Exception
+    {
+        m_area.write( "services/a.properties", "x=1" );
+        ConfigurationAdminFacade facade = createFacade();
+        facade.registerConfigurations( null, false );
+        m_area.write( "services/a.properties", "x=2" );
+        m_area.write( "factories/f.properties", factory );
+        return facade;
+    }
+
+    private void assertRolledBack( ConfigurationAdminFacade facade )
+        throws Exception
+    {
+        try
+        {
+            facade.registerConfigurations( null, false );
+            fail( "Batch should be rolled back." );
+        } catch( IOException e )
+        {
+            assertNotNull( e.getCause() );
+        }
+        assertEquals( "1", get( "a", "x" ) );
+        assertEquals( 0, countFactoryConfigurations( "f" ) );
+    }
+
+    public void testBatchRolledBackIfFactoryConfigurationCantBeCreated()
+        throws Exception
+    {
+        ConfigurationAdminFacade facade = prepareBatch( "instances=2\nkeys=name\nname.1=one\nname.2=two" );
+        m_configAdmin.failUpdates( "f" );
+
+        assertRolledBack( facade );
+    }
+
+    public void testBatchRolledBackIfFactoryConfigurationsCantBeListed()
+        throws Exception
+    {
+        ConfigurationAdminFacade facade = prepareBatch( "instances=2\nkeys=name\nname.1=one\nname.2=two" );
+        m_configAdmin.failQueries( "f" );
+
+        assertRolledBack( facade );
+    }
+
+    public void testBatchRejectedIfTemplateIsMalformed()
+        throws Exception
+    {
+        ConfigurationAdminFacade facade = prepareBatch( "instances=2\nkeys=name\nname.*=$[1+]" );
+        long updates = m_configAdmin.getUpdates();
+
+        assertRolledBack( facade );
+        assertEquals( updates, m_configAdmin.getUpdates() );
+    }
+
+    public void testBatchRetriedOnceTheFailureIsGone()
+        throws Exception
+    {
+        ConfigurationAdminFacade facade = prepareBatch( "instances=2\nkeys=name\nname.1=one\nname.2=two" );
+        m_configAdmin.failUpdates( "f" );
+        assertRolledBack( facade );
+
+        m_configAdmin = new InMemoryConfigurationAdmin();
+        facade.setConfigurationAdminService( m_configAdmin );
+        facade.registerConfigurations( null, false );
+
+        assertEquals( "2", get( "a", "x" ) );
+        assertEquals( 2, countFactoryConfigurations( "f" ) );
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * A {@code ConfigurationAdmin} that keeps its configurations in memory, so the tests and the benchmarks exercise the
+ * loader and not a persistence layer. It understands the filters the loader uses, i.e. {@code null},
+ * {@code (key=value)} comparisons and their {@code &}, {@code |} and {@code !} combinations, and counts the updates it
+ * receives.
+ */
+final class InMemoryConfigurationAdmin
+    implements ConfigurationAdmin
+{
+
+    private final Map<String, InMemoryConfiguration> m_configurations;
+    private final AtomicLong m_updates;
+    private final Set<String> m_failingUpdates;
+    private final Set<String> m_failingQueries;
+    private long m_factorySequence;
+
+    InMemoryConfigurationAdmin()
+    {
+        m_configurations = new LinkedHashMap<String, InMemoryConfiguration>();
+        m_updates = new AtomicLong();
+        m_failingUpdates = new HashSet<String>();
+        m_failingQueries = new HashSet<String>();
+    }
+
+    /**
+     * Makes the creation, update and deletion of the configurations with the specified pid or factory pid fail.
+     */
+    synchronized void failUpdates( String pid )
+    {
+        m_failingUpdates.add( pid );
+    }
+
+    /**
+     * Makes the queries for the configuration with the specified pid, or for the configurations of the factory with
+     * the specified pid, fail.
+     */
+    synchronized void failQueries( String pid )
+    {
+        m_failingQueries.add( pid );
+    }
+
+    private synchronized void checkUpdate( String pid, String factoryPid )
+        throws IOException
+    {
+        if( m_failingUpdates.contains( pid ) || ( factoryPid != null && m_failingUpdates.contains( factoryPid ) ) )
+        {
+            throw new IOException( "Update of [" + pid + "] failed." );
+        }
+    }
+
+    public Configuration createFactoryConfiguration( String factoryPid )
+        throws IOException
+    {
+        return createFactoryConfiguration( factoryPid, null );
+    }
+
+    public synchronized Configuration createFactoryConfiguration( String factoryPid, String location )
+        throws IOException
+    {
+        checkUpdate( factoryPid, null );
+        InMemoryConfiguration configuration =
+            new InMemoryConfiguration( factoryPid + "." + ( m_factorySequence++ ) + ".generated", factoryPid );
+        m_configurations.put( configuration.getPid(), configuration );
+        return configuration;
+    }
+
+    public Configuration getConfiguration( String pid, String location )
+        throws IOException
+    {
+        return getConfiguration( pid );
+    }
+
+    public synchronized Configuration getConfiguration( String pid )
+        throws IOException
+    {
+        if( m_failingQueries.contains( pid ) )
+        {
+            throw new IOException( "Query of [" + pid + "] failed." );
+        }
+        InMemoryConfiguration configuration = m_configurations.get( pid );
+        if( configuration == null )
+        {
+            configuration = new InMemoryConfiguration( pid, null );
+            m_configurations.put( pid, configuration );
+        }
+        return configuration;
+    }
+
+    public synchronized Configuration[] listConfigurations( String filter )
+        throws IOException, InvalidSyntaxException
+    {
+        for( String pid : m_failingQueries )
+        {
+            if( filter != null && filter.contains( "=" + pid + ")" ) )
+            {
+                throw new IOException( "Query of [" + pid + "] failed." );
+            }
+        }
+        List<Configuration> result = new ArrayList<Configuration>();
+        if( filter == null )
+        {
+            for( InMemoryConfiguration configuration : m_configurations.values() )
+            {
+                if( configuration.m_properties != null )
+                {
+                    result.add( configuration );
+                }
+            }
+        }
+        else
+        {
+            Filter parsed = Filter.parse( filter );
+            String pid = parsed.getValue( Constants.SERVICE_PID );
+            if( pid != null )
+            {
+                InMemoryConfiguration configuration = m_configurations.get( pid );
+                if( configuration != null && configuration.m_properties != null )
+                {
+                    result.add( configuration );
+                }
+            }
+            else
+            {
+                for( InMemoryConfiguration configuration : m_configurations.values() )
+                {
+                    Dictionary<?, ?> properties = configuration.m_properties;
+                    if( properties != null && parsed.matches( properties ) )
+                    {
+                        result.add( configuration );
+                    }
+                }
+            }
+        }
+        return result.isEmpty() ? null : result.toArray( new Configuration[result.size()] );
+    }
+
+    /**
+     * Returns the number of {@code Configuration.update} calls received.
+     */
+    long getUpdates()
+    {
+        return m_updates.get();
+    }
+
+    synchronized int size()
+    {
+        return m_configurations.size();
+    }
+
+    /**
+     * A parsed filter. The {@code (key=value)} comparisons of an {@code |} are grouped by key, so a query for the
+     * configurations of many instances stays cheap.
+     */
+    private static final class Filter
+    {
+
+        private final char m_operator;
+        private final List<Filter> m_operands;
+        private final Map<String, Set<String>> m_values;
+
+        private Filter( char operator )
+        {
+            m_operator = operator;
+            m_operands = new ArrayList<Filter>();
+            m_values = new HashMap<String, Set<String>>();
+        }
+
+        static Filter parse( String filter )
+            throws InvalidSyntaxException
+        {
+            int[] position = new int[1];
+            Filter parsed = parse( filter, position );
+            if( position[ 0 ] != filter.length() )
+            {
+                throw new InvalidSyntaxException( "Unsupported filter", filter );
+            }
+            return parsed;
+        }
+
+        private static Filter parse( String filter, int[] position )
+            throws InvalidSyntaxException
+        {
+            int start = position[ 0 ];
+            if( start + 1 >= filter.length() || filter.charAt( start ) != '(' )
+            {
+                throw new InvalidSyntaxException( "Unsupported filter", filter );
+            }
+            char operator = filter.charAt( start + 1 );
+            if( operator == '&' || operator == '|' || operator == '!' )
+            {
+                Filter parsed = new Filter( operator );
+                position[ 0 ] = start + 2;
+                while( position[ 0 ] < filter.length() && filter.charAt( position[ 0 ] ) == '(' )
+                {
+                    parsed.add( parse( filter, position ) );
+                }
+                if( position[ 0 ] >= filter.length() || ( operator == '!' && parsed.m_operands.size() != 1 ) )
+                {
+                    throw new InvalidSyntaxException( "Unsupported filter", filter );
+                }
+                position[ 0 ]++;
+                return parsed;
+            }
+
+            StringBuilder key = new StringBuilder();
+            StringBuilder value = null;
+            for( int i = start + 1; i < filter.length(); i++ )
+            {
+                char c = filter.charAt( i );
+                if( c == ')' )
+                {
+                    if( value == null )
+                    {
+                        break;
+                    }
+                    position[ 0 ] = i + 1;
+                    Filter parsed = new Filter( '=' );
+                    parsed.m_values.put( key.toString(), new HashSet<String>( Collections.singleton(
+                        value.toString() ) ) );
+                    return parsed;
+                }
+                if( c == '\\' && i + 1 < filter.length() )
+                {
+                    c = filter.charAt( ++i );
+                }
+                else if( c == '=' && value == null )
+                {
+                    value = new StringBuilder();
+                    continue;
+                }
+                ( value == null ? key : value ).append( c );
+            }
+            throw new InvalidSyntaxException( "Unsupported filter", filter );
+        }
+
+        private void add( Filter operand )
+        {
+            if( m_operator == '|' && operand.m_operator == '=' )
+            {
+                Map.Entry<String, Set<String>> comparison = operand.m_values.entrySet().iterator().next();
+                Set<String> values = m_values.get( comparison.getKey() );
+                if( values == null )
+                {
+                    m_values.put( comparison.getKey(), comparison.getValue() );
+                }
+                else
+                {
+                    values.addAll( comparison.getValue() );
+                }
+            }
+            else
+            {
+                m_operands.add( operand );
+            }
+        }
+
+        /**
+         * Returns the value of a single {@code (key=value)} comparison with the specified {@code key}, or
+         * {@code null} if this is not such a comparison.
+         */
+        String getValue( String key )
+        {
+            Set<String> values = m_values.get( key );
+            return m_operator == '=' && values != null ? values.iterator().next() : null;
+        }
+
+        boolean matches( Dictionary<?, ?> properties )
+        {
+            switch( m_operator )
+            {
+                case '&':
+                    for( Filter operand : m_operands )
+                    {
+                        if( !operand.matches( properties ) )
+                        {
+                            return false;
+                        }
+                    }
+                    return true;
+                case '!':
+                    return !m_operands.get( 0 ).matches( properties );
+                case '|':
+                    for( Filter operand : m_operands )
+                    {
+                        if( operand.matches( properties ) )
+                        {
+                            return true;
+                        }
+                    }
+                    return matchesValue( properties );
+                default:
+                    return matchesValue( properties );
+            }
+        }
+
+        private boolean matchesValue( Dictionary<?, ?> properties )
+        {
+            for( Map.Entry<String, Set<String>> comparison : m_values.entrySet() )
+            {
+                Object value = properties.get( comparison.getKey() );
+                if( value != null && comparison.getValue().contains( String.valueOf( value ) ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final class InMemoryConfiguration
+        implements Configuration
+    {
+
+        private final String m_pid;
+        private final String m_factoryPid;
+        private volatile Hashtable<Object, Object> m_properties;
+        private volatile String m_location;
+
+        private InMemoryConfiguration( String pid, String factoryPid )
+        {
+            m_pid = pid;
+            m_factoryPid = factoryPid;
+        }
+
+        public String getPid()
+        {
+            return m_pid;
+        }
+
+        public String getFactoryPid()
+        {
+            return m_factoryPid;
+        }
+
+        public Dictionary<?, ?> getProperties()
+        {
+            Hashtable<Object, Object> properties = m_properties;
+            return properties == null ? null : new Hashtable<Object, Object>( properties );
+        }
+
+        // the configuration admin API of this release is not generic, the override has to take the raw type
+        @SuppressWarnings( "rawtypes" )
+        public void update( Dictionary properties )
+            throws IOException
+        {
+            checkUpdate( m_pid, m_factoryPid );
+            Hashtable<Object, Object> copy = new Hashtable<Object, Object>();
+            for( Enumeration<?> keys = properties.keys(); keys.hasMoreElements(); )
+            {
+                Object key = keys.nextElement();
+                copy.put( key, properties.get( key ) );
+            }
+            copy.put( Constants.SERVICE_PID, m_pid );
+            if( m_factoryPid != null )
+            {
+                copy.put( ConfigurationAdmin.SERVICE_FACTORYPID, m_factoryPid );
+            }
+            m_properties = copy;
+            m_updates.incrementAndGet();
+        }
+
+        public void update()
+        {
+        }
+
+        public void delete()
+            throws IOException
+        {
+            checkUpdate( m_pid, m_factoryPid );
+            synchronized( InMemoryConfigurationAdmin.this )
+            {
+                m_configurations.remove( m_pid );
+            }
+        }
+
+        public void setBundleLocation( String location )
+        {
+            m_location = location;
+        }
+
+        public String getBundleLocation()
+        {
+            return m_location;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class InstanceTemplateTest extends TestCase
+{
+
+    private Properties m_properties;
+
+    @Override
+    protected void setUp()
+    {
+        m_properties = new Properties();
+    }
+
+    private Object expand( String value, int instance )
+    {
+        m_properties.put( "key.*", value );
+        return new InstanceTemplate( new String[]{ "key" }, m_properties ).getInstance( instance ).get( "key" );
+    }
+
+    public void testDefaultIsSharedByAllInstances()
+    {
+        m_properties.put( "host.*", "localhost" );
+        InstanceTemplate template = new InstanceTemplate( new String[]{ "host" }, m_properties );
+
+        assertEquals( "localhost", template.getInstance( 1 ).get( "host" ) );
+        assertEquals( "localhost", template.getInstance( 100 ).get( "host" ) );
+    }
+
+    public void testOverrideTakesPrecedenceOverDefault()
+    {
+        m_properties.put( "host.*", "localhost" );
+        m_properties.put( "host.7", "remote-${i}" );
+        InstanceTemplate template = new InstanceTemplate( new String[]{ "host" }, m_properties );
+
+        assertEquals( "localhost", template.getInstance( 6 ).get( "host" ) );
+        assertEquals( "remote-7", template.getInstance( 7 ).get( "host" ) );
+    }
+
+    public void testKeyWithoutValueIsLeftOut()
+    {
+        m_properties.put( "name.2", "b" );
+        InstanceTemplate template = new InstanceTemplate( new String[]{ "name" }, m_properties );
+
+        assertTrue( template.getInstance( 1 ).isEmpty() );
+        assertEquals( "b", template.getInstance( 2 ).get( "name" ) );
+    }
+
+    public void testNonStringDefaultIsKept()
+    {
+        m_properties.put( "port.*", Integer.valueOf( 80 ) );
+        InstanceTemplate template = new InstanceTemplate( new String[]{ "port" }, m_properties );
+
+        assertEquals( Integer.valueOf( 80 ), template.getInstance( 3 ).get( "port" ) );
+    }
+
+    public void testIndexIsSubstitutedAsText()
+    {
+        assertEquals( "node-12", expand( "node-${i}", 12 ) );
+        assertEquals( "12", expand( "${i}", 12 ) );
+    }
+
+    public void testPaddedIndexStaysString()
+    {
+        assertEquals( "001", expand( "00${i}", 1 ) );
+    }
+
+    public void testDashedIndexStaysString()
+    {
+        assertEquals( "10-1", expand( "10-${i}", 1 ) );
+    }
+
+    public void testSlashedIndexStaysString()
+    {
+        assertEquals( "1/2", expand( "${i}/2", 1 ) );
+    }
+
+    public void testArithmeticWithoutExpressionStaysString()
+    {
+        assertEquals( "9000+1", expand( "9000+${i}", 1 ) );
+    }
+
+    public void testExpressionBecomesInteger()
+    {
+        assertEquals( Integer.valueOf( 9001 ), expand( "$[9000+${i}]", 1 ) );
+        assertEquals( Integer.valueOf( -14 ), expand( "$[ -( ${i} + 4 ) * 2 ]", 3 ) );
+        assertEquals( Integer.valueOf( 1 ), expand( "$[${i} % 4]", 5 ) );
+    }
+
+    public void testLargeExpressionBecomesLong()
+    {
+        assertEquals( Long.valueOf( 3000000001L ), expand( "$[3000000000+${i}]", 1 ) );
+    }
+
+    public void testEmbeddedExpressionIsReplacedByItsResult()
+    {
+        assertEquals( "node-6-b", expand( "node-$[${i}*2]-b", 3 ) );
+        assertEquals( "1:2", expand( "$[${i}]:$[${i}+1]", 1 ) );
+    }
+
+    public void testExpressionWithoutIndex()
+    {
+        assertEquals( Integer.valueOf( 7 ), expand( "$[3+4]", 1 ) );
+    }
+
+    public void testMalformedExpressionIsRejected()
+    {
+        assertRejected( "$[${i}" );
+        assertRejected( "$[${i}+]" );
+        assertRejected( "$[${i}/0]" );
+        assertRejected( "$[abc]" );
+    }
+
+    private void assertRejected( String value )
+    {
+        try
+        {
+            expand( value, 1 );
+            fail( "Expression [" + value + "] must be rejected." );
+        } catch( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+}
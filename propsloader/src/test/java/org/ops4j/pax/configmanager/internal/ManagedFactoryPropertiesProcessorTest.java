@@ -0,0 +1,154 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import org.osgi.service.cm.Configuration;
+
+public class ManagedFactoryPropertiesProcessorTest extends TestCase
+{
+
+    private InMemoryConfigurationAdmin m_configAdmin;
+    private ManagedFactoryPropertiesProcessor m_processor;
+
+    @Override
+    protected void setUp()
+    {
+        m_configAdmin = new InMemoryConfigurationAdmin();
+        m_processor = new ManagedFactoryPropertiesProcessor();
+    }
+
+    private static Properties factory( Object keys, String... names )
+    {
+        Properties prop = new Properties();
+        prop.put( "instances", String.valueOf( names.length ) );
+        prop.put( "keys", keys );
+        for( int i = 0; i < names.length; i++ )
+        {
+            prop.put( "name." + ( i + 1 ), names[ i ] );
+        }
+        return prop;
+    }
+
+    /**
+     * Returns the names of the configurations of factory {@code f} by their pid.
+     */
+    private Map<String, Object> names()
+        throws Exception
+    {
+        Map<String, Object> names = new TreeMap<String, Object>();
+        Configuration[] configs = m_configAdmin.listConfigurations( "(service.factoryPid=f)" );
+        for( int i = 0; configs != null && i < configs.length; i++ )
+        {
+            names.put( configs[ i ].getPid(), configs[ i ].getProperties().get( "name" ) );
+        }
+        return names;
+    }
+
+    public void testKeysAsString()
+        throws Exception
+    {
+        assertTrue( m_processor.process( m_configAdmin, "f", factory( "name", "a", "b" ) ) );
+
+        assertEquals( "[a, b]", String.valueOf( names().values() ) );
+    }
+
+    public void testKeysAsList()
+        throws Exception
+    {
+        assertTrue( m_processor.process( m_configAdmin, "f", factory( Arrays.asList( "name" ), "a", "b" ) ) );
+
+        assertEquals( "[a, b]", String.valueOf( names().values() ) );
+    }
+
+    public void testKeysAsArray()
+        throws Exception
+    {
+        assertTrue( m_processor.process( m_configAdmin, "f", factory( new Object[]{ "name" }, "a" ) ) );
+
+        assertEquals( "[a]", String.valueOf( names().values() ) );
+    }
+
+    public void testKeysOfOtherTypeAreIgnored()
+        throws Exception
+    {
+        Properties prop = factory( Integer.valueOf( 1 ), "a" );
+
+        assertFalse( m_processor.validate( prop ) );
+        assertFalse( m_processor.process( m_configAdmin, "f", prop ) );
+        assertEquals( 0, m_configAdmin.size() );
+    }
+
+    public void testReloadKeepsTheConfigurationOfEachInstance()
+        throws Exception
+    {
+        m_processor.process( m_configAdmin, "f", factory( "name", "a", "b" ) );
+        Map<String, Object> before = names();
+
+        // a new processor has to find the configurations by their instance key
+        m_processor = new ManagedFactoryPropertiesProcessor();
+        assertTrue( m_processor.process( m_configAdmin, "f", factory( "name", "c", "b" ) ) );
+
+        Map<String, Object> after = names();
+        assertEquals( before.keySet(), after.keySet() );
+        assertEquals( "[c, b]", String.valueOf( after.values() ) );
+    }
+
+    public void testUnchangedInstancesAreNotUpdated()
+        throws Exception
+    {
+        m_processor.process( m_configAdmin, "f", factory( "name", "a", "b" ) );
+        long updates = m_configAdmin.getUpdates();
+
+        assertFalse( m_processor.process( m_configAdmin, "f", factory( "name", "a", "b" ) ) );
+
+        assertEquals( updates, m_configAdmin.getUpdates() );
+    }
+
+    public void testSurplusConfigurationsAreDeleted()
+        throws Exception
+    {
+        m_processor.process( m_configAdmin, "f", factory( "name", "a", "b", "c" ) );
+        String first = names().keySet().iterator().next();
+
+        assertTrue( m_processor.process( m_configAdmin, "f", factory( "name", "a" ) ) );
+
+        assertEquals( "{" + first + "=a}", String.valueOf( names() ) );
+    }
+
+    public void testConfigurationWithoutInstanceKeyIsAdopted()
+        throws Exception
+    {
+        Dictionary<String, Object> legacy = new Hashtable<String, Object>();
+        legacy.put( "name", "b" );
+        Configuration conf = m_configAdmin.createFactoryConfiguration( "f" );
+        conf.update( legacy );
+
+        m_processor.process( m_configAdmin, "f", factory( "name", "a", "b" ) );
+
+        Map<String, Object> names = names();
+        assertEquals( 2, names.size() );
+        assertEquals( "b", names.get( conf.getPid() ) );
+        assertEquals( "2", conf.getProperties().get( ManagedFactoryPropertiesProcessor.CONFIGURATION_INSTANCE ) );
+    }
+}
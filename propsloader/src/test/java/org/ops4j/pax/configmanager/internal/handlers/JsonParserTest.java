@@ -0,0 +1,186 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class JsonParserTest extends TestCase
+{
+
+    private static Properties parse( String json )
+        throws IOException
+    {
+        Properties properties = new Properties();
+        JsonParser.parse( new StringReader( json ), new PropertiesFlattener( properties ) );
+        return properties;
+    }
+
+    private static void assertMalformed( String json )
+        throws IOException
+    {
+        try
+        {
+            parse( json );
+            fail( "[" + json + "] must be rejected." );
+        } catch( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+
+    public void testNestedObjectsAreFlattened()
+        throws IOException
+    {
+        Properties properties = parse( "{\"db\": {\"host\": \"h\", \"pool\": {\"size\": 5}}, \"name\": \"x\"}" );
+
+        assertEquals( 3, properties.size() );
+        assertEquals( "h", properties.get( "db.host" ) );
+        assertEquals( Integer.valueOf( 5 ), properties.get( "db.pool.size" ) );
+        assertEquals( "x", properties.get( "name" ) );
+    }
+
+    public void testEmptyDocument()
+        throws IOException
+    {
+        assertTrue( parse( " { } " ).isEmpty() );
+    }
+
+    public void testArraysOfScalarsAreTyped()
+        throws IOException
+    {
+        Properties properties = parse( "{\"i\": [1, 2], \"d\": [1, 2.5], \"s\": [1, \"x\"], \"b\": [true, false],"
+                                       + " \"l\": [1, 4294967296], \"e\": []}" );
+
+        assertTrue( properties.get( "i" ) instanceof Integer[] );
+        assertTrue( properties.get( "d" ) instanceof Double[] );
+        assertEquals( Double.valueOf( 1 ), ( (Double[]) properties.get( "d" ) )[ 0 ] );
+        assertTrue( properties.get( "s" ) instanceof String[] );
+        assertEquals( "1", ( (String[]) properties.get( "s" ) )[ 0 ] );
+        assertTrue( properties.get( "b" ) instanceof Boolean[] );
+        assertTrue( properties.get( "l" ) instanceof Long[] );
+        assertEquals( 0, ( (String[]) properties.get( "e" ) ).length );
+    }
+
+    public void testArraysOfObjectsAreIndexed()
+        throws IOException
+    {
+        Properties properties = parse( "{\"servers\": [{\"host\": \"a\"}, {\"host\": \"b\", \"port\": 1}],"
+                                       + " \"m\": [[1], [2, 3]]}" );
+
+        assertEquals( "a", properties.get( "servers.0.host" ) );
+        assertEquals( "b", properties.get( "servers.1.host" ) );
+        assertEquals( Integer.valueOf( 1 ), properties.get( "servers.1.port" ) );
+        assertEquals( 1, ( (Integer[]) properties.get( "m.0" ) ).length );
+        assertEquals( 2, ( (Integer[]) properties.get( "m.1" ) ).length );
+    }
+
+    public void testNullIsLeftOut()
+        throws IOException
+    {
+        Properties properties = parse( "{\"a\": null, \"b\": [null, 1]}" );
+
+        assertFalse( properties.containsKey( "a" ) );
+        assertEquals( 1, ( (Integer[]) properties.get( "b" ) ).length );
+    }
+
+    public void testNumbers()
+        throws IOException
+    {
+        Properties properties = parse( "{\"i\": -2147483648, \"l\": 2147483648, \"b\": 99999999999999999999,"
+                                       + " \"d\": 1.5, \"e\": -2E3, \"f\": 1e-2, \"z\": 0, \"n\": -0.5}" );
+
+        assertEquals( Integer.valueOf( Integer.MIN_VALUE ), properties.get( "i" ) );
+        assertEquals( Long.valueOf( 2147483648L ), properties.get( "l" ) );
+        assertEquals( new BigInteger( "99999999999999999999" ), properties.get( "b" ) );
+        assertEquals( Double.valueOf( 1.5 ), properties.get( "d" ) );
+        assertEquals( Double.valueOf( -2000 ), properties.get( "e" ) );
+        assertEquals( Double.valueOf( 0.01 ), properties.get( "f" ) );
+        assertEquals( Integer.valueOf( 0 ), properties.get( "z" ) );
+        assertEquals( Double.valueOf( -0.5 ), properties.get( "n" ) );
+    }
+
+    public void testMalformedNumbers()
+        throws IOException
+    {
+        assertMalformed( "{\"a\": 01}" );
+        assertMalformed( "{\"a\": -}" );
+        assertMalformed( "{\"a\": 1.}" );
+        assertMalformed( "{\"a\": 1e}" );
+        assertMalformed( "{\"a\": 1-2}" );
+        assertMalformed( "{\"a\": +1}" );
+        assertMalformed( "{\"a\": .5}" );
+    }
+
+    public void testLiterals()
+        throws IOException
+    {
+        Properties properties = parse( "{\"t\": true, \"f\": false}" );
+
+        assertEquals( Boolean.TRUE, properties.get( "t" ) );
+        assertEquals( Boolean.FALSE, properties.get( "f" ) );
+        assertMalformed( "{\"a\": tru}" );
+        assertMalformed( "{\"a\": True}" );
+    }
+
+    public void testStringEscapes()
+        throws IOException
+    {
+        Properties properties = parse( "{\"s\": \"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00e9\\u20AC\", \"k.x\": \"a:b=c\"}" );
+
+        assertEquals( "\"\\/\b\f\n\r\t\u00e9\u20ac", properties.get( "s" ) );
+        assertEquals( "a:b=c", properties.get( "k.x" ) );
+        assertMalformed( "{\"a\": \"\\x\"}" );
+        assertMalformed( "{\"a\": \"\\u00g1\"}" );
+    }
+
+    public void testDuplicateKeyKeepsLastValue()
+        throws IOException
+    {
+        assertEquals( Integer.valueOf( 2 ), parse( "{\"a\": 1, \"a\": 2}" ).get( "a" ) );
+    }
+
+    public void testMalformedDocuments()
+        throws IOException
+    {
+        assertMalformed( "" );
+        assertMalformed( "[1, 2]" );
+        assertMalformed( "\"a\"" );
+        assertMalformed( "{\"a\": 1" );
+        assertMalformed( "{\"a\": 1,}" );
+        assertMalformed( "{\"a\" 1}" );
+        assertMalformed( "{a: 1}" );
+        assertMalformed( "{'a': 1}" );
+        assertMalformed( "{\"a\": \"x}" );
+        assertMalformed( "{\"a\": [1, 2}" );
+        assertMalformed( "{\"a\": 1} x" );
+    }
+
+    public void testDeepNestingIsRejected()
+        throws IOException
+    {
+        StringBuilder json = new StringBuilder( "{\"a\": " );
+        for( int i = 0; i < 1000; i++ )
+        {
+            json.append( '[' );
+        }
+        assertMalformed( json.toString() );
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares {@code PropertiesFileParser} with {@code Properties.load}.
+ */
+public class PropertiesFileParserTest extends TestCase
+{
+
+    private File m_file;
+
+    @Override
+    protected void setUp()
+        throws IOException
+    {
+        m_file = File.createTempFile( "parser", ".properties" );
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        m_file.delete();
+    }
+
+    private Properties parse( byte[] content )
+        throws IOException
+    {
+        OutputStream out = new FileOutputStream( m_file );
+        try
+        {
+            out.write( content );
+        } finally
+        {
+            out.close();
+        }
+        Properties parsed = new Properties();
+        PropertiesFileParser.parse( m_file, parsed );
+        return parsed;
+    }
+
+    /**
+     * Asserts that {@code text} parses like {@code Properties.load} reads it from ISO-8859-1 bytes.
+     */
+    private void assertLikeProperties( String text )
+        throws IOException
+    {
+        byte[] content = text.getBytes( "ISO-8859-1" );
+        Properties expected = new Properties();
+        expected.load( new ByteArrayInputStream( content ) );
+        assertEquals( text, expected, parse( content ) );
+    }
+
+    public void testSeparators()
+        throws IOException
+    {
+        assertLikeProperties( "a=1\nb:2\nc 3\nd\t4\ne = 5\nf : 6\ng   =   7\nh =\ni\nj==\nk::x\n" );
+    }
+
+    public void testWhitespaceAroundKeysAndValues()
+        throws IOException
+    {
+        assertLikeProperties( "   a = 1   \n\t\fb=2\n c  \n" );
+    }
+
+    public void testComments()
+        throws IOException
+    {
+        assertLikeProperties( "# comment\n! comment\n  # indented\na=1 # not a comment\n\n\n#=x\n" );
+    }
+
+    public void testEscapes()
+        throws IOException
+    {
+        assertLikeProperties( "a=\\t\\n\\r\\f\\\\\\=\\:\\ \\x\n" );
+        assertLikeProperties( "k\\=ey=1\nk\\:ey:2\nk\\ ey 3\n\\#a=4\n" );
+        assertLikeProperties( "u=\\u0041\\u00e9\\u20AC\n\\u0062=key\n" );
+    }
+
+    public void testContinuations()
+        throws IOException
+    {
+        assertLikeProperties( "a=1,\\\n    2,\\\n\t3\nb=x\n" );
+        assertLikeProperties( "a=1\\\\\nb=2\n" );
+        assertLikeProperties( "a=1\\\\\\\n 2\n" );
+        assertLikeProperties( "key\\\n  part=value\n" );
+        assertLikeProperties( "a=\\\n\n b=1\n" );
+    }
+
+    public void testContinuationAtEndOfFile()
+        throws IOException
+    {
+        assertLikeProperties( "a=1\\" );
+        assertLikeProperties( "a=1\\\n" );
+    }
+
+    public void testLineTerminators()
+        throws IOException
+    {
+        assertLikeProperties( "a=1\r\nb=2\rc=3\n\r\nd=4\\\r\n  5\re=6\\\r  7" );
+    }
+
+    public void testEmptyInput()
+        throws IOException
+    {
+        assertLikeProperties( "" );
+        assertLikeProperties( "\n\n   \n" );
+    }
+
+    public void testLastKeyWins()
+        throws IOException
+    {
+        assertLikeProperties( "a=1\na=2\n" );
+    }
+
+    public void testMalformedUnicodeEscapeIsRejected()
+        throws IOException
+    {
+        try
+        {
+            parse( "a=\\u00g1\n".getBytes( "ISO-8859-1" ) );
+            fail( "Malformed unicode escape must be rejected." );
+        } catch( IllegalArgumentException e )
+        {
+            // expected, like Properties.load
+        }
+    }
+
+    public void testIso88591()
+        throws IOException
+    {
+        assertLikeProperties( "caf\u00e9=cr\u00e8me br\u00fbl\u00e9e\n" );
+    }
+
+    public void testUtf8IsDetected()
+        throws IOException
+    {
+        String text = "caf\u00e9=cr\u00e8me \u20ac\nk=\u65e5\u672c\n";
+        Properties expected = new Properties();
+        expected.load( new InputStreamReader( new ByteArrayInputStream( text.getBytes( "UTF-8" ) ), "UTF-8" ) );
+        assertEquals( expected, parse( text.getBytes( "UTF-8" ) ) );
+    }
+
+    public void testUtf8ByteOrderMarkIsSkipped()
+        throws IOException
+    {
+        Properties parsed = parse( "\uFEFFa=\u00e9\n".getBytes( "UTF-8" ) );
+        assertEquals( 1, parsed.size() );
+        assertEquals( "\u00e9", parsed.get( "a" ) );
+    }
+
+    public void testLargeFile()
+        throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        for( int i = 0; i < 20000; i++ )
+        {
+            text.append( "key." ).append( i ).append( '=' ).append( "value \\\n  " ).append( i ).append( '\n' );
+        }
+        assertLikeProperties( text.toString() );
+    }
+
+    public void testTypedValues()
+        throws IOException
+    {
+        Map<String, Object> typed = new Hashtable<String, Object>();
+        PropertiesFileParser.parseTyped( "port:Integer=8080\nhosts:String[]=a, b\\,c ,d\nk=Integer=1\n"
+            .getBytes( "ISO-8859-1" ), typed );
+
+        assertEquals( Integer.valueOf( 8080 ), typed.get( "port" ) );
+        String[] hosts = (String[]) typed.get( "hosts" );
+        assertEquals( 3, hosts.length );
+        assertEquals( "a", hosts[ 0 ] );
+        assertEquals( "b,c", hosts[ 1 ] );
+        assertEquals( "d", hosts[ 2 ] );
+        assertEquals( "Integer=1", typed.get( "k" ) );
+    }
+
+    public void testTypedContentMatchesTypedFile()
+        throws IOException
+    {
+        byte[] content = "a:Long=1\nb:int[]=1,2\nc=x\n".getBytes( "ISO-8859-1" );
+        parse( content );
+        Map<String, Object> fromFile = new Hashtable<String, Object>();
+        PropertiesFileParser.parseTyped( m_file, fromFile );
+        Map<String, Object> fromContent = new Hashtable<String, Object>();
+        PropertiesFileParser.parseTyped( content, fromContent );
+
+        assertEquals( Long.valueOf( 1 ), fromContent.get( "a" ) );
+        assertEquals( fromFile.keySet(), fromContent.keySet() );
+        assertEquals( fromFile.get( "a" ), fromContent.get( "a" ) );
+        assertEquals( 2, ( (int[]) fromContent.get( "b" ) ).length );
+    }
+
+    public void testInvalidTypedValueIsRejected()
+        throws IOException
+    {
+        try
+        {
+            PropertiesFileParser.parseTyped( "port:Integer=x\n".getBytes( "ISO-8859-1" ),
+                                             new Hashtable<String, Object>() );
+            fail( "Invalid Integer must be rejected." );
+        } catch( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+import org.ops4j.pax.configmanager.ITabularConfigurationFileHandler;
+
+public class TableReaderTest extends TestCase
+{
+
+    private static List<Dictionary<String, Object>> csv( String table )
+        throws IOException
+    {
+        return read( new TableReader( new StringReader( table ), ',', true ) );
+    }
+
+    private static List<Dictionary<String, Object>> tsv( String table )
+        throws IOException
+    {
+        return read( new TableReader( new StringReader( table ), '\t', false ) );
+    }
+
+    private static List<Dictionary<String, Object>> read( ITabularConfigurationFileHandler.Rows rows )
+        throws IOException
+    {
+        List<Dictionary<String, Object>> result = new ArrayList<Dictionary<String, Object>>();
+        try
+        {
+            for( Dictionary<String, Object> row = rows.next(); row != null; row = rows.next() )
+            {
+                result.add( row );
+            }
+        } finally
+        {
+            rows.close();
+        }
+        return result;
+    }
+
+    private static void assertMalformed( String table )
+        throws IOException
+    {
+        try
+        {
+            csv( table );
+            fail( "[" + table + "] must be rejected." );
+        } catch( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+
+    public void testRows()
+        throws IOException
+    {
+        List<Dictionary<String, Object>> rows = csv( "name,host\na,h1\nb,h2\n" );
+
+        assertEquals( 2, rows.size() );
+        assertEquals( "a", rows.get( 0 ).get( "name" ) );
+        assertEquals( "h2", rows.get( 1 ).get( "host" ) );
+    }
+
+    public void testHeaderOnly()
+        throws IOException
+    {
+        assertTrue( csv( "name,host\n" ).isEmpty() );
+        assertTrue( csv( "" ).isEmpty() );
+    }
+
+    public void testQuotedSeparatorIsPartOfValue()
+        throws IOException
+    {
+        Dictionary<String, Object> row = csv( "name,hosts\n\"a,b\",\"x, y, z\"\n" ).get( 0 );
+
+        assertEquals( "a,b", row.get( "name" ) );
+        assertEquals( "x, y, z", row.get( "hosts" ) );
+    }
+
+    public void testQuotedLineBreakIsPartOfValue()
+        throws IOException
+    {
+        List<Dictionary<String, Object>> rows = csv( "name,text\na,\"line 1\nline 2\"\nb,c\n" );
+
+        assertEquals( 2, rows.size() );
+        assertEquals( "line 1\nline 2", rows.get( 0 ).get( "text" ) );
+        assertEquals( "b", rows.get( 1 ).get( "name" ) );
+    }
+
+    public void testDoubledQuoteIsQuote()
+        throws IOException
+    {
+        Dictionary<String, Object> row = csv( "a,b\n\"say \"\"hi\"\"\",\"\"\"\"\n" ).get( 0 );
+
+        assertEquals( "say \"hi\"", row.get( "a" ) );
+        assertEquals( "\"", row.get( "b" ) );
+    }
+
+    public void testQuoteWithinUnquotedValueIsLiteral()
+        throws IOException
+    {
+        assertEquals( "a\"b", csv( "k\na\"b\n" ).get( 0 ).get( "k" ) );
+    }
+
+    public void testEmptyValues()
+        throws IOException
+    {
+        Dictionary<String, Object> row = csv( "a,b,c,d\n,\"\",x\n" ).get( 0 );
+
+        assertNull( "an unquoted empty value is left out", row.get( "a" ) );
+        assertEquals( "", row.get( "b" ) );
+        assertEquals( "x", row.get( "c" ) );
+        assertNull( "a missing value is left out", row.get( "d" ) );
+    }
+
+    public void testTooManyValuesAreRejected()
+        throws IOException
+    {
+        assertMalformed( "a,b\n1,2,3\n" );
+    }
+
+    public void testUnclosedQuoteIsRejected()
+        throws IOException
+    {
+        assertMalformed( "a,b\n1,\"2\n3\n" );
+    }
+
+    public void testCommentsBlankLinesAndLineTerminators()
+        throws IOException
+    {
+        List<Dictionary<String, Object>> rows = csv( "# header follows\r\nk\r\n\r\n# skipped\r\na\r\n\nb\rc" );
+
+        assertEquals( 3, rows.size() );
+        assertEquals( "a", rows.get( 0 ).get( "k" ) );
+        assertEquals( "b", rows.get( 1 ).get( "k" ) );
+        assertEquals( "c", rows.get( 2 ).get( "k" ) );
+    }
+
+    public void testTypeHints()
+        throws IOException
+    {
+        Dictionary<String, Object> row = csv( "name:String, port:Integer ,ratio:Double,url:x\na,80,0.5,http://h\n" )
+            .get( 0 );
+
+        assertEquals( "a", row.get( "name" ) );
+        assertEquals( Integer.valueOf( 80 ), row.get( "port" ) );
+        assertEquals( Double.valueOf( 0.5 ), row.get( "ratio" ) );
+        // a colon that is not followed by a type name is part of the key
+        assertEquals( "http://h", row.get( "url:x" ) );
+    }
+
+    public void testInvalidTypedValueIsRejected()
+        throws IOException
+    {
+        assertMalformed( "port:Integer\nx\n" );
+    }
+
+    public void testMalformedHeaderIsRejected()
+        throws IOException
+    {
+        assertMalformed( "a,a\n" );
+        assertMalformed( "a,,b\n" );
+    }
+
+    public void testTabSeparatedValuesAreNotQuoted()
+        throws IOException
+    {
+        Dictionary<String, Object> row = tsv( "name\ttext\n\"a\"\tx, y;z\n" ).get( 0 );
+
+        assertEquals( "\"a\"", row.get( "name" ) );
+        assertEquals( "x, y;z", row.get( "text" ) );
+    }
+
+    public void testTabSeparatedEmptyValues()
+        throws IOException
+    {
+        Dictionary<String, Object> row = tsv( "a\tb\tc\n\t2\t\n" ).get( 0 );
+
+        assertNull( row.get( "a" ) );
+        assertEquals( "2", row.get( "b" ) );
+        assertNull( row.get( "c" ) );
+    }
+
+    public void testHandlerReadsFileWithByteOrderMark()
+        throws IOException
+    {
+        File file = File.createTempFile( "table", ".csv" );
+        try
+        {
+            OutputStream out = new FileOutputStream( file );
+            try
+            {
+                out.write( "\uFEFFname,port:Integer\n\"a,1\",1\nb,2\n".getBytes( "UTF-8" ) );
+            } finally
+            {
+                out.close();
+            }
+
+            TabularFileConfigurationHandler handler = new TabularFileConfigurationHandler();
+            Properties summary = handler.handle( file );
+            assertEquals( "2", summary.get( "instances" ) );
+            assertEquals( "name,port", summary.get( "keys" ) );
+
+            List<Dictionary<String, Object>> rows = read( handler.openRows( file ) );
+            assertEquals( "a,1", rows.get( 0 ).get( "name" ) );
+            assertEquals( Integer.valueOf( 2 ), rows.get( 1 ).get( "port" ) );
+        } finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.configmanager.internal.handlers;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class YamlParserTest extends TestCase
+{
+
+    private static Properties parse( String yaml )
+        throws IOException
+    {
+        Properties properties = new Properties();
+        YamlParser.parse( new StringReader( yaml ), new PropertiesFlattener( properties ) );
+        return properties;
+    }
+
+    private static void assertMalformed( String yaml )
+        throws IOException
+    {
+        try
+        {
+            parse( yaml );
+            fail( "[" + yaml + "] must be rejected." );
+        } catch( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+
+    public void testNestedMappingsAreFlattened()
+        throws IOException
+    {
+        Properties properties = parse( "db:\n  host: h\n  pool:\n    size: 5\nname: x\n" );
+
+        assertEquals( 3, properties.size() );
+        assertEquals( "h", properties.get( "db.host" ) );
+        assertEquals( Integer.valueOf( 5 ), properties.get( "db.pool.size" ) );
+        assertEquals( "x", properties.get( "name" ) );
+    }
+
+    public void testSequences()
+        throws IOException
+    {
+        Properties properties = parse( "list:\n  - 1\n  - 2\nservers:\n  - host: a\n    port: 1\n  - host: b\n"
+                                       + "flow: [a, b]\nmap: {x: 1, y: [1.5, 2]}\n" );
+
+        assertEquals( 2, ( (Integer[]) properties.get( "list" ) ).length );
+        assertEquals( "a", properties.get( "servers.0.host" ) );
+        assertEquals( Integer.valueOf( 1 ), properties.get( "servers.0.port" ) );
+        assertEquals( "b", properties.get( "servers.1.host" ) );
+        assertEquals( "b", ( (String[]) properties.get( "flow" ) )[ 1 ] );
+        assertEquals( Integer.valueOf( 1 ), properties.get( "map.x" ) );
+        assertEquals( Double.valueOf( 2 ), ( (Double[]) properties.get( "map.y" ) )[ 1 ] );
+    }
+
+    public void testFlowCollectionSpanningLines()
+        throws IOException
+    {
+        assertEquals( 3, ( (Integer[]) parse( "a: [1,\n  2,\n  3]\n" ).get( "a" ) ).length );
+    }
+
+    public void testCoreSchemaScalars()
+        throws IOException
+    {
+        Properties properties = parse( "i: -12\nl: 2147483648\nh: 0x1F\no: 0o17\nd: 1.5\ne: 1e3\ninf: -.inf\n"
+                                       + "t: true\nf: False\nn: ~\nempty:\ns: yes\nu: 1_000\n" );
+
+        assertEquals( Integer.valueOf( -12 ), properties.get( "i" ) );
+        assertEquals( Long.valueOf( 2147483648L ), properties.get( "l" ) );
+        assertEquals( Integer.valueOf( 31 ), properties.get( "h" ) );
+        assertEquals( Integer.valueOf( 15 ), properties.get( "o" ) );
+        assertEquals( Double.valueOf( 1.5 ), properties.get( "d" ) );
+        assertEquals( Double.valueOf( 1000 ), properties.get( "e" ) );
+        assertEquals( Double.valueOf( Double.NEGATIVE_INFINITY ), properties.get( "inf" ) );
+        assertEquals( Boolean.TRUE, properties.get( "t" ) );
+        assertEquals( Boolean.FALSE, properties.get( "f" ) );
+        assertFalse( properties.containsKey( "n" ) );
+        assertFalse( properties.containsKey( "empty" ) );
+        // YAML 1.1 booleans and digit separators are strings in the core schema
+        assertEquals( "yes", properties.get( "s" ) );
+        assertEquals( "1_000", properties.get( "u" ) );
+    }
+
+    public void testQuoting()
+        throws IOException
+    {
+        Properties properties = parse( "s: 'it''s'\nd: \"a\\tb\\u00e9\"\nn: '1'\nb: \"true\"\nc: 'a: b'\n"
+                                       + "h: \"# not a comment\"\n" );
+
+        assertEquals( "it's", properties.get( "s" ) );
+        assertEquals( "a\tb\u00e9", properties.get( "d" ) );
+        assertEquals( "1", properties.get( "n" ) );
+        assertEquals( "true", properties.get( "b" ) );
+        assertEquals( "a: b", properties.get( "c" ) );
+        assertEquals( "# not a comment", properties.get( "h" ) );
+    }
+
+    public void testCommentsAndPlainScalars()
+        throws IOException
+    {
+        Properties properties = parse( "# header\na: x # comment\nurl: http://host:80/path\nhash: a#b\n" );
+
+        assertEquals( "x", properties.get( "a" ) );
+        assertEquals( "http://host:80/path", properties.get( "url" ) );
+        assertEquals( "a#b", properties.get( "hash" ) );
+    }
+
+    public void testBlockScalars()
+        throws IOException
+    {
+        Properties properties = parse( "lit: |\n  a\n  b\nfold: >\n  a\n  b\nkeep: |+\n  a\n\nstrip: |-\n  a\n" );
+
+        assertEquals( "a\nb\n", properties.get( "lit" ) );
+        assertEquals( "a b\n", properties.get( "fold" ) );
+        assertEquals( "a\n\n", properties.get( "keep" ) );
+        assertEquals( "a", properties.get( "strip" ) );
+    }
+
+    public void testDocumentMarkers()
+        throws IOException
+    {
+        assertEquals( Integer.valueOf( 1 ), parse( "---\na: 1\n...\n" ).get( "a" ) );
+    }
+
+    public void testUnsupportedFeaturesAreRejected()
+        throws IOException
+    {
+        assertMalformed( "a: &x 1\nb: *x\n" );
+        assertMalformed( "a: !!str 1\n" );
+        assertMalformed( "a: 1\n---\nb: 2\n" );
+        assertMalformed( "? a\n: b\n" );
+        assertMalformed( "a: b\n  c\n" );
+    }
+
+    public void testMalformedDocuments()
+        throws IOException
+    {
+        assertMalformed( "- 1\n- 2\n" );
+        assertMalformed( "a:\n  - 1\n   - 2\n" );
+        assertMalformed( "a: [1, 2\n" );
+        assertMalformed( "a: {x: 1\n" );
+        assertMalformed( "a: 'x\n" );
+        assertMalformed( "a: \"x\n" );
+    }
+}